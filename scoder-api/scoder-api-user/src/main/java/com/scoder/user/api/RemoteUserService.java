@@ -12,6 +12,8 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 
+import java.util.List;
+
 /**
  * Remote User Service API.
  * <p>
@@ -65,4 +67,17 @@ public interface RemoteUserService {
      */
     @GetMapping("/{userId}")
     public AjaxResult<SysUser> getUserById(@PathVariable(value = "userId") Long userId);
+
+    /**
+     * Retrieve the public profiles of several users.
+     * <p>
+     * Sends a single POST request for all IDs, so that callers showing lists of users do not
+     * need one request per user.
+     *
+     * @param userIds the IDs of the users to search for
+     * @return an AjaxResult containing the users found, with only their ID, username,
+     * nickname and avatar set
+     */
+    @PostMapping("/getUsersByIds")
+    public AjaxResult<List<SysUser>> getUsersByIds(@RequestBody List<Long> userIds);
 }
\ No newline at end of file
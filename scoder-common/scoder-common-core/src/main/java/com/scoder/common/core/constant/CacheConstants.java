@@ -48,4 +48,10 @@ public class CacheConstants {
      * This is another way to refer to the authorization header.
      */
     public static final String AUTHORIZATION_HEADER = "authorization";
+
+    /**
+     * Redis pub/sub channel that carries the IDs of users whose profile has changed.
+     * Services that cache user profiles subscribe to it to drop their copies.
+     */
+    public static final String USER_PROFILE_CHANNEL = "user:profile:changed";
 }
\ No newline at end of file
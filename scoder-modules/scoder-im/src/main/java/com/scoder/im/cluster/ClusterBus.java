@@ -0,0 +1,27 @@
+package com.scoder.im.cluster;
+
+import java.util.function.Consumer;
+
+/**
+ * Point-to-point message transport between IM nodes. Every node listens on its own channel.
+ *
+ * @author Shawn Cui
+ */
+public interface ClusterBus {
+
+    /**
+     * Sends a message to the channel of the target node.
+     *
+     * @param nodeId  The receiving node.
+     * @param message The serialized message.
+     */
+    void publish(String nodeId, String message);
+
+    /**
+     * Starts listening on the channel of the given node.
+     *
+     * @param nodeId   The node whose channel to listen on.
+     * @param listener Callback invoked with each received message.
+     */
+    void subscribe(String nodeId, Consumer<String> listener);
+}
@@ -0,0 +1,39 @@
+package com.scoder.im.cluster;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Delivers outgoing payloads to users connected to this node.
+ * <p>
+ * The {@link MessageRouter} uses this interface to decide which recipients can be served
+ * locally and to hand over payloads that arrive from other nodes.
+ *
+ * @author Shawn Cui
+ */
+public interface LocalDelivery {
+
+    /**
+     * Checks whether the user has an active connection on this node.
+     *
+     * @param userId The user ID.
+     * @return true if the user is connected here.
+     */
+    boolean isLocal(Long userId);
+
+    /**
+     * Sends the payload to those of the given users that are connected to this node.
+     *
+     * @param payload The frame fields.
+     * @param userIds The recipients.
+     * @return The number of connections the payload was written to.
+     */
+    int deliver(Map<String, String> payload, Collection<Long> userIds);
+
+    /**
+     * Lists every user currently connected to this node.
+     *
+     * @return The IDs of the connected users.
+     */
+    Collection<Long> localUserIds();
+}
@@ -0,0 +1,401 @@
+package com.scoder.im.cluster;
+
+import com.alibaba.fastjson.JSON;
+import com.scoder.common.core.utils.IdUtils;
+import com.scoder.common.core.utils.StringUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MessageRouter delivers payloads to users regardless of which IM node they are connected to.
+ * <p>
+ * Recipients connected to this node are served directly through {@link LocalDelivery}. Since
+ * a user may have devices on several nodes, every recipient is then collected for a short
+ * batch window, local ones included; the router resolves their nodes with one
+ * {@link PresenceStore} lookup and publishes a single {@link RouteBatch} per other node on
+ * the {@link ClusterBus}. All cluster work runs on one background thread,
+ * so the Netty event loops never wait on Redis and forwarded messages keep their order.
+ * <p>
+ * When no presence store or bus is configured ({@code im.cluster.enabled=false}), the router
+ * only delivers locally. Recipients that are not connected to any node are handed to the
+ * {@link OfflineStore} so they can catch up when they reconnect.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class MessageRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageRouter.class);
+
+    /**
+     * Identifier of this node in the cluster. Generated at startup when not configured.
+     */
+    @Value("${im.cluster.node-id:}")
+    private String nodeId;
+
+    /**
+     * How long a presence entry stays valid without a heartbeat.
+     */
+    @Value("${im.cluster.presence-ttl-ms:90000}")
+    private long presenceTtlMs;
+
+    /**
+     * How long remote deliveries are collected before they are published.
+     */
+    @Value("${im.cluster.batch-window-ms:5}")
+    private long batchWindowMs;
+
+    /**
+     * Number of pending remote deliveries that triggers an early publish.
+     */
+    @Value("${im.cluster.batch-size:256}")
+    private int batchSize;
+
+    @Autowired
+    private LocalDelivery localDelivery;
+
+    @Autowired(required = false)
+    private PresenceStore presenceStore;
+
+    @Autowired(required = false)
+    private ClusterBus clusterBus;
+
+    @Autowired(required = false)
+    private OfflineStore offlineStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final ConcurrentLinkedQueue<PendingRoute> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private ScheduledExecutorService executor;
+    private Counter forwardedCounter;
+    private Counter receivedCounter;
+    private Counter unreachableCounter;
+
+    /**
+     * Subscribes to this node's channel and starts the batch and heartbeat tasks.
+     */
+    @PostConstruct
+    public void init() {
+        if (!isClustered()) {
+            log.info("Cluster routing is disabled, messages are delivered to local connections only");
+            return;
+        }
+        if (StringUtils.isEmpty(nodeId)) {
+            nodeId = IdUtils.fastSimpleUUID();
+        }
+        forwardedCounter = meterRegistry.counter("im.cluster.forwarded");
+        receivedCounter = meterRegistry.counter("im.cluster.received");
+        unreachableCounter = meterRegistry.counter("im.cluster.unreachable");
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "im-cluster-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+        clusterBus.subscribe(nodeId, this::onBatch);
+        executor.scheduleWithFixedDelay(this::flushPending, batchWindowMs, batchWindowMs, TimeUnit.MILLISECONDS);
+        long heartbeatMs = Math.max(1000L, presenceTtlMs / 3);
+        executor.scheduleWithFixedDelay(this::heartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        log.info("Cluster routing enabled, node id: {}", nodeId);
+    }
+
+    /**
+     * Publishes outstanding deliveries and removes this node's presence entries.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+            flushPending();
+            for (Long userId : localDelivery.localUserIds()) {
+                presenceStore.unregister(userId, nodeId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Failed to clean up cluster routing state: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Checks whether cross-node routing is active.
+     *
+     * @return true if a presence store and a cluster bus are available.
+     */
+    public boolean isClustered() {
+        return presenceStore != null && clusterBus != null;
+    }
+
+    /**
+     * Returns the identifier of this node.
+     *
+     * @return The node ID, or null when clustering is disabled.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Routes a payload to a single user.
+     *
+     * @param payload The frame fields.
+     * @param userId  The recipient.
+     * @return The number of local connections the payload was written to.
+     */
+    public int route(Map<String, String> payload, Long userId) {
+        return route(payload, Collections.singletonList(userId));
+    }
+
+    /**
+     * Routes a payload to a set of users. Local recipients are written immediately; in cluster
+     * mode every recipient is also forwarded to the other nodes holding one of their
+     * connections after the batch window.
+     *
+     * @param payload The frame fields.
+     * @param userIds The recipients.
+     * @return The number of local connections the payload was written to.
+     */
+    public int route(Map<String, String> payload, Collection<Long> userIds) {
+        List<Long> local = new ArrayList<>(userIds.size());
+        List<Long> remote = null;
+        for (Long userId : userIds) {
+            if (localDelivery.isLocal(userId)) {
+                local.add(userId);
+            } else {
+                if (remote == null) {
+                    remote = new ArrayList<>();
+                }
+                remote.add(userId);
+            }
+        }
+        int delivered = local.isEmpty() ? 0 : localDelivery.deliver(payload, local);
+        if (!isClustered()) {
+            if (remote != null) {
+                storeOffline(payload, remote);
+            }
+            return delivered;
+        }
+        if (local.isEmpty() && remote == null) {
+            return delivered;
+        }
+        // Local recipients may have further devices on other nodes
+        pending.add(new PendingRoute(payload, local, remote != null ? remote : Collections.emptyList()));
+        if (pendingCount.incrementAndGet() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+            submit(this::flushPending);
+        }
+        return delivered;
+    }
+
+    /**
+     * Records that a user connected to this node.
+     *
+     * @param userId The user ID.
+     */
+    public void userOnline(Long userId) {
+        if (isClustered()) {
+            submit(() -> presenceStore.register(userId, nodeId, presenceTtlMs));
+        }
+    }
+
+    /**
+     * Records that a user no longer has a connection on this node.
+     *
+     * @param userId The user ID.
+     */
+    public void userOffline(Long userId) {
+        if (isClustered()) {
+            submit(() -> presenceStore.unregister(userId, nodeId));
+        }
+    }
+
+    /**
+     * Resolves the nodes of all pending recipients with one lookup and publishes one batch per
+     * other node. Recipients that were neither delivered here nor found on another node are
+     * stored offline.
+     */
+    void flushPending() {
+        flushScheduled.set(false);
+        List<PendingRoute> routes = new ArrayList<>();
+        PendingRoute next;
+        while ((next = pending.poll()) != null) {
+            routes.add(next);
+        }
+        if (routes.isEmpty()) {
+            return;
+        }
+        pendingCount.addAndGet(-routes.size());
+        try {
+            Set<Long> userIds = new HashSet<>();
+            for (PendingRoute route : routes) {
+                userIds.addAll(route.local);
+                userIds.addAll(route.remote);
+            }
+            Map<Long, Set<String>> owners = presenceStore.lookup(userIds);
+
+            Map<String, List<RouteEnvelope>> batches = new HashMap<>();
+            for (PendingRoute route : routes) {
+                Map<String, List<Long>> usersByNode = new HashMap<>();
+                for (Long userId : route.local) {
+                    addOtherNodes(owners.get(userId), userId, usersByNode);
+                }
+                List<Long> offline = new ArrayList<>();
+                for (Long userId : route.remote) {
+                    // A user registered only on this node was not deliverable here, e.g. a throttled channel
+                    if (!addOtherNodes(owners.get(userId), userId, usersByNode)) {
+                        offline.add(userId);
+                    }
+                }
+                unreachableCounter.increment(offline.size());
+                storeOffline(route.payload, offline);
+                for (Map.Entry<String, List<Long>> entry : usersByNode.entrySet()) {
+                    RouteEnvelope forwarded = new RouteEnvelope();
+                    forwarded.setPayload(route.payload);
+                    forwarded.setUserIds(entry.getValue());
+                    batches.computeIfAbsent(entry.getKey(), key -> new ArrayList<>()).add(forwarded);
+                }
+            }
+
+            for (Map.Entry<String, List<RouteEnvelope>> entry : batches.entrySet()) {
+                RouteBatch batch = new RouteBatch();
+                batch.setSourceNode(nodeId);
+                batch.setEnvelopes(entry.getValue());
+                clusterBus.publish(entry.getKey(), JSON.toJSONString(batch));
+                forwardedCounter.increment(entry.getValue().size());
+            }
+        } catch (Exception e) {
+            log.error("Failed to forward {} messages to other nodes: {}", routes.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a user to the recipients of each node other than this one that holds a connection
+     * of the user.
+     *
+     * @param nodes       The nodes of the user, or null if the user is not connected anywhere.
+     * @param userId      The user ID.
+     * @param usersByNode The recipients per node.
+     * @return true if the user is connected to another node.
+     */
+    private boolean addOtherNodes(Set<String> nodes, Long userId, Map<String, List<Long>> usersByNode) {
+        boolean elsewhere = false;
+        if (nodes != null) {
+            for (String node : nodes) {
+                if (!node.equals(nodeId)) {
+                    usersByNode.computeIfAbsent(node, key -> new ArrayList<>()).add(userId);
+                    elsewhere = true;
+                }
+            }
+        }
+        return elsewhere;
+    }
+
+    /**
+     * Delivers a batch received from another node to the local connections it names.
+     *
+     * @param message The serialized {@link RouteBatch}.
+     */
+    void onBatch(String message) {
+        try {
+            RouteBatch batch = JSON.parseObject(message, RouteBatch.class);
+            for (RouteEnvelope envelope : batch.getEnvelopes()) {
+                // Users may have disconnected while the batch was in flight
+                List<Long> online = new ArrayList<>(envelope.getUserIds().size());
+                List<Long> offline = new ArrayList<>();
+                for (Long userId : envelope.getUserIds()) {
+                    (localDelivery.isLocal(userId) ? online : offline).add(userId);
+                }
+                localDelivery.deliver(envelope.getPayload(), online);
+                storeOffline(envelope.getPayload(), offline);
+                receivedCounter.increment();
+            }
+        } catch (Exception e) {
+            log.error("Failed to process batch from another node: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Hands undeliverable payloads to the offline store, if one is configured.
+     *
+     * @param payload The frame fields.
+     * @param userIds The users that could not be reached.
+     */
+    private void storeOffline(Map<String, String> payload, List<Long> userIds) {
+        if (offlineStore != null && !userIds.isEmpty()) {
+            offlineStore.store(payload, userIds);
+        }
+    }
+
+    /**
+     * Runs a task on the router thread, ignoring it once the router has been shut down.
+     *
+     * @param task The task to run.
+     */
+    private void submit(Runnable task) {
+        if (executor != null && !executor.isShutdown()) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                log.debug("Cluster router is shutting down, task dropped");
+            }
+        }
+    }
+
+    /**
+     * Extends the presence entries of every user connected to this node.
+     */
+    private void heartbeat() {
+        try {
+            presenceStore.refresh(localDelivery.localUserIds(), nodeId, presenceTtlMs);
+        } catch (Exception e) {
+            log.warn("Presence heartbeat failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * A payload waiting for the batch window, with the recipients already served on this node
+     * and those that were not.
+     */
+    private static final class PendingRoute {
+
+        private final Map<String, String> payload;
+        private final List<Long> local;
+        private final List<Long> remote;
+
+        private PendingRoute(Map<String, String> payload, List<Long> local, List<Long> remote) {
+            this.payload = payload;
+            this.local = local;
+            this.remote = remote;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.scoder.im.cluster;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Keeps payloads for users that could not be reached on any node, so that they can be
+ * replayed when the user reconnects.
+ *
+ * @author Shawn Cui
+ */
+public interface OfflineStore {
+
+    /**
+     * Stores the payload for each of the given users.
+     *
+     * @param payload The frame fields.
+     * @param userIds The users that were not reachable.
+     */
+    void store(Map<String, String> payload, Collection<Long> userIds);
+}
@@ -0,0 +1,51 @@
+package com.scoder.im.cluster;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shared registry of which IM node each user is connected to.
+ * <p>
+ * Entries expire unless they are refreshed, so users of a node that dies without
+ * cleaning up disappear from the registry after one TTL.
+ *
+ * @author Shawn Cui
+ */
+public interface PresenceStore {
+
+    /**
+     * Records that the user is connected to the given node.
+     *
+     * @param userId    The user ID.
+     * @param nodeId    The node the user is connected to.
+     * @param ttlMillis How long the entry stays valid without a refresh.
+     */
+    void register(Long userId, String nodeId, long ttlMillis);
+
+    /**
+     * Removes the user's entry for the given node only.
+     *
+     * @param userId The user ID.
+     * @param nodeId The node the user disconnected from.
+     */
+    void unregister(Long userId, String nodeId);
+
+    /**
+     * Extends the entries of all users connected to the given node.
+     *
+     * @param userIds   The users connected to the node.
+     * @param nodeId    The node ID.
+     * @param ttlMillis The new validity period.
+     */
+    void refresh(Collection<Long> userIds, String nodeId, long ttlMillis);
+
+    /**
+     * Finds the nodes each user is connected to. Users that are not connected anywhere
+     * are left out of the result.
+     *
+     * @param userIds The users to look up.
+     * @return A map from user ID to the IDs of the nodes holding a connection for that user.
+     */
+    Map<Long, Set<String>> lookup(Collection<Long> userIds);
+}
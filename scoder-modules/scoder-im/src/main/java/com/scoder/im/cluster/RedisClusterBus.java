@@ -0,0 +1,42 @@
+package com.scoder.im.cluster;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Redis pub/sub implementation of {@link ClusterBus}. Node {@code X} listens on the
+ * channel {@code im:route:X}.
+ *
+ * @author Shawn Cui
+ */
+@Component
+@ConditionalOnProperty(prefix = "im.cluster", name = "enabled", havingValue = "true")
+public class RedisClusterBus implements ClusterBus {
+
+    private static final String CHANNEL_PREFIX = "im:route:";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Override
+    public void publish(String nodeId, String message) {
+        redisTemplate.convertAndSend(CHANNEL_PREFIX + nodeId, message);
+    }
+
+    @Override
+    public void subscribe(String nodeId, Consumer<String> listener) {
+        listenerContainer.addMessageListener(
+                (message, pattern) -> listener.accept(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CHANNEL_PREFIX + nodeId));
+    }
+}
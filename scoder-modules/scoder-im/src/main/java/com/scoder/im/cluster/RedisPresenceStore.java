@@ -0,0 +1,103 @@
+package com.scoder.im.cluster;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisHashCommands;
+import org.springframework.data.redis.connection.RedisKeyCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Redis implementation of {@link PresenceStore}.
+ * <p>
+ * Each user has a hash {@code im:presence:<userId>} whose fields are node IDs and whose
+ * values are the time until which that node's entry is valid. The key itself carries a TTL
+ * that is extended on every heartbeat, so the hash disappears when no node refreshes it.
+ * Per-field expiry times let a user stay registered on several nodes at once.
+ *
+ * @author Shawn Cui
+ */
+@Component
+@ConditionalOnProperty(prefix = "im.cluster", name = "enabled", havingValue = "true")
+public class RedisPresenceStore implements PresenceStore {
+
+    private static final String KEY_PREFIX = "im:presence:";
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Override
+    public void register(Long userId, String nodeId, long ttlMillis) {
+        refresh(Collections.singletonList(userId), nodeId, ttlMillis);
+    }
+
+    @Override
+    public void unregister(Long userId, String nodeId) {
+        redisTemplate.opsForHash().delete(KEY_PREFIX + userId, nodeId);
+    }
+
+    @Override
+    public void refresh(Collection<Long> userIds, String nodeId, long ttlMillis) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        byte[] field = bytes(nodeId);
+        byte[] expiresAt = bytes(Long.toString(System.currentTimeMillis() + ttlMillis));
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            RedisHashCommands hashCommands = connection.hashCommands();
+            RedisKeyCommands keyCommands = connection.keyCommands();
+            for (Long userId : userIds) {
+                byte[] key = bytes(KEY_PREFIX + userId);
+                hashCommands.hSet(key, field, expiresAt);
+                keyCommands.pExpire(key, ttlMillis);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<Long, Set<String>> lookup(Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<Long> ids = new ArrayList<>(userIds);
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            RedisHashCommands hashCommands = connection.hashCommands();
+            for (Long userId : ids) {
+                hashCommands.hGetAll(bytes(KEY_PREFIX + userId));
+            }
+            return null;
+        });
+
+        long now = System.currentTimeMillis();
+        Map<Long, Set<String>> owners = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            Map<String, String> entries = (Map<String, String>) results.get(i);
+            if (entries == null || entries.isEmpty()) {
+                continue;
+            }
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (Long.parseLong(entry.getValue()) > now) {
+                    owners.computeIfAbsent(ids.get(i), id -> new HashSet<>()).add(entry.getKey());
+                }
+            }
+        }
+        return owners;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,24 @@
+package com.scoder.im.cluster;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A group of envelopes published to one node in a single cluster message.
+ *
+ * @author Shawn Cui
+ */
+@Data
+public class RouteBatch {
+
+    /**
+     * The node that sent the batch.
+     */
+    private String sourceNode;
+
+    /**
+     * The forwarded payloads.
+     */
+    private List<RouteEnvelope> envelopes;
+}
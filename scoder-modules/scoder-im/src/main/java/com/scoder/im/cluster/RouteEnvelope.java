@@ -0,0 +1,25 @@
+package com.scoder.im.cluster;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One payload forwarded to another node, together with the users on that node who should receive it.
+ *
+ * @author Shawn Cui
+ */
+@Data
+public class RouteEnvelope {
+
+    /**
+     * The frame fields to deliver.
+     */
+    private Map<String, String> payload;
+
+    /**
+     * The recipients connected to the target node.
+     */
+    private List<Long> userIds;
+}
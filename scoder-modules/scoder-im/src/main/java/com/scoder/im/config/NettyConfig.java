@@ -1,12 +1,9 @@
 package com.scoder.im.config;
 
-import io.netty.channel.Channel;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.util.concurrent.GlobalEventExecutor;
 
-import java.util.concurrent.ConcurrentHashMap;
-
 public class NettyConfig {
 
     /**
@@ -15,9 +12,9 @@ public class NettyConfig {
     private static final ChannelGroup CHANNEL_GROUP = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
     /**
-     * Manages the mapping between user IDs and their associated channels.
+     * Manages the mapping between user IDs and the channels of their devices.
      */
-    private static final ConcurrentHashMap<String, Channel> USER_CHANNEL_MAP = new ConcurrentHashMap<>();
+    private static final UserChannelRegistry USER_CHANNELS = new UserChannelRegistry(1 << 16);
 
     private NettyConfig() {
         // Prevent instantiation
@@ -33,11 +30,11 @@ public class NettyConfig {
     }
 
     /**
-     * Retrieves the mapping of user IDs to their associated channels.
+     * Retrieves the mapping of user IDs to the channels of their devices.
      *
-     * @return A ConcurrentHashMap containing user ID to channel mappings.
+     * @return The registry of user channels.
      */
-    public static ConcurrentHashMap<String, Channel> getUserChannelMap() {
-        return USER_CHANNEL_MAP;
+    public static UserChannelRegistry getUserChannels() {
+        return USER_CHANNELS;
     }
 }
\ No newline at end of file
@@ -0,0 +1,255 @@
+package com.scoder.im.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Settings of the Netty WebSocket server, bound from {@code webSocket.netty.*}.
+ * <p>
+ * The defaults match the previous hard-coded server, except that epoll is used when the
+ * native transport is available.
+ *
+ * @author Shawn Cui
+ */
+@Configuration
+@ConfigurationProperties(prefix = "web-socket.netty")
+public class NettyProperties {
+
+    /**
+     * Port on which the WebSocket server listens.
+     */
+    private int port = 58080;
+
+    /**
+     * WebSocket endpoint path.
+     */
+    private String path = "/webSocket";
+
+    /**
+     * Transport to use: "auto" picks epoll when available and NIO otherwise,
+     * "epoll" and "nio" force one (epoll still falls back to NIO if it cannot be loaded).
+     */
+    private String transport = "auto";
+
+    /**
+     * Number of acceptor threads. With SO_REUSEPORT on epoll, one listening socket is bound per thread.
+     */
+    private int bossThreads = 1;
+
+    /**
+     * Number of I/O threads, 0 for Netty's default of twice the number of cores.
+     */
+    private int workerThreads = 0;
+
+    /**
+     * Maximum length of the queue of pending connections.
+     */
+    private int soBacklog = 1024;
+
+    /**
+     * Whether Nagle's algorithm is disabled on client connections.
+     */
+    private boolean tcpNoDelay = true;
+
+    /**
+     * Whether TCP keep-alive is enabled on client connections.
+     */
+    private boolean soKeepAlive = true;
+
+    /**
+     * Whether several listening sockets share the port (epoll only).
+     */
+    private boolean reusePort = false;
+
+    /**
+     * Outbound bytes below which a channel becomes writable again.
+     */
+    private int writeBufferLowWaterMark = 32 * 1024;
+
+    /**
+     * Outbound bytes above which a channel stops being writable.
+     */
+    private int writeBufferHighWaterMark = 64 * 1024;
+
+    /**
+     * Whether buffers come from the pooled allocator.
+     */
+    private boolean pooledAllocator = true;
+
+    /**
+     * Whether the permessage-deflate extension is offered to clients that ask for it.
+     */
+    private boolean compression = true;
+
+    /**
+     * Deflate level from 1 (fastest) to 9 (smallest).
+     */
+    private int compressionLevel = 6;
+
+    /**
+     * Outgoing frames smaller than this many bytes are sent uncompressed.
+     */
+    private int compressionThreshold = 1024;
+
+    /**
+     * Whether compression state is dropped after every message. Keeping it compresses a
+     * conversation better, but holds a deflater of about 256 KB per connection for its whole
+     * lifetime; dropping it only uses that memory while a message is being compressed.
+     */
+    private boolean compressionNoContextTakeover = true;
+
+    /**
+     * Seconds without any data from a client after which its connection is closed, 0 to disable.
+     * Must be longer than the writer idle time so that clients get a PING to answer first.
+     */
+    private int readerIdleSeconds = 90;
+
+    /**
+     * Seconds without any data sent to a client after which the server sends a PING, 0 to disable.
+     */
+    private int writerIdleSeconds = 30;
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getSoBacklog() {
+        return soBacklog;
+    }
+
+    public void setSoBacklog(int soBacklog) {
+        this.soBacklog = soBacklog;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isSoKeepAlive() {
+        return soKeepAlive;
+    }
+
+    public void setSoKeepAlive(boolean soKeepAlive) {
+        this.soKeepAlive = soKeepAlive;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public void setWriteBufferLowWaterMark(int writeBufferLowWaterMark) {
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferHighWaterMark(int writeBufferHighWaterMark) {
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    public boolean isPooledAllocator() {
+        return pooledAllocator;
+    }
+
+    public void setPooledAllocator(boolean pooledAllocator) {
+        this.pooledAllocator = pooledAllocator;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isCompressionNoContextTakeover() {
+        return compressionNoContextTakeover;
+    }
+
+    public void setCompressionNoContextTakeover(boolean compressionNoContextTakeover) {
+        this.compressionNoContextTakeover = compressionNoContextTakeover;
+    }
+
+    public int getReaderIdleSeconds() {
+        return readerIdleSeconds;
+    }
+
+    public void setReaderIdleSeconds(int readerIdleSeconds) {
+        this.readerIdleSeconds = readerIdleSeconds;
+    }
+
+    public int getWriterIdleSeconds() {
+        return writerIdleSeconds;
+    }
+
+    public void setWriterIdleSeconds(int writerIdleSeconds) {
+        this.writerIdleSeconds = writerIdleSeconds;
+    }
+}
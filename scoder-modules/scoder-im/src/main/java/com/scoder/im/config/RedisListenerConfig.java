@@ -0,0 +1,28 @@
+package com.scoder.im.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * Provides the shared Redis pub/sub listener container used for messages between IM nodes.
+ *
+ * @author Shawn Cui
+ */
+@Configuration
+public class RedisListenerConfig {
+
+    /**
+     * Creates the listener container. Subscriptions are added by the components that need them.
+     *
+     * @param connectionFactory The Redis connection factory.
+     * @return The listener container.
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+}
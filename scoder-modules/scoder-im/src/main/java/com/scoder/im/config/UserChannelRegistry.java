@@ -0,0 +1,135 @@
+package com.scoder.im.config;
+
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * UserChannelRegistry maps each online user to the channels of all of their devices.
+ * <p>
+ * Every user owns an immutable {@code Channel[]}. Binding and unbinding copy the array and
+ * swap it in with {@link ConcurrentHashMap#replace(Object, Object, Object)}, retrying if another
+ * device of the same user changed it in between, so no lock is held around the update and
+ * readers never block or see a partially updated set. Users have only a few devices, so the
+ * copies are tiny. Keys are {@code Long} user IDs, which avoids building a String for every
+ * lookup on the delivery path and keeps an entry small enough for hundreds of thousands of
+ * users on one node.
+ *
+ * @author Shawn Cui
+ */
+public final class UserChannelRegistry {
+
+    private static final Channel[] NONE = new Channel[0];
+
+    private final ConcurrentHashMap<Long, Channel[]> channels;
+
+    /**
+     * Creates a registry.
+     *
+     * @param expectedUsers The number of users the table is sized for up front.
+     */
+    public UserChannelRegistry(int expectedUsers) {
+        this.channels = new ConcurrentHashMap<>(expectedUsers);
+    }
+
+    /**
+     * Adds a device channel to a user.
+     *
+     * @param userId  The user ID.
+     * @param channel The channel of the device.
+     * @return The number of channels the user has afterwards; 1 means the user just came online.
+     */
+    public int bind(Long userId, Channel channel) {
+        for (;;) {
+            Channel[] current = channels.get(userId);
+            if (current == null) {
+                if (channels.putIfAbsent(userId, new Channel[]{channel}) == null) {
+                    return 1;
+                }
+                continue;
+            }
+            if (indexOf(current, channel) >= 0) {
+                return current.length;
+            }
+            Channel[] updated = new Channel[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = channel;
+            if (channels.replace(userId, current, updated)) {
+                return updated.length;
+            }
+        }
+    }
+
+    /**
+     * Removes a device channel from a user.
+     *
+     * @param userId  The user ID.
+     * @param channel The channel of the device.
+     * @return The number of channels the user has left, 0 when the user went offline, or -1 if
+     * the channel was not bound to the user.
+     */
+    public int unbind(Long userId, Channel channel) {
+        for (;;) {
+            Channel[] current = channels.get(userId);
+            int index = current == null ? -1 : indexOf(current, channel);
+            if (index < 0) {
+                return -1;
+            }
+            if (current.length == 1) {
+                if (channels.remove(userId, current)) {
+                    return 0;
+                }
+                continue;
+            }
+            Channel[] updated = new Channel[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, updated.length - index);
+            if (channels.replace(userId, current, updated)) {
+                return updated.length;
+            }
+        }
+    }
+
+    /**
+     * Returns the channels of a user. The array is shared and must not be modified.
+     *
+     * @param userId The user ID.
+     * @return The user's channels, empty if the user has none.
+     */
+    public Channel[] channels(Long userId) {
+        Channel[] current = channels.get(userId);
+        return current == null ? NONE : current;
+    }
+
+    /**
+     * Returns the IDs of all users with at least one channel.
+     *
+     * @return A snapshot of the user IDs.
+     */
+    public Collection<Long> userIds() {
+        List<Long> userIds = new ArrayList<>(channels.size());
+        userIds.addAll(channels.keySet());
+        return userIds;
+    }
+
+    /**
+     * Returns the number of users with at least one channel.
+     *
+     * @return The number of online users.
+     */
+    public int size() {
+        return channels.size();
+    }
+
+    private static int indexOf(Channel[] channels, Channel channel) {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] == channel) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,6 +1,7 @@
 package com.scoder.im.controller;
 
 import com.scoder.common.core.web.domain.AjaxResult;
+import com.scoder.common.core.web.page.TableDataInfo;
 import com.scoder.im.api.domain.Group;
 import com.scoder.im.domain.ChatMessage;
 import com.scoder.im.domain.vos.ChatMessageVo;
@@ -39,25 +40,82 @@ public class IMController {
     }
 
     /**
-     * Fetches the chat history for a specific user.
+     * Fetches one page of the chat history between two users. Without a cursor the latest
+     * messages are returned; pass the timestamp and ID of the oldest message as {@code before}
+     * and {@code beforeId} to load older ones, or of the newest message as {@code after} and
+     * {@code afterId} to catch up. The ID keeps messages of the same millisecond from being
+     * skipped at the page boundary; without it only the timestamp is compared.
      *
-     * @param userId The ID of the user whose chat history is being retrieved.
-     * @return A successful response containing a list of chat messages.
+     * @param userId     The ID of the user whose chat history is being retrieved.
+     * @param receiverId The ID of the other participant.
+     * @param before     Optional cursor, exclusive upper bound on the timestamp.
+     * @param beforeId   Optional ID of the message at {@code before}.
+     * @param after      Optional cursor, exclusive lower bound on the timestamp.
+     * @param afterId    Optional ID of the message at {@code after}.
+     * @param limit      The maximum number of messages to return.
+     * @return A successful response containing a list of chat messages, oldest first.
      */
     @GetMapping("/getDirectChatHistory/{userId}/{receiverId}")
-    public AjaxResult<List<ChatMessage>> getDirectChatHistory(@PathVariable Long userId, @PathVariable("receiverId") Long receiverId) {
-        return AjaxResult.success(chatService.getDirectChatHistory(userId, receiverId));
+    public AjaxResult<List<ChatMessage>> getDirectChatHistory(@PathVariable Long userId, @PathVariable("receiverId") Long receiverId,
+                                                              @RequestParam(required = false) Long before,
+                                                              @RequestParam(required = false) String beforeId,
+                                                              @RequestParam(required = false) Long after,
+                                                              @RequestParam(required = false) String afterId,
+                                                              @RequestParam(defaultValue = "50") int limit) {
+        return AjaxResult.success(chatService.getDirectChatHistory(userId, receiverId, before, beforeId, after, afterId, limit));
     }
 
     /**
-     * Fetches the chat history for a specific group.
+     * Fetches one page of the chat history for a specific group, using the same cursors
+     * as {@link #getDirectChatHistory}.
      *
-     * @param teamId The ID of the group whose chat history is being retrieved.
-     * @return A successful response containing a list of chat messages.
+     * @param teamId   The ID of the group whose chat history is being retrieved.
+     * @param before   Optional cursor, exclusive upper bound on the timestamp.
+     * @param beforeId Optional ID of the message at {@code before}.
+     * @param after    Optional cursor, exclusive lower bound on the timestamp.
+     * @param afterId  Optional ID of the message at {@code after}.
+     * @param limit    The maximum number of messages to return.
+     * @return A successful response containing a list of chat messages, oldest first.
      */
     @GetMapping("/getTeamChatHistory/{teamId}")
-    public AjaxResult<List<ChatMessage>> getTeamChatHistory(@PathVariable Long teamId) {
-        return AjaxResult.success(chatService.getTeamChatHistory(teamId));
+    public AjaxResult<List<ChatMessage>> getTeamChatHistory(@PathVariable Long teamId,
+                                                            @RequestParam(required = false) Long before,
+                                                            @RequestParam(required = false) String beforeId,
+                                                            @RequestParam(required = false) Long after,
+                                                            @RequestParam(required = false) String afterId,
+                                                            @RequestParam(defaultValue = "50") int limit) {
+        return AjaxResult.success(chatService.getTeamChatHistory(teamId, before, beforeId, after, afterId, limit));
+    }
+
+    /**
+     * Searches the content of the messages in every conversation the user takes part in.
+     *
+     * @param userId   The ID of the user searching.
+     * @param keyword  The search text; all words must match.
+     * @param pageNum  The page, starting at 1.
+     * @param pageSize The maximum number of messages per page.
+     * @return A successful response containing a page of matching messages, newest first,
+     * and the number of matches.
+     */
+    @GetMapping("/searchMessages/{userId}")
+    public AjaxResult<TableDataInfo<ChatMessage>> searchMessages(@PathVariable("userId") Long userId,
+                                                                 @RequestParam String keyword,
+                                                                 @RequestParam(defaultValue = "1") int pageNum,
+                                                                 @RequestParam(defaultValue = "20") int pageSize) {
+        return AjaxResult.success(chatService.searchMessages(userId, keyword, pageNum, pageSize));
+    }
+
+    /**
+     * Marks a conversation as read for a user, resetting its unread count.
+     *
+     * @param userId          The ID of the user who read the conversation.
+     * @param conversationKey The key of the conversation, as returned by the conversation lists.
+     * @return A successful response.
+     */
+    @PutMapping("/markRead/{userId}")
+    public AjaxResult markRead(@PathVariable("userId") Long userId, @RequestParam String conversationKey) {
+        chatService.markRead(userId, conversationKey);
+        return AjaxResult.success();
     }
 
     /**
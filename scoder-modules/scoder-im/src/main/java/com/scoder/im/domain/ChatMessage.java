@@ -4,8 +4,10 @@ import lombok.Data;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.Comparator;
+
 /**
- * Represents a chat message entity stored in the "messages" collection.
+ * Represents a chat message entity, stored in the monthly message collections.
  * This entity supports both direct and group messages.
  * <p>
  * Fields include sender and receiver information, message content, and timestamps.
@@ -17,6 +19,13 @@ import org.springframework.data.mongodb.core.mapping.Document;
 @Document(collection = "messages")
 public class ChatMessage {
 
+    /**
+     * The order of history pages: by timestamp, then by ID, so that messages stored in the same
+     * millisecond keep a fixed order. Message IDs are ObjectId hex strings, which sort by creation.
+     */
+    public static final Comparator<ChatMessage> HISTORY_ORDER = Comparator.comparing(ChatMessage::getTimestamp)
+            .thenComparing(ChatMessage::getId, Comparator.nullsFirst(Comparator.naturalOrder()));
+
     /**
      * The unique identifier for the message.
      */
@@ -52,4 +61,69 @@ public class ChatMessage {
      * The timestamp when the message was created, in milliseconds since epoch.
      */
     private Long timestamp;
-}
\ No newline at end of file
+
+    /**
+     * Identifies the conversation the message belongs to, independent of direction.
+     * Used together with the timestamp to page through history.
+     */
+    private String conversationKey;
+
+    /**
+     * The ID the sending client gave the message, if any. Lets the client match the stored
+     * message with its local copy.
+     */
+    private String clientMsgId;
+
+    /**
+     * Builds the conversation key of a direct conversation. Both participants get the same key.
+     *
+     * @param userId      One participant.
+     * @param otherUserId The other participant.
+     * @return The conversation key.
+     */
+    public static String directConversationKey(Long userId, Long otherUserId) {
+        return userId < otherUserId ? "d:" + userId + ":" + otherUserId : "d:" + otherUserId + ":" + userId;
+    }
+
+    /**
+     * Builds the conversation key of a team conversation.
+     *
+     * @param teamId The team ID.
+     * @return The conversation key.
+     */
+    public static String teamConversationKey(Long teamId) {
+        return "t:" + teamId;
+    }
+
+    /**
+     * Compares a message with a history cursor in {@link #HISTORY_ORDER}. Without a cursor ID,
+     * every message of the cursor's millisecond compares as equal, i.e. lies on neither side.
+     *
+     * @param chatMessage The message.
+     * @param timestamp   The timestamp of the cursor.
+     * @param id          The message ID of the cursor, or null.
+     * @return A negative number, zero or a positive number as the message lies before, on or after the cursor.
+     */
+    public static int compareToCursor(ChatMessage chatMessage, long timestamp, String id) {
+        int result = Long.compare(chatMessage.getTimestamp(), timestamp);
+        if (result != 0 || id == null || chatMessage.getId() == null) {
+            return result;
+        }
+        return chatMessage.getId().compareTo(id);
+    }
+
+    /**
+     * Tells whether a message lies between two history cursors.
+     *
+     * @param chatMessage The message.
+     * @param before      Exclusive upper bound on the timestamp, or null.
+     * @param beforeId    The message ID that breaks ties at {@code before}, or null.
+     * @param after       Exclusive lower bound on the timestamp, or null.
+     * @param afterId     The message ID that breaks ties at {@code after}, or null.
+     * @return Whether the message is within the range.
+     */
+    public static boolean isWithin(ChatMessage chatMessage, Long before, String beforeId, Long after, String afterId) {
+        return (after == null || compareToCursor(chatMessage, after, afterId) > 0)
+                && (before == null || compareToCursor(chatMessage, before, beforeId) < 0);
+    }
+}
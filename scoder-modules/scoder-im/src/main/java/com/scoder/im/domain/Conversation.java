@@ -0,0 +1,80 @@
+package com.scoder.im.domain;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Represents one entry of a user's conversation list, stored in the "conversations" collection.
+ * <p>
+ * Every user has one document per direct peer and one per team they belong to. The document
+ * keeps the latest message and the number of messages the user has not read yet, and is
+ * updated as messages are written, so listing conversations never touches the message history.
+ *
+ * @author Shawn Cui
+ */
+@Data
+@Document(collection = "conversations")
+public class Conversation {
+
+    /**
+     * The unique identifier for the document.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The ID of the user this entry belongs to.
+     */
+    private Long ownerId;
+
+    /**
+     * The key of the conversation, see {@link ChatMessage#getConversationKey()}.
+     */
+    private String conversationKey;
+
+    /**
+     * "DIRECT" for a conversation with another user, "GROUP" for a team conversation.
+     */
+    private String type;
+
+    /**
+     * The other participant of a direct conversation.
+     */
+    private Long peerId;
+
+    /**
+     * The team of a group conversation.
+     */
+    private Long teamId;
+
+    /**
+     * The ID of the latest message.
+     */
+    private String lastMessageId;
+
+    /**
+     * The sender of the latest message.
+     */
+    private Long lastSenderId;
+
+    /**
+     * The content of the latest message.
+     */
+    private String lastContent;
+
+    /**
+     * The timestamp of the latest message, in milliseconds since epoch.
+     */
+    private Long lastTimestamp;
+
+    /**
+     * The number of messages the owner has not read yet.
+     */
+    private Long unreadCount;
+
+    /**
+     * The timestamp up to which the owner has read the conversation; later messages are unread.
+     */
+    private Long lastReadTimestamp;
+}
@@ -0,0 +1,127 @@
+package com.scoder.im.handler;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BusinessExecutor runs the blocking part of command handling off the Netty event loops.
+ * <p>
+ * Work is spread over a fixed number of lanes, each a single thread with a bounded queue.
+ * A task's ordering key, such as its conversation, is hashed to pick the lane, so tasks with
+ * the same key run one after another in submission order while different keys run in
+ * parallel. When a lane's queue is full the task is refused and the caller is told, so the
+ * client can get an error instead of the message disappearing.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class BusinessExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(BusinessExecutor.class);
+
+    /**
+     * Number of lanes, 0 for twice the number of cores.
+     */
+    @Value("${im.business.lanes:0}")
+    private int laneCount;
+
+    /**
+     * Maximum number of tasks waiting in one lane.
+     */
+    @Value("${im.business.lane-queue-capacity:10000}")
+    private int laneQueueCapacity;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor[] lanes;
+    private Counter rejectedCounter;
+
+    /**
+     * Starts the lanes and registers a queue depth gauge per lane.
+     */
+    @PostConstruct
+    public void init() {
+        int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors() * 2;
+        lanes = new ThreadPoolExecutor[count];
+        for (int i = 0; i < count; i++) {
+            String name = "im-business-" + i;
+            ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(laneQueueCapacity),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    new ThreadPoolExecutor.AbortPolicy());
+            Gauge.builder("im.business.queue.depth", lane, executor -> executor.getQueue().size())
+                    .tag("lane", Integer.toString(i))
+                    .description("Tasks waiting in a business lane")
+                    .register(meterRegistry);
+            lanes[i] = lane;
+        }
+        rejectedCounter = meterRegistry.counter("im.business.rejected");
+        log.info("Business executor started with {} lanes", count);
+    }
+
+    /**
+     * Runs a task on the lane of its ordering key.
+     *
+     * @param key  The ordering key; tasks with equal keys run in submission order.
+     * @param task The task.
+     * @return false if the lane is full or shutting down and the task was not accepted.
+     */
+    public boolean execute(Object key, Runnable task) {
+        try {
+            lanes[laneOf(key)].execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the queued ones to finish. Called by the server after
+     * the event loops have stopped, before the persistence queue is flushed.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Business lane did not finish, {} tasks are dropped", lane.getQueue().size());
+            }
+        }
+    }
+
+    /**
+     * Maps an ordering key to a lane.
+     *
+     * @param key The ordering key.
+     * @return The lane index.
+     */
+    int laneOf(Object key) {
+        int hash = key.hashCode();
+        // Spread the high bits, as String hashes of similar keys differ mostly in the low ones
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+}
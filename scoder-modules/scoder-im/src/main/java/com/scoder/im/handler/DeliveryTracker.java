@@ -0,0 +1,255 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.cluster.OfflineStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DeliveryTracker resends chat messages that a client has not acknowledged.
+ * <p>
+ * Tracking is enabled per channel when the client logs in with acknowledgements on. Every
+ * DIRECT or GROUP payload delivered to such a channel is remembered under its message ID
+ * until the client answers with an ACK. A message that is not acknowledged within the
+ * timeout is written again, up to the maximum number of attempts; after the last attempt,
+ * or when the channel closes or falls behind, the message is moved to the user's offline
+ * inbox instead. Resent messages keep their message ID, so clients can drop copies they
+ * already have.
+ * <p>
+ * Timeouts run on a single {@link HashedWheelTimer} thread, which only writes to channels
+ * and hands messages to the {@link OfflineStore}.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class DeliveryTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryTracker.class);
+
+    /**
+     * Payload types that clients acknowledge.
+     */
+    private static final Set<String> TRACKED_TYPES = Set.of("DIRECT", "GROUP");
+
+    /**
+     * Channel attribute holding the unacknowledged deliveries by message ID. Only set on
+     * channels whose client acknowledges deliveries.
+     */
+    private static final AttributeKey<Map<String, PendingDelivery>> PENDING = AttributeKey.valueOf("pendingDeliveries");
+
+    /**
+     * How long a delivery may go unacknowledged before it is resent.
+     */
+    @Value("${im.delivery.ack-timeout-ms:5000}")
+    private long ackTimeoutMs;
+
+    /**
+     * Number of times a message is written to a channel before it is moved to the inbox.
+     */
+    @Value("${im.delivery.max-attempts:3}")
+    private int maxAttempts;
+
+    /**
+     * Maximum number of unacknowledged deliveries tracked per channel.
+     */
+    @Value("${im.delivery.max-pending:1000}")
+    private int maxPending;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Lazy because the inbox writes through the MessageFanout, which reports to this tracker
+    @Lazy
+    @Autowired
+    private OfflineStore offlineStore;
+
+    @Autowired(required = false)
+    private OutboundBackpressure backpressure;
+
+    private HashedWheelTimer timer;
+    private Counter ackedCounter;
+    private Counter resentCounter;
+    private Counter movedCounter;
+    private Counter untrackedCounter;
+
+    @PostConstruct
+    public void init() {
+        timer = new HashedWheelTimer(runnable -> {
+            Thread thread = new Thread(runnable, "im-delivery-retry");
+            thread.setDaemon(true);
+            return thread;
+        }, 100, TimeUnit.MILLISECONDS);
+        ackedCounter = meterRegistry.counter("im.delivery.acked");
+        resentCounter = meterRegistry.counter("im.delivery.resent");
+        movedCounter = meterRegistry.counter("im.delivery.moved.offline");
+        untrackedCounter = meterRegistry.counter("im.delivery.untracked");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.stop();
+    }
+
+    /**
+     * Turns on tracking for a channel whose client acknowledges deliveries.
+     *
+     * @param channel The channel.
+     */
+    public void enable(Channel channel) {
+        channel.attr(PENDING).setIfAbsent(new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Starts tracking a payload about to be written to a channel. Payloads without a message
+     * ID, payloads of other types and channels without tracking are ignored.
+     *
+     * @param channel The channel the payload is written to.
+     * @param payload The frame fields.
+     */
+    void track(Channel channel, Map<String, String> payload) {
+        Map<String, PendingDelivery> pending = channel.attr(PENDING).get();
+        String messageId = payload.get("messageId");
+        if (pending == null || messageId == null || !TRACKED_TYPES.contains(payload.get("type"))) {
+            return;
+        }
+        String userId = channel.attr(WebSocketHandler.USER_ID).get();
+        if (userId == null) {
+            return;
+        }
+        if (pending.size() >= maxPending) {
+            untrackedCounter.increment();
+            return;
+        }
+        PendingDelivery delivery = new PendingDelivery(channel, Long.valueOf(userId), messageId, payload);
+        if (pending.putIfAbsent(messageId, delivery) == null) {
+            schedule(delivery);
+        }
+    }
+
+    /**
+     * Records the acknowledgement of a delivered message.
+     *
+     * @param channel   The channel the ACK arrived on.
+     * @param messageId The acknowledged message ID.
+     * @return The payload of the acknowledged message, or null if it was not pending.
+     */
+    public Map<String, String> acknowledge(Channel channel, String messageId) {
+        Map<String, PendingDelivery> pending = channel.attr(PENDING).get();
+        PendingDelivery delivery = pending != null ? pending.remove(messageId) : null;
+        if (delivery == null) {
+            return null;
+        }
+        delivery.cancel();
+        ackedCounter.increment();
+        return delivery.payload;
+    }
+
+    /**
+     * Stops tracking a closed channel and moves its unacknowledged messages to the inbox.
+     *
+     * @param channel The channel.
+     */
+    public void release(Channel channel) {
+        Map<String, PendingDelivery> pending = channel.attr(PENDING).getAndSet(null);
+        if (pending == null) {
+            return;
+        }
+        for (PendingDelivery delivery : pending.values()) {
+            if (pending.remove(delivery.messageId, delivery)) {
+                delivery.cancel();
+                moveOffline(delivery);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of unacknowledged deliveries of a channel.
+     *
+     * @param channel The channel.
+     * @return The number of pending deliveries.
+     */
+    int pendingCount(Channel channel) {
+        Map<String, PendingDelivery> pending = channel.attr(PENDING).get();
+        return pending != null ? pending.size() : 0;
+    }
+
+    private void schedule(PendingDelivery delivery) {
+        delivery.timeout = timer.newTimeout(timeout -> expire(delivery), ackTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Resends a delivery whose ACK timed out, or moves it to the inbox after the last attempt.
+     *
+     * @param delivery The delivery.
+     */
+    private void expire(PendingDelivery delivery) {
+        Map<String, PendingDelivery> pending = delivery.channel.attr(PENDING).get();
+        if (pending == null || pending.get(delivery.messageId) != delivery) {
+            return;
+        }
+        Channel channel = delivery.channel;
+        boolean reachable = channel.isActive() && (backpressure == null || backpressure.isAccepting(channel));
+        if (reachable && delivery.attempts < maxAttempts) {
+            delivery.attempts++;
+            resentCounter.increment();
+            channel.writeAndFlush(MessageFanout.newFrame(channel, delivery.payload));
+            schedule(delivery);
+        } else if (pending.remove(delivery.messageId, delivery)) {
+            moveOffline(delivery);
+        }
+    }
+
+    private void moveOffline(PendingDelivery delivery) {
+        movedCounter.increment();
+        try {
+            offlineStore.store(delivery.payload, Collections.singletonList(delivery.userId));
+        } catch (Exception e) {
+            log.error("Failed to move message {} of user {} to the inbox: {}",
+                    delivery.messageId, delivery.userId, e.getMessage());
+        }
+    }
+
+    /**
+     * A message written to a channel and not acknowledged yet.
+     */
+    private static final class PendingDelivery {
+
+        private final Channel channel;
+        private final Long userId;
+        private final String messageId;
+        private final Map<String, String> payload;
+        private volatile int attempts = 1;
+        private volatile Timeout timeout;
+
+        private PendingDelivery(Channel channel, Long userId, String messageId, Map<String, String> payload) {
+            this.channel = channel;
+            this.userId = userId;
+            this.messageId = messageId;
+            this.payload = payload;
+        }
+
+        private void cancel() {
+            Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
+    }
+}
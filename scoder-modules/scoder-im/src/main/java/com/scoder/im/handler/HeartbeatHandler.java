@@ -0,0 +1,93 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.protocol.HeartbeatCommand;
+import com.scoder.im.protocol.WireProtocol;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * HeartbeatHandler keeps WebSocket sessions alive and reaps the dead ones.
+ * <p>
+ * It reacts to the {@link IdleStateEvent}s of the {@code IdleStateHandler} at the front of
+ * the pipeline. When nothing has been written to a client for the writer idle time, the
+ * server sends an application PING, which clients answer with PONG. When nothing has been
+ * read for the reader idle time, the connection is considered half-open and is closed; the
+ * {@link WebSocketHandler} then removes the user binding as for any other disconnect.
+ * Clients may also send PING themselves and receive a PONG.
+ *
+ * @author Shawn Cui
+ */
+@Component
+@ChannelHandler.Sharable
+public class HeartbeatHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(HeartbeatHandler.class);
+
+    private static final Map<String, String> PING = Collections.singletonMap("type", "PING");
+    private static final Map<String, String> PONG = Collections.singletonMap("type", "PONG");
+
+    @Autowired
+    private MessageFanout messageFanout;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Counter reapedCounter;
+
+    @PostConstruct
+    public void init() {
+        reapedCounter = meterRegistry.counter("im.heartbeat.reaped");
+    }
+
+    /**
+     * Answers PING commands and swallows PONG commands; every other message is passed on.
+     *
+     * @param ctx The channel context
+     * @param msg The decoded command
+     */
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg == HeartbeatCommand.PING) {
+            messageFanout.send(ctx.channel(), PONG);
+        } else if (msg != HeartbeatCommand.PONG) {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    /**
+     * Pings quiet clients and closes connections that stopped sending.
+     *
+     * @param ctx The channel context
+     * @param evt The user event
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (!(evt instanceof IdleStateEvent)) {
+            ctx.fireUserEventTriggered(evt);
+            return;
+        }
+        IdleState state = ((IdleStateEvent) evt).state();
+        if (state == IdleState.READER_IDLE) {
+            reapedCounter.increment();
+            log.info("Closing idle connection {} of user {}", ctx.channel().id(),
+                    ctx.channel().attr(WebSocketHandler.USER_ID).get());
+            ctx.close();
+        } else if (state == IdleState.WRITER_IDLE && ctx.channel().hasAttr(WireProtocol.KEY)) {
+            // Only after the handshake, before it the channel still speaks HTTP
+            messageFanout.send(ctx.channel(), PING);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.service.GroupMembershipCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InboundRateLimiter limits how fast a client may send chat messages, before any work is
+ * queued for them.
+ * <p>
+ * Every connection and every user has a token bucket for direct messages and one for group
+ * messages; a message must fit into both buckets of its kind. The user's buckets are shared
+ * by all of the user's connections on this node, so opening more connections does not raise
+ * the limit. A direct message costs one token. A group message costs one token plus one per
+ * {@code im.rate-limit.group.members-per-token} members, so a message to a large team uses
+ * up the budget faster than one to a small team. Teams whose members are not cached yet are
+ * charged one token, since their size cannot be looked up on the event loop.
+ * <p>
+ * Chat messages are only accepted after LOGIN, so every message is charged to a user. A
+ * user's buckets outlive the user's connections: they are dropped by a periodic sweep once
+ * the user has no connection on this node and both buckets have refilled, so reconnecting
+ * does not reset the budget. Buckets are created when a connection sends its first message
+ * or logs in; checking a message allocates nothing.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class InboundRateLimiter {
+
+    private static final Logger log = LoggerFactory.getLogger(InboundRateLimiter.class);
+
+    /**
+     * The buckets of a connection.
+     */
+    private static final AttributeKey<ChannelBudget> BUDGET = AttributeKey.valueOf("rateBudget");
+
+    /**
+     * How long a user counts as throttled after the last rejected message.
+     */
+    private static final long THROTTLED_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Whether inbound chat messages are rate limited.
+     */
+    @Value("${im.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Direct messages per second a single connection may send.
+     */
+    @Value("${im.rate-limit.direct.channel-rate:20}")
+    private double directChannelRate;
+
+    /**
+     * Direct messages a single connection may send in a burst.
+     */
+    @Value("${im.rate-limit.direct.channel-burst:40}")
+    private double directChannelBurst;
+
+    /**
+     * Direct messages per second a user may send over all connections.
+     */
+    @Value("${im.rate-limit.direct.user-rate:30}")
+    private double directUserRate;
+
+    /**
+     * Direct messages a user may send in a burst over all connections.
+     */
+    @Value("${im.rate-limit.direct.user-burst:60}")
+    private double directUserBurst;
+
+    /**
+     * Group tokens per second a single connection may spend.
+     */
+    @Value("${im.rate-limit.group.channel-rate:40}")
+    private double groupChannelRate;
+
+    /**
+     * Group tokens a single connection may spend in a burst.
+     */
+    @Value("${im.rate-limit.group.channel-burst:200}")
+    private double groupChannelBurst;
+
+    /**
+     * Group tokens per second a user may spend over all connections.
+     */
+    @Value("${im.rate-limit.group.user-rate:60}")
+    private double groupUserRate;
+
+    /**
+     * Group tokens a user may spend in a burst over all connections.
+     */
+    @Value("${im.rate-limit.group.user-burst:300}")
+    private double groupUserBurst;
+
+    /**
+     * Number of team members that add one token to the cost of a group message.
+     */
+    @Value("${im.rate-limit.group.members-per-token:20}")
+    private int membersPerToken;
+
+    /**
+     * How often the buckets of disconnected users that have refilled are dropped.
+     */
+    @Value("${im.rate-limit.sweep-interval-ms:30000}")
+    private long sweepIntervalMs;
+
+    @Autowired
+    private GroupMembershipCache groupMembershipCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * The buckets of the users with a connection on this node, and of those that disconnected
+     * before their buckets refilled.
+     */
+    private final ConcurrentHashMap<Long, UserBudget> users = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+    private Counter directThrottledCounter;
+    private Counter groupThrottledCounter;
+
+    @PostConstruct
+    public void init() {
+        directThrottledCounter = meterRegistry.counter("im.ratelimit.throttled", "type", "DIRECT");
+        groupThrottledCounter = meterRegistry.counter("im.ratelimit.throttled", "type", "GROUP");
+        Gauge.builder("im.ratelimit.users.throttled", this, InboundRateLimiter::throttledUsers)
+                .description("Users who had a message rejected by the rate limit in the last minute")
+                .register(meterRegistry);
+        if (!enabled) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "im-rate-limit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> sweep(System.nanoTime()), sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Gives a connection the buckets of the user who logged in on it. Must be called on the
+     * channel's event loop.
+     *
+     * @param channel The channel.
+     * @param userId  The user ID.
+     */
+    public void bind(Channel channel, Long userId) {
+        budget(channel).user = users.compute(userId, (id, user) -> {
+            if (user == null) {
+                user = new UserBudget(id, new TokenBucket(directUserRate, directUserBurst),
+                        new TokenBucket(groupUserRate, groupUserBurst));
+            }
+            user.connected = true;
+            return user;
+        });
+    }
+
+    /**
+     * Records that the last connection of a user on this node was closed. The user's buckets
+     * are kept until they have refilled, so that a reconnect continues with the same budget.
+     *
+     * @param userId The user ID.
+     */
+    public void release(Long userId) {
+        users.computeIfPresent(userId, (id, user) -> {
+            user.connected = false;
+            return user;
+        });
+    }
+
+    /**
+     * Drops the buckets of the users who have no connection on this node and whose buckets
+     * are full again, since fresh buckets would behave the same.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     */
+    void sweep(long now) {
+        for (Long userId : users.keySet()) {
+            // Per key, so that a concurrent bind either keeps the buckets or gets new ones
+            users.computeIfPresent(userId, (id, user) ->
+                    !user.connected && user.direct.isFull(now) && user.group.isFull(now) ? null : user);
+        }
+    }
+
+    /**
+     * Takes the tokens for a chat message. Must be called on the channel's event loop.
+     *
+     * @param channel The channel the message arrived on.
+     * @param group   Whether it is a group message.
+     * @param teamId  The team of a group message, or null.
+     * @return true if the message may be handled, false if it exceeds a limit.
+     */
+    public boolean tryAcquire(Channel channel, boolean group, Long teamId) {
+        return !enabled || tryAcquire(channel, group, group ? cost(groupMembershipCache.cachedSize(teamId)) : 1, System.nanoTime());
+    }
+
+    boolean tryAcquire(Channel channel, boolean group, int cost, long now) {
+        ChannelBudget budget = budget(channel);
+        TokenBucket channelBucket = group ? budget.group : budget.direct;
+        if (!channelBucket.tryAcquire(cost, now)) {
+            throttled(budget.user, group, now);
+            return false;
+        }
+        UserBudget user = budget.user;
+        if (user != null && !(group ? user.group : user.direct).tryAcquire(cost, now)) {
+            // The connection's tokens are given back, they were not used
+            channelBucket.refund(cost);
+            throttled(user, group, now);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of tokens a message to a team of the given size costs.
+     *
+     * @param teamSize The number of members, or 0 if unknown.
+     * @return The cost.
+     */
+    int cost(int teamSize) {
+        return 1 + teamSize / Math.max(1, membersPerToken);
+    }
+
+    private ChannelBudget budget(Channel channel) {
+        ChannelBudget budget = channel.attr(BUDGET).get();
+        if (budget == null) {
+            budget = new ChannelBudget(new TokenBucket(directChannelRate, directChannelBurst),
+                    new TokenBucket(groupChannelRate, groupChannelBurst));
+            channel.attr(BUDGET).set(budget);
+        }
+        return budget;
+    }
+
+    private void throttled(UserBudget user, boolean group, long now) {
+        (group ? groupThrottledCounter : directThrottledCounter).increment();
+        if (user == null) {
+            return;
+        }
+        // Logged once per episode rather than once per rejected message
+        if (now - user.throttledAt > THROTTLED_WINDOW_NANOS) {
+            log.warn("User {} exceeded the {} message rate", user.userId, group ? "group" : "direct");
+        }
+        user.throttledAt = now;
+    }
+
+    private int throttledUsers() {
+        long now = System.nanoTime();
+        int throttled = 0;
+        for (UserBudget user : users.values()) {
+            if (now - user.throttledAt <= THROTTLED_WINDOW_NANOS) {
+                throttled++;
+            }
+        }
+        return throttled;
+    }
+
+    /**
+     * A token bucket holding up to {@code burst} tokens and refilled at {@code rate} tokens per
+     * second. Synchronized, since the bucket of a user is shared by connections on different
+     * event loops; the lock is almost never contended.
+     */
+    static final class TokenBucket {
+
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double rate, double burst) {
+            this.capacity = Math.max(1, burst);
+            this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        /**
+         * Takes tokens if enough are available. A cost above the capacity is charged as a
+         * full bucket, so a message to a very large team is still possible now and then.
+         *
+         * @param cost The number of tokens.
+         * @param now  The current {@link System#nanoTime()}.
+         * @return true if the tokens were taken.
+         */
+        synchronized boolean tryAcquire(int cost, long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+                refilledAt = now;
+            }
+            double needed = Math.min(cost, capacity);
+            if (tokens < needed) {
+                return false;
+            }
+            tokens -= needed;
+            return true;
+        }
+
+        synchronized boolean isFull(long now) {
+            return tokens + Math.max(0, now - refilledAt) * tokensPerNano >= capacity;
+        }
+
+        synchronized void refund(int cost) {
+            tokens = Math.min(capacity, tokens + Math.min(cost, capacity));
+        }
+    }
+
+    /**
+     * The buckets of one connection, and those of the user logged in on it.
+     */
+    private static final class ChannelBudget {
+
+        private final TokenBucket direct;
+        private final TokenBucket group;
+        private volatile UserBudget user;
+
+        private ChannelBudget(TokenBucket direct, TokenBucket group) {
+            this.direct = direct;
+            this.group = group;
+        }
+    }
+
+    /**
+     * The buckets of one user, shared by the user's connections.
+     */
+    private static final class UserBudget {
+
+        private final Long userId;
+        private final TokenBucket direct;
+        private final TokenBucket group;
+
+        /**
+         * When a message of the user was last rejected, as {@link System#nanoTime()}.
+         */
+        private volatile long throttledAt;
+
+        /**
+         * Whether the user has a connection on this node. Only changed while the user's map
+         * entry is locked.
+         */
+        private boolean connected;
+
+        private UserBudget(Long userId, TokenBucket direct, TokenBucket group) {
+            this.userId = userId;
+            this.direct = direct;
+            this.group = group;
+            this.throttledAt = System.nanoTime() - THROTTLED_WINDOW_NANOS - 1;
+        }
+    }
+}
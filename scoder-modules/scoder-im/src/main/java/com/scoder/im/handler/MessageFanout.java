@@ -0,0 +1,235 @@
+package com.scoder.im.handler;
+
+import com.alibaba.fastjson.JSON;
+import com.scoder.im.cluster.LocalDelivery;
+import com.scoder.im.config.NettyConfig;
+import com.scoder.im.protocol.BinaryCodec;
+import com.scoder.im.protocol.TransientBinaryWebSocketFrame;
+import com.scoder.im.protocol.TransientTextWebSocketFrame;
+import com.scoder.im.protocol.WireProtocol;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * MessageFanout delivers one outgoing payload to many users, and to every device of each user.
+ * <p>
+ * The payload is serialized exactly once per wire protocol into a pooled {@link ByteBuf}.
+ * Each online recipient receives a retained duplicate of the buffer for its protocol, so
+ * the bytes are shared by every channel instead of being rebuilt per member. Encoding is
+ * skipped entirely when none of the recipients are online.
+ * <p>
+ * This is the node-local delivery used by the {@link com.scoder.im.cluster.MessageRouter}.
+ * A channel throttled by {@link OutboundBackpressure} does not count as local, so the router
+ * stores its messages in the offline inbox until the client has caught up. A user with
+ * several devices stays local as long as one of them is reachable; a throttled device of
+ * such a user skips the messages it could not take and reloads them from history. Payloads of the
+ * {@link #TRANSIENT_TYPES} are sent as transient frames that a slow client may lose. Chat
+ * messages delivered to clients that acknowledge them are handed to the {@link DeliveryTracker}.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class MessageFanout implements LocalDelivery {
+
+    /**
+     * Payload types that are only worth delivering while they are current.
+     */
+    public static final Set<String> TRANSIENT_TYPES = Set.of("PRESENCE", "TYPING", "PING");
+
+    @Autowired(required = false)
+    private OutboundBackpressure backpressure;
+
+    @Autowired(required = false)
+    private DeliveryTracker deliveryTracker;
+
+    @Override
+    public boolean isLocal(Long userId) {
+        for (Channel channel : NettyConfig.getUserChannels().channels(userId)) {
+            if (isReachable(channel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Collection<Long> localUserIds() {
+        return NettyConfig.getUserChannels().userIds();
+    }
+
+    /**
+     * Sends the payload to every reachable device of the users in the given collection.
+     *
+     * @param payload The frame fields.
+     * @param userIds The IDs of the recipients.
+     * @return The number of channels the frame was written to.
+     */
+    @Override
+    public int deliver(Map<String, String> payload, Collection<Long> userIds) {
+        List<Channel> channels = new ArrayList<>(userIds.size());
+        for (Long userId : userIds) {
+            for (Channel channel : NettyConfig.getUserChannels().channels(userId)) {
+                if (isReachable(channel)) {
+                    channels.add(channel);
+                }
+            }
+        }
+        if (deliveryTracker != null) {
+            // Tracked before the write so that an early ACK always finds its delivery
+            for (Channel channel : channels) {
+                deliveryTracker.track(channel, payload);
+            }
+        }
+        return write(payload, channels);
+    }
+
+    /**
+     * Encodes the payload at most once per wire protocol and writes a retained duplicate of
+     * the matching frame to each channel.
+     *
+     * @param payload  The frame fields.
+     * @param channels The channels to write to.
+     * @return The number of channels the frame was written to.
+     */
+    public int write(Map<String, String> payload, List<Channel> channels) {
+        if (channels.isEmpty()) {
+            return 0;
+        }
+        // All channels share the allocator configured on the server
+        ByteBufAllocator allocator = channels.get(0).alloc();
+        boolean isTransient = TRANSIENT_TYPES.contains(payload.get("type"));
+        WebSocketFrame textFrame = null;
+        WebSocketFrame binaryFrame = null;
+        try {
+            for (Channel channel : channels) {
+                if (WireProtocol.of(channel) == WireProtocol.BINARY) {
+                    if (binaryFrame == null) {
+                        ByteBuf content = BinaryCodec.encode(allocator, payload);
+                        binaryFrame = isTransient
+                                ? new TransientBinaryWebSocketFrame(content) : new BinaryWebSocketFrame(content);
+                    }
+                    channel.writeAndFlush(binaryFrame.retainedDuplicate());
+                } else {
+                    if (textFrame == null) {
+                        textFrame = encode(allocator, payload);
+                        if (isTransient) {
+                            textFrame = new TransientTextWebSocketFrame(textFrame.content());
+                        }
+                    }
+                    channel.writeAndFlush(textFrame.retainedDuplicate());
+                }
+            }
+        } finally {
+            if (textFrame != null) {
+                textFrame.release();
+            }
+            if (binaryFrame != null) {
+                binaryFrame.release();
+            }
+        }
+        return channels.size();
+    }
+
+    /**
+     * Checks whether live messages can be written to a channel.
+     *
+     * @param channel A channel of the user.
+     * @return true if the channel is open and not throttled.
+     */
+    private boolean isReachable(Channel channel) {
+        return channel.isActive() && (backpressure == null || backpressure.isAccepting(channel));
+    }
+
+    /**
+     * Sends a payload to a single channel in the channel's protocol.
+     *
+     * @param channel The channel to write to.
+     * @param payload The frame fields.
+     */
+    public void send(Channel channel, Map<String, String> payload) {
+        write(payload, Collections.singletonList(channel));
+    }
+
+    /**
+     * Sends an error frame to a single channel.
+     *
+     * @param channel The channel to write to.
+     * @param message The error description.
+     */
+    public void sendError(Channel channel, String message) {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "ERROR");
+        payload.put("content", message);
+        send(channel, payload);
+    }
+
+    /**
+     * Sends an already rendered JSON document to a single channel, embedded in a binary frame
+     * for binary clients.
+     *
+     * @param channel The channel to write to.
+     * @param json    The JSON document.
+     */
+    public void sendJson(Channel channel, CharSequence json) {
+        if (WireProtocol.of(channel) == WireProtocol.BINARY) {
+            channel.writeAndFlush(new BinaryWebSocketFrame(BinaryCodec.encodeJson(channel.alloc(), json)));
+        } else {
+            ByteBuf buffer = channel.alloc().buffer(ByteBufUtil.utf8MaxBytes(json));
+            ByteBufUtil.writeUtf8(buffer, json);
+            channel.writeAndFlush(new TextWebSocketFrame(buffer));
+        }
+    }
+
+    /**
+     * Serializes the payload as JSON directly into a pooled buffer.
+     *
+     * @param allocator The allocator for the frame buffer.
+     * @param payload   The object to serialize.
+     * @return A text frame that owns the buffer.
+     */
+    public TextWebSocketFrame encode(ByteBufAllocator allocator, Object payload) {
+        return encodeText(allocator, payload);
+    }
+
+    /**
+     * Encodes a payload for a single channel in the channel's protocol.
+     *
+     * @param channel The channel the frame is for.
+     * @param payload The frame fields.
+     * @return A frame that owns its buffer.
+     */
+    static WebSocketFrame newFrame(Channel channel, Map<String, String> payload) {
+        if (WireProtocol.of(channel) == WireProtocol.BINARY) {
+            return new BinaryWebSocketFrame(BinaryCodec.encode(channel.alloc(), payload));
+        }
+        return encodeText(channel.alloc(), payload);
+    }
+
+    private static TextWebSocketFrame encodeText(ByteBufAllocator allocator, Object payload) {
+        ByteBuf buffer = allocator.buffer();
+        try (ByteBufOutputStream out = new ByteBufOutputStream(buffer)) {
+            JSON.writeJSONString(out, payload);
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw new IllegalStateException("Failed to encode outgoing frame", e);
+        }
+        return new TextWebSocketFrame(buffer);
+    }
+}
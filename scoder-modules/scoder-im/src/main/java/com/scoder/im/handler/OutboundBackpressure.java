@@ -0,0 +1,153 @@
+package com.scoder.im.handler;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OutboundBackpressure holds the slow-consumer settings and metrics shared by every
+ * {@link OutboundBackpressureHandler}.
+ * <p>
+ * Once a channel's outbound buffer passes its high water mark, further frames wait in a
+ * bounded per-channel queue. When that queue is full the oldest transient frame is dropped;
+ * if there is none, the overflow policy applies:
+ * <ul>
+ *     <li>{@link OverflowPolicy#OFFLINE}: the channel stops receiving live messages, which go to
+ *     the offline inbox instead, until the queue drains. The inbox is then replayed.</li>
+ *     <li>{@link OverflowPolicy#DISCONNECT}: the channel is closed and its queued frames are
+ *     discarded; the client reloads the conversation history when it reconnects.</li>
+ * </ul>
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class OutboundBackpressure {
+
+    /**
+     * What happens when a channel's queue is full and holds no transient frames.
+     */
+    public enum OverflowPolicy {
+        OFFLINE,
+        DISCONNECT
+    }
+
+    /**
+     * User event fired on a channel whose queue just filled up, before the channel is marked
+     * as throttled.
+     */
+    public static final Object THROTTLED_EVENT = new Object();
+
+    /**
+     * User event fired on a channel whose queue drained after it was throttled.
+     */
+    public static final Object RECOVERED = new Object();
+
+    /**
+     * Failure set on the promise of every write that is dropped or rejected.
+     */
+    static final IllegalStateException OVERFLOW = new IllegalStateException("Outbound queue overflow");
+
+    /**
+     * Set while a channel's queue is full.
+     */
+    static final AttributeKey<Boolean> THROTTLED = AttributeKey.valueOf("outboundThrottled");
+
+    /**
+     * Maximum number of frames queued per channel once the channel is not writable.
+     */
+    @Value("${im.backpressure.max-queued-frames:256}")
+    private int maxQueuedFrames;
+
+    /**
+     * The overflow policy, OFFLINE or DISCONNECT.
+     */
+    @Value("${im.backpressure.overflow-policy:OFFLINE}")
+    private OverflowPolicy overflowPolicy;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final AtomicInteger throttledChannels = new AtomicInteger();
+    private Counter droppedCounter;
+    private Counter disconnectedCounter;
+    private Counter rejectedCounter;
+
+    /**
+     * Registers the metrics.
+     */
+    @PostConstruct
+    public void init() {
+        Gauge.builder("im.backpressure.throttled", throttledChannels, AtomicInteger::get)
+                .description("Channels whose outbound queue is full")
+                .register(meterRegistry);
+        droppedCounter = meterRegistry.counter("im.backpressure.dropped");
+        disconnectedCounter = meterRegistry.counter("im.backpressure.disconnected");
+        rejectedCounter = meterRegistry.counter("im.backpressure.rejected");
+    }
+
+    /**
+     * Creates the handler for a new channel.
+     *
+     * @return A handler that must not be shared between channels.
+     */
+    public OutboundBackpressureHandler newHandler() {
+        return new OutboundBackpressureHandler(this);
+    }
+
+    /**
+     * Checks whether a channel should receive live messages.
+     *
+     * @param channel The channel.
+     * @return false if the channel is throttled under the OFFLINE policy.
+     */
+    public boolean isAccepting(Channel channel) {
+        return overflowPolicy != OverflowPolicy.OFFLINE || !Boolean.TRUE.equals(channel.attr(THROTTLED).get());
+    }
+
+    /**
+     * Returns the number of channels whose queue is currently full.
+     *
+     * @return The throttled channel count.
+     */
+    public int getThrottledChannels() {
+        return throttledChannels.get();
+    }
+
+    int getMaxQueuedFrames() {
+        return maxQueuedFrames;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    void throttled(Channel channel) {
+        channel.attr(THROTTLED).set(Boolean.TRUE);
+        throttledChannels.incrementAndGet();
+    }
+
+    void recovered(Channel channel) {
+        channel.attr(THROTTLED).set(Boolean.FALSE);
+        throttledChannels.decrementAndGet();
+    }
+
+    void dropped() {
+        droppedCounter.increment();
+    }
+
+    void disconnected() {
+        disconnectedCounter.increment();
+    }
+
+    void rejected() {
+        rejectedCounter.increment();
+    }
+}
@@ -0,0 +1,154 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.protocol.TransientFrame;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * OutboundBackpressureHandler holds back writes while its channel is not writable.
+ * <p>
+ * As long as the channel's outbound buffer stays below the high water mark, writes pass
+ * straight through. Once it is above, writes wait in a bounded queue and are released in
+ * order when Netty reports the channel writable again. When the queue is full, the oldest
+ * {@link TransientFrame} is dropped to make room; without one, the overflow policy of
+ * {@link OutboundBackpressure} decides between rejecting the write and closing the channel.
+ * <p>
+ * A handler instance belongs to a single channel and only runs on its event loop.
+ *
+ * @author Shawn Cui
+ */
+public class OutboundBackpressureHandler extends ChannelDuplexHandler {
+
+    private final OutboundBackpressure backpressure;
+    private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+    private boolean throttled;
+
+    OutboundBackpressureHandler(OutboundBackpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (queue.isEmpty() && ctx.channel().isWritable()) {
+            ctx.write(msg, promise);
+            return;
+        }
+        int capacity = backpressure.getMaxQueuedFrames();
+        if (queue.size() >= capacity && !dropTransient()) {
+            if (msg instanceof TransientFrame) {
+                // Nothing older is worth dropping, so the new transient frame goes instead
+                discard(msg, promise);
+                backpressure.dropped();
+            } else if (backpressure.getOverflowPolicy() == OutboundBackpressure.OverflowPolicy.DISCONNECT) {
+                discard(msg, promise);
+                backpressure.disconnected();
+                ctx.close();
+            } else {
+                discard(msg, promise);
+                backpressure.rejected();
+            }
+            return;
+        }
+        queue.add(new PendingWrite(msg, promise));
+        if (!throttled && queue.size() >= capacity) {
+            throttled = true;
+            // Listeners see the event before new messages are diverted away from the channel
+            ctx.fireUserEventTriggered(OutboundBackpressure.THROTTLED_EVENT);
+            backpressure.throttled(ctx.channel());
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        if (channel.isWritable() && !queue.isEmpty()) {
+            PendingWrite next;
+            while (channel.isWritable() && (next = queue.poll()) != null) {
+                ctx.write(next.msg, next.promise);
+            }
+            ctx.flush();
+            if (throttled && queue.size() <= backpressure.getMaxQueuedFrames() / 4) {
+                throttled = false;
+                backpressure.recovered(channel);
+                ctx.fireUserEventTriggered(OutboundBackpressure.RECOVERED);
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        release(ctx.channel());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        release(ctx.channel());
+    }
+
+    /**
+     * Returns the number of writes waiting for the channel to become writable.
+     *
+     * @return The queue length.
+     */
+    int queuedFrames() {
+        return queue.size();
+    }
+
+    /**
+     * Drops the oldest queued transient frame.
+     *
+     * @return true if a frame was dropped.
+     */
+    private boolean dropTransient() {
+        Iterator<PendingWrite> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            PendingWrite pending = iterator.next();
+            if (pending.msg instanceof TransientFrame) {
+                iterator.remove();
+                discard(pending.msg, pending.promise);
+                backpressure.dropped();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Discards everything still queued once the channel is gone.
+     *
+     * @param channel The channel.
+     */
+    private void release(Channel channel) {
+        PendingWrite pending;
+        while ((pending = queue.poll()) != null) {
+            discard(pending.msg, pending.promise);
+        }
+        if (throttled) {
+            throttled = false;
+            backpressure.recovered(channel);
+        }
+    }
+
+    private static void discard(Object msg, ChannelPromise promise) {
+        ReferenceCountUtil.release(msg);
+        promise.tryFailure(OutboundBackpressure.OVERFLOW);
+    }
+
+    private static final class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
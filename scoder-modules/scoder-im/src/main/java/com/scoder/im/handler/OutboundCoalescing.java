@@ -0,0 +1,99 @@
+package com.scoder.im.handler;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * OutboundCoalescing holds the settings and metrics shared by every
+ * {@link OutboundCoalescingHandler}.
+ * <p>
+ * Coalescing is off by default, because clients must understand BATCH frames (see
+ * {@link com.scoder.im.protocol.FrameBatch}). When it is on, the messages written to a
+ * channel within the window are sent as one frame, and the server also consolidates flushes,
+ * so a burst costs one write to the socket instead of one per message. A message waits at
+ * most the window; a lone message is sent unchanged.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class OutboundCoalescing {
+
+    /**
+     * Whether outgoing messages are coalesced.
+     */
+    @Value("${im.coalesce.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * How long the first message of a batch waits for more.
+     */
+    @Value("${im.coalesce.window-ms:2}")
+    private long windowMs;
+
+    /**
+     * Number of messages that closes a batch early.
+     */
+    @Value("${im.coalesce.max-messages:32}")
+    private int maxMessages;
+
+    /**
+     * Number of bytes that closes a batch early.
+     */
+    @Value("${im.coalesce.max-bytes:16384}")
+    private int maxBytes;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Counter batchCounter;
+    private Counter batchedMessagesCounter;
+
+    /**
+     * Registers the metrics. The average batch size is batched messages divided by batches.
+     */
+    @PostConstruct
+    public void init() {
+        batchCounter = meterRegistry.counter("im.coalesce.batches");
+        batchedMessagesCounter = meterRegistry.counter("im.coalesce.messages");
+    }
+
+    /**
+     * Checks whether coalescing is enabled.
+     *
+     * @return true if the server should add the coalescing stages.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Creates the handler for a new channel.
+     *
+     * @return A handler that must not be shared between channels.
+     */
+    public OutboundCoalescingHandler newHandler() {
+        return new OutboundCoalescingHandler(this);
+    }
+
+    long getWindowMs() {
+        return windowMs;
+    }
+
+    int getMaxMessages() {
+        return maxMessages;
+    }
+
+    int getMaxBytes() {
+        return maxBytes;
+    }
+
+    void batched(int messages) {
+        batchCounter.increment();
+        batchedMessagesCounter.increment(messages);
+    }
+}
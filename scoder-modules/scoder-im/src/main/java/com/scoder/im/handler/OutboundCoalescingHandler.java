@@ -0,0 +1,141 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.protocol.FrameBatch;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.PromiseNotifier;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OutboundCoalescingHandler collects the data frames written to its channel for a short
+ * window and writes them as one BATCH frame.
+ * <p>
+ * The first frame of a batch starts the window; the batch is written when the window ends,
+ * when it reaches the message or byte limit, or when a frame that cannot be batched (a
+ * control frame, or a frame of the other wire protocol) has to go out behind it. Flushes
+ * are held back while a batch is open, so the whole batch reaches the socket in one write.
+ * <p>
+ * A handler instance belongs to a single channel and only runs on its event loop.
+ *
+ * @author Shawn Cui
+ */
+public class OutboundCoalescingHandler extends ChannelOutboundHandlerAdapter {
+
+    private final OutboundCoalescing coalescing;
+    private final List<WebSocketFrame> frames = new ArrayList<>();
+    private final List<ChannelPromise> promises = new ArrayList<>();
+    private int pendingBytes;
+    private ScheduledFuture<?> timer;
+
+    OutboundCoalescingHandler(OutboundCoalescing coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!isBatchable(msg)) {
+            writePending(ctx);
+            ctx.write(msg, promise);
+            return;
+        }
+        WebSocketFrame frame = (WebSocketFrame) msg;
+        boolean text = frame instanceof TextWebSocketFrame;
+        if (!frames.isEmpty() && (frames.get(0) instanceof TextWebSocketFrame) != text) {
+            writePending(ctx);
+        }
+        frames.add(frame);
+        promises.add(promise);
+        pendingBytes += frame.content().readableBytes();
+        if (frames.size() >= coalescing.getMaxMessages() || pendingBytes >= coalescing.getMaxBytes()) {
+            writePending(ctx);
+        } else if (timer == null) {
+            timer = ctx.executor().schedule(() -> {
+                timer = null;
+                writePending(ctx);
+                ctx.flush();
+            }, coalescing.getWindowMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        // The open batch is flushed when it is written
+        if (frames.isEmpty()) {
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+        writePending(ctx);
+        ctx.flush();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        cancelTimer();
+        for (int i = 0; i < frames.size(); i++) {
+            ReferenceCountUtil.release(frames.get(i));
+            promises.get(i).tryFailure(new ClosedChannelException());
+        }
+        frames.clear();
+        promises.clear();
+    }
+
+    /**
+     * Writes the open batch, as the plain frame when it holds only one.
+     *
+     * @param ctx The channel context.
+     */
+    private void writePending(ChannelHandlerContext ctx) {
+        cancelTimer();
+        if (frames.isEmpty()) {
+            return;
+        }
+        if (frames.size() == 1) {
+            ctx.write(frames.get(0), promises.get(0));
+        } else {
+            coalescing.batched(frames.size());
+            ChannelPromise batchPromise = ctx.newPromise();
+            batchPromise.addListener(new PromiseNotifier<Void, ChannelFuture>(false,
+                    promises.toArray(new ChannelPromise[0])));
+            ctx.write(FrameBatch.combine(ctx.alloc(), frames), batchPromise);
+        }
+        frames.clear();
+        promises.clear();
+        pendingBytes = 0;
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    /**
+     * Checks whether a message is a complete, uncompressed data frame.
+     *
+     * @param msg The outgoing message.
+     * @return true if it can go into a batch.
+     */
+    private static boolean isBatchable(Object msg) {
+        if (!(msg instanceof TextWebSocketFrame) && !(msg instanceof BinaryWebSocketFrame)) {
+            return false;
+        }
+        WebSocketFrame frame = (WebSocketFrame) msg;
+        return frame.isFinalFragment() && frame.rsv() == 0;
+    }
+}
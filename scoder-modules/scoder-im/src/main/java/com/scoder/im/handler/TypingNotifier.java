@@ -0,0 +1,132 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.cluster.MessageRouter;
+import com.scoder.im.protocol.TypingCommand;
+import com.scoder.im.service.GroupMembershipCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TypingNotifier passes typing indicators on to the other participants of a conversation.
+ * <p>
+ * Indicators are rate limited per connection and conversation before any work is queued, so
+ * a client that reports every keystroke costs one frame per interval. They are not sent in
+ * teams above a size limit, where they would only add noise. TYPING frames are transient:
+ * they are never persisted or stored for offline users, and are the first frames dropped
+ * for a slow client.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class TypingNotifier {
+
+    /**
+     * When the last indicator of each conversation was passed on, per channel. Only accessed
+     * on the channel's event loop.
+     */
+    private static final AttributeKey<Map<String, Long>> LAST_SENT = AttributeKey.valueOf("typingLastSent");
+
+    /**
+     * Upper bound on the conversations remembered per channel.
+     */
+    private static final int MAX_TRACKED_CONVERSATIONS = 64;
+
+    /**
+     * Minimum time between two indicators of one connection in one conversation.
+     */
+    @Value("${im.typing.min-interval-ms:3000}")
+    private long minIntervalMs;
+
+    /**
+     * Largest team that receives typing indicators.
+     */
+    @Value("${im.typing.max-team-size:100}")
+    private int maxTeamSize;
+
+    @Autowired
+    private GroupMembershipCache groupMembershipCache;
+
+    @Autowired
+    private MessageRouter messageRouter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Counter sentCounter;
+    private Counter suppressedCounter;
+
+    @PostConstruct
+    public void init() {
+        sentCounter = meterRegistry.counter("im.typing.sent");
+        suppressedCounter = meterRegistry.counter("im.typing.suppressed");
+    }
+
+    /**
+     * Checks the rate limit of a channel. Must be called on the channel's event loop.
+     *
+     * @param channel         The channel the indicator arrived on.
+     * @param conversationKey The conversation the user is typing in.
+     * @return true if the indicator should be passed on.
+     */
+    public boolean tryAcquire(Channel channel, String conversationKey) {
+        Map<String, Long> lastSent = channel.attr(LAST_SENT).get();
+        if (lastSent == null) {
+            lastSent = new HashMap<>();
+            channel.attr(LAST_SENT).set(lastSent);
+        }
+        long now = System.currentTimeMillis();
+        Long last = lastSent.get(conversationKey);
+        if (last != null && now - last < minIntervalMs) {
+            suppressedCounter.increment();
+            return false;
+        }
+        if (lastSent.size() >= MAX_TRACKED_CONVERSATIONS) {
+            lastSent.clear();
+        }
+        lastSent.put(conversationKey, now);
+        return true;
+    }
+
+    /**
+     * Sends the indicator to the other participants of the conversation.
+     *
+     * @param senderId The ID of the typing user.
+     * @param command  The TYPING command.
+     */
+    public void send(Long senderId, TypingCommand command) {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "TYPING");
+        payload.put("senderId", senderId.toString());
+        if (!command.isGroup()) {
+            payload.put("receiverId", Long.toString(command.getTargetId()));
+            messageRouter.route(payload, command.getTargetId());
+            sentCounter.increment();
+            return;
+        }
+        GroupMembershipCache.TeamMembers members = groupMembershipCache.getMembers(command.getTargetId());
+        if (members == null || !members.contains(senderId) || members.size() > maxTeamSize) {
+            suppressedCounter.increment();
+            return;
+        }
+        List<Long> recipients = new ArrayList<>(members.size());
+        for (Long memberId : members.asList()) {
+            if (!memberId.equals(senderId)) {
+                recipients.add(memberId);
+            }
+        }
+        payload.put("teamId", Long.toString(command.getTargetId()));
+        messageRouter.route(payload, recipients);
+        sentCounter.increment();
+    }
+}
@@ -1,18 +1,26 @@
 package com.scoder.im.handler;
 
-import com.alibaba.fastjson.JSON;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.scoder.im.api.domain.Group;
+import com.scoder.im.cluster.MessageRouter;
 import com.scoder.im.config.NettyConfig;
 import com.scoder.im.domain.ChatMessage;
-import com.scoder.im.repository.ChatRepository;
-import com.scoder.im.repository.GroupRepository;
+import com.scoder.im.protocol.AckCommand;
+import com.scoder.im.protocol.ChatCommand;
+import com.scoder.im.protocol.Command;
+import com.scoder.im.protocol.CommandDecoder;
+import com.scoder.im.protocol.CommandType;
+import com.scoder.im.protocol.LoginCommand;
+import com.scoder.im.protocol.ReadCommand;
+import com.scoder.im.protocol.TypingCommand;
+import com.scoder.im.service.ConversationService;
+import com.scoder.im.service.GroupMembershipCache;
+import com.scoder.im.service.MessageDeduplicator;
+import com.scoder.im.service.MessagePersistService;
+import com.scoder.im.service.OfflineInboxService;
+import com.scoder.im.service.PresenceService;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,23 +28,67 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Handles WebSocket events and processes messages sent by clients.
- * Supports user login, direct messaging, and group messaging.
+ * Supports user login, direct messaging, and group messaging. Frames are decoded into
+ * {@link Command}s by the {@link CommandDecoder} in front of this handler, so the same
+ * logic serves JSON and binary clients. Chat messages are handled on the
+ * {@link BusinessExecutor}, keyed by conversation, so the event loop only does framing and
+ * the messages of one conversation keep their order.
  * Messages are persisted in the database and delivered to online users in real time.
+ * <p>
+ * A chat message that carries a client message ID is answered with an ACK holding the
+ * server message ID once it has been queued for persistence. A client that resends the
+ * message because the ACK was lost gets the same ACK again, and the copy is dropped. Clients
+ * that log in with acknowledgements on confirm each delivered message with an ACK of their
+ * own; the {@link DeliveryTracker} resends what they do not confirm, and the sender of a
+ * direct message receives a DELIVERED receipt.
+ * <p>
+ * A READ command resets the user's unread count of a conversation and is passed on to all of
+ * the user's devices, so that every device can clear its badge without reloading the lists.
+ * TYPING commands and presence changes are passed on as transient frames and never stored.
+ * <p>
+ * DIRECT and GROUP messages are checked against the {@link InboundRateLimiter} on the event
+ * loop; a message over the limit is answered with an error frame and never queued.
  *
  * @author Shawn Cui
  */
 @Component
 @ChannelHandler.Sharable
-public class WebSocketHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+public class WebSocketHandler extends SimpleChannelInboundHandler<Command> {
 
     private static final Logger log = LoggerFactory.getLogger(WebSocketHandler.class);
+
+    /**
+     * Channel attribute holding the ID of the user bound to the channel.
+     */
+    static final AttributeKey<String> USER_ID = AttributeKey.valueOf("userId");
+    @Autowired
+    private GroupMembershipCache groupMembershipCache; // Cached team members for group fan-out
+    @Autowired
+    private MessagePersistService messagePersistService; // Write-behind queue for chat messages
+    @Autowired
+    private MessageRouter messageRouter; // Delivers frames to recipients on this or other IM nodes
+    @Autowired
+    private OfflineInboxService offlineInboxService; // Messages missed while users were offline
+    @Autowired
+    private MessageFanout messageFanout; // Encodes outgoing frames in each client's protocol
     @Autowired
-    private GroupRepository groupRepository; // Repository for managing group data
+    private BusinessExecutor businessExecutor; // Ordered lanes for blocking chat handling
     @Autowired
-    private ChatRepository chatRepository; // Repository for managing chat messages
+    private MessageDeduplicator messageDeduplicator; // Client message IDs accepted recently
+    @Autowired
+    private DeliveryTracker deliveryTracker; // Resends deliveries the client did not acknowledge
+    @Autowired
+    private ConversationService conversationService; // Conversation list entries and unread counts
+    @Autowired
+    private PresenceService presenceService; // Debounced online/offline broadcasts to teams
+    @Autowired
+    private TypingNotifier typingNotifier; // Rate-limited typing indicators
+    @Autowired
+    private InboundRateLimiter inboundRateLimiter; // Token buckets for chat messages per connection and user
 
     /**
      * Called when a new connection is established.
@@ -50,84 +102,328 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<TextWebSocketF
     }
 
     /**
-     * Processes incoming messages from clients.
+     * Dispatches a command decoded by the {@link CommandDecoder}.
      *
-     * @param ctx The channel context
-     * @param msg The received WebSocket text frame
+     * @param ctx     The channel context
+     * @param command The decoded command
      */
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame msg) {
-        String messageText = msg.text();
+    protected void channelRead0(ChannelHandlerContext ctx, Command command) {
+        switch (command.getType()) {
+            case LOGIN:
+                // Only binds the channel; the replay itself runs on the inbox thread
+                process(ctx, command, () -> handleLogin(ctx, (LoginCommand) command));
+                break;
+            case DIRECT:
+            case GROUP:
+                // Messages are charged to the user's budget, which only exists after LOGIN
+                if (getUserIdFromChannel(ctx.channel()) == null) {
+                    sendError(ctx, "Not logged in");
+                    break;
+                }
+                ChatMessage chatMessage = ((ChatCommand) command).toChatMessage();
+                boolean group = command.getType() == CommandType.GROUP;
+                if (!inboundRateLimiter.tryAcquire(ctx.channel(), group, chatMessage.getTeamId())) {
+                    sendError(ctx, "Too many messages, message was not sent");
+                    break;
+                }
+                chatMessage.setConversationKey(group
+                        ? ChatMessage.teamConversationKey(chatMessage.getTeamId())
+                        : ChatMessage.directConversationKey(chatMessage.getSenderId(), chatMessage.getReceiverId()));
+                Runnable handler = group
+                        ? () -> handleGroupMessage(ctx, chatMessage)
+                        : () -> handleDirectMessage(ctx, chatMessage);
+                if (!businessExecutor.execute(chatMessage.getConversationKey(), () -> process(ctx, command, handler))) {
+                    sendError(ctx, "Server is busy, message was not sent");
+                }
+                break;
+            case ACK:
+                handleAck(ctx, (AckCommand) command);
+                break;
+            case READ:
+                // Keyed like the conversation's messages, so the read follows the messages it covers
+                ReadCommand read = (ReadCommand) command;
+                Runnable readHandler = () -> handleRead(ctx, read);
+                if (!businessExecutor.execute(read.getConversationKey(), () -> process(ctx, command, readHandler))) {
+                    sendError(ctx, "Server is busy, try again later");
+                }
+                break;
+            case TYPING:
+                handleTyping(ctx, (TypingCommand) command);
+                break;
+            default:
+                log.warn("No handler for command type {}", command.getType());
+        }
+    }
+
+    /**
+     * Runs a command handler and answers failures with an error frame.
+     *
+     * @param ctx     The channel context
+     * @param command The command being handled
+     * @param handler The handler
+     */
+    private void process(ChannelHandlerContext ctx, Command command, Runnable handler) {
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            JsonNode jsonNode = objectMapper.readTree(messageText);
-
-            String type = jsonNode.get("type").asText();
-
-            if ("LOGIN".equals(type)) {
-                // Handle user login
-                String userId = jsonNode.get("userId").asText();
-                bindUserToChannel(ctx, userId);
-            } else if ("DIRECT".equals(type)) {
-                // Handle direct message
-                ChatMessage chatMessage = objectMapper.treeToValue(jsonNode, ChatMessage.class);
-                handleDirectMessage(chatMessage);
-            } else if ("GROUP".equals(type)) {
-                // Handle group message
-                ChatMessage chatMessage = objectMapper.treeToValue(jsonNode, ChatMessage.class);
-                handleGroupMessage(chatMessage);
-            }
+            handler.run();
         } catch (Exception e) {
-            log.error("Failed to process message: {}", e.getMessage());
+            log.error("Failed to process {} command: {}", command.getType(), e.getMessage());
+            sendError(ctx, "Failed to process message");
+        }
+    }
+
+    /**
+     * Binds the user to the channel and replays the offline inbox if the client asked for it.
+     *
+     * @param ctx     The channel context
+     * @param command The login command
+     */
+    private void handleLogin(ChannelHandlerContext ctx, LoginCommand command) {
+        bindUserToChannel(ctx, Long.toString(command.getUserId()));
+        if (command.isAcks()) {
+            deliveryTracker.enable(ctx.channel());
+        }
+        if (command.getLastSeq() != null) {
+            offlineInboxService.replay(ctx.channel(), command.getUserId(), command.getLastSeq());
         }
     }
 
     /**
      * Handles direct messages and sends them to the recipient if they are online.
+     * The message is queued for persistence first; if the queue rejects it the sender
+     * receives an error frame and the message is not delivered.
      *
+     * @param ctx         The sender's channel context
      * @param chatMessage The chat message
      */
-    private void handleDirectMessage(ChatMessage chatMessage) {
-        String receiverId = chatMessage.getReceiverId().toString();
-        Channel receiverChannel = NettyConfig.getUserChannelMap().get(receiverId);
+    private void handleDirectMessage(ChannelHandlerContext ctx, ChatMessage chatMessage) {
+        if (isDuplicate(ctx, chatMessage)) {
+            return;
+        }
+        chatMessage.setTimestamp(System.currentTimeMillis());
+        if (!messagePersistService.enqueue(chatMessage)) {
+            sendError(ctx, "Server is busy, message was not sent");
+            return;
+        }
+        acknowledgeSender(ctx, chatMessage);
+        Long receiverId = chatMessage.getReceiverId();
         HashMap<String, String> map = new HashMap<>();
-        map.put("receiverId", receiverId);
+        map.put("messageId", chatMessage.getId());
+        map.put("receiverId", receiverId.toString());
         map.put("senderId", chatMessage.getSenderId().toString());
         map.put("content", chatMessage.getContent());
         map.put("timestamp", chatMessage.getTimestamp().toString());
         map.put("type", chatMessage.getType());
-        chatMessage.setTimestamp(System.currentTimeMillis());
-        if (receiverChannel != null && receiverChannel.isActive()) {
-            receiverChannel.writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(map)));
-        }
-        chatRepository.save(chatMessage);
-        log.info("Direct message sent to user {}: {}", receiverId, JSON.toJSONString(chatMessage));
-
+        messageRouter.route(map, receiverId);
+        log.debug("Direct message {} sent to user {}", chatMessage.getId(), receiverId);
     }
 
     /**
      * Handles group messages and sends them to all online members.
+     * The message is queued for persistence once and the outgoing frame is encoded once,
+     * then shared by every online member.
      *
+     * @param ctx         The sender's channel context
      * @param chatMessage The chat message
      */
-    private void handleGroupMessage(ChatMessage chatMessage) {
+    private void handleGroupMessage(ChannelHandlerContext ctx, ChatMessage chatMessage) {
         Long teamId = chatMessage.getTeamId();
-        Group group = groupRepository.findByTeamId(teamId);
+        GroupMembershipCache.TeamMembers members = groupMembershipCache.getMembers(teamId);
+        if (members == null) {
+            sendError(ctx, "Team not found");
+            return;
+        }
+        if (isDuplicate(ctx, chatMessage)) {
+            return;
+        }
         chatMessage.setTimestamp(System.currentTimeMillis());
-        for (Long memberId : group.getMemberIds()) {
-            String memberIdStr = memberId.toString();
-            Channel memberChannel = NettyConfig.getUserChannelMap().get(memberIdStr);
-            HashMap<String, String> map = new HashMap<>();
-            map.put("senderId", chatMessage.getSenderId().toString());
-            map.put("content", chatMessage.getContent());
-            map.put("timestamp", chatMessage.getTimestamp().toString());
-            map.put("type", chatMessage.getType());
-            if (memberChannel != null && memberChannel.isActive()) {
-                memberChannel.writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(map)));
+        if (!messagePersistService.enqueue(chatMessage)) {
+            sendError(ctx, "Server is busy, message was not sent");
+            return;
+        }
+        acknowledgeSender(ctx, chatMessage);
+        HashMap<String, String> map = new HashMap<>();
+        map.put("messageId", chatMessage.getId());
+        map.put("senderId", chatMessage.getSenderId().toString());
+        map.put("teamId", teamId.toString());
+        map.put("content", chatMessage.getContent());
+        map.put("timestamp", chatMessage.getTimestamp().toString());
+        map.put("type", chatMessage.getType());
+        int delivered = messageRouter.route(map, members.asList());
+        log.debug("Group message {} sent to {} local members of team {}", chatMessage.getId(), delivered, teamId);
+    }
+
+    /**
+     * Checks whether a chat message was already accepted under its client message ID, and if
+     * so sends the sender the ACK of the original again.
+     *
+     * @param ctx         The sender's channel context
+     * @param chatMessage The chat message
+     * @return true if the message is a duplicate and must be dropped
+     */
+    private boolean isDuplicate(ChannelHandlerContext ctx, ChatMessage chatMessage) {
+        if (chatMessage.getClientMsgId() == null) {
+            return false;
+        }
+        MessageDeduplicator.Accepted accepted =
+                messageDeduplicator.find(chatMessage.getSenderId(), chatMessage.getClientMsgId());
+        if (accepted == null) {
+            return false;
+        }
+        log.debug("Dropped duplicate {} of user {}", chatMessage.getClientMsgId(), chatMessage.getSenderId());
+        sendAck(ctx, chatMessage.getClientMsgId(), accepted.getMessageId(), accepted.getTimestamp());
+        return true;
+    }
+
+    /**
+     * Remembers an accepted chat message under its client message ID and confirms it to the
+     * sender. Messages without a client message ID are not confirmed.
+     *
+     * @param ctx         The sender's channel context
+     * @param chatMessage The accepted chat message
+     */
+    private void acknowledgeSender(ChannelHandlerContext ctx, ChatMessage chatMessage) {
+        if (chatMessage.getClientMsgId() == null) {
+            return;
+        }
+        messageDeduplicator.record(chatMessage.getSenderId(), chatMessage.getClientMsgId(),
+                new MessageDeduplicator.Accepted(chatMessage.getId(), chatMessage.getTimestamp()));
+        sendAck(ctx, chatMessage.getClientMsgId(), chatMessage.getId(), chatMessage.getTimestamp());
+    }
+
+    /**
+     * Sends the sender the server message ID and timestamp of an accepted message.
+     *
+     * @param ctx         The sender's channel context
+     * @param clientMsgId The ID the client gave the message
+     * @param messageId   The server message ID
+     * @param timestamp   The server timestamp
+     */
+    private void sendAck(ChannelHandlerContext ctx, String clientMsgId, String messageId, long timestamp) {
+        HashMap<String, String> map = new HashMap<>();
+        map.put("type", "ACK");
+        map.put("clientMsgId", clientMsgId);
+        map.put("messageId", messageId);
+        map.put("timestamp", Long.toString(timestamp));
+        messageFanout.send(ctx.channel(), map);
+    }
+
+    /**
+     * Handles a client's confirmation of a delivered message. The sender of a direct message
+     * is told that it was delivered; the receipt is routed on the conversation's lane so that
+     * it follows the message itself.
+     *
+     * @param ctx     The recipient's channel context
+     * @param command The ACK command
+     */
+    private void handleAck(ChannelHandlerContext ctx, AckCommand command) {
+        Map<String, String> delivered = deliveryTracker.acknowledge(ctx.channel(), command.getMessageId());
+        if (delivered == null || !"DIRECT".equals(delivered.get("type"))) {
+            return;
+        }
+        Long senderId = Long.valueOf(delivered.get("senderId"));
+        Long receiverId = Long.valueOf(delivered.get("receiverId"));
+        HashMap<String, String> map = new HashMap<>();
+        map.put("type", "DELIVERED");
+        map.put("messageId", command.getMessageId());
+        map.put("receiverId", receiverId.toString());
+        String conversationKey = ChatMessage.directConversationKey(senderId, receiverId);
+        businessExecutor.execute(conversationKey,
+                () -> process(ctx, command, () -> messageRouter.route(map, senderId)));
+    }
+
+    /**
+     * Marks a conversation as read for the user bound to the channel and tells the user's
+     * devices about it.
+     *
+     * @param ctx     The channel context
+     * @param command The READ command
+     */
+    private void handleRead(ChannelHandlerContext ctx, ReadCommand command) {
+        String userId = getUserIdFromChannel(ctx.channel());
+        if (userId == null) {
+            sendError(ctx, "Not logged in");
+            return;
+        }
+        long readTimestamp = command.getTimestamp() != null ? command.getTimestamp() : System.currentTimeMillis();
+        conversationService.markRead(Long.valueOf(userId), command.getConversationKey(), readTimestamp);
+        HashMap<String, String> map = new HashMap<>();
+        map.put("type", "READ");
+        map.put("conversationKey", command.getConversationKey());
+        map.put("timestamp", Long.toString(readTimestamp));
+        messageRouter.route(map, Long.valueOf(userId));
+    }
+
+    /**
+     * Passes a typing indicator on, unless the channel sent one for the same conversation
+     * recently. Indicators are dropped silently when the lane is full.
+     *
+     * @param ctx     The channel context
+     * @param command The TYPING command
+     */
+    private void handleTyping(ChannelHandlerContext ctx, TypingCommand command) {
+        String userId = getUserIdFromChannel(ctx.channel());
+        if (userId == null) {
+            return;
+        }
+        Long senderId = Long.valueOf(userId);
+        String conversationKey = command.isGroup()
+                ? ChatMessage.teamConversationKey(command.getTargetId())
+                : ChatMessage.directConversationKey(senderId, command.getTargetId());
+        if (typingNotifier.tryAcquire(ctx.channel(), conversationKey)) {
+            Runnable typingHandler = () -> typingNotifier.send(senderId, command);
+            businessExecutor.execute(conversationKey, () -> process(ctx, command, typingHandler));
+        }
+    }
+
+    /**
+     * Sends an error frame back to the client.
+     *
+     * @param ctx     The channel context
+     * @param message The error description
+     */
+    private void sendError(ChannelHandlerContext ctx, String message) {
+        messageFanout.sendError(ctx.channel(), message);
+    }
+
+    /**
+     * Moves a user whose connection fell behind to the offline inbox and back. When the outbound
+     * queue fills up, the current inbox position is recorded; messages are then stored in the
+     * inbox instead of being written, and are streamed to the client once the queue has drained.
+     *
+     * @param ctx The channel context
+     * @param evt The user event
+     * @throws Exception If a later handler fails
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        String userId = getUserIdFromChannel(ctx.channel());
+        if (evt == OutboundBackpressure.THROTTLED_EVENT) {
+            log.warn("Outbound queue of user {} is full on channel {}", userId, ctx.channel().id());
+            if (userId != null) {
+                offlineInboxService.checkpoint(ctx.channel(), Long.valueOf(userId));
+            }
+        } else if (evt == OutboundBackpressure.RECOVERED) {
+            log.info("Outbound queue of user {} has drained on channel {}", userId, ctx.channel().id());
+            if (userId != null) {
+                offlineInboxService.resume(ctx.channel(), Long.valueOf(userId));
             }
-            log.info("Group message sent to member {}: {}", memberId, JSON.toJSONString(chatMessage));
-            chatRepository.save(chatMessage);
         }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    /**
+     * Called when the connection is closed, including connections reaped by the
+     * {@link HeartbeatHandler}. The user binding is removed right away instead of waiting
+     * for the channel to be deregistered.
+     *
+     * @param ctx The channel context
+     * @throws Exception If a later handler fails
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        removeChannel(ctx);
+        super.channelInactive(ctx);
     }
 
     /**
@@ -137,12 +433,7 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<TextWebSocketF
      */
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) {
-        String userId = getUserIdFromChannel(ctx.channel());
-        if (userId != null) {
-            NettyConfig.getUserChannelMap().remove(userId);
-            log.info("User {} has been unbound from channel: {}", userId, ctx.channel().id());
-        }
-        NettyConfig.getChannelGroup().remove(ctx.channel());
+        removeChannel(ctx);
     }
 
     /**
@@ -163,16 +454,26 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<TextWebSocketF
     }
 
     /**
-     * Binds a user ID to a channel.
+     * Binds a user ID to a channel. Each device of a user has its own channel, and the user
+     * is registered as online in the cluster when the first one is bound. A channel that was
+     * bound to another user before is released from that user first.
      *
      * @param ctx    The channel context
      * @param userId The user ID
      */
     private void bindUserToChannel(ChannelHandlerContext ctx, String userId) {
-        AttributeKey<String> key = AttributeKey.valueOf("userId");
-        ctx.channel().attr(key).set(userId);
-        NettyConfig.getUserChannelMap().put(userId, ctx.channel());
-        log.info("User {} is now bound to channel: {}", userId, ctx.channel().id());
+        String previous = ctx.channel().attr(USER_ID).getAndSet(userId);
+        if (previous != null && !previous.equals(userId)) {
+            unbindUser(ctx.channel(), previous);
+        }
+        Long id = Long.valueOf(userId);
+        int devices = NettyConfig.getUserChannels().bind(id, ctx.channel());
+        inboundRateLimiter.bind(ctx.channel(), id);
+        if (devices == 1) {
+            messageRouter.userOnline(id);
+            presenceService.online(id);
+        }
+        log.info("User {} is now bound to channel: {} ({} device(s))", userId, ctx.channel().id(), devices);
     }
 
     /**
@@ -182,20 +483,41 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<TextWebSocketF
      * @return The user ID
      */
     private String getUserIdFromChannel(Channel channel) {
-        AttributeKey<String> key = AttributeKey.valueOf("userId");
-        return channel.attr(key).get();
+        return channel.attr(USER_ID).get();
     }
 
     /**
      * Removes a user-channel binding and cleans up the channel group.
+     * Only this channel is removed, so the user's other devices stay connected. Messages the
+     * channel has not acknowledged are moved to the user's offline inbox.
      *
      * @param ctx The channel context
      */
     private void removeChannel(ChannelHandlerContext ctx) {
         String userId = getUserIdFromChannel(ctx.channel());
         if (userId != null) {
-            NettyConfig.getUserChannelMap().remove(userId);
+            unbindUser(ctx.channel(), userId);
         }
+        deliveryTracker.release(ctx.channel());
         NettyConfig.getChannelGroup().remove(ctx.channel());
     }
+
+    /**
+     * Removes one channel from a user and marks the user offline in the cluster when it was
+     * the user's last channel on this node.
+     *
+     * @param channel The channel
+     * @param userId  The user ID
+     */
+    private void unbindUser(Channel channel, String userId) {
+        int remaining = NettyConfig.getUserChannels().unbind(Long.valueOf(userId), channel);
+        if (remaining == 0) {
+            messageRouter.userOffline(Long.valueOf(userId));
+            presenceService.offline(Long.valueOf(userId));
+            inboundRateLimiter.release(Long.valueOf(userId));
+        }
+        if (remaining >= 0) {
+            log.info("User {} has been unbound from channel: {}", userId, channel.id());
+        }
+    }
 }
\ No newline at end of file
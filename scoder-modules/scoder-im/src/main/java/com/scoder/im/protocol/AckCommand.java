@@ -0,0 +1,29 @@
+package com.scoder.im.protocol;
+
+/**
+ * Confirms that the client received a delivered chat message.
+ *
+ * @author Shawn Cui
+ */
+public final class AckCommand implements Command {
+
+    private final String messageId;
+
+    public AckCommand(String messageId) {
+        this.messageId = messageId;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.ACK;
+    }
+
+    /**
+     * Returns the server ID of the received message.
+     *
+     * @return The message ID.
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+}
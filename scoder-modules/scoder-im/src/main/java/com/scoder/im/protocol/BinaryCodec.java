@@ -0,0 +1,257 @@
+package com.scoder.im.protocol;
+
+import com.alibaba.fastjson.JSON;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * BinaryCodec reads and writes the compact binary frames used by clients that negotiated
+ * {@link WireProtocol#BINARY}. Every frame starts with a one-byte opcode:
+ * <pre>
+ * LOGIN  0x01  userId:int64 lastSeq:int64 (-1 when the client keeps no inbox state) [flags:int8]
+ * DIRECT 0x02  senderId:int64 receiverId:int64 timestamp:int64 content:string [id:string]
+ * GROUP  0x03  senderId:int64 teamId:int64 timestamp:int64 content:string [id:string]
+ * PING   0x04  (no fields)
+ * PONG   0x05  (no fields)
+ * BATCH  0x06  (length:varint frame)* several server frames, each starting with its own opcode
+ * ACK    0x07  messageId:string
+ * READ   0x08  conversationKey:string timestamp:int64 (0 to mark everything received so far as read)
+ * TYPING 0x09  group:int8 (0 direct, 1 team) targetId:int64
+ * ERROR  0x7E  content:string
+ * JSON   0x7F  a UTF-8 JSON document filling the rest of the frame
+ * </pre>
+ * Integers are big-endian, strings are a varint byte length followed by UTF-8 bytes.
+ * Fields in brackets are optional and may be left out at the end of the frame. Bit 0 of the
+ * LOGIN flags asks for acknowledged delivery. The id of a chat frame is the client message ID
+ * in frames sent by clients, and the server message ID in frames sent by the server.
+ * Clients send 0 as the timestamp; the server sets it. Outgoing payloads without a binary
+ * layout, such as offline replays, are sent as JSON frames so that binary clients need only
+ * one transport.
+ * <p>
+ * All methods work directly on {@link ByteBuf}s and do not build intermediate Strings
+ * other than the message content itself.
+ *
+ * @author Shawn Cui
+ */
+public final class BinaryCodec {
+
+    public static final byte LOGIN = 0x01;
+    public static final byte DIRECT = 0x02;
+    public static final byte GROUP = 0x03;
+    public static final byte PING = 0x04;
+    public static final byte PONG = 0x05;
+    public static final byte BATCH = 0x06;
+    public static final byte ACK = 0x07;
+    public static final byte READ = 0x08;
+    public static final byte TYPING = 0x09;
+    public static final byte ERROR = 0x7E;
+    public static final byte JSON_DOCUMENT = 0x7F;
+
+    /**
+     * Upper bound on a single string field, well below the WebSocket frame limit.
+     */
+    private static final int MAX_STRING_BYTES = 1 << 19;
+
+    /**
+     * LOGIN flag asking the server to track and resend unacknowledged deliveries.
+     */
+    public static final int LOGIN_FLAG_ACKS = 0x01;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Reads the opcode at the start of a frame.
+     *
+     * @param in The frame content.
+     * @return The opcode.
+     */
+    public static byte readOpcode(ByteBuf in) {
+        require(in, 1);
+        return in.readByte();
+    }
+
+    /**
+     * Reads a complete client frame.
+     *
+     * @param in The frame content.
+     * @return The decoded command.
+     * @throws CorruptedFrameException If the frame is truncated or has an unknown opcode.
+     */
+    public static Command readCommand(ByteBuf in) {
+        byte opcode = readOpcode(in);
+        switch (opcode) {
+            case LOGIN:
+                require(in, 16);
+                long userId = in.readLong();
+                long lastSeq = in.readLong();
+                int flags = in.isReadable() ? in.readByte() : 0;
+                return new LoginCommand(userId, lastSeq >= 0 ? lastSeq : null, (flags & LOGIN_FLAG_ACKS) != 0);
+            case DIRECT:
+            case GROUP:
+                require(in, 24);
+                long senderId = in.readLong();
+                long targetId = in.readLong();
+                in.skipBytes(8); // timestamp, set by the server
+                String content = readString(in);
+                String clientMsgId = in.isReadable() ? readString(in) : null;
+                return new ChatCommand(opcode == GROUP ? CommandType.GROUP : CommandType.DIRECT,
+                        senderId, targetId, content, clientMsgId);
+            case ACK:
+                return new AckCommand(readString(in));
+            case READ:
+                String conversationKey = readString(in);
+                require(in, 8);
+                long readTimestamp = in.readLong();
+                return new ReadCommand(conversationKey, readTimestamp > 0 ? readTimestamp : null);
+            case TYPING:
+                require(in, 9);
+                boolean group = in.readByte() != 0;
+                return new TypingCommand(group, in.readLong());
+            case PING:
+                return HeartbeatCommand.PING;
+            case PONG:
+                return HeartbeatCommand.PONG;
+            default:
+                throw new CorruptedFrameException("Unknown opcode " + opcode);
+        }
+    }
+
+    /**
+     * Encodes an outgoing payload. DIRECT, GROUP, ERROR, PING and PONG payloads use their binary layout,
+     * anything else is embedded as a JSON document.
+     *
+     * @param allocator The allocator for the frame buffer.
+     * @param payload   The frame fields.
+     * @return A buffer owned by the caller.
+     */
+    public static ByteBuf encode(ByteBufAllocator allocator, Map<String, String> payload) {
+        String type = payload.get("type");
+        String content = payload.get("content");
+        Long senderId = parseLong(payload.get("senderId"));
+        Long timestamp = parseLong(payload.get("timestamp"));
+        Long receiverId = parseLong(payload.get("receiverId"));
+        Long teamId = parseLong(payload.get("teamId"));
+        String messageId = payload.get("messageId");
+
+        if ("PING".equals(type) || "PONG".equals(type)) {
+            return allocator.buffer(1).writeByte("PING".equals(type) ? PING : PONG);
+        }
+        if ("ERROR".equals(type) && content != null) {
+            ByteBuf out = allocator.buffer(1 + 5 + content.length());
+            out.writeByte(ERROR);
+            writeString(out, content);
+            return out;
+        }
+        boolean direct = "DIRECT".equals(type) && receiverId != null;
+        boolean group = "GROUP".equals(type) && teamId != null;
+        if ((direct || group) && senderId != null && timestamp != null && content != null) {
+            int idBytes = messageId != null ? 1 + messageId.length() : 0;
+            ByteBuf out = allocator.buffer(1 + 24 + 5 + content.length() + idBytes);
+            out.writeByte(direct ? DIRECT : GROUP);
+            out.writeLong(senderId);
+            out.writeLong(direct ? receiverId : teamId);
+            out.writeLong(timestamp);
+            writeString(out, content);
+            if (messageId != null) {
+                writeString(out, messageId);
+            }
+            return out;
+        }
+        return encodeJson(allocator, payload);
+    }
+
+    /**
+     * Embeds an object, serialized as JSON, in a binary frame.
+     *
+     * @param allocator The allocator for the frame buffer.
+     * @param payload   The object to serialize.
+     * @return A buffer owned by the caller.
+     */
+    public static ByteBuf encodeJson(ByteBufAllocator allocator, Object payload) {
+        ByteBuf out = allocator.buffer();
+        out.writeByte(JSON_DOCUMENT);
+        try (ByteBufOutputStream stream = new ByteBufOutputStream(out)) {
+            JSON.writeJSONString(stream, payload);
+        } catch (IOException | RuntimeException e) {
+            out.release();
+            throw new IllegalStateException("Failed to encode outgoing frame", e);
+        }
+        return out;
+    }
+
+    /**
+     * Embeds an already rendered JSON document in a binary frame.
+     *
+     * @param allocator The allocator for the frame buffer.
+     * @param json      The JSON document.
+     * @return A buffer owned by the caller.
+     */
+    public static ByteBuf encodeJson(ByteBufAllocator allocator, CharSequence json) {
+        ByteBuf out = allocator.buffer(1 + ByteBufUtil.utf8MaxBytes(json));
+        out.writeByte(JSON_DOCUMENT);
+        ByteBufUtil.writeUtf8(out, json);
+        return out;
+    }
+
+    private static String readString(ByteBuf in) {
+        int length = readVarInt(in);
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new CorruptedFrameException("String field of " + length + " bytes exceeds the limit");
+        }
+        require(in, length);
+        String value = in.toString(in.readerIndex(), length, StandardCharsets.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+
+    private static void writeString(ByteBuf out, CharSequence value) {
+        writeVarInt(out, ByteBufUtil.utf8Bytes(value));
+        ByteBufUtil.writeUtf8(out, value);
+    }
+
+    private static int readVarInt(ByteBuf in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            require(in, 1);
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new CorruptedFrameException("Malformed varint");
+    }
+
+    static void writeVarInt(ByteBuf out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void require(ByteBuf in, int bytes) {
+        if (in.readableBytes() < bytes) {
+            throw new CorruptedFrameException("Truncated frame, expected " + bytes + " more bytes");
+        }
+    }
+
+    private static Long parseLong(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.scoder.im.protocol;
+
+import com.scoder.im.domain.ChatMessage;
+
+/**
+ * A direct or group chat message sent by a client.
+ *
+ * @author Shawn Cui
+ */
+public final class ChatCommand implements Command {
+
+    private final CommandType type;
+    private final long senderId;
+    private final long targetId;
+    private final String content;
+    private final String clientMsgId;
+
+    public ChatCommand(CommandType type, long senderId, long targetId, String content) {
+        this(type, senderId, targetId, content, null);
+    }
+
+    /**
+     * Creates a chat command.
+     *
+     * @param type        {@link CommandType#DIRECT} or {@link CommandType#GROUP}.
+     * @param senderId    The ID of the sender.
+     * @param targetId    The receiver ID of a direct message, or the team ID of a group message.
+     * @param content     The message content.
+     * @param clientMsgId The ID the client gave the message, or null.
+     */
+    public ChatCommand(CommandType type, long senderId, long targetId, String content, String clientMsgId) {
+        this.type = type;
+        this.senderId = senderId;
+        this.targetId = targetId;
+        this.content = content;
+        this.clientMsgId = clientMsgId;
+    }
+
+    @Override
+    public CommandType getType() {
+        return type;
+    }
+
+    public long getSenderId() {
+        return senderId;
+    }
+
+    /**
+     * Returns the receiver ID of a direct message, or the team ID of a group message.
+     *
+     * @return The target ID.
+     */
+    public long getTargetId() {
+        return targetId;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Returns the ID the client gave the message. A client that resends a message after a lost
+     * ACK uses the same ID, so the server can recognise the copy.
+     *
+     * @return The client message ID, or null if the client did not set one.
+     */
+    public String getClientMsgId() {
+        return clientMsgId;
+    }
+
+    /**
+     * Creates the message document for this command. The timestamp is left for the server to set.
+     *
+     * @return A new chat message.
+     */
+    public ChatMessage toChatMessage() {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setType(type.name());
+        chatMessage.setSenderId(senderId);
+        if (type == CommandType.GROUP) {
+            chatMessage.setTeamId(targetId);
+        } else {
+            chatMessage.setReceiverId(targetId);
+        }
+        chatMessage.setContent(content);
+        chatMessage.setClientMsgId(clientMsgId);
+        return chatMessage;
+    }
+}
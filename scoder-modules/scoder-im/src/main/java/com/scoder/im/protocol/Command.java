@@ -0,0 +1,17 @@
+package com.scoder.im.protocol;
+
+/**
+ * A decoded client request, produced by the {@link CommandDecoder} from either wire protocol.
+ * Implementations are immutable.
+ *
+ * @author Shawn Cui
+ */
+public interface Command {
+
+    /**
+     * Returns the kind of command, used by the handler to dispatch it.
+     *
+     * @return The command type.
+     */
+    CommandType getType();
+}
@@ -0,0 +1,85 @@
+package com.scoder.im.protocol;
+
+import com.scoder.im.handler.MessageFanout;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+
+/**
+ * CommandDecoder is the pipeline stage between the WebSocket protocol handler and the
+ * business handler. It records the wire protocol negotiated during the handshake and turns
+ * every data frame into a typed {@link Command}.
+ * <p>
+ * Frames that fail validation never reach the business handler: the client receives an
+ * ERROR frame describing the problem and the connection stays open.
+ *
+ * @author Shawn Cui
+ */
+@Component
+@ChannelHandler.Sharable
+public class CommandDecoder extends MessageToMessageDecoder<WebSocketFrame> {
+
+    private static final Logger log = LoggerFactory.getLogger(CommandDecoder.class);
+
+    /**
+     * Largest data frame accepted from a client, in bytes.
+     */
+    @Value("${im.protocol.max-frame-bytes:65536}")
+    private int maxFrameBytes;
+
+    /**
+     * Longest message content accepted from a client, in characters.
+     */
+    @Value("${im.protocol.max-content-length:4000}")
+    private int maxContentLength;
+
+    @Autowired
+    private MessageFanout messageFanout;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private CommandParser parser;
+    private Counter rejectedCounter;
+
+    /**
+     * Creates the parser from the configured limits.
+     */
+    @PostConstruct
+    public void init() {
+        parser = new CommandParser(maxFrameBytes, maxContentLength);
+        rejectedCounter = meterRegistry.counter("im.protocol.rejected");
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+            String subprotocol = ((WebSocketServerProtocolHandler.HandshakeComplete) evt).selectedSubprotocol();
+            ctx.channel().attr(WireProtocol.KEY).set(WireProtocol.fromSubprotocol(subprotocol));
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) {
+        try {
+            out.add(parser.parse(frame));
+        } catch (CommandRejectedException e) {
+            rejectedCounter.increment();
+            log.debug("Rejected frame from channel {}: {}", ctx.channel().id(), e.getMessage());
+            messageFanout.sendError(ctx.channel(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.scoder.im.protocol;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * CommandParser turns WebSocket frames into validated {@link Command}s.
+ * <p>
+ * JSON frames are bound straight from the frame buffer into an {@link InboundMessage} by a
+ * shared, pre-configured {@link ObjectReader}, without building the frame text or a JSON tree.
+ * Binary frames are read by the {@link BinaryCodec}. Frames that are too large, malformed or
+ * missing required fields are rejected with a {@link CommandRejectedException}.
+ * Instances are immutable and thread-safe.
+ *
+ * @author Shawn Cui
+ */
+public class CommandParser {
+
+    /**
+     * Longest client message ID, acknowledged message ID or conversation key accepted, in characters.
+     */
+    static final int MAX_ID_LENGTH = 64;
+
+    private static final ObjectReader READER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .readerFor(InboundMessage.class);
+
+    private final int maxFrameBytes;
+    private final int maxContentLength;
+
+    /**
+     * Creates a parser.
+     *
+     * @param maxFrameBytes    The largest frame accepted, in bytes.
+     * @param maxContentLength The longest message content accepted, in characters.
+     */
+    public CommandParser(int maxFrameBytes, int maxContentLength) {
+        this.maxFrameBytes = maxFrameBytes;
+        this.maxContentLength = maxContentLength;
+    }
+
+    /**
+     * Parses and validates one frame. The frame is not released.
+     *
+     * @param frame The frame to parse.
+     * @return The command.
+     * @throws CommandRejectedException If the frame is not a valid command.
+     */
+    public Command parse(WebSocketFrame frame) {
+        ByteBuf content = frame.content();
+        if (content.readableBytes() > maxFrameBytes) {
+            throw new CommandRejectedException("Message is too large");
+        }
+        Command command;
+        if (frame instanceof TextWebSocketFrame) {
+            command = parseJson(content);
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            try {
+                command = BinaryCodec.readCommand(content.duplicate());
+            } catch (CorruptedFrameException e) {
+                throw new CommandRejectedException("Malformed binary message");
+            }
+        } else {
+            throw new CommandRejectedException("Unsupported frame type");
+        }
+        validate(command);
+        return command;
+    }
+
+    private Command parseJson(ByteBuf content) {
+        InboundMessage message;
+        try (InputStream in = new ByteBufInputStream(content.duplicate())) {
+            message = READER.readValue(in);
+        } catch (IOException e) {
+            throw new CommandRejectedException("Malformed JSON message");
+        }
+        if (message == null || message.getType() == null) {
+            throw new CommandRejectedException("Missing message type");
+        }
+        switch (message.getType()) {
+            case "LOGIN":
+                return new LoginCommand(requireId(message.getUserId(), "userId"), message.getLastSeq(),
+                        Boolean.TRUE.equals(message.getAcks()));
+            case "DIRECT":
+                return new ChatCommand(CommandType.DIRECT, requireId(message.getSenderId(), "senderId"),
+                        requireId(message.getReceiverId(), "receiverId"), message.getContent(), message.getClientMsgId());
+            case "GROUP":
+                return new ChatCommand(CommandType.GROUP, requireId(message.getSenderId(), "senderId"),
+                        requireId(message.getTeamId(), "teamId"), message.getContent(), message.getClientMsgId());
+            case "PING":
+                return HeartbeatCommand.PING;
+            case "PONG":
+                return HeartbeatCommand.PONG;
+            case "ACK":
+                return new AckCommand(message.getMessageId());
+            case "READ":
+                return new ReadCommand(message.getConversationKey(), message.getTimestamp());
+            case "TYPING":
+                if (message.getTeamId() != null) {
+                    return new TypingCommand(true, requireId(message.getTeamId(), "teamId"));
+                }
+                return new TypingCommand(false, requireId(message.getReceiverId(), "receiverId"));
+            default:
+                throw new CommandRejectedException("Unknown message type");
+        }
+    }
+
+    private void validate(Command command) {
+        if (command instanceof LoginCommand) {
+            requireId(((LoginCommand) command).getUserId(), "userId");
+        } else if (command instanceof ChatCommand) {
+            ChatCommand chat = (ChatCommand) command;
+            requireId(chat.getSenderId(), "senderId");
+            requireId(chat.getTargetId(), chat.getType() == CommandType.GROUP ? "teamId" : "receiverId");
+            if (chat.getContent() == null || chat.getContent().isEmpty()) {
+                throw new CommandRejectedException("Message content is empty");
+            }
+            if (chat.getContent().length() > maxContentLength) {
+                throw new CommandRejectedException("Message content is too long");
+            }
+            if (chat.getClientMsgId() != null && (chat.getClientMsgId().isEmpty()
+                    || chat.getClientMsgId().length() > MAX_ID_LENGTH)) {
+                throw new CommandRejectedException("Invalid clientMsgId");
+            }
+        } else if (command instanceof AckCommand) {
+            String messageId = ((AckCommand) command).getMessageId();
+            if (messageId == null || messageId.isEmpty() || messageId.length() > MAX_ID_LENGTH) {
+                throw new CommandRejectedException("Missing or invalid messageId");
+            }
+        } else if (command instanceof TypingCommand) {
+            TypingCommand typing = (TypingCommand) command;
+            requireId(typing.getTargetId(), typing.isGroup() ? "teamId" : "receiverId");
+        } else if (command instanceof ReadCommand) {
+            String conversationKey = ((ReadCommand) command).getConversationKey();
+            if (conversationKey == null || conversationKey.isEmpty() || conversationKey.length() > MAX_ID_LENGTH) {
+                throw new CommandRejectedException("Missing or invalid conversationKey");
+            }
+        }
+    }
+
+    private static long requireId(Long id, String field) {
+        if (id == null || id <= 0) {
+            throw new CommandRejectedException("Missing or invalid " + field);
+        }
+        return id;
+    }
+}
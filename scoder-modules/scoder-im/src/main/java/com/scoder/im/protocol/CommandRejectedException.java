@@ -0,0 +1,16 @@
+package com.scoder.im.protocol;
+
+/**
+ * Thrown when an incoming frame cannot be turned into a valid {@link Command}.
+ * The message is safe to return to the client.
+ *
+ * @author Shawn Cui
+ */
+public class CommandRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CommandRejectedException(String message) {
+        super(message);
+    }
+}
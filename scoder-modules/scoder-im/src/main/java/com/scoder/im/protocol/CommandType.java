@@ -0,0 +1,49 @@
+package com.scoder.im.protocol;
+
+/**
+ * The kinds of commands a client can send.
+ *
+ * @author Shawn Cui
+ */
+public enum CommandType {
+
+    /**
+     * Binds the connection to a user.
+     */
+    LOGIN,
+
+    /**
+     * A message to another user.
+     */
+    DIRECT,
+
+    /**
+     * A message to every member of a team.
+     */
+    GROUP,
+
+    /**
+     * A liveness probe, answered with PONG.
+     */
+    PING,
+
+    /**
+     * The answer to a PING sent by the server.
+     */
+    PONG,
+
+    /**
+     * Confirms that a delivered message was received.
+     */
+    ACK,
+
+    /**
+     * Marks a conversation as read.
+     */
+    READ,
+
+    /**
+     * Shows that the user is typing in a conversation.
+     */
+    TYPING
+}
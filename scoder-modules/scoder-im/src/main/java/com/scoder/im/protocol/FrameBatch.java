@@ -0,0 +1,65 @@
+package com.scoder.im.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * FrameBatch combines several outgoing frames of one wire protocol into a single BATCH frame.
+ * <p>
+ * JSON clients receive {@code {"type":"BATCH","messages":[...]}} where every element is one
+ * of the original JSON documents; binary clients receive a {@link BinaryCodec#BATCH} frame
+ * holding the original frames, each prefixed with its length. The original buffers become
+ * components of a composite buffer, so no frame content is copied.
+ *
+ * @author Shawn Cui
+ */
+public final class FrameBatch {
+
+    private static final byte[] JSON_PREFIX = "{\"type\":\"BATCH\",\"messages\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] JSON_SEPARATOR = {','};
+    private static final byte[] JSON_SUFFIX = {']', '}'};
+
+    private FrameBatch() {
+    }
+
+    /**
+     * Combines frames into one BATCH frame. The frames are released, or owned by the result.
+     *
+     * @param allocator The allocator for the batch buffer.
+     * @param frames    Two or more text frames, or two or more binary frames.
+     * @return A frame of the same type as the inputs.
+     */
+    public static WebSocketFrame combine(ByteBufAllocator allocator, List<WebSocketFrame> frames) {
+        boolean text = frames.get(0) instanceof TextWebSocketFrame;
+        CompositeByteBuf out = allocator.compositeBuffer(2 * frames.size() + 1);
+        if (text) {
+            out.addComponent(true, Unpooled.wrappedBuffer(JSON_PREFIX));
+            for (int i = 0; i < frames.size(); i++) {
+                if (i > 0) {
+                    out.addComponent(true, Unpooled.wrappedBuffer(JSON_SEPARATOR));
+                }
+                out.addComponent(true, frames.get(i).content());
+            }
+            out.addComponent(true, Unpooled.wrappedBuffer(JSON_SUFFIX));
+            return new TextWebSocketFrame(out);
+        }
+        ByteBuf header = allocator.buffer(1);
+        header.writeByte(BinaryCodec.BATCH);
+        out.addComponent(true, header);
+        for (WebSocketFrame frame : frames) {
+            ByteBuf length = allocator.buffer(5);
+            BinaryCodec.writeVarInt(length, frame.content().readableBytes());
+            out.addComponent(true, length);
+            out.addComponent(true, frame.content());
+        }
+        return new BinaryWebSocketFrame(out);
+    }
+}
@@ -0,0 +1,23 @@
+package com.scoder.im.protocol;
+
+/**
+ * An application-level PING or PONG. Both carry no fields, so the two instances are shared.
+ *
+ * @author Shawn Cui
+ */
+public final class HeartbeatCommand implements Command {
+
+    public static final HeartbeatCommand PING = new HeartbeatCommand(CommandType.PING);
+    public static final HeartbeatCommand PONG = new HeartbeatCommand(CommandType.PONG);
+
+    private final CommandType type;
+
+    private HeartbeatCommand(CommandType type) {
+        this.type = type;
+    }
+
+    @Override
+    public CommandType getType() {
+        return type;
+    }
+}
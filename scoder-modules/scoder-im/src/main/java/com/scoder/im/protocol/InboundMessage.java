@@ -0,0 +1,37 @@
+package com.scoder.im.protocol;
+
+import lombok.Data;
+
+/**
+ * The union of all fields a JSON client message may carry. Only used as the binding target
+ * of the {@link CommandParser}; handlers receive {@link Command}s.
+ *
+ * @author Shawn Cui
+ */
+@Data
+class InboundMessage {
+
+    private String type;
+
+    private Long userId;
+
+    private Long lastSeq;
+
+    private Long senderId;
+
+    private Long receiverId;
+
+    private Long teamId;
+
+    private String content;
+
+    private String clientMsgId;
+
+    private String messageId;
+
+    private Boolean acks;
+
+    private String conversationKey;
+
+    private Long timestamp;
+}
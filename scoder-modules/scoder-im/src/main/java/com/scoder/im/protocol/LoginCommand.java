@@ -0,0 +1,63 @@
+package com.scoder.im.protocol;
+
+/**
+ * Binds the connection to a user and optionally requests the offline inbox.
+ *
+ * @author Shawn Cui
+ */
+public final class LoginCommand implements Command {
+
+    private final long userId;
+    private final Long lastSeq;
+    private final boolean acks;
+
+    public LoginCommand(long userId, Long lastSeq) {
+        this(userId, lastSeq, false);
+    }
+
+    /**
+     * Creates a login command.
+     *
+     * @param userId  The ID of the user logging in.
+     * @param lastSeq The last offline inbox sequence the client received, or null.
+     * @param acks    Whether the client acknowledges delivered messages.
+     */
+    public LoginCommand(long userId, Long lastSeq, boolean acks) {
+        this.userId = userId;
+        this.lastSeq = lastSeq;
+        this.acks = acks;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.LOGIN;
+    }
+
+    /**
+     * Returns the ID of the user logging in.
+     *
+     * @return The user ID.
+     */
+    public long getUserId() {
+        return userId;
+    }
+
+    /**
+     * Returns the last offline inbox sequence the client received.
+     *
+     * @return The sequence, or null if the client does not track the inbox.
+     */
+    public Long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Checks whether the client answers delivered chat messages with ACK commands. Only then
+     * are its deliveries tracked and resent.
+     *
+     * @return true if the client acknowledges deliveries.
+     */
+    public boolean isAcks() {
+        return acks;
+    }
+}
@@ -0,0 +1,42 @@
+package com.scoder.im.protocol;
+
+/**
+ * Marks a conversation as read by the logged-in user.
+ *
+ * @author Shawn Cui
+ */
+public final class ReadCommand implements Command {
+
+    private final String conversationKey;
+    private final Long timestamp;
+
+    /**
+     * Creates a read command.
+     *
+     * @param conversationKey The key of the conversation.
+     * @param timestamp       The timestamp of the latest message the user has seen, or null for
+     *                        every message received so far.
+     */
+    public ReadCommand(String conversationKey, Long timestamp) {
+        this.conversationKey = conversationKey;
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.READ;
+    }
+
+    public String getConversationKey() {
+        return conversationKey;
+    }
+
+    /**
+     * Returns the timestamp of the latest message the user has seen.
+     *
+     * @return The timestamp, or null if the server time is to be used.
+     */
+    public Long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,21 @@
+package com.scoder.im.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+
+/**
+ * A binary frame that may be dropped under backpressure. Duplicates keep the marker.
+ *
+ * @author Shawn Cui
+ */
+public class TransientBinaryWebSocketFrame extends BinaryWebSocketFrame implements TransientFrame {
+
+    public TransientBinaryWebSocketFrame(ByteBuf content) {
+        super(content);
+    }
+
+    @Override
+    public BinaryWebSocketFrame replace(ByteBuf content) {
+        return new TransientBinaryWebSocketFrame(content);
+    }
+}
@@ -0,0 +1,10 @@
+package com.scoder.im.protocol;
+
+/**
+ * Marks outgoing frames that may be dropped when a client cannot keep up, such as presence
+ * and typing updates. Chat messages are never transient.
+ *
+ * @author Shawn Cui
+ */
+public interface TransientFrame {
+}
@@ -0,0 +1,25 @@
+package com.scoder.im.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+
+/**
+ * A text frame that may be dropped under backpressure. Duplicates keep the marker.
+ *
+ * @author Shawn Cui
+ */
+public class TransientTextWebSocketFrame extends TextWebSocketFrame implements TransientFrame {
+
+    public TransientTextWebSocketFrame(String text) {
+        super(text);
+    }
+
+    public TransientTextWebSocketFrame(ByteBuf content) {
+        super(content);
+    }
+
+    @Override
+    public TextWebSocketFrame replace(ByteBuf content) {
+        return new TransientTextWebSocketFrame(content);
+    }
+}
@@ -0,0 +1,41 @@
+package com.scoder.im.protocol;
+
+/**
+ * Tells the other participants of a conversation that the user is typing. Never persisted.
+ *
+ * @author Shawn Cui
+ */
+public final class TypingCommand implements Command {
+
+    private final boolean group;
+    private final long targetId;
+
+    /**
+     * Creates a typing command.
+     *
+     * @param group    Whether the conversation is a team conversation.
+     * @param targetId The receiver ID of a direct conversation, or the team ID.
+     */
+    public TypingCommand(boolean group, long targetId) {
+        this.group = group;
+        this.targetId = targetId;
+    }
+
+    @Override
+    public CommandType getType() {
+        return CommandType.TYPING;
+    }
+
+    public boolean isGroup() {
+        return group;
+    }
+
+    /**
+     * Returns the receiver ID of a direct conversation, or the team ID of a team conversation.
+     *
+     * @return The target ID.
+     */
+    public long getTargetId() {
+        return targetId;
+    }
+}
@@ -0,0 +1,49 @@
+package com.scoder.im.protocol;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * The encoding a WebSocket client negotiated during the handshake.
+ * <p>
+ * Clients that request the {@value #BINARY_SUBPROTOCOL} subprotocol exchange
+ * {@link BinaryCodec} frames; every other client uses JSON text frames.
+ *
+ * @author Shawn Cui
+ */
+public enum WireProtocol {
+
+    JSON,
+    BINARY;
+
+    /**
+     * WebSocket subprotocol that selects the binary encoding.
+     */
+    public static final String BINARY_SUBPROTOCOL = "scoder.binary.v1";
+
+    /**
+     * Channel attribute holding the negotiated protocol.
+     */
+    public static final AttributeKey<WireProtocol> KEY = AttributeKey.valueOf("wireProtocol");
+
+    /**
+     * Resolves the protocol from the subprotocol selected during the handshake.
+     *
+     * @param subprotocol The selected subprotocol, may be null.
+     * @return The matching protocol, JSON unless binary was selected.
+     */
+    public static WireProtocol fromSubprotocol(String subprotocol) {
+        return BINARY_SUBPROTOCOL.equals(subprotocol) ? BINARY : JSON;
+    }
+
+    /**
+     * Returns the protocol of a channel.
+     *
+     * @param channel The channel.
+     * @return The negotiated protocol, JSON if none was recorded.
+     */
+    public static WireProtocol of(Channel channel) {
+        WireProtocol protocol = channel.attr(KEY).get();
+        return protocol == null ? JSON : protocol;
+    }
+}
@@ -11,5 +11,8 @@ public interface ChatCustomRepository {
 
     List<GroupVo> getTeamChatList(Long userId);
 
-    List<ChatMessage> getDirectChatHistory(Long userId, Long receiverId);
+    List<ChatMessage> getDirectChatHistory(Long userId, Long receiverId, Long before, String beforeId, Long after,
+                                           String afterId, int limit);
+
+    List<ChatMessage> getTeamChatHistory(Long teamId, Long before, String beforeId, Long after, String afterId, int limit);
 }
\ No newline at end of file
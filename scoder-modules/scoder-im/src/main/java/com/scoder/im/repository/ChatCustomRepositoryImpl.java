@@ -1,30 +1,26 @@
 package com.scoder.im.repository;
 
 import com.scoder.common.core.utils.bean.BeanUtils;
-import com.scoder.common.core.web.domain.AjaxResult;
 import com.scoder.im.api.domain.Group;
 import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.domain.Conversation;
 import com.scoder.im.domain.vos.ChatMessageVo;
 import com.scoder.im.domain.vos.GroupVo;
-import com.scoder.user.api.RemoteUserService;
+import com.scoder.im.service.UserProfileCache;
 import com.scoder.user.api.domain.SysUser;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.aggregation.Aggregation;
-import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
-import org.springframework.data.mongodb.core.aggregation.AggregationResults;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
-import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
-
 @Repository
 public class ChatCustomRepositoryImpl implements ChatCustomRepository {
 
@@ -32,118 +28,199 @@ public class ChatCustomRepositoryImpl implements ChatCustomRepository {
     private MongoTemplate mongoTemplate;
 
     @Autowired
-    private RemoteUserService remoteUserService;
-
-    @Override
-    public List<ChatMessageVo> getDirectChatList(Long userId) {
-        List<AggregationOperation> operations = new ArrayList<>();
-
-        Criteria matchCriteria = new Criteria();
+    private UserProfileCache userProfileCache;
 
-        matchCriteria.orOperator(
-                        Criteria.where("senderId").is(userId),
-                        Criteria.where("receiverId").is(userId)
-                )
-                .and("type").is("DIRECT");
-
-        operations.add(match(matchCriteria));
+    @Autowired
+    private MessageBucketRouter bucketRouter;
 
-        AggregationOperation sort = sort(Sort.by(Sort.Direction.DESC, "timestamp"));
-        operations.add(sort);
+    @Autowired
+    private MessageSegmentStore segmentStore;
 
-        AggregationOperation limit = limit(1);
-        operations.add(limit);
+    @Override
+    public List<ChatMessageVo> getDirectChatList(Long userId) {
+        // One entry per peer, kept up to date by the ConversationService as messages are written
+        List<Conversation> conversations = findConversations(userId, "DIRECT");
 
-        Aggregation aggregation = Aggregation.newAggregation(operations);
-        AggregationResults<ChatMessage> results = mongoTemplate.aggregate(aggregation, "messages", ChatMessage.class);
+        // All peer profiles are resolved together, with at most one request to the user service
+        List<Long> peerIds = new ArrayList<>(conversations.size());
+        for (Conversation conversation : conversations) {
+            peerIds.add(conversation.getPeerId());
+        }
+        Map<Long, SysUser> profiles = userProfileCache.getProfiles(peerIds);
 
-        List<ChatMessageVo> chatMessageVos = new ArrayList<>();
-        results.getMappedResults().forEach(chatMessage -> {
+        List<ChatMessageVo> chatMessageVos = new ArrayList<>(conversations.size());
+        for (Conversation conversation : conversations) {
             ChatMessageVo chatMessageVo = new ChatMessageVo();
-            BeanUtils.copyProperties(chatMessage, chatMessageVo);
-            Long otherUserId = chatMessage.getSenderId().equals(userId) ?
-                    chatMessage.getReceiverId() : chatMessage.getSenderId();
-            AjaxResult<SysUser> userResult = remoteUserService.getUserById(otherUserId);
-            if (userResult != null && userResult.getData() != null) {
-                chatMessageVo.setNickName(userResult.getData().getNickName());
-                chatMessageVo.setAvatar(userResult.getData().getAvatar());
-                chatMessageVo.setSenderId(userId);
-                chatMessageVo.setReceiverId(otherUserId);
+            chatMessageVo.setId(conversation.getLastMessageId());
+            chatMessageVo.setType("DIRECT");
+            chatMessageVo.setContent(conversation.getLastContent());
+            chatMessageVo.setTimestamp(conversation.getLastTimestamp());
+            chatMessageVo.setConversationKey(conversation.getConversationKey());
+            chatMessageVo.setUnreadCount(conversation.getUnreadCount());
+            chatMessageVo.setSenderId(userId);
+            chatMessageVo.setReceiverId(conversation.getPeerId());
+            SysUser peer = profiles.get(conversation.getPeerId());
+            if (peer != null) {
+                chatMessageVo.setNickName(peer.getNickName());
+                chatMessageVo.setAvatar(peer.getAvatar());
             }
             chatMessageVos.add(chatMessageVo);
-        });
-
+        }
         return chatMessageVos;
     }
 
     @Override
     public List<GroupVo> getTeamChatList(Long userId) {
-        // Find all groups where the user is a member
-        List<Group> userGroups = mongoTemplate.find(
-                new Query(Criteria.where("memberIds").is(userId)), Group.class, "groups");
-
-        if (userGroups.isEmpty()) {
+        // One entry per team the user belongs to, most recently active first
+        List<Conversation> conversations = findConversations(userId, "GROUP");
+        if (conversations.isEmpty()) {
             return List.of(); // Return an empty list if the user is not part of any groups
         }
 
-        // Extract group IDs from the user's group list
-        List<String> groupIds = userGroups.stream()
-                .map(Group::getId).collect(Collectors.toList());
-
-        // Retrieve the last message in each group, sorted by timestamp in descending order
-        List<AggregationOperation> aggregationOperations = new ArrayList<>();
-        aggregationOperations.add(match(Criteria.where("groupId").in(groupIds))); // Match messages in the user's groups
-        aggregationOperations.add(sort(Sort.by(Sort.Direction.DESC, "timestamp"))); // Sort messages by timestamp (descending)
-        aggregationOperations.add(group("groupId") // Group messages by group ID
-                .first("content").as("lastMessageContent") // Select the content of the latest message
-                .first("timestamp").as("lastMessageTimestamp")); // Select the timestamp of the latest message
-
-        // Perform the aggregation query
-        Aggregation aggregation = newAggregation(aggregationOperations);
-        AggregationResults<ChatMessage> results = mongoTemplate.aggregate(
-                aggregation, "messages", ChatMessage.class);
-
-        List<ChatMessage> lastMessages = results.getMappedResults();
-
-        // Map the results and merge group information with the last message
-        Map<Long, ChatMessage> groupIdToLastMessageMap = lastMessages.stream()
-                .collect(Collectors.toMap(ChatMessage::getTeamId, message -> message));
-
-        return userGroups.stream()
-                .map(group -> {
-                    ChatMessage lastMessage = groupIdToLastMessageMap.get(group.getTeamId());
-                    GroupVo groupVo = new GroupVo();
-                    BeanUtils.copyProperties(group, groupVo);
-                    if (lastMessage != null) {
-                        groupVo.setContent(lastMessage.getContent());
-                        groupVo.setTime(lastMessage.getTimestamp());
-                    }
-                    return groupVo;
-                }).collect(Collectors.toList());
+        // Load the team details with one indexed query
+        List<Long> teamIds = conversations.stream()
+                .map(Conversation::getTeamId).collect(Collectors.toList());
+        Map<Long, Group> groupsByTeamId = mongoTemplate.find(
+                        new Query(Criteria.where("teamId").in(teamIds)), Group.class, "groups").stream()
+                .collect(Collectors.toMap(Group::getTeamId, group -> group, (first, second) -> first));
+
+        List<GroupVo> groupVos = new ArrayList<>(conversations.size());
+        for (Conversation conversation : conversations) {
+            Group group = groupsByTeamId.get(conversation.getTeamId());
+            if (group == null) {
+                continue;
+            }
+            GroupVo groupVo = new GroupVo();
+            BeanUtils.copyProperties(group, groupVo);
+            groupVo.setContent(conversation.getLastContent());
+            groupVo.setTime(conversation.getLastTimestamp());
+            groupVo.setUnreadCount(conversation.getUnreadCount());
+            groupVos.add(groupVo);
+        }
+        return groupVos;
+    }
+
+    /**
+     * Reads a user's conversation entries of one type through the (ownerId, type, lastTimestamp) index.
+     *
+     * @param userId The ID of the user.
+     * @param type   "DIRECT" or "GROUP".
+     * @return The entries, most recently active first.
+     */
+    private List<Conversation> findConversations(Long userId, String type) {
+        Query query = new Query(Criteria.where("ownerId").is(userId).and("type").is(type))
+                .with(Sort.by(Sort.Direction.DESC, "lastTimestamp"));
+        return mongoTemplate.find(query, Conversation.class, "conversations");
     }
 
     @Override
-    public List<ChatMessage> getDirectChatHistory(Long userId, Long receiverId) {
-        // Create a new query object
-        Query query = new Query();
-
-        // Match messages where the sender and receiver match the given userId and receiverId in either direction
-        query.addCriteria(new Criteria().orOperator(
-                new Criteria().andOperator(
-                        Criteria.where("senderId").is(userId),
-                        Criteria.where("receiverId").is(receiverId)
-                ),
-                new Criteria().andOperator(
-                        Criteria.where("senderId").is(receiverId),
-                        Criteria.where("receiverId").is(userId)
-                )
-        ));
-
-        // Sort the results by the timestamp field in ascending order (oldest to newest)
-        query.with(Sort.by(Sort.Direction.ASC, "timestamp"));
-
-        // Execute the query and retrieve the matching messages from the "messages" collection
-        return mongoTemplate.find(query, ChatMessage.class, "messages");
+    public List<ChatMessage> getDirectChatHistory(Long userId, Long receiverId, Long before, String beforeId,
+                                                  Long after, String afterId, int limit) {
+        // Both directions of the conversation share one key, served by the (conversationKey, timestamp, _id) index
+        String conversationKey = ChatMessage.directConversationKey(userId, receiverId);
+        return findPage("conversationKey", conversationKey, conversationKey, before, beforeId, after, afterId, limit);
+    }
+
+    @Override
+    public List<ChatMessage> getTeamChatHistory(Long teamId, Long before, String beforeId, Long after, String afterId,
+                                                int limit) {
+        // Served by the (teamId, timestamp, _id) index
+        return findPage("teamId", teamId, ChatMessage.teamConversationKey(teamId), before, beforeId, after, afterId, limit);
+    }
+
+    /**
+     * Reads one page of a conversation using the timestamp and message ID as the cursor.
+     * <ul>
+     *     <li>No cursor: the latest {@code limit} messages.</li>
+     *     <li>{@code before}: the latest {@code limit} messages older than the cursor.</li>
+     *     <li>{@code after}: the oldest {@code limit} messages newer than the cursor.</li>
+     * </ul>
+     * Messages are ordered by {@link ChatMessage#HISTORY_ORDER}, so with the ID of the boundary
+     * message as well, a page never skips messages stored in the same millisecond as that message.
+     * Only the monthly buckets that overlap the cursor range are read, starting at the end the
+     * page begins from, until the page is full. Pages are always returned oldest to newest.
+     *
+     * @param field           The field that identifies the conversation in MongoDB.
+     * @param value           The value of that field.
+     * @param conversationKey The conversation key, which identifies it in archived months.
+     * @param before          Exclusive upper bound on the timestamp, or null.
+     * @param beforeId        The message ID that breaks ties at {@code before}, or null.
+     * @param after           Exclusive lower bound on the timestamp, or null.
+     * @param afterId         The message ID that breaks ties at {@code after}, or null.
+     * @param limit           The maximum number of messages to return.
+     * @return The messages of the page in ascending timestamp order.
+     */
+    private List<ChatMessage> findPage(String field, Object value, String conversationKey, Long before, String beforeId,
+                                       Long after, String afterId, int limit) {
+        boolean ascending = after != null;
+        List<ChatMessage> page = new ArrayList<>();
+        for (MessageBucketRouter.Bucket bucket : bucketRouter.buckets(before, after, ascending)) {
+            int remaining = limit - page.size();
+            if (bucket.isArchived()) {
+                page.addAll(segmentStore.read(bucket.getMonth(), conversationKey, before, beforeId, after, afterId,
+                        remaining, ascending));
+            } else {
+                List<ChatMessage> messages = findInCollection(bucket.getCollection(), Criteria.where(field).is(value),
+                        before, beforeId, after, afterId, remaining, ascending);
+                // Another node may have archived the month and dropped its collection since this node last looked
+                if (messages.isEmpty() && bucket.getMonth() != null && segmentStore.contains(bucket.getMonth())) {
+                    bucketRouter.segmentFound(bucket.getMonth());
+                    messages = segmentStore.read(bucket.getMonth(), conversationKey, before, beforeId, after, afterId,
+                            remaining, ascending);
+                }
+                page.addAll(messages);
+            }
+            if (page.size() >= limit) {
+                break;
+            }
+        }
+
+        // Collected newest first unless paging forward, restore chronological order
+        if (!ascending) {
+            Collections.reverse(page);
+        }
+        return page;
+    }
+
+    /**
+     * Reads the messages of one collection within the cursor range.
+     *
+     * @param collection The message collection.
+     * @param criteria   The conversation filter.
+     * @param before     Exclusive upper bound on the timestamp, or null.
+     * @param beforeId   The message ID that breaks ties at {@code before}, or null.
+     * @param after      Exclusive lower bound on the timestamp, or null.
+     * @param afterId    The message ID that breaks ties at {@code after}, or null.
+     * @param limit      The maximum number of messages to return.
+     * @param ascending  Whether the oldest or the newest messages in the range are wanted.
+     * @return The oldest messages first if ascending, the newest first otherwise.
+     */
+    private List<ChatMessage> findInCollection(String collection, Criteria criteria, Long before, String beforeId,
+                                               Long after, String afterId, int limit, boolean ascending) {
+        // The timestamp range bounds the index scan; the ID only decides within the cursor's millisecond
+        List<Criteria> ties = new ArrayList<>();
+        if (before != null || after != null) {
+            Criteria range = criteria.and("timestamp");
+            if (after != null && afterId != null) {
+                range.gte(after);
+                ties.add(new Criteria().orOperator(Criteria.where("timestamp").gt(after), Criteria.where("_id").gt(afterId)));
+            } else if (after != null) {
+                range.gt(after);
+            }
+            if (before != null && beforeId != null) {
+                range.lte(before);
+                ties.add(new Criteria().orOperator(Criteria.where("timestamp").lt(before), Criteria.where("_id").lt(beforeId)));
+            } else if (before != null) {
+                range.lt(before);
+            }
+        }
+        if (!ties.isEmpty()) {
+            criteria.andOperator(ties.toArray(new Criteria[0]));
+        }
+        Query query = new Query(criteria)
+                .with(Sort.by(ascending ? Sort.Direction.ASC : Sort.Direction.DESC, "timestamp", "_id"))
+                .limit(limit);
+        return mongoTemplate.find(query, ChatMessage.class, collection);
     }
 
 }
\ No newline at end of file
@@ -10,6 +10,4 @@ import java.util.List;
 public interface ChatRepository extends MongoRepository<ChatMessage, Long>, ChatCustomRepository {
     List<ChatMessage> findBySenderIdOrReceiverId(Long senderId, Long receiverId);
 
-    List<ChatMessage> findByTeamId(Long teamId);
-
 }
\ No newline at end of file
@@ -0,0 +1,176 @@
+package com.scoder.im.repository;
+
+import com.scoder.im.domain.ChatMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageArchiver moves months that have left the hot window from MongoDB to segment files.
+ * <p>
+ * The hot window is the current month and the {@code im.storage.hot-months - 1} months before
+ * it. Each older month still in MongoDB is streamed in index order into a segment, the number
+ * of messages written is checked against the collection, reads are switched to the segment
+ * and the collection is dropped. A node that stops half way leaves either no segment, and the
+ * month is archived again, or a complete one whose collection is dropped on the next run.
+ * <p>
+ * Every node refreshes its view of the buckets on each run. In cluster mode only one node
+ * should archive, into a directory shared by all nodes, so archiving is off there unless
+ * {@code im.storage.archive-enabled=true} is set on that node.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class MessageArchiver {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageArchiver.class);
+
+    /**
+     * Whether this node moves old months to segment files. Defaults to on, except in cluster mode.
+     */
+    @Value("${im.storage.archive-enabled:#{null}}")
+    private Boolean enabled;
+
+    /**
+     * Whether other IM nodes share the message storage.
+     */
+    @Value("${im.cluster.enabled:false}")
+    private boolean clustered;
+
+    /**
+     * Number of months, including the current one, kept in MongoDB.
+     */
+    @Value("${im.storage.hot-months:3}")
+    private int hotMonths;
+
+    /**
+     * Time between two archive runs.
+     */
+    @Value("${im.storage.archive-interval-ms:3600000}")
+    private long intervalMs;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageBucketRouter bucketRouter;
+
+    @Autowired
+    private MessageSegmentStore segmentStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ScheduledExecutorService executor;
+    private Counter archivedBucketCounter;
+    private Counter archivedMessageCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        archivedBucketCounter = meterRegistry.counter("im.storage.archived.buckets");
+        archivedMessageCounter = meterRegistry.counter("im.storage.archived.messages");
+        failedCounter = meterRegistry.counter("im.storage.archive.failed");
+        Gauge.builder("im.storage.buckets.hot", bucketRouter, router -> router.hotMonths().size())
+                .description("Monthly message collections in MongoDB")
+                .register(meterRegistry);
+        Gauge.builder("im.storage.buckets.archived", bucketRouter, MessageBucketRouter::archivedCount)
+                .description("Months of messages in segment files")
+                .register(meterRegistry);
+        Gauge.builder("im.storage.archive.bytes", segmentStore, MessageSegmentStore::totalBytes)
+                .description("Size of the segment files on disk")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "im-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::runSafely, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void runSafely() {
+        try {
+            bucketRouter.refresh();
+            if (enabled != null ? enabled : !clustered) {
+                archive();
+            }
+        } catch (Exception e) {
+            log.error("Message archive run failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Archives every month in MongoDB that is older than the hot window.
+     *
+     * @return The number of months archived.
+     */
+    int archive() {
+        YearMonth oldestHot = YearMonth.now(ZoneOffset.UTC).minusMonths(Math.max(1, hotMonths) - 1L);
+        int archived = 0;
+        for (YearMonth month : bucketRouter.hotMonths()) {
+            if (month.isBefore(oldestHot) && archive(month)) {
+                archived++;
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Moves one month to its segment file and drops its collection.
+     *
+     * @param month The month.
+     * @return true if the month was archived.
+     */
+    private boolean archive(YearMonth month) {
+        String collection = MessageBucketRouter.collectionName(month);
+        if (!segmentStore.contains(month)) {
+            // Served by the (conversationKey, timestamp) index, so blocks hold one conversation each
+            Query query = new Query().with(Sort.by(Sort.Order.asc("conversationKey"), Sort.Order.desc("timestamp")));
+            long written;
+            try (CloseableIterator<ChatMessage> messages = mongoTemplate.stream(query, ChatMessage.class, collection)) {
+                written = segmentStore.write(month, messages);
+            } catch (Exception e) {
+                failedCounter.increment();
+                log.error("Failed to archive the messages of {}: {}", month, e.getMessage());
+                return false;
+            }
+            long stored = mongoTemplate.count(new Query(), collection);
+            if (written != stored) {
+                failedCounter.increment();
+                segmentStore.delete(month);
+                log.error("Archive of {} has {} messages but the collection has {}, keeping the collection", month, written, stored);
+                return false;
+            }
+            archivedMessageCounter.increment(written);
+            log.info("Archived {} messages of {}", written, month);
+        }
+        bucketRouter.markArchived(month);
+        mongoTemplate.dropCollection(collection);
+        archivedBucketCounter.increment();
+        return true;
+    }
+}
@@ -0,0 +1,354 @@
+package com.scoder.im.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * MessageBucketRouter decides which storage bucket holds the messages of a point in time.
+ * <p>
+ * Messages are stored in one collection per calendar month (UTC), named
+ * {@code messages_yyyyMM}, so the indexes of the months that are still written and read often
+ * stay small no matter how long history grows. Months older than the hot window are moved to
+ * segment files by the {@link MessageArchiver} and read through the {@link MessageSegmentStore}.
+ * Messages written before bucketing existed stay in the original {@code messages} collection,
+ * which is treated as the oldest bucket and no longer written to.
+ * <p>
+ * History queries ask the router for the buckets that overlap their cursor range, so a page
+ * of recent messages touches only the latest month.
+ * <p>
+ * In cluster mode ({@code im.cluster.enabled=true}) other nodes create and archive buckets too.
+ * Each change is broadcast over Redis, and a read of a month this node does not know reloads
+ * the buckets, at most once per {@code im.storage.refresh-interval-ms}, in case a broadcast
+ * was missed.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class MessageBucketRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageBucketRouter.class);
+
+    /**
+     * The collection that held all messages before they were bucketed by month.
+     */
+    public static final String LEGACY_COLLECTION = "messages";
+
+    private static final String PREFIX = "messages_";
+
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+
+    /**
+     * Redis channel that carries bucket changes, as {@code hot yyyyMM} or {@code archived yyyyMM}.
+     */
+    private static final String CHANGE_CHANNEL = "im:storage:buckets";
+
+    /**
+     * Whether other IM nodes create and archive buckets as well.
+     */
+    @Value("${im.cluster.enabled:false}")
+    private boolean clustered;
+
+    /**
+     * Minimum time between two reloads caused by reads of a month this node does not know.
+     */
+    @Value("${im.storage.refresh-interval-ms:10000}")
+    private long refreshIntervalMs;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageSegmentStore segmentStore;
+
+    @Autowired(required = false)
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired(required = false)
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * Months whose messages are in a MongoDB collection.
+     */
+    private final NavigableSet<YearMonth> hot = new ConcurrentSkipListSet<>();
+
+    /**
+     * Months whose messages are in a segment file.
+     */
+    private final NavigableSet<YearMonth> archived = new ConcurrentSkipListSet<>();
+
+    private volatile boolean legacy;
+
+    private volatile long lastRefresh;
+
+    /**
+     * Loads the existing buckets and subscribes to changes made by other nodes.
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            log.error("Failed to load the message buckets: {}", e.getMessage());
+        }
+
+        if (clustered && listenerContainer != null) {
+            listenerContainer.addMessageListener((message, pattern) ->
+                    onChange(new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(CHANGE_CHANNEL));
+        }
+    }
+
+    /**
+     * Reads the buckets again from MongoDB and the archive directory, picking up changes made
+     * by other nodes.
+     */
+    public void refresh() {
+        lastRefresh = System.currentTimeMillis();
+        NavigableSet<YearMonth> collections = new TreeSet<>();
+        boolean legacyFound = false;
+        for (String name : mongoTemplate.getCollectionNames()) {
+            if (name.equals(LEGACY_COLLECTION)) {
+                legacyFound = true;
+            }
+            YearMonth month = monthOf(name);
+            if (month != null) {
+                collections.add(month);
+            }
+        }
+        // A month with both is read from its collection until the archiver drops it
+        NavigableSet<YearMonth> segments = segmentStore.months();
+        segments.removeAll(collections);
+        hot.addAll(collections);
+        hot.retainAll(collections);
+        archived.addAll(segments);
+        archived.retainAll(segments);
+        legacy = legacyFound;
+    }
+
+    /**
+     * Returns the collection a message with the given timestamp is written to, creating the
+     * indexes of the collection when it is first used.
+     *
+     * @param timestamp The message timestamp.
+     * @return The collection name.
+     */
+    public String collectionForWrite(long timestamp) {
+        YearMonth month = monthOf(timestamp);
+        String collection = collectionName(month);
+        if (!hot.contains(month)) {
+            MessageIndexInitializer.ensureHistoryIndexes(mongoTemplate, collection);
+            if (hot.add(month)) {
+                publish("hot", month);
+            }
+        }
+        return collection;
+    }
+
+    /**
+     * Returns the buckets that may hold messages within a cursor range.
+     *
+     * @param before    Exclusive upper bound on the timestamp, or null.
+     * @param after     Exclusive lower bound on the timestamp, or null.
+     * @param ascending Whether the buckets are wanted oldest first.
+     * @return The overlapping buckets in the requested order.
+     */
+    public List<Bucket> buckets(Long before, Long after, boolean ascending) {
+        YearMonth from = after != null ? monthOf(after) : null;
+        YearMonth to = before != null ? monthOf(before - 1) : null;
+        refreshIfUnknown(to != null ? to : monthOf(System.currentTimeMillis()));
+        NavigableSet<YearMonth> months = new TreeSet<>();
+        for (NavigableSet<YearMonth> source : List.of(hot, archived)) {
+            for (YearMonth month : source) {
+                if ((from == null || !month.isBefore(from)) && (to == null || !month.isAfter(to))) {
+                    months.add(month);
+                }
+            }
+        }
+        List<Bucket> buckets = new ArrayList<>(months.size() + 1);
+        if (ascending && legacy) {
+            buckets.add(new Bucket(null, false));
+        }
+        for (YearMonth month : ascending ? months : months.descendingSet()) {
+            buckets.add(new Bucket(month, archived.contains(month)));
+        }
+        if (!ascending && legacy) {
+            buckets.add(new Bucket(null, false));
+        }
+        return buckets;
+    }
+
+    /**
+     * Returns the months still stored in MongoDB.
+     *
+     * @return The hot months, oldest first.
+     */
+    public List<YearMonth> hotMonths() {
+        return new ArrayList<>(hot);
+    }
+
+    /**
+     * Returns the number of months stored in segment files.
+     *
+     * @return The number of archived months.
+     */
+    public int archivedCount() {
+        return archived.size();
+    }
+
+    /**
+     * Switches reads of a month from its collection to its segment file, on this node and, in
+     * cluster mode, on all other nodes.
+     *
+     * @param month The archived month.
+     */
+    void markArchived(YearMonth month) {
+        segmentFound(month);
+        publish("archived", month);
+    }
+
+    /**
+     * Switches reads of a month from its collection to its segment file on this node only,
+     * after a read found the segment of a month another node archived.
+     *
+     * @param month The archived month.
+     */
+    void segmentFound(YearMonth month) {
+        archived.add(month);
+        hot.remove(month);
+    }
+
+    /**
+     * Reloads the buckets when a read reaches a month this node has not seen, which another node
+     * may have started writing to.
+     */
+    private void refreshIfUnknown(YearMonth month) {
+        if (!clustered || hot.contains(month) || archived.contains(month)
+                || System.currentTimeMillis() - lastRefresh < refreshIntervalMs) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (Exception e) {
+            log.error("Failed to reload the message buckets: {}", e.getMessage());
+        }
+    }
+
+    private void publish(String change, YearMonth month) {
+        if (clustered && redisTemplate != null) {
+            try {
+                redisTemplate.convertAndSend(CHANGE_CHANNEL, change + " " + month.format(MONTH_FORMAT));
+            } catch (Exception e) {
+                log.error("Failed to broadcast the {} bucket {}: {}", change, month, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies a bucket change broadcast by another node.
+     *
+     * @param change The change, as published by {@link #publish}.
+     */
+    void onChange(String change) {
+        String[] parts = change.split(" ");
+        YearMonth month;
+        try {
+            month = parts.length == 2 ? YearMonth.parse(parts[1], MONTH_FORMAT) : null;
+        } catch (DateTimeParseException e) {
+            month = null;
+        }
+        if (month == null) {
+            log.warn("Ignoring malformed bucket change");
+        } else if ("hot".equals(parts[0])) {
+            if (!archived.contains(month)) {
+                hot.add(month);
+            }
+        } else if ("archived".equals(parts[0]) && segmentStore.contains(month)) {
+            segmentFound(month);
+        }
+    }
+
+    /**
+     * Returns the month a timestamp belongs to.
+     *
+     * @param timestamp The timestamp in milliseconds since the epoch.
+     * @return The month in UTC.
+     */
+    public static YearMonth monthOf(long timestamp) {
+        return YearMonth.from(Instant.ofEpochMilli(timestamp).atOffset(ZoneOffset.UTC));
+    }
+
+    /**
+     * Returns the name of the collection of a month.
+     *
+     * @param month The month.
+     * @return The collection name.
+     */
+    public static String collectionName(YearMonth month) {
+        return PREFIX + month.format(MONTH_FORMAT);
+    }
+
+    private static YearMonth monthOf(String collection) {
+        if (!collection.startsWith(PREFIX)) {
+            return null;
+        }
+        try {
+            return YearMonth.parse(collection.substring(PREFIX.length()), MONTH_FORMAT);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * One storage bucket: a month in MongoDB or in a segment file, or the legacy collection.
+     */
+    public static final class Bucket {
+
+        private final YearMonth month;
+        private final boolean archived;
+
+        Bucket(YearMonth month, boolean archived) {
+            this.month = month;
+            this.archived = archived;
+        }
+
+        /**
+         * @return The month of the bucket, or null for the legacy collection.
+         */
+        public YearMonth getMonth() {
+            return month;
+        }
+
+        /**
+         * @return Whether the bucket is read from a segment file.
+         */
+        public boolean isArchived() {
+            return archived;
+        }
+
+        /**
+         * @return The MongoDB collection of a bucket that is not archived.
+         */
+        public String getCollection() {
+            return month == null ? LEGACY_COLLECTION : collectionName(month);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.scoder.im.repository;
+
+import com.scoder.im.domain.ChatMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * MessageIndexInitializer creates the indexes that serve the paged history queries.
+ * <ul>
+ *     <li>{@code (teamId, timestamp, _id)} for team history.</li>
+ *     <li>{@code (conversationKey, timestamp, _id)} for direct history.</li>
+ * </ul>
+ * The message ID orders messages stored in the same millisecond, so that the sort of a history
+ * page is read from the index as well.
+ * The indexes of the legacy {@code messages} collection are created at startup; those of the
+ * monthly collections when the {@link MessageBucketRouter} first writes to them.
+ * Messages stored before the conversation key existed are given one by a background backfill,
+ * so older direct conversations stay reachable through the new index.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class MessageIndexInitializer {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageIndexInitializer.class);
+
+    private static final String COLLECTION = MessageBucketRouter.LEGACY_COLLECTION;
+
+    /**
+     * The history indexes created before the message ID was part of the sort.
+     */
+    private static final List<String> SUPERSEDED_INDEXES = List.of("teamId_timestamp", "conversationKey_timestamp");
+
+    /**
+     * Whether messages without a conversation key are updated at startup.
+     */
+    @Value("${im.history.backfill-enabled:true}")
+    private boolean backfillEnabled;
+
+    /**
+     * Number of updates sent to MongoDB in one bulk request during the backfill.
+     */
+    @Value("${im.history.backfill-batch-size:1000}")
+    private int backfillBatchSize;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /**
+     * Ensures the indexes exist and starts the backfill once the application is ready.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        // New deployments never create the legacy collection
+        try {
+            if (mongoTemplate.collectionExists(COLLECTION)) {
+                ensureHistoryIndexes(mongoTemplate, COLLECTION);
+            }
+        } catch (Exception e) {
+            log.error("Failed to check the legacy message collection: {}", e.getMessage());
+        }
+
+        if (backfillEnabled) {
+            Thread thread = new Thread(this::backfillConversationKeys, "im-history-backfill");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Ensures the history indexes of a message collection exist. Failures are logged, since
+     * queries still work without the indexes.
+     *
+     * @param mongoTemplate The MongoDB template.
+     * @param collection    The message collection.
+     */
+    static void ensureHistoryIndexes(MongoTemplate mongoTemplate, String collection) {
+        try {
+            IndexOperations indexOps = mongoTemplate.indexOps(collection);
+            indexOps.ensureIndex(new Index()
+                    .on("teamId", Sort.Direction.ASC)
+                    .on("timestamp", Sort.Direction.DESC)
+                    .on("_id", Sort.Direction.DESC)
+                    .named("teamId_timestamp_id"));
+            indexOps.ensureIndex(new Index()
+                    .on("conversationKey", Sort.Direction.ASC)
+                    .on("timestamp", Sort.Direction.DESC)
+                    .on("_id", Sort.Direction.DESC)
+                    .named("conversationKey_timestamp_id"));
+            for (IndexInfo indexInfo : indexOps.getIndexInfo()) {
+                if (SUPERSEDED_INDEXES.contains(indexInfo.getName())) {
+                    indexOps.dropIndex(indexInfo.getName());
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to create the indexes of {}: {}", collection, e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the conversation key on every message that does not have one yet.
+     */
+    void backfillConversationKeys() {
+        Query query = new Query(Criteria.where("conversationKey").exists(false));
+        query.fields().include("type").include("senderId").include("receiverId").include("teamId");
+
+        long updated = 0;
+        int pending = 0;
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChatMessage.class, COLLECTION);
+        try (CloseableIterator<ChatMessage> messages = mongoTemplate.stream(query, ChatMessage.class, COLLECTION)) {
+            while (messages.hasNext()) {
+                ChatMessage chatMessage = messages.next();
+                String key = conversationKey(chatMessage);
+                if (key == null) {
+                    continue;
+                }
+                bulkOps.updateOne(Query.query(Criteria.where("id").is(chatMessage.getId())), Update.update("conversationKey", key));
+                if (++pending == backfillBatchSize) {
+                    bulkOps.execute();
+                    updated += pending;
+                    pending = 0;
+                    bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChatMessage.class, COLLECTION);
+                }
+            }
+            if (pending > 0) {
+                bulkOps.execute();
+                updated += pending;
+            }
+            if (updated > 0) {
+                log.info("Backfilled the conversation key of {} messages", updated);
+            }
+        } catch (Exception e) {
+            log.error("Conversation key backfill stopped after {} messages: {}", updated, e.getMessage());
+        }
+    }
+
+    private static String conversationKey(ChatMessage chatMessage) {
+        if (chatMessage.getTeamId() != null) {
+            return ChatMessage.teamConversationKey(chatMessage.getTeamId());
+        }
+        if (chatMessage.getSenderId() != null && chatMessage.getReceiverId() != null) {
+            return ChatMessage.directConversationKey(chatMessage.getSenderId(), chatMessage.getReceiverId());
+        }
+        return null;
+    }
+}
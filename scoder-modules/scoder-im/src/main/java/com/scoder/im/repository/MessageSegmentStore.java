@@ -0,0 +1,527 @@
+package com.scoder.im.repository;
+
+import com.scoder.im.domain.ChatMessage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * MessageSegmentStore keeps the messages of archived months in compressed segment files on
+ * local disk, one file per month.
+ * <p>
+ * A segment is written once, front to back, and never modified:
+ * <pre>
+ * header:  magic:int32 version:int32
+ * blocks:  deflate(count:int32 message*)            up to 256 messages of one conversation
+ * index:   deflate(conversations:int32 (key:string blocks:int32 (minTs:int64 maxTs:int64 offset:int64 length:int32)*)*)
+ * trailer: indexOffset:int64 indexLength:int32 magic:int32
+ * </pre>
+ * Reads load the index of a segment once and then inflate only the blocks of the requested
+ * conversation that overlap the cursor range. Segments are written to a temporary file and
+ * moved into place when complete, so a segment that exists is always whole.
+ * <p>
+ * In cluster mode the archive directory must be shared by all IM nodes.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class MessageSegmentStore {
+
+    private static final int MAGIC = 0x494D5347;
+    private static final int VERSION = 1;
+    private static final int TRAILER_LENGTH = 16;
+    private static final int BLOCK_SIZE = 256;
+    private static final String SUFFIX = ".seg";
+
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+
+    /**
+     * Directory holding the segment files.
+     */
+    @Value("${im.storage.archive-dir:data/im-archive}")
+    private String archiveDir;
+
+    /**
+     * The loaded indexes by month.
+     */
+    private final ConcurrentHashMap<YearMonth, SegmentIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the months that have a segment.
+     *
+     * @return The archived months.
+     */
+    public NavigableSet<YearMonth> months() {
+        NavigableSet<YearMonth> months = new TreeSet<>();
+        Path dir = Paths.get(archiveDir);
+        if (!Files.isDirectory(dir)) {
+            return months;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    months.add(YearMonth.parse(name.substring(0, name.length() - SUFFIX.length()), MONTH_FORMAT));
+                } catch (DateTimeParseException e) {
+                    // Not a segment
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to list the segments in " + dir, e);
+        }
+        return months;
+    }
+
+    /**
+     * Checks whether a month has a segment.
+     *
+     * @param month The month.
+     * @return true if the segment exists.
+     */
+    public boolean contains(YearMonth month) {
+        return Files.exists(path(month));
+    }
+
+    /**
+     * Returns the total size of all segments.
+     *
+     * @return The size in bytes.
+     */
+    public long totalBytes() {
+        long total = 0;
+        for (YearMonth month : months()) {
+            try {
+                total += Files.size(path(month));
+            } catch (IOException e) {
+                // Removed concurrently
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes the segment of a month.
+     *
+     * @param month    The month.
+     * @param messages The messages of the month, grouped by conversation.
+     * @return The number of messages taken from the iterator. Messages that belong to no
+     * conversation are counted but not written.
+     * @throws IOException If the segment could not be written; no segment exists then.
+     */
+    public long write(YearMonth month, Iterator<ChatMessage> messages) throws IOException {
+        Path target = path(month);
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Map<String, List<BlockRef>> index = new HashMap<>();
+        long written = 0;
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+
+            List<ChatMessage> block = new ArrayList<>(BLOCK_SIZE);
+            String blockKey = null;
+            while (messages.hasNext()) {
+                ChatMessage chatMessage = messages.next();
+                written++;
+                String key = conversationKey(chatMessage);
+                if (key == null || chatMessage.getTimestamp() == null) {
+                    continue;
+                }
+                if (!block.isEmpty() && (!key.equals(blockKey) || block.size() == BLOCK_SIZE)) {
+                    index.computeIfAbsent(blockKey, k -> new ArrayList<>()).add(writeBlock(out, block));
+                    block.clear();
+                }
+                blockKey = key;
+                block.add(chatMessage);
+            }
+            if (!block.isEmpty()) {
+                index.computeIfAbsent(blockKey, k -> new ArrayList<>()).add(writeBlock(out, block));
+            }
+
+            long indexOffset = out.count;
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            try (DataOutputStream data = new DataOutputStream(new DeflaterOutputStream(indexBytes))) {
+                data.writeInt(index.size());
+                for (Map.Entry<String, List<BlockRef>> entry : index.entrySet()) {
+                    writeString(data, entry.getKey());
+                    data.writeInt(entry.getValue().size());
+                    for (BlockRef ref : entry.getValue()) {
+                        data.writeLong(ref.minTimestamp);
+                        data.writeLong(ref.maxTimestamp);
+                        data.writeLong(ref.offset);
+                        data.writeInt(ref.length);
+                    }
+                }
+            }
+            indexBytes.writeTo(out);
+            DataOutputStream trailer = new DataOutputStream(out);
+            trailer.writeLong(indexOffset);
+            trailer.writeInt(indexBytes.size());
+            trailer.writeInt(MAGIC);
+            trailer.flush();
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        indexes.remove(month);
+        return written;
+    }
+
+    /**
+     * Removes the segment of a month.
+     *
+     * @param month The month.
+     */
+    public void delete(YearMonth month) {
+        try {
+            Files.deleteIfExists(path(month));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to delete the segment of " + month, e);
+        } finally {
+            indexes.remove(month);
+        }
+    }
+
+    /**
+     * Reads one page of a conversation from the segment of a month.
+     *
+     * @param month           The month.
+     * @param conversationKey The conversation key.
+     * @param before          Exclusive upper bound on the timestamp, or null.
+     * @param beforeId        The message ID that breaks ties at {@code before}, or null.
+     * @param after           Exclusive lower bound on the timestamp, or null.
+     * @param afterId         The message ID that breaks ties at {@code after}, or null.
+     * @param limit           The maximum number of messages to return.
+     * @param ascending       Whether the oldest or the newest messages in the range are wanted.
+     * @return The messages in {@link ChatMessage#HISTORY_ORDER} if ascending and in reverse otherwise.
+     */
+    public List<ChatMessage> read(YearMonth month, String conversationKey, Long before, String beforeId, Long after,
+                                  String afterId, int limit, boolean ascending) {
+        SegmentIndex index;
+        try {
+            index = index(month);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the segment index of " + month, e);
+        }
+        List<BlockRef> candidates = new ArrayList<>();
+        for (BlockRef ref : index.blocks.getOrDefault(conversationKey, Collections.emptyList())) {
+            // A block that only reaches the cursor's millisecond may still hold messages past its ID
+            if ((after == null || ref.maxTimestamp > after || afterId != null && ref.maxTimestamp == after)
+                    && (before == null || ref.minTimestamp < before || beforeId != null && ref.minTimestamp == before)) {
+                candidates.add(ref);
+            }
+        }
+        Comparator<ChatMessage> order = ChatMessage.HISTORY_ORDER;
+        if (ascending) {
+            candidates.sort(Comparator.comparingLong(ref -> ref.minTimestamp));
+        } else {
+            candidates.sort(Comparator.comparingLong((BlockRef ref) -> ref.maxTimestamp).reversed());
+            order = order.reversed();
+        }
+
+        List<ChatMessage> page = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path(month), StandardOpenOption.READ)) {
+            for (BlockRef ref : candidates) {
+                if (page.size() >= limit) {
+                    long boundary = page.get(page.size() - 1).getTimestamp();
+                    // The remaining blocks only hold messages beyond the ones already found
+                    if (ascending ? ref.minTimestamp > boundary : ref.maxTimestamp < boundary) {
+                        break;
+                    }
+                }
+                for (ChatMessage chatMessage : readBlock(channel, ref)) {
+                    if (ChatMessage.isWithin(chatMessage, before, beforeId, after, afterId)) {
+                        page.add(chatMessage);
+                    }
+                }
+                page.sort(order);
+                if (page.size() > limit) {
+                    page.subList(limit, page.size()).clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the segment of " + month, e);
+        }
+        return page;
+    }
+
+    /**
+     * Passes every message of a month newer than a point in time to a consumer, conversation
+     * by conversation. Used to rebuild data derived from the whole history.
+     *
+     * @param month    The month.
+     * @param after    Exclusive lower bound on the timestamp, or null.
+     * @param consumer Receives the messages.
+     */
+    public void scan(YearMonth month, Long after, Consumer<ChatMessage> consumer) {
+        try (FileChannel channel = FileChannel.open(path(month), StandardOpenOption.READ)) {
+            for (List<BlockRef> refs : index(month).blocks.values()) {
+                for (BlockRef ref : refs) {
+                    if (after != null && ref.maxTimestamp <= after) {
+                        continue;
+                    }
+                    for (ChatMessage chatMessage : readBlock(channel, ref)) {
+                        if (after == null || chatMessage.getTimestamp() > after) {
+                            consumer.accept(chatMessage);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to scan the segment of " + month, e);
+        }
+    }
+
+    private Path path(YearMonth month) {
+        return Paths.get(archiveDir, month.format(MONTH_FORMAT) + SUFFIX);
+    }
+
+    private SegmentIndex index(YearMonth month) throws IOException {
+        SegmentIndex index = indexes.get(month);
+        if (index == null) {
+            index = loadIndex(month);
+            indexes.put(month, index);
+        }
+        return index;
+    }
+
+    private SegmentIndex loadIndex(YearMonth month) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(month), StandardOpenOption.READ)) {
+            ByteBuffer trailer = readFully(channel, channel.size() - TRAILER_LENGTH, TRAILER_LENGTH);
+            long indexOffset = trailer.getLong();
+            int indexLength = trailer.getInt();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("Not a message segment: " + path(month));
+            }
+            ByteBuffer indexBytes = readFully(channel, indexOffset, indexLength);
+            SegmentIndex index = new SegmentIndex();
+            try (DataInputStream data = inflate(indexBytes)) {
+                int conversations = data.readInt();
+                for (int i = 0; i < conversations; i++) {
+                    String key = readString(data);
+                    int blocks = data.readInt();
+                    List<BlockRef> refs = new ArrayList<>(blocks);
+                    for (int j = 0; j < blocks; j++) {
+                        refs.add(new BlockRef(data.readLong(), data.readLong(), data.readLong(), data.readInt()));
+                    }
+                    index.blocks.put(key, refs);
+                }
+            }
+            return index;
+        }
+    }
+
+    private static BlockRef writeBlock(CountingOutputStream out, List<ChatMessage> block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        try (DataOutputStream data = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            data.writeInt(block.size());
+            for (ChatMessage chatMessage : block) {
+                writeMessage(data, chatMessage);
+                minTimestamp = Math.min(minTimestamp, chatMessage.getTimestamp());
+                maxTimestamp = Math.max(maxTimestamp, chatMessage.getTimestamp());
+            }
+        }
+        long offset = out.count;
+        bytes.writeTo(out);
+        return new BlockRef(minTimestamp, maxTimestamp, offset, bytes.size());
+    }
+
+    private static List<ChatMessage> readBlock(FileChannel channel, BlockRef ref) throws IOException {
+        try (DataInputStream data = inflate(readFully(channel, ref.offset, ref.length))) {
+            int count = data.readInt();
+            List<ChatMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                messages.add(readMessage(data));
+            }
+            return messages;
+        }
+    }
+
+    private static void writeMessage(DataOutputStream data, ChatMessage chatMessage) throws IOException {
+        writeString(data, chatMessage.getId());
+        writeString(data, chatMessage.getType());
+        writeLong(data, chatMessage.getSenderId());
+        writeLong(data, chatMessage.getReceiverId());
+        writeLong(data, chatMessage.getTeamId());
+        writeString(data, chatMessage.getContent());
+        data.writeLong(chatMessage.getTimestamp());
+        writeString(data, conversationKey(chatMessage));
+        writeString(data, chatMessage.getClientMsgId());
+    }
+
+    private static ChatMessage readMessage(DataInputStream data) throws IOException {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(readString(data));
+        chatMessage.setType(readString(data));
+        chatMessage.setSenderId(readLong(data));
+        chatMessage.setReceiverId(readLong(data));
+        chatMessage.setTeamId(readLong(data));
+        chatMessage.setContent(readString(data));
+        chatMessage.setTimestamp(data.readLong());
+        chatMessage.setConversationKey(readString(data));
+        chatMessage.setClientMsgId(readString(data));
+        return chatMessage;
+    }
+
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLong(DataOutputStream data, Long value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeLong(value);
+        }
+    }
+
+    private static Long readLong(DataInputStream data) throws IOException {
+        return data.readBoolean() ? data.readLong() : null;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static DataInputStream inflate(ByteBuffer buffer) {
+        InputStream bytes = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+        return new DataInputStream(new InflaterInputStream(bytes));
+    }
+
+    private static String conversationKey(ChatMessage chatMessage) {
+        if (chatMessage.getConversationKey() != null) {
+            return chatMessage.getConversationKey();
+        }
+        if (chatMessage.getTeamId() != null) {
+            return ChatMessage.teamConversationKey(chatMessage.getTeamId());
+        }
+        if (chatMessage.getSenderId() != null && chatMessage.getReceiverId() != null) {
+            return ChatMessage.directConversationKey(chatMessage.getSenderId(), chatMessage.getReceiverId());
+        }
+        return null;
+    }
+
+    /**
+     * The position and time range of one block.
+     */
+    private static final class BlockRef {
+
+        private final long minTimestamp;
+        private final long maxTimestamp;
+        private final long offset;
+        private final int length;
+
+        private BlockRef(long minTimestamp, long maxTimestamp, long offset, int length) {
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The blocks of a segment by conversation key.
+     */
+    private static final class SegmentIndex {
+
+        private final Map<String, List<BlockRef>> blocks = new HashMap<>();
+    }
+
+    /**
+     * Tracks the position in the segment while it is written.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream delegate;
+        private long count;
+
+        private CountingOutputStream(OutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.scoder.im.server;
+
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Negotiates the permessage-deflate extension (RFC 7692) with each client that offers it.
+ * <p>
+ * Negotiation itself is done by Netty's {@link PerMessageDeflateServerExtensionHandshaker}.
+ * This class adds two things on top:
+ * <ul>
+ *     <li>Outgoing frames below a size threshold are not compressed; for short chat lines the
+ *     deflate overhead costs more than it saves.</li>
+ *     <li>With no context takeover, the server declares {@code server_no_context_takeover}
+ *     even if the client did not ask for it, as RFC 7692 allows, and asks the client for
+ *     {@code client_no_context_takeover}. Netty then releases the deflater and inflater after
+ *     every message instead of keeping them for the life of the connection.</li>
+ * </ul>
+ * Instances hold only configuration and can be shared by all channels.
+ *
+ * @author Shawn Cui
+ */
+public class DeflateExtensionHandshaker implements WebSocketServerExtensionHandshaker {
+
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT = "server_no_context_takeover";
+
+    private final boolean noContextTakeover;
+    private final PerMessageDeflateServerExtensionHandshaker delegate;
+
+    /**
+     * Creates a handshaker.
+     *
+     * @param compressionLevel  The deflate level, 1 to 9.
+     * @param threshold         The smallest outgoing frame that is compressed, in bytes.
+     * @param noContextTakeover Whether compression state is dropped after every message.
+     */
+    public DeflateExtensionHandshaker(int compressionLevel, int threshold, boolean noContextTakeover) {
+        this.noContextTakeover = noContextTakeover;
+        WebSocketExtensionFilter skipSmallFrames = new WebSocketExtensionFilter() {
+            @Override
+            public boolean mustSkip(WebSocketFrame frame) {
+                return frame.content().readableBytes() < threshold;
+            }
+        };
+        WebSocketExtensionFilterProvider filters = new WebSocketExtensionFilterProvider() {
+            @Override
+            public WebSocketExtensionFilter encoderFilter() {
+                return skipSmallFrames;
+            }
+
+            @Override
+            public WebSocketExtensionFilter decoderFilter() {
+                return WebSocketExtensionFilter.NEVER_SKIP;
+            }
+        };
+        // The server keeps its 15-bit window: smaller windows need the optional JZlib library
+        this.delegate = new PerMessageDeflateServerExtensionHandshaker(compressionLevel, false,
+                PerMessageDeflateServerExtensionHandshaker.MAX_WINDOW_SIZE, true, noContextTakeover, filters);
+    }
+
+    @Override
+    public WebSocketServerExtension handshakeExtension(WebSocketExtensionData extensionData) {
+        if (!PERMESSAGE_DEFLATE.equals(extensionData.name())) {
+            return null;
+        }
+        if (noContextTakeover && !extensionData.parameters().containsKey(SERVER_NO_CONTEXT)) {
+            Map<String, String> parameters = new HashMap<>(extensionData.parameters());
+            parameters.put(SERVER_NO_CONTEXT, null);
+            extensionData = new WebSocketExtensionData(extensionData.name(), parameters);
+        }
+        return delegate.handshakeExtension(extensionData);
+    }
+}
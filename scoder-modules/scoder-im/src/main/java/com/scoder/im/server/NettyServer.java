@@ -1,27 +1,49 @@
 package com.scoder.im.server;
 
+import com.scoder.im.config.NettyProperties;
+import com.scoder.im.handler.BusinessExecutor;
+import com.scoder.im.handler.HeartbeatHandler;
+import com.scoder.im.handler.OutboundBackpressure;
+import com.scoder.im.handler.OutboundCoalescing;
 import com.scoder.im.handler.WebSocketHandler;
+import com.scoder.im.protocol.CommandDecoder;
+import com.scoder.im.protocol.WireProtocol;
+import com.scoder.im.service.MessagePersistService;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
 import io.netty.handler.codec.serialization.ObjectEncoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * NettyServer sets up and manages the WebSocket server using Netty.
@@ -36,45 +58,90 @@ public class NettyServer {
     private static final Logger log = LoggerFactory.getLogger(NettyServer.class);
 
     /**
-     * WebSocket protocol name.
+     * WebSocket subprotocols offered to clients. Clients that request none, or the generic
+     * "WebSocket" protocol, use JSON text frames.
      */
-    private static final String WEBSOCKET_PROTOCOL = "WebSocket";
+    private static final String WEBSOCKET_PROTOCOLS = "WebSocket," + WireProtocol.BINARY_SUBPROTOCOL;
 
-    /**
-     * Port on which the WebSocket server listens.
-     */
-    @Value("${webSocket.netty.port:58080}")
-    private int port;
+    @Autowired
+    private NettyProperties nettyProperties;
 
-    /**
-     * WebSocket endpoint path.
-     */
-    @Value("${webSocket.netty.path:/webSocket}")
-    private String webSocketPath;
+    @Autowired
+    private OutboundBackpressure outboundBackpressure;
+
+    @Autowired
+    private OutboundCoalescing outboundCoalescing;
+
+    @Autowired
+    private CommandDecoder commandDecoder;
+
+    @Autowired
+    private HeartbeatHandler heartbeatHandler;
 
     @Autowired
     private WebSocketHandler webSocketHandler;
 
+    @Autowired
+    private BusinessExecutor businessExecutor;
+
+    @Autowired
+    private MessagePersistService messagePersistService;
+
     private EventLoopGroup bossGroup;
     private EventLoopGroup workGroup;
+    private final List<Channel> serverChannels = new ArrayList<>();
 
     /**
-     * Starts the Netty WebSocket server.
+     * Starts the Netty WebSocket server and binds the listening sockets.
      *
-     * @throws InterruptedException If the server thread is interrupted.
+     * @throws InterruptedException If binding is interrupted.
      */
     private void start() throws InterruptedException {
-        bossGroup = new NioEventLoopGroup(); // Handles incoming connection requests
-        workGroup = new NioEventLoopGroup(); // Handles read/write operations for established connections
-        ServerBootstrap bootstrap = new ServerBootstrap();
+        boolean epoll = useEpoll();
+        int bossThreads = Math.max(1, nettyProperties.getBossThreads());
+        // Handles incoming connection requests
+        bossGroup = epoll
+                ? new EpollEventLoopGroup(bossThreads, new DefaultThreadFactory("im-netty-boss"))
+                : new NioEventLoopGroup(bossThreads, new DefaultThreadFactory("im-netty-boss"));
+        // Handles read/write operations for established connections, 0 selects Netty's default size
+        workGroup = epoll
+                ? new EpollEventLoopGroup(nettyProperties.getWorkerThreads(), new DefaultThreadFactory("im-netty-worker"))
+                : new NioEventLoopGroup(nettyProperties.getWorkerThreads(), new DefaultThreadFactory("im-netty-worker"));
+        ByteBufAllocator allocator = nettyProperties.isPooledAllocator()
+                ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+
+        DeflateExtensionHandshaker deflate = nettyProperties.isCompression()
+                ? new DeflateExtensionHandshaker(nettyProperties.getCompressionLevel(),
+                        nettyProperties.getCompressionThreshold(), nettyProperties.isCompressionNoContextTakeover())
+                : null;
 
+        ServerBootstrap bootstrap = new ServerBootstrap();
         bootstrap.group(bossGroup, workGroup)
-                .channel(NioServerSocketChannel.class) // Specifies NIO-based server socket
-                .localAddress(new InetSocketAddress(port)) // Binds the server to the configured port
+                .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                .localAddress(new InetSocketAddress(nettyProperties.getPort())) // Binds the server to the configured port
+                .option(ChannelOption.SO_BACKLOG, nettyProperties.getSoBacklog())
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.TCP_NODELAY, nettyProperties.isTcpNoDelay())
+                .childOption(ChannelOption.SO_KEEPALIVE, nettyProperties.isSoKeepAlive())
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        nettyProperties.getWriteBufferLowWaterMark(), nettyProperties.getWriteBufferHighWaterMark()))
                 .childHandler(new ChannelInitializer<SocketChannel>() {
 
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
+                        // Raises idle events for the heartbeat handler; first, so that it sees all traffic
+                        if (nettyProperties.getReaderIdleSeconds() > 0 || nettyProperties.getWriterIdleSeconds() > 0) {
+                            ch.pipeline().addLast(new IdleStateHandler(
+                                    nettyProperties.getReaderIdleSeconds(), nettyProperties.getWriterIdleSeconds(), 0));
+                        }
+
+                        // Merges the flushes of writes queued by other threads into one socket write
+                        if (outboundCoalescing.isEnabled()) {
+                            ch.pipeline().addLast(new FlushConsolidationHandler(
+                                    FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+                        }
+
                         // Pipeline configuration for handling WebSocket communication
                         ch.pipeline().addLast(new HttpServerCodec()); // HTTP request/response codec
                         ch.pipeline().addLast(new ObjectEncoder()); // Encodes objects for transmission
@@ -86,54 +153,108 @@ public class NettyServer {
                          */
                         ch.pipeline().addLast(new HttpObjectAggregator(8192));
 
+                        // Negotiates permessage-deflate and adds the compression codecs after the handshake
+                        if (deflate != null) {
+                            ch.pipeline().addLast(new WebSocketServerExtensionHandler(deflate));
+                        }
+
                         /*
                          * WebSocketServerProtocolHandler upgrades HTTP requests to WebSocket and manages WebSocket frames.
                          * - ws://127.0.0.1:58080/xxx is the endpoint URI
                          * - Maintains persistent WebSocket connections
                          */
-                        ch.pipeline().addLast(new WebSocketServerProtocolHandler(webSocketPath, WEBSOCKET_PROTOCOL, true, 65536 * 10));
+                        ch.pipeline().addLast(new WebSocketServerProtocolHandler(nettyProperties.getPath(), WEBSOCKET_PROTOCOLS, true, 65536 * 10));
+
+                        // Collects the frames of a burst into one BATCH frame
+                        if (outboundCoalescing.isEnabled()) {
+                            ch.pipeline().addLast(outboundCoalescing.newHandler());
+                        }
+
+                        // Queues outgoing frames while the client reads slower than it is written to
+                        ch.pipeline().addLast(outboundBackpressure.newHandler());
+
+                        // Decodes text and binary frames into validated commands
+                        ch.pipeline().addLast(commandDecoder);
+
+                        // Sends and answers PINGs and closes connections that went quiet
+                        ch.pipeline().addLast(heartbeatHandler);
 
                         // Custom handler for business logic
                         ch.pipeline().addLast(webSocketHandler);
                     }
                 });
 
-        // Bind the server and start listening
-        ChannelFuture channelFuture = bootstrap.bind().sync();
-        log.info("Server started and listening on: {}", channelFuture.channel().localAddress());
+        // With SO_REUSEPORT every acceptor thread gets its own listening socket on the same port
+        int listeners = 1;
+        if (nettyProperties.isReusePort()) {
+            if (epoll) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+                listeners = bossThreads;
+            } else {
+                log.warn("SO_REUSEPORT requires the epoll transport, binding a single listener");
+            }
+        }
+        for (int i = 0; i < listeners; i++) {
+            Channel channel = bootstrap.bind().sync().channel();
+            serverChannels.add(channel);
+        }
+        log.info("Server started on {} with the {} transport, {} listener(s)",
+                serverChannels.get(0).localAddress(), epoll ? "epoll" : "NIO", listeners);
+    }
 
-        // Block and wait until the server channel is closed
-        channelFuture.channel().closeFuture().sync();
+    /**
+     * Decides whether the native epoll transport is used.
+     *
+     * @return true if epoll was requested or allowed and can be loaded.
+     */
+    private boolean useEpoll() {
+        String transport = nettyProperties.getTransport();
+        if ("nio".equalsIgnoreCase(transport)) {
+            return false;
+        }
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+        if ("epoll".equalsIgnoreCase(transport)) {
+            log.warn("Epoll transport is not available, falling back to NIO: {}", String.valueOf(Epoll.unavailabilityCause()));
+        }
+        return false;
     }
 
     /**
-     * Releases server resources (boss and worker threads).
+     * Releases server resources (listening sockets, boss and worker threads), lets the business
+     * lanes finish, then writes any chat messages still waiting in the persistence queue. The
+     * event loops and lanes are stopped first so that no new messages can be queued while the
+     * final flush runs.
      *
      * @throws InterruptedException If shutdown is interrupted.
      */
     @PreDestroy
     public void destroy() throws InterruptedException {
+        for (Channel channel : serverChannels) {
+            channel.close().sync();
+        }
         if (bossGroup != null) {
             bossGroup.shutdownGracefully().sync();
         }
         if (workGroup != null) {
             workGroup.shutdownGracefully().sync();
         }
+        businessExecutor.shutdown();
+        messagePersistService.shutdown();
     }
 
     /**
-     * Initializes and starts the WebSocket server in a separate thread.
+     * Starts the WebSocket server. Binding happens during startup so that a port conflict
+     * fails the application instead of leaving it running without a server.
      */
     @PostConstruct
     public void init() {
-        // Start the server in a new thread
-        new Thread(() -> {
-            try {
-                start();
-            } catch (InterruptedException e) {
-                log.error("Error starting Netty server", e);
-                Thread.currentThread().interrupt();
-            }
-        }).start();
+        try {
+            start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while starting the Netty server", e);
+        }
     }
-}
\ No newline at end of file
+}
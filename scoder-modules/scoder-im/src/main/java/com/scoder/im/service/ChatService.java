@@ -1,9 +1,11 @@
 package com.scoder.im.service;
 
+import com.scoder.common.core.web.page.TableDataInfo;
 import com.scoder.im.domain.ChatMessage;
 import com.scoder.im.domain.vos.ChatMessageVo;
 import com.scoder.im.repository.ChatRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -23,6 +25,21 @@ public class ChatService {
     @Autowired
     private ChatRepository chatRepository; // Repository for managing chat messages
 
+    @Autowired
+    private ConversationService conversationService; // Maintains the conversation list entries
+
+    @Autowired
+    private RecentMessageCache recentMessageCache; // Serves recent pages of active conversations from memory
+
+    @Autowired
+    private MessageSearchIndex messageSearchIndex; // Full-text index of the message content
+
+    /**
+     * Upper bound on the number of messages returned by one history request.
+     */
+    @Value("${im.history.max-page-size:200}")
+    private int maxPageSize;
+
     /**
      * Retrieves the chat history for a specific user. This includes all messages
      * sent by or received by the user.
@@ -35,21 +52,71 @@ public class ChatService {
     }
 
     /**
-     * Retrieves the chat history for a specific group. This includes all messages
-     * sent within the group.
+     * Retrieves one page of the chat history for a specific group.
      *
-     * @param teamId The ID of the group whose chat history is to be retrieved.
-     * @return A list of chat messages sent in the specified group.
+     * @param teamId   The ID of the group whose chat history is to be retrieved.
+     * @param before   Only return messages older than this timestamp, or null.
+     * @param beforeId The ID of the message at {@code before}, which breaks timestamp ties, or null.
+     * @param after    Only return messages newer than this timestamp, or null.
+     * @param afterId  The ID of the message at {@code after}, which breaks timestamp ties, or null.
+     * @param limit    The requested page size, clamped to the configured maximum.
+     * @return A page of chat messages sent in the specified group, oldest first.
      */
-    public List<ChatMessage> getTeamChatHistory(Long teamId) {
-        return chatRepository.findByTeamId(teamId);
+    public List<ChatMessage> getTeamChatHistory(Long teamId, Long before, String beforeId, Long after, String afterId,
+                                                int limit) {
+        return recentMessageCache.getPage(ChatMessage.teamConversationKey(teamId), before, beforeId, after, afterId,
+                pageSize(limit), (pageBefore, pageBeforeId, pageAfter, pageAfterId, pageLimit) ->
+                        chatRepository.getTeamChatHistory(teamId, pageBefore, pageBeforeId, pageAfter, pageAfterId, pageLimit));
     }
 
     public List<ChatMessageVo> getDirectChatList(Long userId) {
         return chatRepository.getDirectChatList(userId);
     }
 
-    public List<ChatMessage> getDirectChatHistory(Long userId, Long receiverId) {
-        return chatRepository.getDirectChatHistory(userId, receiverId);
+    /**
+     * Retrieves one page of the direct chat history between two users.
+     *
+     * @param userId     The ID of one participant.
+     * @param receiverId The ID of the other participant.
+     * @param before     Only return messages older than this timestamp, or null.
+     * @param beforeId   The ID of the message at {@code before}, which breaks timestamp ties, or null.
+     * @param after      Only return messages newer than this timestamp, or null.
+     * @param afterId    The ID of the message at {@code after}, which breaks timestamp ties, or null.
+     * @param limit      The requested page size, clamped to the configured maximum.
+     * @return A page of chat messages between the two users, oldest first.
+     */
+    public List<ChatMessage> getDirectChatHistory(Long userId, Long receiverId, Long before, String beforeId, Long after,
+                                                  String afterId, int limit) {
+        String conversationKey = ChatMessage.directConversationKey(userId, receiverId);
+        return recentMessageCache.getPage(conversationKey, before, beforeId, after, afterId, pageSize(limit),
+                (pageBefore, pageBeforeId, pageAfter, pageAfterId, pageLimit) -> chatRepository.getDirectChatHistory(
+                        userId, receiverId, pageBefore, pageBeforeId, pageAfter, pageAfterId, pageLimit));
+    }
+
+    /**
+     * Searches the messages of every direct and team conversation the user takes part in.
+     *
+     * @param userId   The ID of the user searching.
+     * @param keyword  The search text.
+     * @param pageNum  The page, starting at 1.
+     * @param pageSize The requested page size, clamped to the configured maximum.
+     * @return A page of matching messages, newest first, and the number of matches.
+     */
+    public TableDataInfo<ChatMessage> searchMessages(Long userId, String keyword, int pageNum, int pageSize) {
+        return messageSearchIndex.search(conversationService.conversationKeys(userId), keyword, pageNum, pageSize(pageSize));
+    }
+
+    /**
+     * Clears the unread count of a conversation for the given user.
+     *
+     * @param userId          The ID of the user who read the conversation.
+     * @param conversationKey The key of the conversation.
+     */
+    public void markRead(Long userId, String conversationKey) {
+        conversationService.markRead(userId, conversationKey);
+    }
+
+    private int pageSize(int limit) {
+        return Math.max(1, Math.min(limit, maxPageSize));
     }
 }
\ No newline at end of file
@@ -0,0 +1,329 @@
+package com.scoder.im.service;
+
+import com.scoder.im.api.domain.Group;
+import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.domain.Conversation;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
+
+/**
+ * ConversationService maintains the "conversations" read model behind the conversation lists.
+ * <p>
+ * Each stored batch of messages is applied with one ordered bulk write: a direct message
+ * upserts the entries of both participants, a group message updates the entries of every
+ * member of the team. Team entries are created and removed together with the membership,
+ * so teams without messages still appear in the list.
+ * <p>
+ * Unread counts are maintained incrementally and reset when the owner reads the conversation.
+ * Each entry remembers the time up to which it was read, so a message that was already shown
+ * to the user but is only persisted after the read is not counted as unread again. In the
+ * same way, the last message of an entry is only replaced by a message that is not older, since
+ * messages from several nodes, or from a failed bulk insert retried one by one, may be
+ * persisted out of order.
+ *
+ * @author Shawn Cui
+ */
+@Service
+public class ConversationService implements MessagePersistListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ConversationService.class);
+
+    private static final String COLLECTION = "conversations";
+
+    /**
+     * Whether an empty read model is built from the existing messages and groups at startup.
+     */
+    @Value("${im.conversation.backfill-enabled:true}")
+    private boolean backfillEnabled;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /**
+     * Ensures the indexes exist and builds the read model once if it is still empty.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initialize() {
+        try {
+            IndexOperations indexOps = mongoTemplate.indexOps(COLLECTION);
+            indexOps.ensureIndex(new Index()
+                    .on("ownerId", Sort.Direction.ASC)
+                    .on("conversationKey", Sort.Direction.ASC)
+                    .unique()
+                    .named("ownerId_conversationKey"));
+            indexOps.ensureIndex(new Index()
+                    .on("ownerId", Sort.Direction.ASC)
+                    .on("type", Sort.Direction.ASC)
+                    .on("lastTimestamp", Sort.Direction.DESC)
+                    .named("ownerId_type_lastTimestamp"));
+            // Group messages and team changes update every member's entry by conversation key
+            indexOps.ensureIndex(new Index()
+                    .on("conversationKey", Sort.Direction.ASC)
+                    .on("ownerId", Sort.Direction.ASC)
+                    .named("conversationKey_ownerId"));
+            mongoTemplate.indexOps(Group.class).ensureIndex(new Index().on("teamId", Sort.Direction.ASC).named("teamId"));
+        } catch (Exception e) {
+            log.error("Failed to create conversation indexes: {}", e.getMessage());
+        }
+
+        if (backfillEnabled) {
+            Thread thread = new Thread(this::backfill, "im-conversation-backfill");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Applies a stored batch of messages to the conversation entries of everyone involved.
+     *
+     * @param messages The stored messages, in queue order.
+     */
+    @Override
+    public void onPersisted(List<ChatMessage> messages) {
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, Conversation.class, COLLECTION);
+        int operations = 0;
+        for (ChatMessage chatMessage : messages) {
+            if (chatMessage.getTeamId() != null) {
+                String key = ChatMessage.teamConversationKey(chatMessage.getTeamId());
+                bulkOps.updateMulti(notOlder(Criteria.where("conversationKey").is(key), chatMessage), lastMessage(chatMessage));
+                bulkOps.updateMulti(unread(Criteria.where("conversationKey").is(key)
+                        .and("ownerId").ne(chatMessage.getSenderId()), chatMessage), new Update().inc("unreadCount", 1));
+                operations += 2;
+            } else if (chatMessage.getSenderId() != null && chatMessage.getReceiverId() != null) {
+                Long senderId = chatMessage.getSenderId();
+                Long receiverId = chatMessage.getReceiverId();
+                String key = ChatMessage.directConversationKey(senderId, receiverId);
+                // The upserts cannot filter on the last timestamp without inserting a duplicate
+                // entry, so they only create the entry and the last message is set separately
+                bulkOps.upsert(entry(senderId, key), new Update()
+                        .max("lastTimestamp", chatMessage.getTimestamp())
+                        .setOnInsert("type", "DIRECT")
+                        .setOnInsert("peerId", receiverId)
+                        .setOnInsert("unreadCount", 0L));
+                bulkOps.updateOne(notOlder(Criteria.where("ownerId").is(senderId).and("conversationKey").is(key),
+                        chatMessage), lastMessage(chatMessage));
+                bulkOps.upsert(entry(receiverId, key), new Update()
+                        .max("lastTimestamp", chatMessage.getTimestamp())
+                        .setOnInsert("type", "DIRECT")
+                        .setOnInsert("peerId", senderId)
+                        .setOnInsert("unreadCount", 0L));
+                bulkOps.updateOne(notOlder(Criteria.where("ownerId").is(receiverId).and("conversationKey").is(key),
+                        chatMessage), lastMessage(chatMessage));
+                bulkOps.updateOne(unread(Criteria.where("ownerId").is(receiverId).and("conversationKey").is(key),
+                        chatMessage), new Update().inc("unreadCount", 1));
+                operations += 5;
+            }
+        }
+        if (operations > 0) {
+            bulkOps.execute();
+        }
+    }
+
+    /**
+     * Creates the team conversation entries of new members. Existing entries are left untouched.
+     *
+     * @param teamId    The team ID.
+     * @param memberIds The IDs of the members.
+     */
+    public void addMembers(Long teamId, Collection<Long> memberIds) {
+        if (teamId == null || memberIds == null || memberIds.isEmpty()) {
+            return;
+        }
+        String key = ChatMessage.teamConversationKey(teamId);
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Conversation.class, COLLECTION);
+        for (Long memberId : memberIds) {
+            bulkOps.upsert(entry(memberId, key), new Update()
+                    .setOnInsert("type", "GROUP")
+                    .setOnInsert("teamId", teamId)
+                    .setOnInsert("unreadCount", 0L));
+        }
+        bulkOps.execute();
+    }
+
+    /**
+     * Removes the team conversation entry of a member who left the team.
+     *
+     * @param teamId   The team ID.
+     * @param memberId The ID of the member.
+     */
+    public void removeMember(Long teamId, Long memberId) {
+        mongoTemplate.remove(entry(memberId, ChatMessage.teamConversationKey(teamId)), Conversation.class, COLLECTION);
+    }
+
+    /**
+     * Marks every message of a conversation as read for one user.
+     *
+     * @param ownerId         The ID of the user.
+     * @param conversationKey The key of the conversation.
+     */
+    public void markRead(Long ownerId, String conversationKey) {
+        markRead(ownerId, conversationKey, System.currentTimeMillis());
+    }
+
+    /**
+     * Marks the messages of a conversation up to a point in time as read for one user. The
+     * unread count is reset; messages with a later timestamp will count again.
+     *
+     * @param ownerId         The ID of the user.
+     * @param conversationKey The key of the conversation.
+     * @param readTimestamp   The timestamp of the latest message the user has seen.
+     */
+    public void markRead(Long ownerId, String conversationKey, long readTimestamp) {
+        mongoTemplate.updateFirst(entry(ownerId, conversationKey),
+                new Update().set("unreadCount", 0L).max("lastReadTimestamp", readTimestamp),
+                Conversation.class, COLLECTION);
+    }
+
+    /**
+     * Returns the keys of every conversation a user takes part in: each direct peer and each
+     * team the user currently belongs to.
+     *
+     * @param ownerId The ID of the user.
+     * @return The conversation keys.
+     */
+    public List<String> conversationKeys(Long ownerId) {
+        Query query = Query.query(Criteria.where("ownerId").is(ownerId));
+        query.fields().include("conversationKey");
+        List<String> keys = new ArrayList<>();
+        for (Conversation conversation : mongoTemplate.find(query, Conversation.class, COLLECTION)) {
+            if (conversation.getConversationKey() != null) {
+                keys.add(conversation.getConversationKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Builds the read model from the existing groups and messages when it is empty.
+     * Unread counts start at zero.
+     */
+    void backfill() {
+        try {
+            if (mongoTemplate.estimatedCount(COLLECTION) > 0) {
+                return;
+            }
+            log.info("Building conversation list entries from existing messages");
+
+            for (Group group : mongoTemplate.findAll(Group.class, "groups")) {
+                if (group.getTeamId() == null) {
+                    continue;
+                }
+                addMembers(group.getTeamId(), group.getMemberIds());
+                Query latest = Query.query(Criteria.where("teamId").is(group.getTeamId()))
+                        .with(Sort.by(Sort.Direction.DESC, "timestamp"))
+                        .limit(1);
+                ChatMessage lastMessage = mongoTemplate.findOne(latest, ChatMessage.class, "messages");
+                if (lastMessage != null) {
+                    mongoTemplate.updateMulti(Query.query(Criteria.where("conversationKey").is(ChatMessage.teamConversationKey(group.getTeamId()))),
+                            lastMessage(lastMessage), Conversation.class, COLLECTION);
+                }
+            }
+
+            // Latest message per direction, merged into one latest message per pair of users
+            Aggregation aggregation = newAggregation(
+                    match(Criteria.where("type").is("DIRECT")),
+                    sort(Sort.by(Sort.Direction.DESC, "timestamp")),
+                    group("senderId", "receiverId")
+                            .first("_id").as("messageId")
+                            .first("content").as("content")
+                            .first("timestamp").as("timestamp"))
+                    .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+            Map<String, ChatMessage> latestByPair = new HashMap<>();
+            for (Document result : mongoTemplate.aggregate(aggregation, "messages", Document.class).getMappedResults()) {
+                Document pair = result.get("_id", Document.class);
+                Object senderId = pair.get("senderId");
+                Object receiverId = pair.get("receiverId");
+                if (senderId == null || receiverId == null) {
+                    continue;
+                }
+                ChatMessage chatMessage = new ChatMessage();
+                chatMessage.setId(String.valueOf(result.get("messageId")));
+                chatMessage.setSenderId(((Number) senderId).longValue());
+                chatMessage.setReceiverId(((Number) receiverId).longValue());
+                chatMessage.setContent(result.getString("content"));
+                Object timestamp = result.get("timestamp");
+                chatMessage.setTimestamp(timestamp == null ? 0L : ((Number) timestamp).longValue());
+                latestByPair.merge(ChatMessage.directConversationKey(chatMessage.getSenderId(), chatMessage.getReceiverId()),
+                        chatMessage, (a, b) -> a.getTimestamp() >= b.getTimestamp() ? a : b);
+            }
+
+            BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Conversation.class, COLLECTION);
+            for (Map.Entry<String, ChatMessage> pair : latestByPair.entrySet()) {
+                ChatMessage chatMessage = pair.getValue();
+                bulkOps.upsert(entry(chatMessage.getSenderId(), pair.getKey()), lastMessage(chatMessage)
+                        .setOnInsert("type", "DIRECT")
+                        .setOnInsert("peerId", chatMessage.getReceiverId())
+                        .setOnInsert("unreadCount", 0L));
+                bulkOps.upsert(entry(chatMessage.getReceiverId(), pair.getKey()), lastMessage(chatMessage)
+                        .setOnInsert("type", "DIRECT")
+                        .setOnInsert("peerId", chatMessage.getSenderId())
+                        .setOnInsert("unreadCount", 0L));
+            }
+            if (!latestByPair.isEmpty()) {
+                bulkOps.execute();
+            }
+            log.info("Built conversation list entries for {} direct conversations", latestByPair.size());
+        } catch (Exception e) {
+            log.error("Failed to build conversation list entries: {}", e.getMessage());
+        }
+    }
+
+    private static Query entry(Long ownerId, String conversationKey) {
+        return Query.query(Criteria.where("ownerId").is(ownerId).and("conversationKey").is(conversationKey));
+    }
+
+    /**
+     * Restricts a filter to entries that have not been read past the message's timestamp.
+     *
+     * @param criteria    The entry filter.
+     * @param chatMessage The message.
+     * @return A query matching only the entries the message is unread for.
+     */
+    private static Query unread(Criteria criteria, ChatMessage chatMessage) {
+        return Query.query(criteria.and("lastReadTimestamp").not().gte(chatMessage.getTimestamp()));
+    }
+
+    /**
+     * Restricts a filter to entries whose last message is not newer than the given one.
+     * Entries without a last message match as well.
+     *
+     * @param criteria    The entry filter.
+     * @param chatMessage The message.
+     * @return A query matching only the entries the message is the latest for.
+     */
+    private static Query notOlder(Criteria criteria, ChatMessage chatMessage) {
+        return Query.query(criteria.and("lastTimestamp").not().gt(chatMessage.getTimestamp()));
+    }
+
+    private static Update lastMessage(ChatMessage chatMessage) {
+        return new Update()
+                .set("lastMessageId", chatMessage.getId())
+                .set("lastSenderId", chatMessage.getSenderId())
+                .set("lastContent", chatMessage.getContent())
+                .set("lastTimestamp", chatMessage.getTimestamp());
+    }
+}
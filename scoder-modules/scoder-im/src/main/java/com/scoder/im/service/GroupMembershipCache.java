@@ -0,0 +1,258 @@
+package com.scoder.im.service;
+
+import com.scoder.im.api.domain.Group;
+import com.scoder.im.repository.GroupRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * GroupMembershipCache keeps the member IDs of recently used teams in memory, so that group
+ * messages can be fanned out without reading the team from MongoDB.
+ * <p>
+ * Members are held as a sorted {@code long[]} per team. {@link GroupService} invalidates a
+ * team whenever it changes it; in cluster mode ({@code im.cluster.enabled=true}) the
+ * invalidation is also broadcast over Redis so every IM node drops its copy. Entries expire
+ * after a fixed time as a safety net against a lost broadcast.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class GroupMembershipCache {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupMembershipCache.class);
+
+    /**
+     * Redis channel that carries the IDs of changed teams.
+     */
+    private static final String INVALIDATION_CHANNEL = "im:group:invalidate";
+
+    /**
+     * Maximum number of teams kept in memory.
+     */
+    @Value("${im.group-cache.max-size:10000}")
+    private int maxSize;
+
+    /**
+     * How long an entry is used before it is loaded again.
+     */
+    @Value("${im.group-cache.ttl-ms:600000}")
+    private long ttlMs;
+
+    /**
+     * Whether invalidations are broadcast to the other IM nodes.
+     */
+    @Value("${im.cluster.enabled:false}")
+    private boolean clustered;
+
+    @Autowired
+    private GroupRepository groupRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired(required = false)
+    private RedisMessageListenerContainer listenerContainer;
+
+    private final ConcurrentHashMap<Long, TeamMembers> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every invalidation, so that a load racing with an invalidation is not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private Counter hitCounter;
+    private Counter missCounter;
+
+    /**
+     * Registers the metrics and subscribes to invalidations from other nodes.
+     */
+    @PostConstruct
+    public void init() {
+        hitCounter = meterRegistry.counter("im.group.cache.hit");
+        missCounter = meterRegistry.counter("im.group.cache.miss");
+        Gauge.builder("im.group.cache.size", cache, ConcurrentHashMap::size)
+                .description("Teams whose members are cached in memory")
+                .register(meterRegistry);
+
+        if (clustered && listenerContainer != null) {
+            listenerContainer.addMessageListener((message, pattern) -> {
+                try {
+                    evict(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring malformed group invalidation");
+                }
+            }, new ChannelTopic(INVALIDATION_CHANNEL));
+        }
+    }
+
+    /**
+     * Returns the members of a team, loading them from MongoDB on a miss.
+     *
+     * @param teamId The team ID.
+     * @return The members, or null if the team does not exist.
+     */
+    public TeamMembers getMembers(Long teamId) {
+        TeamMembers members = cache.get(teamId);
+        if (members != null && System.currentTimeMillis() - members.loadedAt < ttlMs) {
+            hitCounter.increment();
+            return members;
+        }
+        missCounter.increment();
+
+        long loadGeneration = generation.get();
+        Group group = groupRepository.findByTeamId(teamId);
+        if (group == null) {
+            cache.remove(teamId);
+            return null;
+        }
+        members = new TeamMembers(group.getMemberIds());
+        if (generation.get() == loadGeneration) {
+            if (cache.size() >= maxSize && !cache.containsKey(teamId)) {
+                evictOne();
+            }
+            cache.put(teamId, members);
+        }
+        return members;
+    }
+
+    /**
+     * Returns the member count of a team if it is in memory, without loading it. Safe to
+     * call on an event loop.
+     *
+     * @param teamId The team ID.
+     * @return The member count, or 0 if the team is not cached.
+     */
+    public int cachedSize(Long teamId) {
+        TeamMembers members = teamId == null ? null : cache.get(teamId);
+        return members == null ? 0 : members.size();
+    }
+
+    /**
+     * Drops the cached members of a team on this node and, in cluster mode, on all other nodes.
+     * Must be called after every change to a team.
+     *
+     * @param teamId The team ID.
+     */
+    public void invalidate(Long teamId) {
+        if (teamId == null) {
+            return;
+        }
+        evict(teamId);
+        if (clustered && redisTemplate != null) {
+            try {
+                redisTemplate.convertAndSend(INVALIDATION_CHANNEL, teamId.toString());
+            } catch (Exception e) {
+                log.error("Failed to broadcast invalidation of team {}: {}", teamId, e.getMessage());
+            }
+        }
+    }
+
+    private void evict(Long teamId) {
+        generation.incrementAndGet();
+        cache.remove(teamId);
+    }
+
+    private void evictOne() {
+        Iterator<Long> iterator = cache.keySet().iterator();
+        if (iterator.hasNext()) {
+            cache.remove(iterator.next());
+        }
+    }
+
+    /**
+     * The members of one team as a sorted primitive array. Instances are immutable.
+     */
+    public static final class TeamMembers {
+
+        private final long[] memberIds;
+        private final long loadedAt;
+        private final List<Long> view;
+
+        TeamMembers(Collection<Long> memberIds) {
+            long[] ids = memberIds == null ? new long[0] : memberIds.stream()
+                    .filter(id -> id != null)
+                    .mapToLong(Long::longValue)
+                    .sorted()
+                    .distinct()
+                    .toArray();
+            this.memberIds = ids;
+            this.loadedAt = System.currentTimeMillis();
+            this.view = new MemberList(ids);
+        }
+
+        /**
+         * Checks whether a user belongs to the team.
+         *
+         * @param userId The user ID.
+         * @return true if the user is a member.
+         */
+        public boolean contains(long userId) {
+            return Arrays.binarySearch(memberIds, userId) >= 0;
+        }
+
+        /**
+         * Returns the number of members.
+         *
+         * @return The member count.
+         */
+        public int size() {
+            return memberIds.length;
+        }
+
+        /**
+         * Returns a read-only list view of the members, backed by the array.
+         *
+         * @return The member IDs in ascending order.
+         */
+        public List<Long> asList() {
+            return view;
+        }
+    }
+
+    private static final class MemberList extends AbstractList<Long> implements RandomAccess {
+
+        private final long[] ids;
+
+        MemberList(long[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public Long get(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Long && Arrays.binarySearch(ids, (Long) o) >= 0;
+        }
+    }
+}
@@ -25,6 +25,12 @@ public class GroupService {
     @Autowired
     private GroupRepository groupRepository; // Repository for managing group data
 
+    @Autowired
+    private ConversationService conversationService; // Keeps the members' conversation lists in sync
+
+    @Autowired
+    private GroupMembershipCache groupMembershipCache; // Members used by the WebSocket fan-out
+
 
     /**
      * Creates a new group with the provided details. The current user is set
@@ -35,7 +41,10 @@ public class GroupService {
      */
     public Group createGroup(Group group) {
         group.setTimestamp(System.currentTimeMillis()); // Set creation timestamp
-        return groupRepository.save(group);
+        Group saved = groupRepository.save(group);
+        conversationService.addMembers(saved.getTeamId(), saved.getMemberIds());
+        groupMembershipCache.invalidate(saved.getTeamId());
+        return saved;
     }
 
     /**
@@ -50,6 +59,8 @@ public class GroupService {
                 .orElseThrow(() -> new IllegalArgumentException("Group not found"));
         group.getMemberIds().add(memberId); // Add the member to the group
         groupRepository.save(group); // Save the updated group
+        conversationService.addMembers(group.getTeamId(), List.of(memberId));
+        groupMembershipCache.invalidate(group.getTeamId());
     }
 
     /**
@@ -64,6 +75,8 @@ public class GroupService {
                 .orElseThrow(() -> new IllegalArgumentException("Group not found"));
         group.getMemberIds().remove(memberId); // Remove the member from the group
         groupRepository.save(group); // Save the updated group
+        conversationService.removeMember(group.getTeamId(), memberId);
+        groupMembershipCache.invalidate(group.getTeamId());
     }
 
     public List<GroupVo> getTeamChatList(Long userId) {
@@ -73,7 +86,10 @@ public class GroupService {
     public Group joinTeam(Long teamId, Long userId) {
         Group group = groupRepository.findByTeamId(teamId);
         group.getMemberIds().add(userId);
-        return groupRepository.save(group);
+        Group saved = groupRepository.save(group);
+        conversationService.addMembers(teamId, List.of(userId));
+        groupMembershipCache.invalidate(teamId);
+        return saved;
     }
 
     public String updateTeam(Group group) {
@@ -92,6 +108,7 @@ public class GroupService {
 
         try {
             groupRepository.save(existingGroup);
+            groupMembershipCache.invalidate(existingGroup.getTeamId());
             return "Team updated successfully";
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,187 @@
+package com.scoder.im.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MessageDeduplicator remembers the client message IDs accepted during the last window, so
+ * that a message a client resends after losing the ACK is acknowledged again instead of
+ * being stored and delivered twice.
+ * <p>
+ * The window is split into a ring of time buckets. IDs are recorded in the bucket of the
+ * current time slice, and a bucket is replaced as a whole when its slot comes round again,
+ * so expiry costs nothing per entry and memory is bounded by the buckets in the ring. An ID
+ * is remembered for at least the window minus one slice. Each bucket also has an entry limit;
+ * IDs that arrive when it is full are not remembered and a resend of them is treated as new.
+ * <p>
+ * IDs are kept per node. The messages of one conversation are handled on one business lane,
+ * so a resend is never checked while its original is still being handled on this node.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class MessageDeduplicator {
+
+    /**
+     * How long an accepted client message ID is remembered.
+     */
+    @Value("${im.dedup.window-ms:120000}")
+    private long windowMs;
+
+    /**
+     * Number of time slices the window is split into.
+     */
+    @Value("${im.dedup.buckets:4}")
+    private int bucketCount;
+
+    /**
+     * Maximum number of IDs remembered per time slice.
+     */
+    @Value("${im.dedup.max-entries-per-bucket:200000}")
+    private int maxEntriesPerBucket;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private long sliceMs;
+    private AtomicReferenceArray<Bucket> buckets;
+    private Counter duplicateCounter;
+    private Counter overflowCounter;
+
+    /**
+     * Creates the bucket ring and registers the metrics.
+     */
+    @PostConstruct
+    public void init() {
+        sliceMs = Math.max(1L, windowMs / bucketCount);
+        buckets = new AtomicReferenceArray<>(bucketCount);
+        duplicateCounter = meterRegistry.counter("im.dedup.duplicates");
+        overflowCounter = meterRegistry.counter("im.dedup.overflow");
+        Gauge.builder("im.dedup.entries", this, MessageDeduplicator::size)
+                .description("Client message IDs remembered for deduplication")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Looks up a client message ID in the current window.
+     *
+     * @param senderId    The ID of the sender.
+     * @param clientMsgId The ID the client gave the message.
+     * @return The message accepted under this ID, or null if the ID is new.
+     */
+    public Accepted find(Long senderId, String clientMsgId) {
+        String key = key(senderId, clientMsgId);
+        long oldest = System.currentTimeMillis() / sliceMs - bucketCount + 1;
+        for (int i = 0; i < bucketCount; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.slice >= oldest) {
+                Accepted accepted = bucket.entries.get(key);
+                if (accepted != null) {
+                    duplicateCounter.increment();
+                    return accepted;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remembers an accepted message under its client message ID.
+     *
+     * @param senderId    The ID of the sender.
+     * @param clientMsgId The ID the client gave the message.
+     * @param accepted    The server ID and timestamp the message was accepted with.
+     */
+    public void record(Long senderId, String clientMsgId, Accepted accepted) {
+        Bucket bucket = currentBucket();
+        if (bucket.entries.size() >= maxEntriesPerBucket) {
+            overflowCounter.increment();
+            return;
+        }
+        bucket.entries.put(key(senderId, clientMsgId), accepted);
+    }
+
+    /**
+     * Returns the number of remembered IDs, including those of expired buckets that have not
+     * been replaced yet.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null) {
+                size += bucket.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the bucket of the current time slice, replacing the expired bucket in its slot.
+     *
+     * @return The current bucket.
+     */
+    private Bucket currentBucket() {
+        long slice = System.currentTimeMillis() / sliceMs;
+        int index = (int) (slice % bucketCount);
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            if (bucket != null && bucket.slice >= slice) {
+                return bucket;
+            }
+            Bucket fresh = new Bucket(slice);
+            if (buckets.compareAndSet(index, bucket, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private static String key(Long senderId, String clientMsgId) {
+        return senderId + ":" + clientMsgId;
+    }
+
+    /**
+     * The server ID and timestamp a client message was accepted with.
+     */
+    public static final class Accepted {
+
+        private final String messageId;
+        private final long timestamp;
+
+        public Accepted(String messageId, long timestamp) {
+            this.messageId = messageId;
+            this.timestamp = timestamp;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * The IDs recorded during one time slice.
+     */
+    private static final class Bucket {
+
+        private final long slice;
+        private final ConcurrentHashMap<String, Accepted> entries = new ConcurrentHashMap<>();
+
+        private Bucket(long slice) {
+            this.slice = slice;
+        }
+    }
+}
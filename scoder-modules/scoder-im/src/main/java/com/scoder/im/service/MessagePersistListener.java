@@ -0,0 +1,24 @@
+package com.scoder.im.service;
+
+import com.scoder.im.domain.ChatMessage;
+
+import java.util.List;
+
+/**
+ * Callback for components that maintain data derived from stored chat messages.
+ * <p>
+ * Listeners are called on the flusher thread of {@link MessagePersistService} after each
+ * batch has been written, in the order the messages were queued. The list is only valid
+ * for the duration of the call and must not be kept or modified.
+ *
+ * @author Shawn Cui
+ */
+public interface MessagePersistListener {
+
+    /**
+     * Handles a batch of messages that has been written to MongoDB.
+     *
+     * @param messages The stored messages.
+     */
+    void onPersisted(List<ChatMessage> messages);
+}
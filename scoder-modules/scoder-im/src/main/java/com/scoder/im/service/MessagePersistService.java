@@ -0,0 +1,291 @@
+package com.scoder.im.service;
+
+import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.repository.MessageBucketRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessagePersistService is a write-behind buffer between the Netty event loops and MongoDB.
+ * <p>
+ * Chat messages are placed into a bounded queue and written in bulk to the monthly message
+ * collections chosen by the {@link MessageBucketRouter}. A single background flusher writes
+ * either when a batch is full or when the flush interval elapses. When the queue is full
+ * the caller waits for a short, bounded time and is then rejected, so producers slow down
+ * instead of exhausting the heap.
+ *
+ * @author Shawn Cui
+ */
+@Service
+public class MessagePersistService {
+
+    private static final Logger log = LoggerFactory.getLogger(MessagePersistService.class);
+
+    /**
+     * Maximum number of messages waiting to be written.
+     */
+    @Value("${im.persist.queue-capacity:20000}")
+    private int queueCapacity;
+
+    /**
+     * Maximum number of messages written in a single bulk operation.
+     */
+    @Value("${im.persist.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * Maximum time a message waits in the queue before a partial batch is flushed.
+     */
+    @Value("${im.persist.flush-interval-ms:50}")
+    private long flushIntervalMs;
+
+    /**
+     * How long a producer may wait for free space when the queue is full.
+     */
+    @Value("${im.persist.offer-timeout-ms:20}")
+    private long offerTimeoutMs;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageBucketRouter bucketRouter;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    private List<MessagePersistListener> listeners = Collections.emptyList();
+
+    private BlockingQueue<ChatMessage> queue;
+    private Thread flusher;
+    private volatile boolean running;
+
+    private Timer flushTimer;
+    private Counter writtenCounter;
+    private Counter rejectedCounter;
+    private Counter failedCounter;
+
+    /**
+     * Creates the queue, registers the metrics and starts the background flusher.
+     */
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        Gauge.builder("im.persist.queue.depth", queue, BlockingQueue::size)
+                .description("Chat messages waiting to be written to MongoDB")
+                .register(meterRegistry);
+        flushTimer = Timer.builder("im.persist.flush.latency")
+                .description("Time taken to write one batch of chat messages")
+                .register(meterRegistry);
+        writtenCounter = meterRegistry.counter("im.persist.written");
+        rejectedCounter = meterRegistry.counter("im.persist.rejected");
+        failedCounter = meterRegistry.counter("im.persist.failed");
+
+        running = true;
+        flusher = new Thread(this::runFlusher, "im-message-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues a message for persistence. A message ID is assigned up front so that the
+     * caller can reference the message before it reaches the database.
+     *
+     * @param chatMessage The message to persist.
+     * @return true if the message was queued, false if the queue stayed full or the service is stopped.
+     */
+    public boolean enqueue(ChatMessage chatMessage) {
+        if (!running) {
+            rejectedCounter.increment();
+            return false;
+        }
+        if (chatMessage.getId() == null) {
+            chatMessage.setId(new ObjectId().toHexString());
+        }
+        try {
+            if (queue.offer(chatMessage) || queue.offer(chatMessage, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejectedCounter.increment();
+        log.warn("Message queue is full, rejected message from user {}", chatMessage.getSenderId());
+        return false;
+    }
+
+    /**
+     * Returns the number of messages waiting to be written.
+     *
+     * @return The current queue depth.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting messages and writes everything still queued. Safe to call more than once.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Write whatever the flusher did not get to before it stopped
+        List<ChatMessage> remaining = new ArrayList<>(batchSize);
+        while (queue.drainTo(remaining, batchSize) > 0) {
+            flush(remaining);
+            remaining.clear();
+        }
+        log.info("Message persistence stopped");
+    }
+
+    /**
+     * Main loop of the flusher thread. Waits for the first message of a batch, then keeps
+     * collecting until the batch is full or the flush interval has passed.
+     */
+    private void runFlusher() {
+        List<ChatMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                ChatMessage first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    ChatMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                flush(batch);
+                return;
+            } catch (Exception e) {
+                log.error("Unexpected error in message flusher: {}", e.getMessage(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes one batch with a single unordered bulk insert per monthly collection, which is
+     * one insert except around the turn of a month. If a bulk write fails, each of its
+     * messages is saved individually; since IDs are assigned before queuing, messages that
+     * were already inserted are simply overwritten with the same content.
+     * The messages that were written are then passed to the registered listeners.
+     *
+     * @param batch The messages to write.
+     */
+    private void flush(List<ChatMessage> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Map<String, List<ChatMessage>> byCollection = new LinkedHashMap<>();
+        for (ChatMessage chatMessage : batch) {
+            long timestamp = chatMessage.getTimestamp() != null ? chatMessage.getTimestamp() : System.currentTimeMillis();
+            byCollection.computeIfAbsent(bucketRouter.collectionForWrite(timestamp), key -> new ArrayList<>()).add(chatMessage);
+        }
+        List<ChatMessage> written = new ArrayList<>(batch.size());
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            for (Map.Entry<String, List<ChatMessage>> bucket : byCollection.entrySet()) {
+                written.addAll(write(bucket.getKey(), bucket.getValue()));
+            }
+        } finally {
+            sample.stop(flushTimer);
+        }
+        notifyListeners(written);
+    }
+
+    /**
+     * Writes the messages of one collection.
+     *
+     * @param collection The monthly message collection.
+     * @param messages   The messages to write.
+     * @return The messages that were written.
+     */
+    private List<ChatMessage> write(String collection, List<ChatMessage> messages) {
+        try {
+            BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChatMessage.class, collection);
+            operations.insert(messages);
+            operations.execute();
+            writtenCounter.increment(messages.size());
+            return messages;
+        } catch (Exception e) {
+            log.error("Bulk insert of {} messages failed, retrying one by one: {}", messages.size(), e.getMessage());
+        }
+        List<ChatMessage> written = new ArrayList<>(messages.size());
+        for (ChatMessage chatMessage : messages) {
+            try {
+                mongoTemplate.save(chatMessage, collection);
+                writtenCounter.increment();
+                written.add(chatMessage);
+            } catch (Exception ex) {
+                failedCounter.increment();
+                log.error("Failed to persist message {}: {}", chatMessage.getId(), ex.getMessage());
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Passes a written batch to every listener. A failing listener does not affect the others
+     * or the messages, which are already stored.
+     *
+     * @param written The messages that were stored, in queue order.
+     */
+    private void notifyListeners(List<ChatMessage> written) {
+        if (written.isEmpty()) {
+            return;
+        }
+        List<ChatMessage> view = Collections.unmodifiableList(written);
+        for (MessagePersistListener listener : listeners) {
+            try {
+                listener.onPersisted(view);
+            } catch (Exception e) {
+                log.error("Listener {} failed for {} messages: {}", listener.getClass().getSimpleName(), written.size(), e.getMessage());
+            }
+        }
+    }
+}
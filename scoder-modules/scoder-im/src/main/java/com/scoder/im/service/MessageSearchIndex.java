@@ -0,0 +1,633 @@
+package com.scoder.im.service;
+
+import com.scoder.common.core.web.page.TableDataInfo;
+import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.repository.MessageBucketRouter;
+import com.scoder.im.repository.MessageSegmentStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.simple.SimpleQueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MessageSearchIndex keeps an inverted index of the message content on local disk, so that
+ * users can search their conversations without scanning the message collections.
+ * <p>
+ * Stored batches arrive through {@link MessagePersistListener} and are handed to a single
+ * background indexer over a bounded queue, so neither the event loops nor the persistence
+ * flusher wait for the index. The indexer makes new messages searchable within the refresh
+ * interval and commits periodically, recording in the commit the timestamp up to which every
+ * message is indexed. At startup, and whenever the queue overflowed, it catches up from the
+ * message buckets after that point; an empty index is built from the whole history, archived
+ * months included. Messages are indexed by ID, so reading one twice is harmless.
+ * <p>
+ * Queries are restricted to the conversations the caller takes part in and return the
+ * newest matches first. In cluster mode each node keeps its own index and also tails the
+ * current month in MongoDB, since the messages of other nodes are not stored locally. IDs are
+ * assigned when a message is queued on the node that received it, so another node may store
+ * a message with a lower ID than one already read. Each poll therefore reads again from the
+ * catch-up lag before the highest ID read so far.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class MessageSearchIndex implements MessagePersistListener {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageSearchIndex.class);
+
+    private static final String WATERMARK = "watermark";
+
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Marks that no catch-up is pending.
+     */
+    private static final long NONE = Long.MAX_VALUE;
+
+    private static final Sort NEWEST_FIRST = new Sort(new SortField("timestamp", SortField.Type.LONG, true));
+
+    /**
+     * Whether messages are indexed and can be searched.
+     */
+    @Value("${im.search.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Directory holding the index.
+     */
+    @Value("${im.search.index-dir:data/im-search}")
+    private String indexDir;
+
+    /**
+     * Maximum number of messages waiting to be indexed.
+     */
+    @Value("${im.search.queue-capacity:50000}")
+    private int queueCapacity;
+
+    /**
+     * Maximum time before a stored message shows up in search results.
+     */
+    @Value("${im.search.refresh-interval-ms:1000}")
+    private long refreshIntervalMs;
+
+    /**
+     * Time between two commits of the index to disk.
+     */
+    @Value("${im.search.commit-interval-ms:30000}")
+    private long commitIntervalMs;
+
+    /**
+     * How far before the recorded watermark a catch-up starts, covering messages that were
+     * stored out of timestamp order.
+     */
+    @Value("${im.search.catch-up-lag-ms:60000}")
+    private long catchUpLagMs;
+
+    /**
+     * Time between two reads of the current month in cluster mode.
+     */
+    @Value("${im.search.poll-interval-ms:5000}")
+    private long pollIntervalMs;
+
+    /**
+     * Maximum number of matches that can be paged through.
+     */
+    @Value("${im.search.max-results:1000}")
+    private int maxResults;
+
+    @Value("${im.cluster.enabled:false}")
+    private boolean clustered;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MessageBucketRouter bucketRouter;
+
+    @Autowired
+    private MessageSegmentStore segmentStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Analyzer analyzer = new CJKAnalyzer();
+
+    private Directory directory;
+    private IndexWriter writer;
+    private SearcherManager searcherManager;
+
+    private BlockingQueue<ChatMessage> queue;
+    private Thread indexer;
+    private volatile boolean running;
+
+    /**
+     * Every message with a timestamp up to the watermark is indexed. Only changed by the indexer.
+     */
+    private volatile long watermark;
+
+    /**
+     * Whether the catch-up at startup has completed, so new messages may advance the watermark.
+     */
+    private boolean caughtUp;
+
+    /**
+     * Exclusive lower bound of the next catch-up, or {@link #NONE}.
+     */
+    private final AtomicLong catchUpAfter = new AtomicLong(NONE);
+
+    /**
+     * The highest message ID read from MongoDB. The next poll in cluster mode starts the
+     * catch-up lag before it. Only used by the indexer.
+     */
+    private ObjectId tailAfter;
+
+    private Counter indexedCounter;
+    private Counter droppedCounter;
+    private Counter failedCounter;
+    private Timer queryTimer;
+
+    /**
+     * Opens the index and starts the background indexer.
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        open();
+        running = true;
+        indexer = new Thread(this::runIndexer, "im-search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Stops the indexer and commits what it has indexed.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        if (indexer != null) {
+            try {
+                // Not interrupted, an interrupt during a write can close the index files
+                indexer.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        close();
+    }
+
+    /**
+     * Hands a stored batch to the indexer. Messages that do not fit into the queue are read
+     * again from storage by the next catch-up.
+     *
+     * @param messages The stored messages.
+     */
+    @Override
+    public void onPersisted(List<ChatMessage> messages) {
+        if (!enabled) {
+            return;
+        }
+        for (ChatMessage chatMessage : messages) {
+            if (chatMessage.getTimestamp() != null && !queue.offer(chatMessage)) {
+                droppedCounter.increment();
+                requestCatchUp(chatMessage.getTimestamp() - 1);
+            }
+        }
+    }
+
+    /**
+     * Searches the content of the messages in the given conversations.
+     *
+     * @param conversationKeys The conversations to search, usually those of the caller.
+     * @param text             The search text. Words are all required; quotes, {@code -} and
+     *                         {@code *} work as usual.
+     * @param pageNum          The page, starting at 1.
+     * @param pageSize         The number of messages per page.
+     * @return A page of matching messages, newest first, and the number of matches.
+     */
+    public TableDataInfo<ChatMessage> search(Collection<String> conversationKeys, String text, int pageNum, int pageSize) {
+        int from = (Math.max(1, pageNum) - 1) * pageSize;
+        if (!enabled || conversationKeys.isEmpty() || text == null || text.trim().isEmpty() || from >= maxResults) {
+            return new TableDataInfo<>(Collections.emptyList(), 0);
+        }
+        SimpleQueryParser parser = new SimpleQueryParser(analyzer, "content");
+        parser.setDefaultOperator(BooleanClause.Occur.MUST);
+        List<BytesRef> keys = new ArrayList<>(conversationKeys.size());
+        for (String key : conversationKeys) {
+            keys.add(new BytesRef(key));
+        }
+        Query query = new BooleanQuery.Builder()
+                .add(parser.parse(text), BooleanClause.Occur.MUST)
+                .add(new TermInSetQuery("conversationKey", keys), BooleanClause.Occur.FILTER)
+                .build();
+
+        long start = System.nanoTime();
+        IndexSearcher searcher = null;
+        try {
+            searcher = searcherManager.acquire();
+            TopFieldDocs top = searcher.search(query, Math.min(from + pageSize, maxResults), NEWEST_FIRST);
+            long total = top.totalHits.relation == TotalHits.Relation.EQUAL_TO ? top.totalHits.value : searcher.count(query);
+            List<ChatMessage> page = new ArrayList<>(pageSize);
+            for (int i = from; i < top.scoreDocs.length; i++) {
+                ScoreDoc hit = top.scoreDocs[i];
+                page.add(toMessage(searcher.doc(hit.doc)));
+            }
+            return new TableDataInfo<>(page, total);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to search messages", e);
+        } finally {
+            if (searcher != null) {
+                try {
+                    searcherManager.release(searcher);
+                } catch (IOException e) {
+                    log.warn("Failed to release the searcher: {}", e.getMessage());
+                }
+            }
+            queryTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Opens the index and registers the metrics.
+     */
+    void open() throws IOException {
+        Path path = Paths.get(indexDir);
+        Files.createDirectories(path);
+        directory = FSDirectory.open(path);
+        writer = new IndexWriter(directory, new IndexWriterConfig(analyzer)
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+        searcherManager = new SearcherManager(writer, null);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        watermark = Long.MIN_VALUE;
+        Iterable<Map.Entry<String, String>> commitData = writer.getLiveCommitData();
+        if (commitData != null) {
+            for (Map.Entry<String, String> entry : commitData) {
+                if (WATERMARK.equals(entry.getKey())) {
+                    watermark = Long.parseLong(entry.getValue());
+                }
+            }
+        }
+        // An empty index is built from the whole history
+        requestCatchUp(watermark == Long.MIN_VALUE ? Long.MIN_VALUE : watermark - catchUpLagMs);
+
+        indexedCounter = meterRegistry.counter("im.search.indexed");
+        droppedCounter = meterRegistry.counter("im.search.dropped");
+        failedCounter = meterRegistry.counter("im.search.failed");
+        queryTimer = Timer.builder("im.search.query.latency")
+                .description("Time taken to run one message search")
+                .register(meterRegistry);
+        Gauge.builder("im.search.queue.depth", queue, BlockingQueue::size)
+                .description("Stored messages waiting to be indexed")
+                .register(meterRegistry);
+        Gauge.builder("im.search.docs", writer, indexWriter -> indexWriter.getDocStats().numDocs)
+                .description("Messages in the search index")
+                .register(meterRegistry);
+        Gauge.builder("im.search.lag", this, index -> index.watermark == Long.MIN_VALUE
+                        ? Double.NaN : System.currentTimeMillis() - index.watermark)
+                .description("Age of the newest message known to be indexed")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Commits the index and releases it.
+     */
+    void close() {
+        try {
+            commit();
+            searcherManager.close();
+            writer.close();
+            directory.close();
+        } catch (IOException e) {
+            log.error("Failed to close the search index: {}", e.getMessage());
+        }
+    }
+
+    private void runIndexer() {
+        List<ChatMessage> batch = new ArrayList<>(BATCH_SIZE);
+        long nextCommit = System.currentTimeMillis() + commitIntervalMs;
+        long nextCatchUp = 0;
+        long nextPoll = System.currentTimeMillis() + pollIntervalMs;
+        while (running) {
+            try {
+                ChatMessage first = queue.poll(refreshIntervalMs, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    index(batch);
+                    batch.clear();
+                }
+                long now = System.currentTimeMillis();
+                if (clustered && caughtUp && now >= nextPoll) {
+                    tail();
+                    nextPoll = now + pollIntervalMs;
+                }
+                if (now >= nextCatchUp && catchUpAfter.get() != NONE) {
+                    long after = catchUpAfter.getAndSet(NONE);
+                    try {
+                        catchUp(after);
+                    } catch (Exception e) {
+                        // Retried with the next commit rather than on every refresh
+                        requestCatchUp(after);
+                        nextCatchUp = now + commitIntervalMs;
+                        failedCounter.increment();
+                        log.error("Search index catch-up failed: {}", e.getMessage());
+                    }
+                }
+                refresh();
+                if (now >= nextCommit) {
+                    commit();
+                    nextCommit = now + commitIntervalMs;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                batch.clear();
+                failedCounter.increment();
+                log.error("Search indexer failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Indexes messages handed over by the write path.
+     *
+     * @param messages The messages.
+     */
+    void index(List<ChatMessage> messages) throws IOException {
+        long newest = Long.MIN_VALUE;
+        for (ChatMessage chatMessage : messages) {
+            if (add(chatMessage)) {
+                newest = Math.max(newest, chatMessage.getTimestamp());
+            }
+        }
+        // Until the catch-up is done older messages may still be missing, and in cluster mode
+        // the messages of other nodes only arrive through the catch-up
+        if (caughtUp && !clustered && newest > watermark) {
+            watermark = newest;
+        }
+    }
+
+    /**
+     * Indexes every stored message newer than a point in time, oldest bucket first. The
+     * watermark moves past each month once it has been read completely.
+     *
+     * @param after Exclusive lower bound on the timestamp, or {@link Long#MIN_VALUE} for all.
+     */
+    void catchUp(long after) throws IOException {
+        Long bound = after == Long.MIN_VALUE ? null : after;
+        // Anything stored later than this was either read or is still on its way to the queue
+        long complete = System.currentTimeMillis() - catchUpLagMs;
+        List<ChatMessage> batch = new ArrayList<>(BATCH_SIZE);
+        for (MessageBucketRouter.Bucket bucket : bucketRouter.buckets(null, bound, true)) {
+            if (bucket.isArchived()) {
+                try {
+                    segmentStore.scan(bucket.getMonth(), bound, chatMessage -> addToBatch(batch, chatMessage));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            } else {
+                readCollection(storedAfter(bound), bucket.getCollection(), batch);
+            }
+            index(batch);
+            batch.clear();
+            if (bucket.getMonth() != null) {
+                long monthEnd = bucket.getMonth().plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli() - 1;
+                watermark = Math.max(watermark, Math.min(monthEnd, complete));
+            }
+        }
+        watermark = Math.max(watermark, complete);
+        if (!caughtUp) {
+            caughtUp = true;
+            log.info("Search index caught up to {}", Instant.ofEpochMilli(watermark));
+        }
+    }
+
+    /**
+     * Indexes the messages other nodes stored since the last read from MongoDB. Only the
+     * collections of the months the new messages may belong to are read, each from the
+     * catch-up lag before the highest ID read so far. Messages read twice replace their
+     * earlier copy.
+     */
+    void tail() throws IOException {
+        if (tailAfter == null) {
+            // Nothing has been read from MongoDB yet, start where the catch-up would
+            tailAfter = new ObjectId(new Date(Math.max(0, watermark)));
+        }
+        // A message queued earlier on another node may have been stored after newer ones
+        long since = Math.max(0, tailAfter.getDate().getTime() - catchUpLagMs);
+        org.springframework.data.mongodb.core.query.Query query = storedAfter(since);
+        List<ChatMessage> batch = new ArrayList<>(BATCH_SIZE);
+        for (MessageBucketRouter.Bucket bucket : bucketRouter.buckets(null, since, true)) {
+            if (bucket.getMonth() != null && !bucket.isArchived()) {
+                readCollection(query, bucket.getCollection(), batch);
+            }
+        }
+        index(batch);
+        watermark = Math.max(watermark, System.currentTimeMillis() - catchUpLagMs);
+    }
+
+    /**
+     * Streams the messages of a collection into the batch and remembers the highest ID read.
+     */
+    private void readCollection(org.springframework.data.mongodb.core.query.Query query, String collection,
+                                List<ChatMessage> batch) {
+        try (CloseableIterator<ChatMessage> stored = mongoTemplate.stream(query, ChatMessage.class, collection)) {
+            while (stored.hasNext()) {
+                ChatMessage chatMessage = stored.next();
+                if (chatMessage.getId() != null && ObjectId.isValid(chatMessage.getId())) {
+                    ObjectId id = new ObjectId(chatMessage.getId());
+                    if (tailAfter == null || id.compareTo(tailAfter) > 0) {
+                        tailAfter = id;
+                    }
+                }
+                addToBatch(batch, chatMessage);
+            }
+        }
+    }
+
+    private void addToBatch(List<ChatMessage> batch, ChatMessage chatMessage) {
+        batch.add(chatMessage);
+        if (batch.size() == BATCH_SIZE) {
+            try {
+                index(batch);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Builds the MongoDB query for the messages newer than a point in time. It is served by
+     * the _id index, since IDs are assigned when a message is queued.
+     *
+     * @param bound Exclusive lower bound on the timestamp, or null.
+     * @return The query.
+     */
+    private static org.springframework.data.mongodb.core.query.Query storedAfter(Long bound) {
+        org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+        if (bound != null) {
+            query.addCriteria(Criteria.where("_id").gte(new ObjectId(new Date(bound))));
+        }
+        return query;
+    }
+
+    /**
+     * Adds a message to the index, replacing an earlier copy.
+     *
+     * @param chatMessage The message.
+     * @return false if the message cannot be searched and was skipped.
+     */
+    private boolean add(ChatMessage chatMessage) throws IOException {
+        String key = conversationKey(chatMessage);
+        if (chatMessage.getId() == null || key == null || chatMessage.getTimestamp() == null || chatMessage.getContent() == null) {
+            return false;
+        }
+        Document document = new Document();
+        document.add(new StringField("id", chatMessage.getId(), Field.Store.YES));
+        document.add(new StringField("conversationKey", key, Field.Store.YES));
+        document.add(new TextField("content", chatMessage.getContent(), Field.Store.YES));
+        document.add(new NumericDocValuesField("timestamp", chatMessage.getTimestamp()));
+        document.add(new StoredField("timestamp", chatMessage.getTimestamp()));
+        if (chatMessage.getType() != null) {
+            document.add(new StoredField("type", chatMessage.getType()));
+        }
+        storeLong(document, "senderId", chatMessage.getSenderId());
+        storeLong(document, "receiverId", chatMessage.getReceiverId());
+        storeLong(document, "teamId", chatMessage.getTeamId());
+        writer.updateDocument(new Term("id", chatMessage.getId()), document);
+        indexedCounter.increment();
+        return true;
+    }
+
+    /**
+     * Makes the messages indexed so far visible to searches.
+     */
+    void refresh() throws IOException {
+        searcherManager.maybeRefreshBlocking();
+    }
+
+    /**
+     * Commits the index together with the watermark, held back to the oldest message that
+     * still has to be read by a catch-up.
+     */
+    private void commit() throws IOException {
+        long committed = Math.min(watermark, catchUpAfter.get());
+        writer.setLiveCommitData(Collections.singletonMap(WATERMARK, String.valueOf(committed)).entrySet());
+        writer.commit();
+    }
+
+    private void requestCatchUp(long after) {
+        catchUpAfter.accumulateAndGet(after, Math::min);
+    }
+
+    /**
+     * Returns the timestamp up to which every message is indexed.
+     *
+     * @return The watermark, or {@link Long#MIN_VALUE} before the first catch-up.
+     */
+    long watermark() {
+        return watermark;
+    }
+
+    private static void storeLong(Document document, String field, Long value) {
+        if (value != null) {
+            document.add(new StoredField(field, value));
+        }
+    }
+
+    private static Long storedLong(Document document, String field) {
+        IndexableField indexed = document.getField(field);
+        return indexed == null ? null : indexed.numericValue().longValue();
+    }
+
+    private static ChatMessage toMessage(Document document) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(document.get("id"));
+        chatMessage.setType(document.get("type"));
+        chatMessage.setSenderId(storedLong(document, "senderId"));
+        chatMessage.setReceiverId(storedLong(document, "receiverId"));
+        chatMessage.setTeamId(storedLong(document, "teamId"));
+        chatMessage.setContent(document.get("content"));
+        chatMessage.setTimestamp(storedLong(document, "timestamp"));
+        chatMessage.setConversationKey(document.get("conversationKey"));
+        return chatMessage;
+    }
+
+    private static String conversationKey(ChatMessage chatMessage) {
+        if (chatMessage.getConversationKey() != null) {
+            return chatMessage.getConversationKey();
+        }
+        if (chatMessage.getTeamId() != null) {
+            return ChatMessage.teamConversationKey(chatMessage.getTeamId());
+        }
+        if (chatMessage.getSenderId() != null && chatMessage.getReceiverId() != null) {
+            return ChatMessage.directConversationKey(chatMessage.getSenderId(), chatMessage.getReceiverId());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,303 @@
+package com.scoder.im.service;
+
+import com.alibaba.fastjson.JSON;
+import com.scoder.im.cluster.OfflineStore;
+import com.scoder.im.handler.MessageFanout;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OfflineInboxService keeps the messages a user missed while offline.
+ * <p>
+ * Every user has a monotonic inbox sequence ({@code im:inbox:seq:{userId}}) and a sorted set
+ * ({@code im:inbox:{userId}}) whose scores are those sequence numbers. A message that cannot
+ * be delivered is appended with the next sequence number; the set is capped and expires
+ * when it is not written to. On LOGIN the client sends the last sequence it has seen, the
+ * acknowledged entries are removed and only the newer ones are streamed back in batches.
+ * <p>
+ * A connection that falls behind is treated like an offline one: while it is throttled its
+ * messages are appended to the inbox, and the entries after the last sequence the channel has
+ * seen are streamed to it once it has drained its backlog.
+ * <p>
+ * All Redis access runs on a dedicated thread so that the Netty event loops never wait on it.
+ * When that thread's queue is full, the work is dropped and counted in {@code im.inbox.rejected}
+ * rather than run by the caller, which may be an event loop. A dropped replay is repeated on the
+ * client's next LOGIN, since nothing was acknowledged.
+ *
+ * @author Shawn Cui
+ */
+@Service
+public class OfflineInboxService implements OfflineStore {
+
+    private static final Logger log = LoggerFactory.getLogger(OfflineInboxService.class);
+
+    private static final String SEQ_KEY_PREFIX = "im:inbox:seq:";
+    private static final String INBOX_KEY_PREFIX = "im:inbox:";
+
+    /**
+     * The last inbox sequence number sent to, or known to, a channel.
+     */
+    private static final AttributeKey<Long> SEEN_SEQ = AttributeKey.valueOf("inboxSeenSeq");
+
+    /**
+     * Allocates the next sequence number, adds the entry and trims the inbox to its maximum size.
+     * The member is prefixed with its sequence number so that identical payloads stay distinct.
+     */
+    private static final byte[] APPEND_SCRIPT = ("local seq = redis.call('INCR', KEYS[1]) "
+            + "redis.call('ZADD', KEYS[2], seq, seq .. ':' .. ARGV[1]) "
+            + "redis.call('ZREMRANGEBYRANK', KEYS[2], 0, -tonumber(ARGV[2]) - 1) "
+            + "redis.call('PEXPIRE', KEYS[2], ARGV[3]) "
+            + "return seq").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Maximum number of entries kept per user; older entries are dropped first.
+     */
+    @Value("${im.inbox.max-size:1000}")
+    private int maxSize;
+
+    /**
+     * How long an inbox is kept after its last write.
+     */
+    @Value("${im.inbox.ttl-days:14}")
+    private long ttlDays;
+
+    /**
+     * Number of messages sent in one replay frame.
+     */
+    @Value("${im.inbox.replay-batch-size:100}")
+    private int replayBatchSize;
+
+    /**
+     * Maximum number of inbox operations waiting for the inbox thread.
+     */
+    @Value("${im.inbox.queue-capacity:50000}")
+    private int queueCapacity;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private MessageFanout messageFanout;
+
+    private ThreadPoolExecutor executor;
+    private Counter storedCounter;
+    private Counter replayedCounter;
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    public void init() {
+        // Callers include the event loops, so a full queue rejects instead of running the task in place
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "im-offline-inbox");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        Gauge.builder("im.inbox.queue.depth", executor, pool -> pool.getQueue().size())
+                .description("Inbox operations waiting for the inbox thread")
+                .register(meterRegistry);
+        storedCounter = meterRegistry.counter("im.inbox.stored");
+        replayedCounter = meterRegistry.counter("im.inbox.replayed");
+        rejectedCounter = meterRegistry.counter("im.inbox.rejected");
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Appends the payload to the inbox of every given user. Transient payloads, such as
+     * presence and typing updates, are dropped: they are stale by the time they would be replayed.
+     *
+     * @param payload The frame fields.
+     * @param userIds The users that were offline.
+     */
+    @Override
+    public void store(Map<String, String> payload, Collection<Long> userIds) {
+        if (userIds.isEmpty() || MessageFanout.TRANSIENT_TYPES.contains(payload.get("type"))) {
+            return;
+        }
+        List<Long> recipients = new ArrayList<>(userIds);
+        if (!submit(() -> append(payload, recipients))) {
+            log.warn("Inbox queue is full, dropped an offline message for {} users", recipients.size());
+        }
+    }
+
+    /**
+     * Removes the entries the client has already seen and sends the rest to the channel.
+     *
+     * @param channel The client's channel.
+     * @param userId  The user who logged in.
+     * @param lastSeq The last inbox sequence number the client has received.
+     */
+    public void replay(Channel channel, Long userId, long lastSeq) {
+        channel.attr(SEEN_SEQ).set(lastSeq);
+        boolean submitted = submit(() -> {
+            try {
+                stream(channel, userId, lastSeq, true);
+            } catch (Exception e) {
+                log.error("Failed to replay offline messages for user {}: {}", userId, e.getMessage());
+            }
+        });
+        if (!submitted) {
+            log.warn("Inbox queue is full, skipped the replay for user {}", userId);
+        }
+    }
+
+    /**
+     * Records the user's current inbox sequence on a channel that is about to stop receiving
+     * live messages, unless the channel already knows its position. Runs on the inbox thread,
+     * ahead of every message stored after this call.
+     *
+     * @param channel The client's channel.
+     * @param userId  The user bound to the channel.
+     */
+    public void checkpoint(Channel channel, Long userId) {
+        if (channel.attr(SEEN_SEQ).get() != null) {
+            return;
+        }
+        submit(() -> {
+            try {
+                String seq = redisTemplate.opsForValue().get(seqKey(userId));
+                channel.attr(SEEN_SEQ).setIfAbsent(seq == null ? 0L : Long.parseLong(seq));
+            } catch (Exception e) {
+                log.error("Failed to read the inbox sequence of user {}: {}", userId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Sends the entries stored after the channel's last seen sequence, without removing
+     * anything: the client has not acknowledged them yet.
+     *
+     * @param channel The client's channel.
+     * @param userId  The user bound to the channel.
+     */
+    public void resume(Channel channel, Long userId) {
+        submit(() -> {
+            Long seenSeq = channel.attr(SEEN_SEQ).get();
+            if (seenSeq == null) {
+                return;
+            }
+            try {
+                stream(channel, userId, seenSeq, false);
+            } catch (Exception e) {
+                log.error("Failed to resume offline messages for user {}: {}", userId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Queues a task for the inbox thread.
+     *
+     * @param task The task.
+     * @return false if the queue is full or the service is stopped and the task was dropped.
+     */
+    private boolean submit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            return false;
+        }
+    }
+
+    private void append(Map<String, String> payload, List<Long> userIds) {
+        byte[] body = bytes(JSON.toJSONString(payload));
+        byte[] max = bytes(Integer.toString(maxSize));
+        byte[] ttl = bytes(Long.toString(TimeUnit.DAYS.toMillis(ttlDays)));
+        try {
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long userId : userIds) {
+                    connection.scriptingCommands().eval(APPEND_SCRIPT, ReturnType.INTEGER, 2,
+                            bytes(seqKey(userId)), bytes(inboxKey(userId)), body, max, ttl);
+                }
+                return null;
+            });
+            storedCounter.increment(userIds.size());
+        } catch (Exception e) {
+            log.error("Failed to store offline message for {} users: {}", userIds.size(), e.getMessage());
+        }
+    }
+
+    private void stream(Channel channel, Long userId, long lastSeq, boolean acknowledged) {
+        String key = inboxKey(userId);
+        ZSetOperations<String, String> zSet = redisTemplate.opsForZSet();
+        if (acknowledged && lastSeq > 0) {
+            zSet.removeRangeByScore(key, 0, lastSeq);
+        }
+        long from = lastSeq + 1;
+        while (channel.isActive()) {
+            Set<ZSetOperations.TypedTuple<String>> entries =
+                    zSet.rangeByScoreWithScores(key, from, Double.POSITIVE_INFINITY, 0, replayBatchSize);
+            if (entries == null || entries.isEmpty()) {
+                return;
+            }
+            boolean more = entries.size() == replayBatchSize;
+            StringBuilder frame = new StringBuilder(256 * entries.size()).append("{\"type\":\"OFFLINE\",\"messages\":[");
+            long seq = from;
+            for (ZSetOperations.TypedTuple<String> entry : entries) {
+                String member = entry.getValue();
+                seq = entry.getScore().longValue();
+                frame.append("{\"seq\":").append(seq)
+                        .append(",\"message\":").append(member, member.indexOf(':') + 1, member.length())
+                        .append("},");
+            }
+            frame.setLength(frame.length() - 1);
+            frame.append("],\"lastSeq\":").append(seq).append(",\"more\":").append(more).append('}');
+            messageFanout.sendJson(channel, frame);
+            channel.attr(SEEN_SEQ).set(seq);
+            replayedCounter.increment(entries.size());
+            if (!more) {
+                return;
+            }
+            from = seq + 1;
+        }
+    }
+
+    private static String seqKey(Long userId) {
+        // Hash tags keep both keys of a user in the same slot on Redis Cluster
+        return SEQ_KEY_PREFIX + "{" + userId + "}";
+    }
+
+    private static String inboxKey(Long userId) {
+        return INBOX_KEY_PREFIX + "{" + userId + "}";
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
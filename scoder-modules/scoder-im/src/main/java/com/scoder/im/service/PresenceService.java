@@ -0,0 +1,254 @@
+package com.scoder.im.service;
+
+import com.scoder.im.cluster.MessageRouter;
+import com.scoder.im.cluster.PresenceStore;
+import com.scoder.im.domain.Conversation;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PresenceService tells team members when other members come online or go offline.
+ * <p>
+ * Presence changes are not broadcast as they happen. They are collected for a short window
+ * and only the latest state of each user is kept, so a user who reconnects within the window
+ * causes no broadcast at all. At the end of the window the changed users' teams are read with
+ * one indexed query on the conversation entries, and every affected team receives a single
+ * PRESENCE frame listing the members that came online and went offline:
+ * <pre>
+ * {"type":"PRESENCE","teamId":"3","online":"1,2","offline":"7"}
+ * </pre>
+ * When a whole team reconnects, each member thus receives one frame per window instead of one
+ * per reconnecting member. PRESENCE frames are transient: they are never stored and are the
+ * first frames dropped for a slow client.
+ * <p>
+ * A user is only reported offline when no other node holds a connection for them.
+ *
+ * @author Shawn Cui
+ */
+@Service
+public class PresenceService {
+
+    private static final Logger log = LoggerFactory.getLogger(PresenceService.class);
+
+    /**
+     * Whether presence changes are broadcast to team members.
+     */
+    @Value("${im.presence.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * How long presence changes are collected before they are broadcast.
+     */
+    @Value("${im.presence.window-ms:1000}")
+    private long windowMs;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private GroupMembershipCache groupMembershipCache;
+
+    @Autowired
+    private MessageRouter messageRouter;
+
+    @Autowired(required = false)
+    private PresenceStore presenceStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * The latest unpublished state of each user, true for online.
+     */
+    private final ConcurrentHashMap<Long, Boolean> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Users last announced as online by this node.
+     */
+    private final Set<Long> announced = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService executor;
+    private Counter changeCounter;
+    private Counter suppressedCounter;
+    private Counter broadcastCounter;
+
+    @PostConstruct
+    public void init() {
+        changeCounter = meterRegistry.counter("im.presence.changes");
+        suppressedCounter = meterRegistry.counter("im.presence.suppressed");
+        broadcastCounter = meterRegistry.counter("im.presence.broadcasts");
+        if (!enabled) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "im-presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flushSafely, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Records that a user has connected their first device to this node.
+     *
+     * @param userId The user ID.
+     */
+    public void online(Long userId) {
+        if (enabled) {
+            changeCounter.increment();
+            pending.put(userId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Records that a user has disconnected their last device from this node.
+     *
+     * @param userId The user ID.
+     */
+    public void offline(Long userId) {
+        if (enabled) {
+            changeCounter.increment();
+            pending.put(userId, Boolean.FALSE);
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Failed to broadcast presence changes: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Broadcasts the changes collected since the last flush.
+     *
+     * @return The number of PRESENCE payloads routed, one per affected team.
+     */
+    int flush() {
+        Map<Long, Boolean> changes = new HashMap<>();
+        for (Long userId : pending.keySet()) {
+            Boolean online = pending.remove(userId);
+            if (online == null) {
+                continue;
+            }
+            // A user who went offline and came back within the window has not changed
+            if (online == announced.contains(userId)) {
+                suppressedCounter.increment();
+                continue;
+            }
+            changes.put(userId, online);
+        }
+        dropUsersOnlineElsewhere(changes);
+        if (changes.isEmpty()) {
+            return 0;
+        }
+        for (Map.Entry<Long, Boolean> change : changes.entrySet()) {
+            if (change.getValue()) {
+                announced.add(change.getKey());
+            } else {
+                announced.remove(change.getKey());
+            }
+        }
+
+        Map<Long, List<Long>> usersByTeam = teamsOf(changes.keySet());
+        int broadcasts = 0;
+        for (Map.Entry<Long, List<Long>> team : usersByTeam.entrySet()) {
+            GroupMembershipCache.TeamMembers members = groupMembershipCache.getMembers(team.getKey());
+            if (members == null) {
+                continue;
+            }
+            StringJoiner online = new StringJoiner(",");
+            StringJoiner offline = new StringJoiner(",");
+            for (Long userId : team.getValue()) {
+                (changes.get(userId) ? online : offline).add(userId.toString());
+            }
+            Map<String, String> payload = new HashMap<>();
+            payload.put("type", "PRESENCE");
+            payload.put("teamId", team.getKey().toString());
+            payload.put("online", online.toString());
+            payload.put("offline", offline.toString());
+            messageRouter.route(payload, members.asList());
+            broadcasts++;
+        }
+        broadcastCounter.increment(broadcasts);
+        return broadcasts;
+    }
+
+    /**
+     * Removes offline changes of users who still have a connection on another node.
+     *
+     * @param changes The changes to publish.
+     */
+    private void dropUsersOnlineElsewhere(Map<Long, Boolean> changes) {
+        if (presenceStore == null || !messageRouter.isClustered()) {
+            return;
+        }
+        List<Long> offline = new ArrayList<>();
+        for (Map.Entry<Long, Boolean> change : changes.entrySet()) {
+            if (!change.getValue()) {
+                offline.add(change.getKey());
+            }
+        }
+        if (offline.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Long, Set<String>> owner : presenceStore.lookup(offline).entrySet()) {
+            // This node's own entry may not have been removed yet
+            for (String node : owner.getValue()) {
+                if (!node.equals(messageRouter.getNodeId())) {
+                    changes.remove(owner.getKey());
+                    announced.remove(owner.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the teams of the given users through their team conversation entries.
+     *
+     * @param userIds The users.
+     * @return The given users of each team, by team ID.
+     */
+    private Map<Long, List<Long>> teamsOf(Set<Long> userIds) {
+        Query query = new Query(Criteria.where("ownerId").in(userIds).and("type").is("GROUP"));
+        query.fields().include("ownerId").include("teamId");
+        Map<Long, List<Long>> usersByTeam = new TreeMap<>();
+        for (Conversation conversation : mongoTemplate.find(query, Conversation.class, "conversations")) {
+            if (conversation.getTeamId() != null) {
+                usersByTeam.computeIfAbsent(conversation.getTeamId(), key -> new ArrayList<>()).add(conversation.getOwnerId());
+            }
+        }
+        return usersByTeam;
+    }
+}
@@ -0,0 +1,401 @@
+package com.scoder.im.service;
+
+import com.scoder.im.domain.ChatMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RecentMessageCache keeps the latest messages of active conversations in memory, so that the
+ * history pages clients ask for most often are served without reading MongoDB.
+ * <p>
+ * Each conversation has a ring of its most recent messages. Rings are filled from the
+ * persistence write path: every batch the {@link MessagePersistService} stores is appended to
+ * the rings of its conversations, so a ring never holds a message that a MongoDB read would
+ * not return. A ring always holds an unbroken run of the newest messages; when a latest-page
+ * read finds too few of them, the page is loaded from MongoDB and merged into the ring.
+ * Older pages are served from the ring only when it holds the whole page, and otherwise
+ * fall through to MongoDB.
+ * <p>
+ * Memory is bounded by an estimate of the bytes held by all rings. When it is exceeded, the
+ * conversations that were least recently read or written are dropped first.
+ * <p>
+ * The cache only sees messages stored by this node, so it is bypassed in cluster mode
+ * ({@code im.cluster.enabled=true}), where other nodes store messages of the same conversations.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class RecentMessageCache implements MessagePersistListener {
+
+    /**
+     * Whether history reads are served from memory.
+     */
+    @Value("${im.history-cache.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * Number of recent messages kept per conversation.
+     */
+    @Value("${im.history-cache.messages-per-conversation:100}")
+    private int capacity;
+
+    /**
+     * Upper bound on the estimated memory held by all conversations, in bytes.
+     */
+    @Value("${im.history-cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    /**
+     * Whether other IM nodes store messages as well.
+     */
+    @Value("${im.cluster.enabled:false}")
+    private boolean clustered;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * The rings by conversation key, least recently used first. Guarded by itself.
+     */
+    private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private Counter hitCounter;
+    private Counter missCounter;
+    private Counter evictionCounter;
+
+    /**
+     * Registers the metrics.
+     */
+    @PostConstruct
+    public void init() {
+        hitCounter = meterRegistry.counter("im.history.cache.hit");
+        missCounter = meterRegistry.counter("im.history.cache.miss");
+        evictionCounter = meterRegistry.counter("im.history.cache.evictions");
+        Gauge.builder("im.history.cache.hit.ratio", this, RecentMessageCache::hitRatio)
+                .description("Share of history reads served from memory")
+                .register(meterRegistry);
+        Gauge.builder("im.history.cache.bytes", totalBytes, AtomicLong::get)
+                .description("Estimated memory held by cached messages")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("im.history.cache.conversations", this, RecentMessageCache::size)
+                .description("Conversations whose recent messages are cached in memory")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Reads one page of a conversation, from memory if possible. The cursor semantics are the
+     * same as those of the repository.
+     *
+     * @param conversationKey The conversation key.
+     * @param before          Only return messages older than this timestamp, or null.
+     * @param beforeId        The message ID that breaks ties at {@code before}, or null.
+     * @param after           Only return messages newer than this timestamp, or null.
+     * @param afterId         The message ID that breaks ties at {@code after}, or null.
+     * @param limit           The maximum number of messages to return.
+     * @param loader          Reads a page from MongoDB.
+     * @return The messages of the page in ascending timestamp order.
+     */
+    public List<ChatMessage> getPage(String conversationKey, Long before, String beforeId, Long after, String afterId,
+                                     int limit, PageLoader loader) {
+        if (!isActive()) {
+            return loader.load(before, beforeId, after, afterId, limit);
+        }
+        boolean latest = before == null && after == null;
+        Ring ring = latest ? ringFor(conversationKey) : find(conversationKey);
+        List<ChatMessage> page = ring != null ? ring.page(before, beforeId, after, afterId, limit) : null;
+        if (page != null) {
+            hitCounter.increment();
+            return page;
+        }
+        missCounter.increment();
+        if (!latest) {
+            return loader.load(before, beforeId, after, afterId, limit);
+        }
+
+        // The ring was registered before the read, so everything stored after the read is in it
+        int loadSize = Math.max(limit, capacity);
+        List<ChatMessage> loaded = loader.load(null, null, null, null, loadSize);
+        totalBytes.addAndGet(ring.seed(loaded, loaded.size() < loadSize));
+        evictIfNeeded();
+        return loaded.size() > limit ? new ArrayList<>(loaded.subList(loaded.size() - limit, loaded.size())) : loaded;
+    }
+
+    /**
+     * Appends stored messages to the rings of their conversations.
+     *
+     * @param messages The stored messages.
+     */
+    @Override
+    public void onPersisted(List<ChatMessage> messages) {
+        if (!isActive()) {
+            return;
+        }
+        for (ChatMessage chatMessage : messages) {
+            String key = conversationKey(chatMessage);
+            if (key != null && chatMessage.getTimestamp() != null) {
+                totalBytes.addAndGet(ringFor(key).append(chatMessage));
+            }
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Returns the number of conversations held in memory.
+     *
+     * @return The number of rings.
+     */
+    public int size() {
+        synchronized (rings) {
+            return rings.size();
+        }
+    }
+
+    /**
+     * Returns the estimated memory held by cached messages.
+     *
+     * @return The estimate in bytes.
+     */
+    public long bytes() {
+        return totalBytes.get();
+    }
+
+    private boolean isActive() {
+        return enabled && !clustered;
+    }
+
+    private double hitRatio() {
+        double hits = hitCounter.count();
+        double total = hits + missCounter.count();
+        return total > 0 ? hits / total : 0;
+    }
+
+    private Ring find(String conversationKey) {
+        synchronized (rings) {
+            return rings.get(conversationKey);
+        }
+    }
+
+    private Ring ringFor(String conversationKey) {
+        synchronized (rings) {
+            return rings.computeIfAbsent(conversationKey, key -> new Ring(capacity));
+        }
+    }
+
+    /**
+     * Drops the least recently used conversations until the memory estimate fits the budget.
+     * The most recently used conversation is always kept.
+     */
+    private void evictIfNeeded() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        synchronized (rings) {
+            Iterator<Ring> iterator = rings.values().iterator();
+            while (totalBytes.get() > maxBytes && rings.size() > 1 && iterator.hasNext()) {
+                Ring ring = iterator.next();
+                iterator.remove();
+                totalBytes.addAndGet(-ring.evict());
+                evictionCounter.increment();
+            }
+        }
+    }
+
+    private static String conversationKey(ChatMessage chatMessage) {
+        if (chatMessage.getConversationKey() != null) {
+            return chatMessage.getConversationKey();
+        }
+        if (chatMessage.getTeamId() != null) {
+            return ChatMessage.teamConversationKey(chatMessage.getTeamId());
+        }
+        if (chatMessage.getSenderId() != null && chatMessage.getReceiverId() != null) {
+            return ChatMessage.directConversationKey(chatMessage.getSenderId(), chatMessage.getReceiverId());
+        }
+        return null;
+    }
+
+    /**
+     * Estimates the heap held by a message: the object with its boxed fields, plus its strings.
+     *
+     * @param chatMessage The message.
+     * @return The estimate in bytes.
+     */
+    static long estimateSize(ChatMessage chatMessage) {
+        return 96 + sizeOf(chatMessage.getId()) + sizeOf(chatMessage.getType()) + sizeOf(chatMessage.getContent())
+                + sizeOf(chatMessage.getConversationKey()) + sizeOf(chatMessage.getClientMsgId());
+    }
+
+    private static long sizeOf(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
+    /**
+     * Reads a page of a conversation from MongoDB.
+     */
+    @FunctionalInterface
+    public interface PageLoader {
+
+        /**
+         * Reads one page of the conversation.
+         *
+         * @param before   Exclusive upper bound on the timestamp, or null.
+         * @param beforeId The message ID that breaks ties at {@code before}, or null.
+         * @param after    Exclusive lower bound on the timestamp, or null.
+         * @param afterId  The message ID that breaks ties at {@code after}, or null.
+         * @param limit    The maximum number of messages to return.
+         * @return The messages of the page in ascending timestamp order.
+         */
+        List<ChatMessage> load(Long before, String beforeId, Long after, String afterId, int limit);
+    }
+
+    /**
+     * The newest messages of one conversation in {@link ChatMessage#HISTORY_ORDER}. Guarded by itself.
+     */
+    private static final class Ring {
+
+        private final ChatMessage[] slots;
+        private int head;
+        private int count;
+        private long bytes;
+
+        /**
+         * Whether the ring holds every message of the conversation.
+         */
+        private boolean complete;
+
+        /**
+         * Set once the ring is dropped from the cache; it is not counted or filled after that.
+         */
+        private boolean evicted;
+
+        private Ring(int capacity) {
+            this.slots = new ChatMessage[capacity];
+        }
+
+        private synchronized List<ChatMessage> page(Long before, String beforeId, Long after, String afterId, int limit) {
+            if (evicted) {
+                return null;
+            }
+            if (after != null) {
+                // Messages that left the ring are no newer than its oldest message
+                if (!complete && (count == 0 || ChatMessage.compareToCursor(get(0), after, afterId) > 0)) {
+                    return null;
+                }
+                List<ChatMessage> page = new ArrayList<>(Math.min(limit, count));
+                for (int i = 0; i < count && page.size() < limit; i++) {
+                    ChatMessage chatMessage = get(i);
+                    if (ChatMessage.isWithin(chatMessage, before, beforeId, after, afterId)) {
+                        page.add(chatMessage);
+                    }
+                }
+                return page;
+            }
+            int end = count;
+            while (before != null && end > 0 && ChatMessage.compareToCursor(get(end - 1), before, beforeId) >= 0) {
+                end--;
+            }
+            if (end < limit && !complete) {
+                return null;
+            }
+            int start = Math.max(0, end - limit);
+            List<ChatMessage> page = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                page.add(get(i));
+            }
+            return page;
+        }
+
+        /**
+         * Appends a stored message, unless the ring already has it.
+         *
+         * @return The change in the memory estimate.
+         */
+        private synchronized long append(ChatMessage chatMessage) {
+            if (evicted) {
+                return 0;
+            }
+            // A message merged from a MongoDB read may be appended again by the write path
+            for (int i = count - 1; i >= 0 && get(i).getTimestamp() >= chatMessage.getTimestamp(); i--) {
+                if (get(i).getId().equals(chatMessage.getId())) {
+                    return 0;
+                }
+            }
+            long delta = estimateSize(chatMessage);
+            if (count == slots.length) {
+                delta -= estimateSize(slots[head]);
+                slots[head] = chatMessage;
+                head = (head + 1) % slots.length;
+                complete = false;
+            } else {
+                slots[(head + count) % slots.length] = chatMessage;
+                count++;
+            }
+            bytes += delta;
+            return delta;
+        }
+
+        /**
+         * Merges the latest messages read from MongoDB with those appended since.
+         *
+         * @param loaded   The latest messages of the conversation, oldest first.
+         * @param complete Whether these are all messages of the conversation.
+         * @return The change in the memory estimate.
+         */
+        private synchronized long seed(List<ChatMessage> loaded, boolean complete) {
+            if (evicted) {
+                return 0;
+            }
+            Map<String, ChatMessage> merged = new LinkedHashMap<>();
+            for (ChatMessage chatMessage : loaded) {
+                merged.put(chatMessage.getId(), chatMessage);
+            }
+            for (int i = 0; i < count; i++) {
+                merged.putIfAbsent(get(i).getId(), get(i));
+            }
+            List<ChatMessage> messages = new ArrayList<>(merged.values());
+            messages.sort(ChatMessage.HISTORY_ORDER);
+            int start = Math.max(0, messages.size() - slots.length);
+
+            long previous = bytes;
+            Arrays.fill(slots, null);
+            head = 0;
+            count = 0;
+            bytes = 0;
+            for (int i = start; i < messages.size(); i++) {
+                slots[count++] = messages.get(i);
+                bytes += estimateSize(messages.get(i));
+            }
+            this.complete = complete && start == 0;
+            return bytes - previous;
+        }
+
+        /**
+         * Marks the ring as dropped.
+         *
+         * @return The memory estimate it held.
+         */
+        private synchronized long evict() {
+            evicted = true;
+            return bytes;
+        }
+
+        private ChatMessage get(int index) {
+            return slots[(head + index) % slots.length];
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.scoder.im.service;
+
+import com.scoder.common.core.constant.CacheConstants;
+import com.scoder.common.core.web.domain.AjaxResult;
+import com.scoder.user.api.RemoteUserService;
+import com.scoder.user.api.domain.SysUser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UserProfileCache keeps the nicknames and avatars of recently shown users in memory, so that
+ * chat lists can be filled in without a request to the user service per entry.
+ * <p>
+ * Missing profiles are fetched together with bulk requests of at most {@value #MAX_BATCH_SIZE}
+ * IDs, the most the user service accepts in one request. The user service publishes
+ * the ID of every user whose profile changes on {@link CacheConstants#USER_PROFILE_CHANNEL},
+ * and the cached copy is dropped when it arrives. Entries also expire after a fixed time as a
+ * safety net against a lost message.
+ *
+ * @author Shawn Cui
+ */
+@Component
+public class UserProfileCache {
+
+    private static final Logger log = LoggerFactory.getLogger(UserProfileCache.class);
+
+    /**
+     * Maximum number of IDs sent in one bulk request, the limit of the user service.
+     */
+    static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * Maximum number of profiles kept in memory.
+     */
+    @Value("${im.user-cache.max-size:10000}")
+    private int maxSize;
+
+    /**
+     * How long a profile is used before it is fetched again.
+     */
+    @Value("${im.user-cache.ttl-ms:300000}")
+    private long ttlMs;
+
+    @Autowired
+    private RemoteUserService remoteUserService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired(required = false)
+    private RedisMessageListenerContainer listenerContainer;
+
+    private final ConcurrentHashMap<Long, Profile> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every invalidation, so that a fetch racing with an invalidation is not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private Counter hitCounter;
+    private Counter missCounter;
+    private Counter failureCounter;
+
+    /**
+     * Registers the metrics and subscribes to profile changes.
+     */
+    @PostConstruct
+    public void init() {
+        hitCounter = meterRegistry.counter("im.user.cache.hit");
+        missCounter = meterRegistry.counter("im.user.cache.miss");
+        failureCounter = meterRegistry.counter("im.user.cache.fetch.failed");
+        Gauge.builder("im.user.cache.size", cache, ConcurrentHashMap::size)
+                .description("User profiles cached in memory")
+                .register(meterRegistry);
+
+        if (listenerContainer != null) {
+            listenerContainer.addMessageListener((message, pattern) -> {
+                try {
+                    evict(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring malformed profile change");
+                }
+            }, new ChannelTopic(CacheConstants.USER_PROFILE_CHANNEL));
+        }
+    }
+
+    /**
+     * Returns the profiles of the given users. Profiles that are not cached are fetched with
+     * as few requests as the batch limit allows; the profiles of a request that fails are left out.
+     *
+     * @param userIds The user IDs.
+     * @return The profiles found, by user ID.
+     */
+    public Map<Long, SysUser> getProfiles(Collection<Long> userIds) {
+        Map<Long, SysUser> profiles = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Long userId : new LinkedHashSet<>(userIds)) {
+            Profile profile = cache.get(userId);
+            if (profile != null && now - profile.loadedAt < ttlMs) {
+                profiles.put(userId, profile.user);
+            } else {
+                missing.add(userId);
+            }
+        }
+        hitCounter.increment(profiles.size());
+        if (missing.isEmpty()) {
+            return profiles;
+        }
+        missCounter.increment(missing.size());
+
+        long fetchGeneration = generation.get();
+        List<SysUser> fetched = fetch(missing);
+        for (SysUser user : fetched) {
+            if (user.getUserId() != null) {
+                profiles.put(user.getUserId(), user);
+            }
+        }
+        if (generation.get() == fetchGeneration) {
+            for (SysUser user : fetched) {
+                if (user.getUserId() != null) {
+                    if (cache.size() >= maxSize && !cache.containsKey(user.getUserId())) {
+                        evictOne();
+                    }
+                    cache.put(user.getUserId(), new Profile(user, now));
+                }
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Drops the cached profile of a user.
+     *
+     * @param userId The user ID.
+     */
+    public void evict(Long userId) {
+        generation.incrementAndGet();
+        cache.remove(userId);
+    }
+
+    private List<SysUser> fetch(List<Long> userIds) {
+        List<SysUser> users = new ArrayList<>(userIds.size());
+        for (int from = 0; from < userIds.size(); from += MAX_BATCH_SIZE) {
+            List<Long> batch = userIds.subList(from, Math.min(from + MAX_BATCH_SIZE, userIds.size()));
+            try {
+                AjaxResult<List<SysUser>> result = remoteUserService.getUsersByIds(batch);
+                if (result != null && result.getData() != null) {
+                    users.addAll(result.getData());
+                    continue;
+                }
+            } catch (Exception e) {
+                log.warn("Failed to fetch {} user profiles: {}", batch.size(), e.getMessage());
+            }
+            failureCounter.increment();
+        }
+        return users;
+    }
+
+    /**
+     * Removes an arbitrary entry to make room. Profiles are cheap to fetch again, so no
+     * recency is tracked.
+     */
+    private void evictOne() {
+        Iterator<Long> iterator = cache.keySet().iterator();
+        if (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A cached profile and the time it was fetched.
+     */
+    private static final class Profile {
+
+        private final SysUser user;
+        private final long loadedAt;
+
+        private Profile(SysUser user, long loadedAt) {
+            this.user = user;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
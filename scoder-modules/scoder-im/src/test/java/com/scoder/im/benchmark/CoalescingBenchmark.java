@@ -0,0 +1,190 @@
+package com.scoder.im.benchmark;
+
+import com.scoder.im.handler.OutboundCoalescing;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the delivery of message bursts to one client over a loopback socket, with and
+ * without outbound coalescing.
+ * <p>
+ * Each operation writes a burst of messages from a non-event-loop thread, as the business
+ * lanes do, and waits until the client has decoded all of them. The sample mode reports the
+ * latency distribution of a burst, including {@code p0.99}. At the end of each trial the
+ * number of flushes that reached the socket per delivered message is printed; every such
+ * flush is one {@code write}/{@code writev} system call for frames of this size.
+ * <p>
+ * Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.scoder.im.benchmark.CoalescingBenchmark}
+ *
+ * @author Shawn Cui
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoalescingBenchmark {
+
+    private static final String MESSAGE = "{\"type\":\"GROUP\",\"senderId\":\"1001\",\"teamId\":\"42\","
+            + "\"content\":\"Could someone review the pull request for the matching service?\",\"timestamp\":\"1700000000000\"}";
+
+    @Param({"false", "true"})
+    public boolean coalesce;
+
+    @Param({"1", "8", "32"})
+    public int burst;
+
+    private final AtomicLong socketWrites = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private volatile CountDownLatch pending;
+
+    private NioEventLoopGroup group;
+    private Channel serverChannel;
+    private Channel clientChannel;
+    private Channel connection;
+    private ByteBuf template;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        group = new NioEventLoopGroup(2);
+        OutboundCoalescing coalescing = new OutboundCoalescing();
+        ReflectionTestUtils.setField(coalescing, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(coalescing, "windowMs", 1L);
+        ReflectionTestUtils.setField(coalescing, "maxMessages", 32);
+        ReflectionTestUtils.setField(coalescing, "maxBytes", 16384);
+        coalescing.init();
+
+        CompletableFuture<Channel> accepted = new CompletableFuture<>();
+        serverChannel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new SocketWriteCounter());
+                        if (coalesce) {
+                            ch.pipeline().addLast(new FlushConsolidationHandler(
+                                    FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
+                        }
+                        ch.pipeline().addLast(new WebSocket13FrameEncoder(false));
+                        if (coalesce) {
+                            ch.pipeline().addLast(coalescing.newHandler());
+                        }
+                        accepted.complete(ch);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        clientChannel = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new WebSocket13FrameDecoder(false, false, 1 << 20));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<TextWebSocketFrame>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+                                String text = frame.text();
+                                for (int i = text.indexOf("\"senderId\""); i >= 0; i = text.indexOf("\"senderId\"", i + 1)) {
+                                    delivered.incrementAndGet();
+                                    pending.countDown();
+                                }
+                            }
+                        });
+                    }
+                })
+                .connect(serverChannel.localAddress()).sync().channel();
+        connection = accepted.get(5, TimeUnit.SECONDS);
+
+        byte[] bytes = MESSAGE.getBytes(StandardCharsets.UTF_8);
+        template = ByteBufAllocator.DEFAULT.directBuffer(bytes.length).writeBytes(bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        System.out.printf("%ncoalesce=%s burst=%d: %.3f socket writes per delivered message%n",
+                coalesce, burst, (double) socketWrites.get() / Math.max(1, delivered.get()));
+        clientChannel.close().sync();
+        serverChannel.close().sync();
+        group.shutdownGracefully().sync();
+        template.release();
+    }
+
+    @Benchmark
+    public void deliverBurst() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(burst);
+        pending = latch;
+        for (int i = 0; i < burst; i++) {
+            // Fan-out writes retained duplicates of one shared buffer
+            connection.writeAndFlush(new TextWebSocketFrame(template.retainedDuplicate()));
+        }
+        if (!latch.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Burst was not delivered");
+        }
+    }
+
+    /**
+     * Counts flushes that find written data, i.e. the socket writes of the channel.
+     */
+    private final class SocketWriteCounter extends ChannelOutboundHandlerAdapter {
+        private boolean dirty;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            dirty = true;
+            ctx.write(msg, promise);
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            if (dirty) {
+                dirty = false;
+                socketWrites.incrementAndGet();
+            }
+            ctx.flush();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CoalescingBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
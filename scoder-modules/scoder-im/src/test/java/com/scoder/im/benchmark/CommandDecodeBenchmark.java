@@ -0,0 +1,105 @@
+package com.scoder.im.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.protocol.BinaryCodec;
+import com.scoder.im.protocol.ChatCommand;
+import com.scoder.im.protocol.Command;
+import com.scoder.im.protocol.CommandParser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the decoding the handler used to do with the {@link CommandParser} stage.
+ * <p>
+ * The legacy variant creates an {@code ObjectMapper} per frame, reads the frame text into a
+ * {@code JsonNode} tree and converts the tree to a {@link ChatMessage}, as the handler did.
+ * The parser variants bind JSON straight from the frame buffer with a shared reader, or read
+ * the binary layout. Run with the GC profiler (enabled in {@link #main}) and compare
+ * {@code gc.alloc.rate.norm} for the allocation per frame.
+ * <p>
+ * Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.scoder.im.benchmark.CommandDecodeBenchmark}
+ *
+ * @author Shawn Cui
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandDecodeBenchmark {
+
+    private static final String CONTENT = "Could someone review the pull request for the matching service?";
+
+    private final CommandParser parser = new CommandParser(65536, 4000);
+
+    private ByteBuf jsonBytes;
+    private ByteBuf binaryBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String json = "{\"type\":\"DIRECT\",\"senderId\":\"1001\",\"receiverId\":\"2002\",\"content\":\"" + CONTENT + "\"}";
+        jsonBytes = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(json, StandardCharsets.UTF_8));
+
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "DIRECT");
+        payload.put("senderId", "1001");
+        payload.put("receiverId", "2002");
+        payload.put("timestamp", "0");
+        payload.put("content", CONTENT);
+        ByteBuf encoded = BinaryCodec.encode(ByteBufAllocator.DEFAULT, payload);
+        binaryBytes = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(encoded));
+        encoded.release();
+    }
+
+    @Benchmark
+    public ChatMessage legacyObjectMapperPerFrame() throws Exception {
+        TextWebSocketFrame frame = new TextWebSocketFrame(jsonBytes.duplicate());
+        ObjectMapper objectMapper = new ObjectMapper();
+        JsonNode jsonNode = objectMapper.readTree(frame.text());
+        if (!"DIRECT".equals(jsonNode.get("type").asText())) {
+            throw new IllegalStateException();
+        }
+        return objectMapper.treeToValue(jsonNode, ChatMessage.class);
+    }
+
+    @Benchmark
+    public Command parserJson() {
+        return parser.parse(new TextWebSocketFrame(jsonBytes.duplicate()));
+    }
+
+    @Benchmark
+    public Command parserBinary() {
+        return parser.parse(new BinaryWebSocketFrame(binaryBytes.duplicate()));
+    }
+
+    @Benchmark
+    public ChatMessage parserJsonToMessage() {
+        return ((ChatCommand) parser.parse(new TextWebSocketFrame(jsonBytes.duplicate()))).toChatMessage();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CommandDecodeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,244 @@
+package com.scoder.im.benchmark;
+
+import com.alibaba.fastjson.JSON;
+import com.scoder.im.config.NettyConfig;
+import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.handler.MessageFanout;
+import com.scoder.im.repository.MessageBucketRouter;
+import com.scoder.im.service.MessagePersistService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Compares the original per-member group delivery with {@link MessageFanout}.
+ * <p>
+ * The per-member variant rebuilds the payload map, serializes it and saves the message once
+ * for every member, as the handler used to. The shared variant saves once and writes one
+ * encoded buffer to every member. Both save through a real {@link MessagePersistService}
+ * over a MongoDB stand-in that counts what reaches it: {@code mongoDocuments} and
+ * {@code mongoBulkWrites} are the documents and bulk requests written per iteration, and
+ * {@code framesEncoded} the frames serialized. Run with the GC profiler (enabled in
+ * {@link #main}) to read the allocation per message from {@code gc.alloc.rate.norm}.
+ * <p>
+ * Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.scoder.im.benchmark.GroupFanoutBenchmark}
+ *
+ * @author Shawn Cui
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupFanoutBenchmark {
+
+    @Param({"10", "50", "200", "500"})
+    public int teamSize;
+
+    private final MessageFanout messageFanout = new MessageFanout();
+
+    private final List<Long> memberIds = new ArrayList<>();
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    private final LongAdder documentsInserted = new LongAdder();
+    private final LongAdder bulkWrites = new LongAdder();
+    private final LongAdder enqueued = new LongAdder();
+
+    private SimpleMeterRegistry meterRegistry;
+    private MessagePersistService messagePersistService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MongoTemplate mongoTemplate = mongoTemplate();
+        MessageBucketRouter bucketRouter = new MessageBucketRouter();
+        ReflectionTestUtils.setField(bucketRouter, "mongoTemplate", mongoTemplate);
+        meterRegistry = new SimpleMeterRegistry();
+        messagePersistService = new MessagePersistService();
+        ReflectionTestUtils.setField(messagePersistService, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(messagePersistService, "bucketRouter", bucketRouter);
+        ReflectionTestUtils.setField(messagePersistService, "meterRegistry", meterRegistry);
+        // Large enough that the per-member variant is never rejected
+        ReflectionTestUtils.setField(messagePersistService, "queueCapacity", 1_000_000);
+        ReflectionTestUtils.setField(messagePersistService, "batchSize", 500);
+        ReflectionTestUtils.setField(messagePersistService, "flushIntervalMs", 50L);
+        ReflectionTestUtils.setField(messagePersistService, "offerTimeoutMs", 20L);
+        messagePersistService.init();
+
+        for (long memberId = 1; memberId <= teamSize; memberId++) {
+            EmbeddedChannel channel = new EmbeddedChannel();
+            NettyConfig.getUserChannels().bind(memberId, channel);
+            memberIds.add(memberId);
+            channels.add(channel);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        messagePersistService.shutdown();
+        for (int i = 0; i < memberIds.size(); i++) {
+            NettyConfig.getUserChannels().unbind(memberIds.get(i), channels.get(i));
+        }
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        memberIds.clear();
+        channels.clear();
+    }
+
+    /**
+     * Write and encode counts accumulated during each measurement iteration. The MongoDB counts
+     * are taken once the iteration's messages have been flushed.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long mongoDocuments;
+        public long mongoBulkWrites;
+        public long framesEncoded;
+
+        private long documentsBefore;
+        private long bulkWritesBefore;
+
+        @Setup(Level.Iteration)
+        public void reset(GroupFanoutBenchmark benchmark) throws InterruptedException {
+            benchmark.awaitPersisted();
+            documentsBefore = benchmark.documentsInserted.sum();
+            bulkWritesBefore = benchmark.bulkWrites.sum();
+            mongoDocuments = 0;
+            mongoBulkWrites = 0;
+            framesEncoded = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void collect(GroupFanoutBenchmark benchmark) throws InterruptedException {
+            benchmark.awaitPersisted();
+            mongoDocuments = benchmark.documentsInserted.sum() - documentsBefore;
+            mongoBulkWrites = benchmark.bulkWrites.sum() - bulkWritesBefore;
+        }
+    }
+
+    @Benchmark
+    public void perMemberEncodeAndSave(Counters counters) {
+        for (Long memberId : memberIds) {
+            HashMap<String, String> map = payload();
+            for (Channel memberChannel : NettyConfig.getUserChannels().channels(memberId)) {
+                if (memberChannel.isActive()) {
+                    memberChannel.writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(map)));
+                    counters.framesEncoded++;
+                }
+            }
+            // chatRepository.save(chatMessage) ran once per member
+            save(map);
+        }
+        drain();
+    }
+
+    @Benchmark
+    public void sharedFrameFanout(Counters counters) {
+        HashMap<String, String> map = payload();
+        // The message is queued for persistence once for the whole group
+        save(map);
+        if (messageFanout.deliver(map, memberIds) > 0) {
+            counters.framesEncoded++;
+        }
+        drain();
+    }
+
+    private void save(HashMap<String, String> map) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setType(map.get("type"));
+        chatMessage.setSenderId(Long.valueOf(map.get("senderId")));
+        chatMessage.setTeamId(1L);
+        chatMessage.setContent(map.get("content"));
+        chatMessage.setTimestamp(Long.valueOf(map.get("timestamp")));
+        if (messagePersistService.enqueue(chatMessage)) {
+            enqueued.increment();
+        }
+    }
+
+    /**
+     * Waits until every queued message has been written to the MongoDB stand-in.
+     */
+    void awaitPersisted() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (meterRegistry.counter("im.persist.written").count() < enqueued.sum() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Creates the MongoDB stand-in. Bulk operations are fluent stubs that count inserted
+     * documents and executed requests; everything else returns Mockito's empty defaults.
+     * The stubs do not record invocations, so memory stays flat over a long run.
+     */
+    private MongoTemplate mongoTemplate() {
+        BulkOperations bulkOperations = mock(BulkOperations.class, withSettings().stubOnly().defaultAnswer(invocation -> {
+            String method = invocation.getMethod().getName();
+            if ("insert".equals(method)) {
+                Object documents = invocation.getArgument(0);
+                documentsInserted.add(documents instanceof List ? ((List<?>) documents).size() : 1);
+            } else if ("execute".equals(method)) {
+                bulkWrites.increment();
+            }
+            return invocation.getMethod().getReturnType() == BulkOperations.class
+                    ? invocation.getMock() : RETURNS_DEFAULTS.answer(invocation);
+        }));
+        IndexOperations indexOperations = mock(IndexOperations.class, withSettings().stubOnly());
+        return mock(MongoTemplate.class, withSettings().stubOnly().defaultAnswer(invocation -> {
+            Class<?> returnType = invocation.getMethod().getReturnType();
+            if (returnType == BulkOperations.class) {
+                return bulkOperations;
+            }
+            if (returnType == IndexOperations.class) {
+                return indexOperations;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        }));
+    }
+
+    private void drain() {
+        for (EmbeddedChannel channel : channels) {
+            channel.releaseOutbound();
+        }
+    }
+
+    private static HashMap<String, String> payload() {
+        HashMap<String, String> map = new HashMap<>();
+        map.put("senderId", "1");
+        map.put("content", "Could someone review the pull request for the matching service?");
+        map.put("timestamp", "1700000000000");
+        map.put("type", "GROUP");
+        return map;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(GroupFanoutBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
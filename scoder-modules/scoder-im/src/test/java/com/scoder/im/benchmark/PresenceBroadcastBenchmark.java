@@ -0,0 +1,195 @@
+package com.scoder.im.benchmark;
+
+import com.scoder.im.api.domain.Group;
+import com.scoder.im.cluster.MessageRouter;
+import com.scoder.im.config.NettyConfig;
+import com.scoder.im.domain.Conversation;
+import com.scoder.im.handler.MessageFanout;
+import com.scoder.im.repository.GroupRepository;
+import com.scoder.im.service.GroupMembershipCache;
+import com.scoder.im.service.PresenceService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Measures the presence frames sent to a 500-member team while its members reconnect in bulk.
+ * <p>
+ * One operation is a bulk reconnect of {@code reconnecting} members: they all disconnect
+ * during one presence window and come back during the next. The immediate variant broadcasts
+ * every change to the whole team as it happens, which is quadratic in the team size. The
+ * coalesced variant goes through the {@link PresenceService}, which sends the team one frame
+ * per window. The {@code framesWritten} counter is reported as broadcast frames per second.
+ * <p>
+ * Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.scoder.im.benchmark.PresenceBroadcastBenchmark}
+ *
+ * @author Shawn Cui
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PresenceBroadcastBenchmark {
+
+    private static final int TEAM_SIZE = 500;
+    private static final Long TEAM_ID = 1L;
+
+    @Param({"50", "500"})
+    public int reconnecting;
+
+    private final MessageFanout messageFanout = new MessageFanout();
+    private final List<Long> memberIds = new ArrayList<>();
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+    private MessageRouter messageRouter;
+    private PresenceService presenceService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        List<Conversation> entries = new ArrayList<>();
+        for (long memberId = 1; memberId <= TEAM_SIZE; memberId++) {
+            EmbeddedChannel channel = new EmbeddedChannel();
+            NettyConfig.getUserChannels().bind(memberId, channel);
+            memberIds.add(memberId);
+            channels.add(channel);
+            Conversation entry = new Conversation();
+            entry.setOwnerId(memberId);
+            entry.setTeamId(TEAM_ID);
+            entries.add(entry);
+        }
+
+        messageRouter = new MessageRouter();
+        ReflectionTestUtils.setField(messageRouter, "localDelivery", messageFanout);
+        ReflectionTestUtils.setField(messageRouter, "meterRegistry", meterRegistry);
+
+        Group group = new Group();
+        group.setTeamId(TEAM_ID);
+        group.setMemberIds(new ArrayList<>(memberIds));
+        GroupRepository groupRepository = mock(GroupRepository.class);
+        when(groupRepository.findByTeamId(TEAM_ID)).thenReturn(group);
+        GroupMembershipCache groupMembershipCache = new GroupMembershipCache();
+        ReflectionTestUtils.setField(groupMembershipCache, "groupRepository", groupRepository);
+        ReflectionTestUtils.setField(groupMembershipCache, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(groupMembershipCache, "maxSize", 100);
+        ReflectionTestUtils.setField(groupMembershipCache, "ttlMs", 3600000L);
+        groupMembershipCache.init();
+
+        // Every reconnecting member belongs to the team; the query result does not depend on who changed
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.find(any(Query.class), eq(Conversation.class), eq("conversations")))
+                .thenReturn(entries.subList(0, reconnecting));
+
+        presenceService = new PresenceService();
+        ReflectionTestUtils.setField(presenceService, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(presenceService, "groupMembershipCache", groupMembershipCache);
+        ReflectionTestUtils.setField(presenceService, "messageRouter", messageRouter);
+        ReflectionTestUtils.setField(presenceService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(presenceService, "enabled", true);
+        // Windows are closed by the benchmark itself
+        ReflectionTestUtils.setField(presenceService, "windowMs", 3600000L);
+        presenceService.init();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        presenceService.shutdown();
+        for (int i = 0; i < memberIds.size(); i++) {
+            NettyConfig.getUserChannels().unbind(memberIds.get(i), channels.get(i));
+        }
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+        memberIds.clear();
+        channels.clear();
+    }
+
+    /**
+     * Frames written to member connections during each measurement iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long framesWritten;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            framesWritten = 0;
+        }
+    }
+
+    @Benchmark
+    public void immediateBroadcast(Counters counters) {
+        for (int i = 0; i < reconnecting; i++) {
+            counters.framesWritten += messageRouter.route(presence(memberIds.get(i), false), memberIds);
+        }
+        drain();
+        for (int i = 0; i < reconnecting; i++) {
+            counters.framesWritten += messageRouter.route(presence(memberIds.get(i), true), memberIds);
+        }
+        drain();
+    }
+
+    @Benchmark
+    public void coalescedBroadcast(Counters counters) {
+        for (int i = 0; i < reconnecting; i++) {
+            presenceService.offline(memberIds.get(i));
+        }
+        counters.framesWritten += closeWindow();
+        for (int i = 0; i < reconnecting; i++) {
+            presenceService.online(memberIds.get(i));
+        }
+        counters.framesWritten += closeWindow();
+    }
+
+    /**
+     * Ends the current presence window.
+     *
+     * @return The number of frames written to member connections.
+     */
+    private long closeWindow() {
+        int broadcasts = ReflectionTestUtils.invokeMethod(presenceService, "flush");
+        drain();
+        return (long) broadcasts * TEAM_SIZE;
+    }
+
+    private void drain() {
+        for (EmbeddedChannel channel : channels) {
+            channel.releaseOutbound();
+        }
+    }
+
+    private static Map<String, String> presence(Long userId, boolean online) {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "PRESENCE");
+        payload.put("teamId", TEAM_ID.toString());
+        payload.put("online", online ? userId.toString() : "");
+        payload.put("offline", online ? "" : userId.toString());
+        return payload;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PresenceBroadcastBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,279 @@
+package com.scoder.im.cluster;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs two routers in the same JVM against an in-memory stand-in for Redis and checks that
+ * messages reach users connected to the other node.
+ */
+public class MessageRouterTest {
+
+    private InMemoryRedis redis;
+    private Node nodeA;
+    private Node nodeB;
+
+    @BeforeEach
+    public void setUp() {
+        redis = new InMemoryRedis();
+        nodeA = new Node("node-a", redis);
+        nodeB = new Node("node-b", redis);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        nodeA.router.shutdown();
+        nodeB.router.shutdown();
+    }
+
+    /**
+     * Test that a direct message to a user on the other node is forwarded.
+     */
+    @Test
+    void testDirectMessageIsForwardedToOwningNode() throws Exception {
+        nodeA.connect(1L);
+        nodeB.connect(2L);
+
+        int local = nodeA.router.route(payload("hello"), 2L);
+
+        assertEquals(0, local);
+        waitFor(() -> nodeB.received.size() == 1);
+        assertEquals("hello", nodeB.received.get(0).payload.get("content"));
+        assertEquals(List.of(2L), nodeB.received.get(0).userIds);
+        assertTrue(nodeA.received.isEmpty());
+    }
+
+    /**
+     * Test that recipients on the same remote node share one published batch.
+     */
+    @Test
+    void testGroupRecipientsOnSameNodeAreBatched() throws Exception {
+        nodeA.connect(1L);
+        nodeB.connect(2L);
+        nodeB.connect(3L);
+
+        int local = nodeA.router.route(payload("team update"), List.of(1L, 2L, 3L));
+
+        assertEquals(1, local);
+        waitFor(() -> nodeB.received.size() == 1);
+        assertEquals(Set.of(2L, 3L), new HashSet<>(nodeB.received.get(0).userIds));
+        assertEquals(1, redis.published.get("node-b").size());
+    }
+
+    /**
+     * Test that a user with devices on both nodes receives the message on both, and is not
+     * stored offline.
+     */
+    @Test
+    void testUserOnBothNodesReceivesOnBoth() throws Exception {
+        nodeA.connect(1L);
+        nodeB.connect(1L);
+
+        int local = nodeA.router.route(payload("both devices"), 1L);
+
+        assertEquals(1, local);
+        assertEquals(List.of(1L), nodeA.received.get(0).userIds);
+        waitFor(() -> nodeB.received.size() == 1);
+        assertEquals("both devices", nodeB.received.get(0).payload.get("content"));
+        assertEquals(List.of(1L), nodeB.received.get(0).userIds);
+        assertEquals(1, nodeA.received.size());
+        assertFalse(redis.published.containsKey("node-a"));
+        assertTrue(nodeA.offline.isEmpty());
+    }
+
+    /**
+     * Test that users who are not connected anywhere go to the offline store instead of the bus.
+     */
+    @Test
+    void testOfflineUsersAreStoredNotPublished() throws Exception {
+        nodeA.connect(1L);
+
+        nodeA.router.route(payload("anyone there?"), 9L);
+        nodeA.router.flushPending();
+
+        assertTrue(redis.published.isEmpty());
+        waitFor(() -> nodeA.offline.contains(9L));
+    }
+
+    /**
+     * Test that a user who disconnects from a node is no longer routed there.
+     */
+    @Test
+    void testDisconnectRemovesPresence() throws Exception {
+        nodeB.connect(2L);
+        nodeB.disconnect(2L);
+        waitFor(() -> redis.lookup(List.of(2L)).isEmpty());
+
+        nodeA.router.route(payload("late"), 2L);
+        nodeA.router.flushPending();
+
+        assertTrue(nodeB.received.isEmpty());
+        waitFor(() -> nodeA.offline.contains(2L));
+    }
+
+    private static Map<String, String> payload(String content) {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "DIRECT");
+        payload.put("content", content);
+        return payload;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition was not met in time");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * One IM node: a router plus the users connected to it.
+     */
+    private static class Node implements LocalDelivery {
+        private final Set<Long> users = ConcurrentHashMap.newKeySet();
+        private final List<Delivery> received = new CopyOnWriteArrayList<>();
+        private final List<Long> offline = new CopyOnWriteArrayList<>();
+        private final MessageRouter router = new MessageRouter();
+
+        Node(String nodeId, InMemoryRedis redis) {
+            ReflectionTestUtils.setField(router, "nodeId", nodeId);
+            ReflectionTestUtils.setField(router, "presenceTtlMs", 60000L);
+            ReflectionTestUtils.setField(router, "batchWindowMs", 2L);
+            ReflectionTestUtils.setField(router, "batchSize", 256);
+            ReflectionTestUtils.setField(router, "localDelivery", this);
+            ReflectionTestUtils.setField(router, "presenceStore", redis);
+            ReflectionTestUtils.setField(router, "clusterBus", redis);
+            ReflectionTestUtils.setField(router, "offlineStore", (OfflineStore) (payload, userIds) -> offline.addAll(userIds));
+            ReflectionTestUtils.setField(router, "meterRegistry", new SimpleMeterRegistry());
+            router.init();
+        }
+
+        void connect(Long userId) throws InterruptedException {
+            users.add(userId);
+            router.userOnline(userId);
+            waitFor(() -> redis().lookup(List.of(userId)).containsKey(userId));
+        }
+
+        void disconnect(Long userId) {
+            users.remove(userId);
+            router.userOffline(userId);
+        }
+
+        private InMemoryRedis redis() {
+            return (InMemoryRedis) ReflectionTestUtils.getField(router, "presenceStore");
+        }
+
+        @Override
+        public boolean isLocal(Long userId) {
+            return users.contains(userId);
+        }
+
+        @Override
+        public int deliver(Map<String, String> payload, Collection<Long> userIds) {
+            List<Long> online = new ArrayList<>();
+            for (Long userId : userIds) {
+                if (users.contains(userId)) {
+                    online.add(userId);
+                }
+            }
+            if (!online.isEmpty()) {
+                received.add(new Delivery(payload, online));
+            }
+            return online.size();
+        }
+
+        @Override
+        public Collection<Long> localUserIds() {
+            return new ArrayList<>(users);
+        }
+    }
+
+    private static class Delivery {
+        private final Map<String, String> payload;
+        private final List<Long> userIds;
+
+        Delivery(Map<String, String> payload, List<Long> userIds) {
+            this.payload = payload;
+            this.userIds = userIds;
+        }
+    }
+
+    /**
+     * Stand-in for the Redis presence hashes and pub/sub channels.
+     */
+    private static class InMemoryRedis implements PresenceStore, ClusterBus {
+        private final Map<Long, Map<String, Long>> presence = new ConcurrentHashMap<>();
+        private final Map<String, Consumer<String>> subscribers = new ConcurrentHashMap<>();
+        private final Map<String, List<String>> published = new ConcurrentHashMap<>();
+
+        @Override
+        public void register(Long userId, String nodeId, long ttlMillis) {
+            refresh(List.of(userId), nodeId, ttlMillis);
+        }
+
+        @Override
+        public void unregister(Long userId, String nodeId) {
+            Map<String, Long> nodes = presence.get(userId);
+            if (nodes != null) {
+                nodes.remove(nodeId);
+            }
+        }
+
+        @Override
+        public void refresh(Collection<Long> userIds, String nodeId, long ttlMillis) {
+            long expiresAt = System.currentTimeMillis() + ttlMillis;
+            for (Long userId : userIds) {
+                presence.computeIfAbsent(userId, id -> new ConcurrentHashMap<>()).put(nodeId, expiresAt);
+            }
+        }
+
+        @Override
+        public Map<Long, Set<String>> lookup(Collection<Long> userIds) {
+            long now = System.currentTimeMillis();
+            Map<Long, Set<String>> owners = new HashMap<>();
+            for (Long userId : userIds) {
+                Map<String, Long> nodes = presence.getOrDefault(userId, Collections.emptyMap());
+                nodes.forEach((node, expiresAt) -> {
+                    if (expiresAt > now) {
+                        owners.computeIfAbsent(userId, id -> new HashSet<>()).add(node);
+                    }
+                });
+            }
+            return owners;
+        }
+
+        @Override
+        public void publish(String nodeId, String message) {
+            published.computeIfAbsent(nodeId, id -> new CopyOnWriteArrayList<>()).add(message);
+            Consumer<String> subscriber = subscribers.get(nodeId);
+            if (subscriber != null) {
+                subscriber.accept(message);
+            }
+        }
+
+        @Override
+        public void subscribe(String nodeId, Consumer<String> listener) {
+            subscribers.put(nodeId, listener);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.scoder.im.config;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserChannelRegistryTest {
+
+    private final UserChannelRegistry registry = new UserChannelRegistry(16);
+
+    /**
+     * Test that every device of a user keeps its own channel.
+     */
+    @Test
+    void testDevicesAreBoundSideBySide() {
+        EmbeddedChannel phone = new EmbeddedChannel();
+        EmbeddedChannel laptop = new EmbeddedChannel();
+
+        assertEquals(1, registry.bind(1L, phone));
+        assertEquals(2, registry.bind(1L, laptop));
+        assertEquals(2, registry.bind(1L, laptop));
+
+        assertArrayEquals(new Channel[]{phone, laptop}, registry.channels(1L));
+        assertEquals(List.of(1L), registry.userIds());
+    }
+
+    /**
+     * Test that unbinding one device leaves the others and the last one takes the user offline.
+     */
+    @Test
+    void testUnbindRemovesOnlyThatDevice() {
+        EmbeddedChannel phone = new EmbeddedChannel();
+        EmbeddedChannel laptop = new EmbeddedChannel();
+        registry.bind(1L, phone);
+        registry.bind(1L, laptop);
+
+        assertEquals(1, registry.unbind(1L, phone));
+        assertArrayEquals(new Channel[]{laptop}, registry.channels(1L));
+        assertEquals(-1, registry.unbind(1L, phone));
+        assertEquals(0, registry.unbind(1L, laptop));
+        assertEquals(0, registry.channels(1L).length);
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * Test that concurrent binds and unbinds of the same user lose no updates.
+     */
+    @Test
+    void testConcurrentUpdatesOfOneUser() throws Exception {
+        int threads = 8;
+        int rounds = 200;
+        List<Channel> kept = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < threads; t++) {
+            EmbeddedChannel channel = new EmbeddedChannel();
+            kept.add(channel);
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < rounds; i++) {
+                    EmbeddedChannel transientChannel = new EmbeddedChannel();
+                    registry.bind(1L, transientChannel);
+                    registry.unbind(1L, transientChannel);
+                }
+                registry.bind(1L, channel);
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        Channel[] channels = registry.channels(1L);
+        assertEquals(threads, channels.length);
+        assertTrue(List.of(channels).containsAll(kept));
+    }
+}
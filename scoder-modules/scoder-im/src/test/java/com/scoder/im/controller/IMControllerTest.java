@@ -1,5 +1,6 @@
 package com.scoder.im.controller;
 
+import com.scoder.common.core.web.page.TableDataInfo;
 import com.scoder.im.api.domain.Group;
 import com.scoder.im.domain.ChatMessage;
 import com.scoder.im.domain.vos.ChatMessageVo;
@@ -96,7 +97,7 @@ public class IMControllerTest {
         // Mock the chat service response
         ChatMessage chatMessage = new ChatMessage();
         chatMessage.setContent("How are you?");
-        when(chatService.getDirectChatHistory(1L, 2L)).thenReturn(Collections.singletonList(chatMessage));
+        when(chatService.getDirectChatHistory(1L, 2L, null, null, null, null, 50)).thenReturn(Collections.singletonList(chatMessage));
 
         // Perform the GET request and verify the response
         mockMvc.perform(get("/getDirectChatHistory/1/2"))
@@ -104,7 +105,48 @@ public class IMControllerTest {
                 .andExpect(jsonPath("$.data[0].content").value("How are you?"));
 
         // Verify the service method was called once
-        verify(chatService, times(1)).getDirectChatHistory(1L, 2L);
+        verify(chatService, times(1)).getDirectChatHistory(1L, 2L, null, null, null, null, 50);
+    }
+
+    /**
+     * Test for getting an older page of team chat history with a cursor.
+     */
+    @Test
+    void testGetTeamChatHistoryWithCursor() throws Exception {
+        // Mock the chat service response
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setContent("Older message");
+        chatMessage.setTimestamp(1000L);
+        when(chatService.getTeamChatHistory(1L, 2000L, "m-9", null, null, 20)).thenReturn(Collections.singletonList(chatMessage));
+
+        // Perform the GET request and verify the response
+        mockMvc.perform(get("/getTeamChatHistory/1").param("before", "2000").param("beforeId", "m-9").param("limit", "20"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data[0].content").value("Older message"));
+
+        // Verify the cursor and page size were passed through
+        verify(chatService, times(1)).getTeamChatHistory(1L, 2000L, "m-9", null, null, 20);
+    }
+
+    /**
+     * Test for searching the messages of a user.
+     */
+    @Test
+    void testSearchMessages() throws Exception {
+        // Mock the chat service response
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setContent("Lunch at noon?");
+        when(chatService.searchMessages(1L, "lunch", 2, 10))
+                .thenReturn(new TableDataInfo<>(Collections.singletonList(chatMessage), 11));
+
+        // Perform the GET request and verify the response
+        mockMvc.perform(get("/searchMessages/1").param("keyword", "lunch").param("pageNum", "2").param("pageSize", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data.total").value(11))
+                .andExpect(jsonPath("$.data.rows[0].content").value("Lunch at noon?"));
+
+        // Verify the keyword and paging were passed through
+        verify(chatService, times(1)).searchMessages(1L, "lunch", 2, 10);
     }
 
     /**
@@ -0,0 +1,87 @@
+package com.scoder.im.handler;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BusinessExecutorTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private BusinessExecutor businessExecutor;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        businessExecutor.shutdown();
+    }
+
+    /**
+     * Test that tasks with the same key run in submission order.
+     */
+    @Test
+    void testSameKeyKeepsOrder() throws InterruptedException {
+        start(1000);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            int value = i;
+            assertTrue(businessExecutor.execute("d:1:2", () -> {
+                order.add(value);
+                done.countDown();
+            }));
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, order.get(i));
+        }
+    }
+
+    /**
+     * Test that a full lane refuses tasks, counts them and reports its depth.
+     */
+    @Test
+    void testFullLaneRejects() throws InterruptedException {
+        start(2);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(businessExecutor.execute("t:1", () -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertTrue(businessExecutor.execute("t:1", () -> { }));
+        assertTrue(businessExecutor.execute("t:1", () -> { }));
+
+        assertFalse(businessExecutor.execute("t:1", () -> { }));
+        assertEquals(1.0, meterRegistry.counter("im.business.rejected").count());
+        String lane = Integer.toString(businessExecutor.laneOf("t:1"));
+        assertEquals(2.0, meterRegistry.get("im.business.queue.depth").tag("lane", lane).gauge().value());
+        release.countDown();
+    }
+
+    private void start(int laneQueueCapacity) {
+        businessExecutor = new BusinessExecutor();
+        ReflectionTestUtils.setField(businessExecutor, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(businessExecutor, "laneCount", 4);
+        ReflectionTestUtils.setField(businessExecutor, "laneQueueCapacity", laneQueueCapacity);
+        businessExecutor.init();
+    }
+}
@@ -0,0 +1,117 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.cluster.OfflineStore;
+import com.scoder.im.protocol.WireProtocol;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeliveryTrackerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<Long> stored = Collections.synchronizedList(new ArrayList<>());
+    private DeliveryTracker deliveryTracker;
+    private EmbeddedChannel channel;
+
+    @BeforeEach
+    public void setUp() {
+        deliveryTracker = new DeliveryTracker();
+        OfflineStore offlineStore = (payload, userIds) -> stored.addAll(userIds);
+        ReflectionTestUtils.setField(deliveryTracker, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(deliveryTracker, "offlineStore", offlineStore);
+        ReflectionTestUtils.setField(deliveryTracker, "ackTimeoutMs", 50L);
+        ReflectionTestUtils.setField(deliveryTracker, "maxAttempts", 2);
+        ReflectionTestUtils.setField(deliveryTracker, "maxPending", 10);
+        deliveryTracker.init();
+        channel = new EmbeddedChannel();
+        channel.attr(WireProtocol.KEY).set(WireProtocol.JSON);
+        channel.attr(WebSocketHandler.USER_ID).set("7");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        deliveryTracker.shutdown();
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Test that an acknowledged delivery is no longer pending and is not resent.
+     */
+    @Test
+    void testAckEndsTracking() throws InterruptedException {
+        deliveryTracker.enable(channel);
+        deliveryTracker.track(channel, payload("m-1"));
+
+        Map<String, String> acked = deliveryTracker.acknowledge(channel, "m-1");
+        Thread.sleep(300);
+
+        assertEquals("m-1", acked.get("messageId"));
+        assertNull(deliveryTracker.acknowledge(channel, "m-1"));
+        assertEquals(0, deliveryTracker.pendingCount(channel));
+        assertNull(channel.readOutbound());
+        assertTrue(stored.isEmpty());
+    }
+
+    /**
+     * Test that an unacknowledged delivery is resent and then moved to the inbox.
+     */
+    @Test
+    void testUnackedDeliveryIsResentThenMovedOffline() throws InterruptedException {
+        deliveryTracker.enable(channel);
+        deliveryTracker.track(channel, payload("m-1"));
+
+        for (int i = 0; i < 50 && stored.isEmpty(); i++) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(List.of(7L), stored);
+        TextWebSocketFrame resent = channel.readOutbound();
+        assertTrue(resent.text().contains("\"messageId\":\"m-1\""));
+        resent.release();
+        assertNull(channel.readOutbound());
+        assertEquals(1.0, meterRegistry.counter("im.delivery.resent").count());
+    }
+
+    /**
+     * Test that closing the channel moves its pending deliveries to the inbox, and that
+     * channels without acknowledgements are not tracked.
+     */
+    @Test
+    void testReleaseMovesPendingOffline() {
+        EmbeddedChannel legacy = new EmbeddedChannel();
+        legacy.attr(WebSocketHandler.USER_ID).set("8");
+        deliveryTracker.track(legacy, payload("m-1"));
+        deliveryTracker.enable(channel);
+        deliveryTracker.track(channel, payload("m-2"));
+
+        deliveryTracker.release(channel);
+
+        assertEquals(0, deliveryTracker.pendingCount(legacy));
+        assertEquals(List.of(7L), stored);
+        assertNull(deliveryTracker.acknowledge(channel, "m-2"));
+        legacy.finishAndReleaseAll();
+    }
+
+    private static Map<String, String> payload(String messageId) {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "DIRECT");
+        payload.put("messageId", messageId);
+        payload.put("senderId", "1");
+        payload.put("receiverId", "7");
+        payload.put("content", "hi");
+        payload.put("timestamp", "5");
+        return payload;
+    }
+}
@@ -0,0 +1,79 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.protocol.HeartbeatCommand;
+import com.scoder.im.protocol.LoginCommand;
+import com.scoder.im.protocol.WireProtocol;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HeartbeatHandlerTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private EmbeddedChannel channel;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        HeartbeatHandler heartbeatHandler = new HeartbeatHandler();
+        ReflectionTestUtils.setField(heartbeatHandler, "messageFanout", new MessageFanout());
+        ReflectionTestUtils.setField(heartbeatHandler, "meterRegistry", meterRegistry);
+        heartbeatHandler.init();
+        channel = new EmbeddedChannel(heartbeatHandler);
+        channel.attr(WireProtocol.KEY).set(WireProtocol.JSON);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Test that a quiet connection receives a PING.
+     */
+    @Test
+    void testWriterIdleSendsPing() {
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.WRITER_IDLE_STATE_EVENT);
+
+        assertFrame("{\"type\":\"PING\"}", channel.readOutbound());
+        assertTrue(channel.isActive());
+    }
+
+    /**
+     * Test that a connection that stopped sending is closed and counted.
+     */
+    @Test
+    void testReaderIdleClosesConnection() {
+        channel.pipeline().fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+
+        assertFalse(channel.isActive());
+        assertEquals(1.0, meterRegistry.counter("im.heartbeat.reaped").count());
+    }
+
+    /**
+     * Test that client PINGs are answered, PONGs are consumed and other commands pass through.
+     */
+    @Test
+    void testHeartbeatCommandsAreHandledHere() {
+        LoginCommand login = new LoginCommand(1L, null);
+
+        channel.writeInbound(HeartbeatCommand.PING, HeartbeatCommand.PONG, login);
+
+        assertFrame("{\"type\":\"PONG\"}", channel.readOutbound());
+        assertSame(login, channel.readInbound());
+        assertNull(channel.readInbound());
+    }
+
+    private static void assertFrame(String expected, TextWebSocketFrame frame) {
+        assertNotNull(frame);
+        assertEquals(expected, frame.text());
+        frame.release();
+    }
+}
@@ -0,0 +1,153 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.service.GroupMembershipCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InboundRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private InboundRateLimiter inboundRateLimiter;
+    private SimpleMeterRegistry meterRegistry;
+    private GroupMembershipCache groupMembershipCache;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        groupMembershipCache = mock(GroupMembershipCache.class);
+        inboundRateLimiter = new InboundRateLimiter();
+        ReflectionTestUtils.setField(inboundRateLimiter, "enabled", true);
+        ReflectionTestUtils.setField(inboundRateLimiter, "directChannelRate", 2.0);
+        ReflectionTestUtils.setField(inboundRateLimiter, "directChannelBurst", 3.0);
+        ReflectionTestUtils.setField(inboundRateLimiter, "directUserRate", 2.0);
+        ReflectionTestUtils.setField(inboundRateLimiter, "directUserBurst", 4.0);
+        ReflectionTestUtils.setField(inboundRateLimiter, "groupChannelRate", 10.0);
+        ReflectionTestUtils.setField(inboundRateLimiter, "groupChannelBurst", 20.0);
+        ReflectionTestUtils.setField(inboundRateLimiter, "groupUserRate", 10.0);
+        ReflectionTestUtils.setField(inboundRateLimiter, "groupUserBurst", 20.0);
+        ReflectionTestUtils.setField(inboundRateLimiter, "membersPerToken", 10);
+        ReflectionTestUtils.setField(inboundRateLimiter, "sweepIntervalMs", 60000L);
+        ReflectionTestUtils.setField(inboundRateLimiter, "groupMembershipCache", groupMembershipCache);
+        ReflectionTestUtils.setField(inboundRateLimiter, "meterRegistry", meterRegistry);
+        inboundRateLimiter.init();
+    }
+
+    /**
+     * Test that a connection is limited to its burst and refilled over time.
+     */
+    @Test
+    void testConnectionBurstAndRefill() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(inboundRateLimiter.tryAcquire(channel, false, 1, now));
+        }
+        assertFalse(inboundRateLimiter.tryAcquire(channel, false, 1, now));
+        // Group messages have their own budget
+        assertTrue(inboundRateLimiter.tryAcquire(channel, true, 1, now));
+        // Two tokens per second; the bucket was created just after now, so a little less than
+        // a second has passed
+        long later = now + SECOND + SECOND / 10;
+        assertTrue(inboundRateLimiter.tryAcquire(channel, false, 1, later));
+        assertTrue(inboundRateLimiter.tryAcquire(channel, false, 1, later));
+        assertFalse(inboundRateLimiter.tryAcquire(channel, false, 1, later));
+        assertEquals(2, meterRegistry.counter("im.ratelimit.throttled", "type", "DIRECT").count());
+    }
+
+    /**
+     * Test that the connections of one user share the user's budget.
+     */
+    @Test
+    void testUserBudgetIsSharedByConnections() {
+        EmbeddedChannel phone = new EmbeddedChannel();
+        EmbeddedChannel laptop = new EmbeddedChannel();
+        inboundRateLimiter.bind(phone, 1L);
+        inboundRateLimiter.bind(laptop, 1L);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(inboundRateLimiter.tryAcquire(phone, false, 1, now));
+        }
+        assertTrue(inboundRateLimiter.tryAcquire(laptop, false, 1, now));
+        assertFalse(inboundRateLimiter.tryAcquire(laptop, false, 1, now));
+        assertEquals(1, meterRegistry.get("im.ratelimit.users.throttled").gauge().value());
+    }
+
+    /**
+     * Test that reconnecting does not reset the user's budget, and that the buckets of a
+     * disconnected user are only dropped once they have refilled.
+     */
+    @Test
+    void testUserBudgetOutlivesTheConnection() {
+        EmbeddedChannel phone = new EmbeddedChannel();
+        inboundRateLimiter.bind(phone, 1L);
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(inboundRateLimiter.tryAcquire(phone, false, 1, now));
+        }
+        inboundRateLimiter.release(1L);
+
+        EmbeddedChannel reconnected = new EmbeddedChannel();
+        inboundRateLimiter.bind(reconnected, 1L);
+        assertTrue(inboundRateLimiter.tryAcquire(reconnected, false, 1, now));
+        assertFalse(inboundRateLimiter.tryAcquire(reconnected, false, 1, now));
+
+        // Connected users are kept even when their buckets are full
+        inboundRateLimiter.sweep(now + 3 * SECOND);
+        assertEquals(1, users().size());
+
+        inboundRateLimiter.release(1L);
+        // Four tokens at two per second take two seconds to refill
+        inboundRateLimiter.sweep(now + SECOND);
+        assertEquals(1, users().size());
+        inboundRateLimiter.sweep(now + 3 * SECOND);
+        assertTrue(users().isEmpty());
+    }
+
+    /**
+     * Test that messages to larger teams cost more of the group budget.
+     */
+    @Test
+    void testGroupCostGrowsWithTeamSize() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        long now = System.nanoTime();
+
+        assertEquals(1, inboundRateLimiter.cost(0));
+        assertEquals(10, inboundRateLimiter.cost(95));
+        assertTrue(inboundRateLimiter.tryAcquire(channel, true, inboundRateLimiter.cost(95), now));
+        assertTrue(inboundRateLimiter.tryAcquire(channel, true, inboundRateLimiter.cost(95), now));
+        assertFalse(inboundRateLimiter.tryAcquire(channel, true, inboundRateLimiter.cost(95), now));
+        // A small team still fits into what is refilled in a fraction of a second
+        assertTrue(inboundRateLimiter.tryAcquire(channel, true, inboundRateLimiter.cost(5), now + SECOND / 5));
+        assertEquals(1, meterRegistry.counter("im.ratelimit.throttled", "type", "GROUP").count());
+    }
+
+    /**
+     * Test that the size of a cached team is looked up, and that a team larger than the whole
+     * budget can still be messaged once the bucket is full.
+     */
+    @Test
+    void testLargeTeamTakesTheWholeBucket() {
+        when(groupMembershipCache.cachedSize(7L)).thenReturn(1000);
+        EmbeddedChannel channel = new EmbeddedChannel();
+
+        assertTrue(inboundRateLimiter.tryAcquire(channel, true, 7L));
+        assertFalse(inboundRateLimiter.tryAcquire(channel, true, 7L));
+    }
+
+    private Map<?, ?> users() {
+        return (Map<?, ?>) ReflectionTestUtils.getField(inboundRateLimiter, "users");
+    }
+}
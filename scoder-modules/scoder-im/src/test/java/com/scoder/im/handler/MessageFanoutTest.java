@@ -0,0 +1,50 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.config.NettyConfig;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageFanoutTest {
+
+    private final MessageFanout messageFanout = new MessageFanout();
+    private final EmbeddedChannel phone = new EmbeddedChannel();
+    private final EmbeddedChannel laptop = new EmbeddedChannel();
+
+    @AfterEach
+    public void tearDown() {
+        NettyConfig.getUserChannels().unbind(1L, phone);
+        NettyConfig.getUserChannels().unbind(1L, laptop);
+        phone.finishAndReleaseAll();
+        laptop.finishAndReleaseAll();
+    }
+
+    /**
+     * Test that a message reaches every device of a user through one shared buffer.
+     */
+    @Test
+    void testDeliverReachesEveryDevice() {
+        NettyConfig.getUserChannels().bind(1L, phone);
+        NettyConfig.getUserChannels().bind(1L, laptop);
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "DIRECT");
+        payload.put("content", "hi");
+
+        assertTrue(messageFanout.isLocal(1L));
+        assertEquals(2, messageFanout.deliver(payload, List.of(1L)));
+
+        TextWebSocketFrame first = phone.readOutbound();
+        TextWebSocketFrame second = laptop.readOutbound();
+        assertSame(first.content().unwrap(), second.content().unwrap());
+        assertTrue(first.text().contains("hi"));
+        first.release();
+        second.release();
+    }
+}
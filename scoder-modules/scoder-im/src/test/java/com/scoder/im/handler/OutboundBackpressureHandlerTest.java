@@ -0,0 +1,165 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.protocol.TransientTextWebSocketFrame;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboundBackpressureHandlerTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private OutboundBackpressure backpressure;
+    private OutboundBackpressureHandler handler;
+    private EmbeddedChannel channel;
+    private final List<Object> events = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        backpressure = new OutboundBackpressure();
+        ReflectionTestUtils.setField(backpressure, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(backpressure, "maxQueuedFrames", 4);
+        ReflectionTestUtils.setField(backpressure, "overflowPolicy", OutboundBackpressure.OverflowPolicy.OFFLINE);
+        backpressure.init();
+        handler = backpressure.newHandler();
+        channel = new EmbeddedChannel(handler, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                events.add(evt);
+            }
+        });
+    }
+
+    @AfterEach
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Test that frames are written directly while the channel is writable.
+     */
+    @Test
+    void testWritesPassThroughWhileWritable() {
+        channel.writeAndFlush(new TextWebSocketFrame("a"));
+
+        assertEquals(0, handler.queuedFrames());
+        assertFrame("a", channel.readOutbound());
+    }
+
+    /**
+     * Test that frames queue while the channel is not writable and are written in order once it is.
+     */
+    @Test
+    void testQueuedFramesAreWrittenInOrder() {
+        setWritable(false);
+        channel.writeAndFlush(new TextWebSocketFrame("a"));
+        channel.writeAndFlush(new TextWebSocketFrame("b"));
+
+        assertNull(channel.readOutbound());
+        assertEquals(2, handler.queuedFrames());
+
+        setWritable(true);
+
+        assertFrame("a", channel.readOutbound());
+        assertFrame("b", channel.readOutbound());
+        assertEquals(0, handler.queuedFrames());
+        assertTrue(events.isEmpty());
+    }
+
+    /**
+     * Test that a full queue drops its oldest transient frame before anything else.
+     */
+    @Test
+    void testOverflowDropsOldestTransientFrame() {
+        setWritable(false);
+        channel.writeAndFlush(new TextWebSocketFrame("a"));
+        TransientTextWebSocketFrame typing = new TransientTextWebSocketFrame("typing");
+        ChannelFuture dropped = channel.writeAndFlush(typing);
+        channel.writeAndFlush(new TextWebSocketFrame("b"));
+        channel.writeAndFlush(new TextWebSocketFrame("c"));
+        channel.writeAndFlush(new TextWebSocketFrame("d"));
+
+        assertFalse(dropped.isSuccess());
+        assertEquals(0, typing.refCnt());
+        assertEquals(4, handler.queuedFrames());
+        assertEquals(1.0, meterRegistry.counter("im.backpressure.dropped").count());
+
+        setWritable(true);
+
+        assertFrame("a", channel.readOutbound());
+        assertFrame("b", channel.readOutbound());
+        assertFrame("c", channel.readOutbound());
+        assertFrame("d", channel.readOutbound());
+    }
+
+    /**
+     * Test that a full queue throttles the channel under the OFFLINE policy until it drains.
+     */
+    @Test
+    void testOfflinePolicyThrottlesUntilDrained() {
+        setWritable(false);
+        for (int i = 0; i < 4; i++) {
+            channel.writeAndFlush(new TextWebSocketFrame(Integer.toString(i)));
+        }
+        ChannelFuture rejected = channel.writeAndFlush(new TextWebSocketFrame("rejected"));
+
+        assertFalse(rejected.isSuccess());
+        assertFalse(backpressure.isAccepting(channel));
+        assertEquals(1, backpressure.getThrottledChannels());
+        assertEquals(List.of(OutboundBackpressure.THROTTLED_EVENT), events);
+        assertEquals(1.0, meterRegistry.counter("im.backpressure.rejected").count());
+        assertEquals(1.0, meterRegistry.get("im.backpressure.throttled").gauge().value());
+
+        setWritable(true);
+
+        assertTrue(backpressure.isAccepting(channel));
+        assertEquals(0, backpressure.getThrottledChannels());
+        assertEquals(List.of(OutboundBackpressure.THROTTLED_EVENT, OutboundBackpressure.RECOVERED), events);
+        assertTrue(channel.isActive());
+    }
+
+    /**
+     * Test that a full queue closes the channel under the DISCONNECT policy.
+     */
+    @Test
+    void testDisconnectPolicyClosesChannel() {
+        ReflectionTestUtils.setField(backpressure, "overflowPolicy", OutboundBackpressure.OverflowPolicy.DISCONNECT);
+        setWritable(false);
+        List<TextWebSocketFrame> frames = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TextWebSocketFrame frame = new TextWebSocketFrame(Integer.toString(i));
+            frames.add(frame);
+            channel.writeAndFlush(frame);
+        }
+
+        assertFalse(channel.isActive());
+        assertTrue(backpressure.isAccepting(channel));
+        assertEquals(0, backpressure.getThrottledChannels());
+        assertEquals(1.0, meterRegistry.counter("im.backpressure.disconnected").count());
+        for (TextWebSocketFrame frame : frames) {
+            assertEquals(0, frame.refCnt());
+        }
+    }
+
+    private void setWritable(boolean writable) {
+        channel.unsafe().outboundBuffer().setUserDefinedWritability(1, writable);
+    }
+
+    private static void assertFrame(String expected, TextWebSocketFrame frame) {
+        assertNotNull(frame);
+        assertEquals(expected, frame.text());
+        frame.release();
+    }
+}
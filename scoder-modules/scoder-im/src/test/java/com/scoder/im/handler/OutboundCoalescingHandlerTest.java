@@ -0,0 +1,112 @@
+package com.scoder.im.handler;
+
+import com.scoder.im.protocol.BinaryCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboundCoalescingHandlerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private EmbeddedChannel channel;
+
+    @AfterEach
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Test that a burst reaching the message limit is written as one JSON batch.
+     */
+    @Test
+    void testBurstBecomesOneBatch() {
+        start(1000L);
+
+        channel.writeAndFlush(new TextWebSocketFrame("{\"n\":1}"));
+        channel.writeAndFlush(new TextWebSocketFrame("{\"n\":2}"));
+        assertNull(channel.readOutbound());
+        channel.writeAndFlush(new TextWebSocketFrame("{\"n\":3}"));
+
+        TextWebSocketFrame batch = channel.readOutbound();
+        assertEquals("{\"type\":\"BATCH\",\"messages\":[{\"n\":1},{\"n\":2},{\"n\":3}]}", batch.text());
+        batch.release();
+        assertNull(channel.readOutbound());
+        assertEquals(1.0, meterRegistry.counter("im.coalesce.batches").count());
+        assertEquals(3.0, meterRegistry.counter("im.coalesce.messages").count());
+    }
+
+    /**
+     * Test that a lone frame is written unchanged once the window ends.
+     */
+    @Test
+    void testLoneFrameIsSentAfterWindow() throws InterruptedException {
+        start(1L);
+        TextWebSocketFrame frame = new TextWebSocketFrame("{\"n\":1}");
+
+        channel.writeAndFlush(frame);
+        assertNull(channel.readOutbound());
+        Thread.sleep(20);
+        channel.runPendingTasks();
+
+        assertSame(frame, channel.readOutbound());
+        frame.release();
+    }
+
+    /**
+     * Test that a control frame first writes the open batch.
+     */
+    @Test
+    void testControlFrameWritesOpenBatch() {
+        start(1000L);
+
+        channel.writeAndFlush(new TextWebSocketFrame("{\"n\":1}"));
+        channel.writeAndFlush(new TextWebSocketFrame("{\"n\":2}"));
+        channel.writeAndFlush(new PingWebSocketFrame());
+
+        TextWebSocketFrame batch = channel.readOutbound();
+        assertTrue(batch.text().startsWith("{\"type\":\"BATCH\""));
+        batch.release();
+        WebSocketFrame ping = channel.readOutbound();
+        assertTrue(ping instanceof PingWebSocketFrame);
+        ping.release();
+    }
+
+    /**
+     * Test that binary frames are batched with length prefixes.
+     */
+    @Test
+    void testBinaryBatchLayout() {
+        start(1000L);
+
+        channel.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{BinaryCodec.PING})));
+        channel.writeAndFlush(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{BinaryCodec.ERROR, 1, 'x'})));
+        channel.writeAndFlush(new PingWebSocketFrame());
+
+        BinaryWebSocketFrame batch = channel.readOutbound();
+        ByteBuf content = batch.content();
+        assertArrayEquals(new byte[]{BinaryCodec.BATCH, 1, BinaryCodec.PING, 3, BinaryCodec.ERROR, 1, 'x'},
+                ByteBufUtil.getBytes(content));
+        batch.release();
+    }
+
+    private void start(long windowMs) {
+        OutboundCoalescing coalescing = new OutboundCoalescing();
+        ReflectionTestUtils.setField(coalescing, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(coalescing, "windowMs", windowMs);
+        ReflectionTestUtils.setField(coalescing, "maxMessages", 3);
+        ReflectionTestUtils.setField(coalescing, "maxBytes", 16384);
+        coalescing.init();
+        channel = new EmbeddedChannel(coalescing.newHandler());
+    }
+}
@@ -0,0 +1,107 @@
+package com.scoder.im.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DeliveryStats collects what the clients of a load test sent and received.
+ * <p>
+ * Delivery latencies are recorded in microseconds into one HDR {@link Recorder} per message
+ * type, which the client event loops write to without locking while the driver takes
+ * interval histograms from it. Deliveries of messages that were due before
+ * {@link #startMeasuring} are ignored, so the warm-up does not leak into the results.
+ *
+ * @author Shawn Cui
+ */
+final class DeliveryStats {
+
+    /**
+     * Highest latency that can be recorded; slower deliveries are recorded as this value.
+     */
+    static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private final Recorder direct = new Recorder(HIGHEST_MICROS, 3);
+    private final Recorder group = new Recorder(HIGHEST_MICROS, 3);
+
+    final LongAdder sentDirect = new LongAdder();
+    final LongAdder sentGroup = new LongAdder();
+    final LongAdder deliveredDirect = new LongAdder();
+    final LongAdder deliveredGroup = new LongAdder();
+
+    /**
+     * Messages the driver could not send because the client's connection was not writable.
+     */
+    final LongAdder unsent = new LongAdder();
+
+    /**
+     * ERROR frames received, e.g. for messages the server rejected as busy.
+     */
+    final LongAdder errors = new LongAdder();
+
+    /**
+     * Connections that were closed after logging in.
+     */
+    final LongAdder disconnected = new LongAdder();
+
+    private volatile boolean measuring;
+    private volatile long measuredFrom;
+
+    /**
+     * Records a message as sent.
+     *
+     * @param group Whether it is a group message.
+     */
+    void sent(boolean group) {
+        (group ? sentGroup : sentDirect).increment();
+    }
+
+    /**
+     * Records the delivery of a message to one recipient.
+     *
+     * @param group    Whether it is a group message.
+     * @param dueNanos When the message was due to be sent, as {@link System#nanoTime()}.
+     * @param now      When it was received, as {@link System#nanoTime()}.
+     */
+    void delivered(boolean group, long dueNanos, long now) {
+        if (measuring && dueNanos - measuredFrom < 0) {
+            return;
+        }
+        long micros = Math.max(0, Math.min(HIGHEST_MICROS, (now - dueNanos) / 1000));
+        if (group) {
+            this.group.recordValue(micros);
+            deliveredGroup.increment();
+        } else {
+            direct.recordValue(micros);
+            deliveredDirect.increment();
+        }
+    }
+
+    /**
+     * Ends the warm-up: clears everything recorded so far and ignores the deliveries of
+     * messages due before the given time.
+     *
+     * @param now The start of the measurement, as {@link System#nanoTime()}.
+     */
+    void startMeasuring(long now) {
+        measuredFrom = now;
+        measuring = true;
+        direct.reset();
+        group.reset();
+        for (LongAdder counter : new LongAdder[]{sentDirect, sentGroup, deliveredDirect, deliveredGroup, unsent, errors}) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * Returns the latencies recorded since the previous call for the same type.
+     *
+     * @param group Whether to return the group message latencies.
+     * @return The interval histogram, in microseconds.
+     */
+    Histogram interval(boolean group) {
+        return (group ? this.group : direct).getIntervalHistogram();
+    }
+}
@@ -0,0 +1,272 @@
+package com.scoder.im.loadtest;
+
+import com.scoder.im.ScoderIMApplication;
+import com.scoder.im.api.domain.Group;
+import com.scoder.im.config.JacksonConfig;
+import com.scoder.im.config.NettyProperties;
+import com.scoder.im.config.RedisListenerConfig;
+import com.scoder.im.controller.IMController;
+import com.scoder.im.repository.ChatRepository;
+import com.scoder.im.repository.GroupRepository;
+import com.scoder.user.api.RemoteUserService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * EmbeddedImServer runs the IM WebSocket server in-process, without MongoDB, Redis, Nacos
+ * or the user service, for load tests.
+ * <p>
+ * The server's own components are wired as in production; only what lies outside the module
+ * is replaced:
+ * <ul>
+ *     <li>MongoDB by a {@link MongoTemplate} stand-in that accepts every write, counts the
+ *     chat messages inserted and returns empty results to every read,</li>
+ *     <li>the team repository by one that answers with the teams of the load test: team
+ *     {@code t} (from 1) holds the users {@code (t - 1) * teamSize + 1} to {@code t * teamSize},</li>
+ *     <li>Redis and the user service by mocks, which a load test with every user online does
+ *     not reach.</li>
+ * </ul>
+ * Cluster mode is always off. Presence broadcasts, the rate limit, the full-text index, the
+ * archiver and the backfills are off by default, so the test measures message delivery;
+ * each can be switched back on with its usual {@code -Dim.*} property, as can every other
+ * setting of the module.
+ * <p>
+ * {@link LoadTest} starts the server in a JVM of its own with {@link #main}, so that the heap
+ * it reports is the server's alone. The process prints {@code LOADTEST READY <uri>} once it
+ * accepts connections and {@code LOADTEST HEAP <used bytes> <stored messages>} every second,
+ * answers a {@code GC} line on standard input with {@code LOADTEST GC <used bytes>} after a
+ * full collection, and stops when standard input is closed.
+ *
+ * @author Shawn Cui
+ */
+public final class EmbeddedImServer implements AutoCloseable {
+
+    static final String READY = "LOADTEST READY";
+    static final String HEAP = "LOADTEST HEAP";
+    static final String GC = "LOADTEST GC";
+
+    private final AnnotationConfigApplicationContext context;
+    private final LongAdder stored;
+    private final Path dataDir;
+    private final URI uri;
+
+    private EmbeddedImServer(AnnotationConfigApplicationContext context, LongAdder stored, Path dataDir, URI uri) {
+        this.context = context;
+        this.stored = stored;
+        this.dataDir = dataDir;
+        this.uri = uri;
+    }
+
+    /**
+     * Starts a server on a free port.
+     *
+     * @param users    The number of users of the load test.
+     * @param teamSize The members per team.
+     * @return The running server.
+     * @throws IOException If no port or data directory could be obtained.
+     */
+    public static EmbeddedImServer start(int users, int teamSize) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Path dataDir = Files.createTempDirectory("im-loadtest");
+
+        // Fixed settings take precedence over system properties, defaults do not
+        Map<String, Object> fixed = new HashMap<>();
+        fixed.put("web-socket.netty.port", port);
+        fixed.put("im.cluster.enabled", false);
+        fixed.put("im.storage.archive-dir", dataDir.resolve("archive").toString());
+        fixed.put("im.search.index-dir", dataDir.resolve("search").toString());
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("im.presence.enabled", false);
+        defaults.put("im.rate-limit.enabled", false);
+        defaults.put("im.search.enabled", false);
+        defaults.put("im.storage.archive-enabled", false);
+        defaults.put("im.history.backfill-enabled", false);
+        defaults.put("im.conversation.backfill-enabled", false);
+
+        LongAdder stored = new LongAdder();
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        MutablePropertySources propertySources = context.getEnvironment().getPropertySources();
+        propertySources.addFirst(new MapPropertySource("loadtestFixed", fixed));
+        propertySources.addLast(new MapPropertySource("loadtestDefaults", defaults));
+        context.registerBean(MeterRegistry.class, SimpleMeterRegistry::new);
+        context.registerBean(MongoTemplate.class, () -> mongoTemplate(stored));
+        context.registerBean(GroupRepository.class, () -> groupRepository(users, teamSize));
+        context.registerBean(ChatRepository.class, () -> mock(ChatRepository.class));
+        context.registerBean(StringRedisTemplate.class, () -> mock(StringRedisTemplate.class, RETURNS_DEEP_STUBS));
+        context.registerBean(RemoteUserService.class, () -> mock(RemoteUserService.class));
+        context.register(ServerConfig.class);
+        context.refresh();
+
+        String path = context.getBean(NettyProperties.class).getPath();
+        return new EmbeddedImServer(context, stored, dataDir, URI.create("ws://127.0.0.1:" + port + path));
+    }
+
+    /**
+     * Returns the WebSocket endpoint.
+     *
+     * @return The URI clients connect to.
+     */
+    public URI uri() {
+        return uri;
+    }
+
+    /**
+     * Returns the number of chat messages written to the MongoDB stand-in.
+     *
+     * @return The count.
+     */
+    public long stored() {
+        return stored.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        context.close();
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dataDir)) {
+            paths = walk.collect(Collectors.toList());
+        }
+        // Children first
+        for (int i = paths.size() - 1; i >= 0; i--) {
+            Files.deleteIfExists(paths.get(i));
+        }
+    }
+
+    /**
+     * Creates the MongoDB stand-in. Bulk operations are fluent mocks that count inserted
+     * documents; everything else returns Mockito's empty defaults.
+     */
+    private static MongoTemplate mongoTemplate(LongAdder stored) {
+        BulkOperations bulkOperations = mock(BulkOperations.class, invocation -> {
+            if ("insert".equals(invocation.getMethod().getName())) {
+                Object documents = invocation.getArgument(0);
+                stored.add(documents instanceof List ? ((List<?>) documents).size() : 1);
+            }
+            return invocation.getMethod().getReturnType() == BulkOperations.class
+                    ? invocation.getMock() : RETURNS_DEFAULTS.answer(invocation);
+        });
+        IndexOperations indexOperations = mock(IndexOperations.class);
+        return mock(MongoTemplate.class, invocation -> {
+            Class<?> returnType = invocation.getMethod().getReturnType();
+            if (returnType == BulkOperations.class) {
+                return bulkOperations;
+            }
+            if (returnType == IndexOperations.class) {
+                return indexOperations;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        });
+    }
+
+    private static GroupRepository groupRepository(int users, int teamSize) {
+        GroupRepository groupRepository = mock(GroupRepository.class);
+        when(groupRepository.findByTeamId(anyLong())).thenAnswer(invocation -> {
+            Long teamId = invocation.getArgument(0);
+            long first = (teamId - 1) * teamSize + 1;
+            if (teamId < 1 || first + teamSize - 1 > users) {
+                return null;
+            }
+            List<Long> memberIds = new ArrayList<>(teamSize);
+            for (long userId = first; userId < first + teamSize; userId++) {
+                memberIds.add(userId);
+            }
+            Group group = new Group();
+            group.setTeamId(teamId);
+            group.setName("Load test team " + teamId);
+            group.setMemberIds(memberIds);
+            return group;
+        });
+        return groupRepository;
+    }
+
+    /**
+     * Runs a server for {@code -Dload.clients} users in teams of {@code -Dload.team-size}.
+     *
+     * @param args Not used.
+     * @throws IOException If the server cannot be started.
+     */
+    public static void main(String[] args) throws IOException {
+        LoggingSystem.get(EmbeddedImServer.class.getClassLoader()).setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.WARN);
+        int users = Integer.getInteger("load.clients", 1000);
+        int teamSize = Integer.getInteger("load.team-size", 50);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "im-loadtest-heap");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (EmbeddedImServer server = start(users, teamSize)) {
+            System.out.println(READY + " " + server.uri());
+            reporter.scheduleAtFixedRate(() -> System.out.println(HEAP + " " + heapUsed() + " " + server.stored()),
+                    0, 1, TimeUnit.SECONDS);
+            BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            while ((line = commands.readLine()) != null) {
+                if ("GC".equals(line.trim())) {
+                    System.gc();
+                    System.out.println(GC + " " + heapUsed());
+                }
+            }
+        } finally {
+            reporter.shutdownNow();
+        }
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The components of the module, without the application class (which would enable
+     * auto-configuration, Feign and Nacos), the REST controller and the Redis listener
+     * container.
+     */
+    @Configuration
+    @EnableConfigurationProperties
+    @ComponentScan(basePackages = "com.scoder.im", excludeFilters = {
+            @ComponentScan.Filter(type = FilterType.ASSIGNABLE_TYPE, classes = {
+                    ScoderIMApplication.class, IMController.class, RedisListenerConfig.class, JacksonConfig.class}),
+            @ComponentScan.Filter(type = FilterType.REGEX, pattern = "com\\.scoder\\.im\\.(loadtest|benchmark)\\..*")})
+    static class ServerConfig {
+    }
+}
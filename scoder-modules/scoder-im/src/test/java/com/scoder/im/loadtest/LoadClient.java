@@ -0,0 +1,227 @@
+package com.scoder.im.loadtest;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketClientCompressionHandler;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * LoadClient is one simulated user of a load test: a WebSocket connection that logs in, sends
+ * the chat messages the driver hands it and records the latency of the messages it receives.
+ * <p>
+ * Every chat message of the harness carries the {@link System#nanoTime()} at which it was due
+ * at the start of its content, so a delivery's latency runs from when the message should have
+ * been sent until its recipient read it. All clients run in one JVM, which keeps the clocks
+ * comparable.
+ * <p>
+ * The server does not answer LOGIN, so after logging in the client sends a direct message to
+ * itself. It counts as ready once that probe comes back, which the server only does after it
+ * has bound the user to the connection.
+ *
+ * @author Shawn Cui
+ */
+final class LoadClient extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+
+    /**
+     * Largest frame the client accepts, as on the server.
+     */
+    private static final int MAX_FRAME_BYTES = 65536 * 10;
+
+    private static final String PROBE = "probe";
+
+    private final long userId;
+    private final DeliveryStats stats;
+    private final CompletableFuture<LoadClient> ready = new CompletableFuture<>();
+    private volatile Channel channel;
+
+    LoadClient(long userId, DeliveryStats stats) {
+        this.userId = userId;
+        this.stats = stats;
+    }
+
+    /**
+     * Creates the pipeline of a connection to the given endpoint, with permessage-deflate
+     * offered like a browser does.
+     *
+     * @param uri The WebSocket endpoint.
+     * @return The channel initializer.
+     */
+    ChannelInitializer<SocketChannel> initializer(URI uri) {
+        return new ChannelInitializer<SocketChannel>() {
+
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.pipeline().addLast(new HttpClientCodec());
+                ch.pipeline().addLast(new HttpObjectAggregator(8192));
+                ch.pipeline().addLast(WebSocketClientCompressionHandler.INSTANCE);
+                ch.pipeline().addLast(new WebSocketClientProtocolHandler(WebSocketClientHandshakerFactory.newHandshaker(
+                        uri, WebSocketVersion.V13, null, true, new DefaultHttpHeaders(), MAX_FRAME_BYTES)));
+                ch.pipeline().addLast(LoadClient.this);
+            }
+        };
+    }
+
+    long userId() {
+        return userId;
+    }
+
+    /**
+     * Returns a future completed once the user is logged in, or completed exceptionally if the
+     * connection failed first.
+     *
+     * @return The future.
+     */
+    CompletableFuture<LoadClient> ready() {
+        return ready;
+    }
+
+    /**
+     * Sends a direct message.
+     *
+     * @param receiverId The recipient.
+     * @param dueNanos   When the message was due, as {@link System#nanoTime()}.
+     * @param padding    Text appended to the content to reach the configured size.
+     * @return false if the connection is closed or not writable.
+     */
+    boolean sendDirect(long receiverId, long dueNanos, String padding) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("type", "DIRECT");
+        message.put("senderId", userId);
+        message.put("receiverId", receiverId);
+        message.put("content", dueNanos + ":" + padding);
+        return send(message);
+    }
+
+    /**
+     * Sends a group message.
+     *
+     * @param teamId   The team.
+     * @param dueNanos When the message was due, as {@link System#nanoTime()}.
+     * @param padding  Text appended to the content to reach the configured size.
+     * @return false if the connection is closed or not writable.
+     */
+    boolean sendGroup(long teamId, long dueNanos, String padding) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("type", "GROUP");
+        message.put("senderId", userId);
+        message.put("teamId", teamId);
+        message.put("content", dueNanos + ":" + padding);
+        return send(message);
+    }
+
+    void close() {
+        Channel current = channel;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private boolean send(Map<String, Object> message) {
+        Channel current = channel;
+        if (current == null || !current.isActive() || !current.isWritable()) {
+            return false;
+        }
+        current.writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(message)), current.voidPromise());
+        return true;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+            channel = ctx.channel();
+            Map<String, Object> login = new HashMap<>();
+            login.put("type", "LOGIN");
+            login.put("userId", userId);
+            Map<String, Object> probe = new HashMap<>();
+            probe.put("type", "DIRECT");
+            probe.put("senderId", userId);
+            probe.put("receiverId", userId);
+            probe.put("content", PROBE);
+            ctx.write(new TextWebSocketFrame(JSON.toJSONString(login)));
+            ctx.writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(probe)));
+        } else if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_TIMEOUT) {
+            ready.completeExceptionally(new IllegalStateException("WebSocket handshake timed out"));
+            ctx.close();
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+        onMessage(ctx, JSON.parseObject(frame.text()));
+    }
+
+    private void onMessage(ChannelHandlerContext ctx, JSONObject message) {
+        String type = message.getString("type");
+        if (type == null) {
+            return;
+        }
+        switch (type) {
+            case "BATCH":
+                JSONArray messages = message.getJSONArray("messages");
+                for (int i = 0; i < messages.size(); i++) {
+                    onMessage(ctx, messages.getJSONObject(i));
+                }
+                break;
+            case "DIRECT":
+            case "GROUP":
+                onChatMessage("GROUP".equals(type), message);
+                break;
+            case "PING":
+                ctx.writeAndFlush(new TextWebSocketFrame("{\"type\":\"PONG\"}"));
+                break;
+            case "ERROR":
+                stats.errors.increment();
+                break;
+            default:
+                // ACKs, presence and the like are not measured
+        }
+    }
+
+    private void onChatMessage(boolean group, JSONObject message) {
+        long now = System.nanoTime();
+        String content = message.getString("content");
+        if (message.getLongValue("senderId") == userId) {
+            // The login probe, or the copy of a group message sent by this user
+            if (!group && PROBE.equals(content)) {
+                ready.complete(this);
+            }
+            return;
+        }
+        int separator = content == null ? -1 : content.indexOf(':');
+        if (separator > 0) {
+            stats.delivered(group, Long.parseLong(content.substring(0, separator)), now);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (!ready.completeExceptionally(new IllegalStateException("Connection of user " + userId + " was closed"))) {
+            stats.disconnected.increment();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        ready.completeExceptionally(cause);
+        ctx.close();
+    }
+}
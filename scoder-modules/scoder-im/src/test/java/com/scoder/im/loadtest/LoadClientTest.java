@@ -0,0 +1,99 @@
+package com.scoder.im.loadtest;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadClientTest {
+
+    private DeliveryStats stats;
+    private LoadClient client;
+    private EmbeddedChannel channel;
+
+    @BeforeEach
+    public void setUp() {
+        stats = new DeliveryStats();
+        client = new LoadClient(1L, stats);
+        channel = new EmbeddedChannel(client);
+        channel.pipeline().fireUserEventTriggered(WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Test that the client logs in and is ready once its probe comes back.
+     */
+    @Test
+    void testLoginIsConfirmedByTheProbe() {
+        JSONObject login = read();
+        assertEquals("LOGIN", login.getString("type"));
+        assertEquals(1L, login.getLongValue("userId"));
+        JSONObject probe = read();
+        assertEquals("DIRECT", probe.getString("type"));
+        assertEquals(1L, probe.getLongValue("receiverId"));
+        assertFalse(client.ready().isDone());
+
+        channel.writeInbound(new TextWebSocketFrame(
+                "{\"type\":\"DIRECT\",\"senderId\":\"1\",\"receiverId\":\"1\",\"content\":\"probe\"}"));
+        assertTrue(client.ready().isDone());
+        assertFalse(client.ready().isCompletedExceptionally());
+    }
+
+    /**
+     * Test that deliveries in a batch are recorded, except the copy of an own group message,
+     * and that the server's PING is answered.
+     */
+    @Test
+    void testDeliveriesAreRecorded() {
+        read();
+        read();
+        long due = System.nanoTime() - 5_000_000;
+        channel.writeInbound(new TextWebSocketFrame("{\"type\":\"BATCH\",\"messages\":["
+                + "{\"type\":\"DIRECT\",\"senderId\":\"2\",\"receiverId\":\"1\",\"content\":\"" + due + ":xx\"},"
+                + "{\"type\":\"GROUP\",\"senderId\":\"3\",\"teamId\":\"1\",\"content\":\"" + due + ":xx\"},"
+                + "{\"type\":\"GROUP\",\"senderId\":\"1\",\"teamId\":\"1\",\"content\":\"" + due + ":xx\"}]}"));
+        channel.writeInbound(new TextWebSocketFrame("{\"type\":\"ERROR\",\"message\":\"Server is busy\"}"));
+        channel.writeInbound(new TextWebSocketFrame("{\"type\":\"PING\"}"));
+
+        assertEquals(1, stats.deliveredDirect.sum());
+        assertEquals(1, stats.deliveredGroup.sum());
+        assertEquals(1, stats.errors.sum());
+        assertTrue(stats.interval(false).getMaxValue() >= 5000);
+        assertEquals("PONG", read().getString("type"));
+    }
+
+    /**
+     * Test that a message is written as JSON with its due time at the start of the content.
+     */
+    @Test
+    void testSendGroup() {
+        read();
+        read();
+        assertTrue(client.sendGroup(7L, 42L, "xx"));
+        JSONObject message = read();
+        assertEquals("GROUP", message.getString("type"));
+        assertEquals(1L, message.getLongValue("senderId"));
+        assertEquals(7L, message.getLongValue("teamId"));
+        assertEquals("42:xx", message.getString("content"));
+    }
+
+    private JSONObject read() {
+        TextWebSocketFrame frame = channel.readOutbound();
+        assertNotNull(frame);
+        try {
+            return JSON.parseObject(frame.text());
+        } finally {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.scoder.im.loadtest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadTest measures how many connections and messages an IM node can carry, and how quickly
+ * it delivers them.
+ * <p>
+ * It opens {@code load.clients} WebSocket connections, logs every user in with a LOGIN frame
+ * and then sends chat messages at a fixed aggregate rate, a share of them to teams and the
+ * rest to random users. Messages are paced against a schedule, and latency is measured from
+ * when a message was due rather than when it was written, so a server (or driver) that falls
+ * behind shows up in the latency instead of quietly lowering the rate. After a warm-up, every
+ * delivery is recorded into an HDR histogram per message type. The report gives the latency
+ * percentiles, the sent, delivered and stored message rates, messages that were not delivered,
+ * and the server heap: the peak during the run and the live heap per connection.
+ * <p>
+ * By default the server is an {@link EmbeddedImServer} in a child JVM, with a MongoDB stand-in
+ * instead of a database, so nothing else has to run. With {@code load.url} the test runs
+ * against an existing node instead; that node must know the users {@code load.first-user-id}
+ * onwards and the teams described for {@code load.team-size}, and heap figures are not
+ * available.
+ * <p>
+ * Settings, as system properties:
+ * <ul>
+ *     <li>{@code load.clients} (2000): connections, one user each</li>
+ *     <li>{@code load.rate} (2000): messages sent per second over all clients</li>
+ *     <li>{@code load.group-ratio} (0.2): share of the messages sent to teams</li>
+ *     <li>{@code load.team-size} (50): members per team; team {@code t} (from
+ *     {@code load.first-team-id}) holds the {@code t}-th run of {@code load.team-size} users</li>
+ *     <li>{@code load.payload-bytes} (64): padding added to every message's content</li>
+ *     <li>{@code load.warmup-seconds} (10) and {@code load.duration-seconds} (60)</li>
+ *     <li>{@code load.drain-seconds} (5): time left for deliveries after the last message</li>
+ *     <li>{@code load.connect-concurrency} (200): handshakes in flight while connecting</li>
+ *     <li>{@code load.client-threads} (0): client event loop threads, 0 for Netty's default</li>
+ *     <li>{@code load.url}, {@code load.first-user-id} (1), {@code load.first-team-id} (1)</li>
+ *     <li>{@code load.server-jvm-args} ("-Xms1g -Xmx1g"): options of the embedded server's JVM</li>
+ *     <li>{@code load.out} (target/loadtest): directory for the full histograms</li>
+ * </ul>
+ * The full latency distributions are written as {@code direct.hgrm} and {@code group.hgrm}
+ * in milliseconds, which can be plotted or compared between builds with HdrHistogram's
+ * plotter. Each client connection uses a local port, so raise the open file limit for more
+ * than a few thousand clients.
+ * <p>
+ * Run with: {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.scoder.im.loadtest.LoadTest -Dload.clients=5000 -Dload.rate=10000}
+ *
+ * @author Shawn Cui
+ */
+public final class LoadTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int clientCount = Integer.getInteger("load.clients", 2000);
+    private final int rate = Integer.getInteger("load.rate", 2000);
+    private final double groupRatio = Double.parseDouble(System.getProperty("load.group-ratio", "0.2"));
+    private final int teamSize = Integer.getInteger("load.team-size", 50);
+    private final int payloadBytes = Integer.getInteger("load.payload-bytes", 64);
+    private final int warmupSeconds = Integer.getInteger("load.warmup-seconds", 10);
+    private final int durationSeconds = Integer.getInteger("load.duration-seconds", 60);
+    private final int drainSeconds = Integer.getInteger("load.drain-seconds", 5);
+    private final int connectConcurrency = Integer.getInteger("load.connect-concurrency", 200);
+    private final int clientThreads = Integer.getInteger("load.client-threads", 0);
+    private final String url = System.getProperty("load.url");
+    private final long firstUserId = Long.getLong("load.first-user-id", 1L);
+    private final long firstTeamId = Long.getLong("load.first-team-id", 1L);
+    private final String serverJvmArgs = System.getProperty("load.server-jvm-args", "-Xms1g -Xmx1g");
+    private final Path out = Paths.get(System.getProperty("load.out", "target/loadtest"));
+
+    private final DeliveryStats stats = new DeliveryStats();
+    private final List<LoadClient> clients = new ArrayList<>();
+    private final Histogram directLatency = new Histogram(DeliveryStats.HIGHEST_MICROS, 3);
+    private final Histogram groupLatency = new Histogram(DeliveryStats.HIGHEST_MICROS, 3);
+    private final String padding;
+    private final int teams;
+
+    private ServerProcess server;
+    private long measuredNanos;
+    private long peakHeapUsed;
+
+    private LoadTest() {
+        if (clientCount < 2) {
+            throw new IllegalArgumentException("load.clients must be at least 2");
+        }
+        teams = clientCount / Math.max(1, teamSize);
+        if (groupRatio > 0 && (teamSize < 2 || teams == 0)) {
+            throw new IllegalArgumentException("Group messages need load.team-size between 2 and load.clients");
+        }
+        padding = String.join("", Collections.nCopies(payloadBytes, "x"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+    }
+
+    private void run() throws Exception {
+        URI uri;
+        if (url == null) {
+            System.out.printf("Starting the embedded server (%s)%n", serverJvmArgs);
+            server = ServerProcess.start(clientCount, teamSize, serverJvmArgs);
+            uri = server.uri();
+        } else {
+            uri = URI.create(url);
+        }
+        EventLoopGroup group = new NioEventLoopGroup(clientThreads, new DefaultThreadFactory("im-loadtest-client"));
+        try {
+            long idleHeap = server != null ? server.heapUsedAfterGc() : 0;
+            connect(group, uri);
+            long connectedHeap = server != null ? server.heapUsedAfterGc() : 0;
+            if (server != null) {
+                System.out.printf("Server heap after GC: %s idle, %s with %d users (%s per connection)%n",
+                        megabytes(idleHeap), megabytes(connectedHeap), clientCount,
+                        kilobytes((connectedHeap - idleHeap) / clientCount));
+            }
+
+            System.out.printf("Warming up for %ds%n", warmupSeconds);
+            drive(warmupSeconds, false);
+            stats.startMeasuring(System.nanoTime());
+            long storedAtStart = server != null ? server.stored() : 0;
+            if (server != null) {
+                server.takePeakHeapUsed();
+            }
+            System.out.printf("Measuring for %ds at %d messages/s, %.0f%% to teams of %d%n",
+                    durationSeconds, rate, groupRatio * 100, teamSize);
+            long start = System.nanoTime();
+            drive(durationSeconds, true);
+            measuredNanos = System.nanoTime() - start;
+            long storedAtEnd = server != null ? server.stored() : 0;
+            Thread.sleep(TimeUnit.SECONDS.toMillis(drainSeconds));
+            directLatency.add(stats.interval(false));
+            groupLatency.add(stats.interval(true));
+            if (server != null) {
+                peakHeapUsed = server.takePeakHeapUsed();
+            }
+            report(storedAtEnd - storedAtStart);
+        } finally {
+            for (LoadClient client : clients) {
+                client.close();
+            }
+            group.shutdownGracefully(0, 5, TimeUnit.SECONDS).syncUninterruptibly();
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Opens and logs in every client, with at most {@code load.connect-concurrency}
+     * connections between connecting and logged in at a time.
+     */
+    private void connect(EventLoopGroup group, URI uri) throws Exception {
+        Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000);
+        int port = uri.getPort() > 0 ? uri.getPort() : 80;
+        Semaphore connecting = new Semaphore(connectConcurrency);
+        List<CompletableFuture<LoadClient>> logins = new ArrayList<>(clientCount);
+        long start = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            LoadClient client = new LoadClient(firstUserId + i, stats);
+            clients.add(client);
+            logins.add(client.ready());
+            connecting.acquire();
+            client.ready().whenComplete((ready, failure) -> connecting.release());
+            ChannelFutureListener failed = future -> {
+                if (!future.isSuccess()) {
+                    client.ready().completeExceptionally(future.cause());
+                }
+            };
+            bootstrap.clone().handler(client.initializer(uri)).connect(uri.getHost(), port).addListener(failed);
+        }
+        try {
+            CompletableFuture.allOf(logins.toArray(new CompletableFuture[0])).get(2, TimeUnit.MINUTES);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Clients did not log in within two minutes", e);
+        } catch (Exception e) {
+            long failed = logins.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+            throw new IllegalStateException(failed + " of " + clientCount + " clients failed to connect"
+                    + " (is the open file limit high enough?)", e);
+        }
+        System.out.printf("%d clients logged in after %.1fs%n", clientCount, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Sends messages on schedule for the given time and prints a line every second.
+     * Messages that fell behind schedule are sent at once, still stamped with their due time.
+     */
+    private void drive(int seconds, boolean measuring) {
+        long start = System.nanoTime();
+        long end = start + seconds * SECOND;
+        long nextReport = start + SECOND;
+        double interval = (double) SECOND / rate;
+        long sent = 0;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long due = (long) ((now - start) / interval) + 1;
+            for (; sent < due; sent++) {
+                send(start + (long) (sent * interval));
+            }
+            if (now >= nextReport) {
+                nextReport += SECOND;
+                long delivered = stats.deliveredDirect.sum() + stats.deliveredGroup.sum();
+                progress(measuring, (now - start) / SECOND, sent - lastSent, delivered - lastDelivered);
+                lastSent = sent;
+                lastDelivered = delivered;
+            }
+            LockSupport.parkNanos(Math.min(100_000L, Math.max(1000L, (long) interval)));
+        }
+    }
+
+    private void send(long dueNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean group = random.nextDouble() < groupRatio;
+        boolean sent;
+        if (group) {
+            int team = random.nextInt(teams);
+            LoadClient sender = clients.get(team * teamSize + random.nextInt(teamSize));
+            sent = sender.sendGroup(firstTeamId + team, dueNanos, padding);
+        } else {
+            int sender = random.nextInt(clientCount);
+            int receiver = random.nextInt(clientCount - 1);
+            if (receiver >= sender) {
+                receiver++;
+            }
+            sent = clients.get(sender).sendDirect(clients.get(receiver).userId(), dueNanos, padding);
+        }
+        if (sent) {
+            stats.sent(group);
+        } else {
+            stats.unsent.increment();
+        }
+    }
+
+    private void progress(boolean measuring, long second, long sent, long delivered) {
+        Histogram direct = stats.interval(false);
+        Histogram group = stats.interval(true);
+        // Warm-up intervals are only printed
+        if (measuring) {
+            directLatency.add(direct);
+            groupLatency.add(group);
+        }
+        StringBuilder line = new StringBuilder(String.format("%s %3ds  sent %6d/s  delivered %7d/s  p99 direct %s group %s",
+                measuring ? "run   " : "warmup", second, sent, delivered,
+                millis(direct.getValueAtPercentile(99)), millis(group.getValueAtPercentile(99))));
+        if (server != null) {
+            line.append("  heap ").append(megabytes(server.heapUsed()));
+        }
+        System.out.println(line);
+    }
+
+    private void report(long stored) throws IOException {
+        double seconds = measuredNanos / 1e9;
+        long sentDirect = stats.sentDirect.sum();
+        long sentGroup = stats.sentGroup.sum();
+        System.out.println();
+        System.out.printf("Clients %d, teams %d of %d, %.1fs measured%n", clientCount, teams, teamSize, seconds);
+        summary("DIRECT", sentDirect, sentDirect, stats.deliveredDirect.sum(), directLatency, seconds);
+        summary("GROUP", sentGroup, sentGroup * (teamSize - 1), stats.deliveredGroup.sum(), groupLatency, seconds);
+        System.out.printf("Throughput: %.0f messages/s sent, %.0f deliveries/s%n",
+                (sentDirect + sentGroup) / seconds,
+                (stats.deliveredDirect.sum() + stats.deliveredGroup.sum()) / seconds);
+        System.out.printf("Not sent (client not writable) %d, ERROR frames %d, disconnects %d%n",
+                stats.unsent.sum(), stats.errors.sum(), stats.disconnected.sum());
+        if (server != null) {
+            System.out.printf("Server: %.0f messages/s stored, peak heap %s%n", stored / seconds, megabytes(peakHeapUsed));
+        }
+
+        Files.createDirectories(out);
+        write(out.resolve("direct.hgrm"), directLatency);
+        write(out.resolve("group.hgrm"), groupLatency);
+        System.out.printf("Histograms written to %s%n", out.toAbsolutePath());
+    }
+
+    private static void summary(String type, long sent, long expected, long delivered, Histogram latency, double seconds) {
+        System.out.printf("%-6s sent %d (%.0f/s), delivered %d of %d, latency ms p50 %s p90 %s p99 %s p99.9 %s max %s%n",
+                type, sent, sent / seconds, delivered, expected,
+                millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(90)),
+                millis(latency.getValueAtPercentile(99)), millis(latency.getValueAtPercentile(99.9)),
+                millis(latency.getMaxValue()));
+    }
+
+    private static void write(Path file, Histogram histogram) throws IOException {
+        try (PrintStream stream = new PrintStream(Files.newOutputStream(file))) {
+            histogram.outputPercentileDistribution(stream, 1000.0);
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String kilobytes(long bytes) {
+        return String.format("%.1f KB", bytes / 1024.0);
+    }
+}
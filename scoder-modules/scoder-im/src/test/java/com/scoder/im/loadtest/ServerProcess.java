@@ -0,0 +1,191 @@
+package com.scoder.im.loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServerProcess starts an {@link EmbeddedImServer} in a child JVM and follows the heap and
+ * storage figures it prints.
+ * <p>
+ * The child gets the test classpath of this JVM, the JVM options of {@code load.server-jvm-args}
+ * and every {@code im.*} and {@code web-socket.*} system property, so the server is configured
+ * on the load test's command line. Output that is not part of the protocol is passed through.
+ *
+ * @author Shawn Cui
+ */
+final class ServerProcess implements AutoCloseable {
+
+    private final Process process;
+    private final PrintWriter commands;
+    private final CompletableFuture<URI> ready = new CompletableFuture<>();
+    private final BlockingQueue<Long> collections = new LinkedBlockingQueue<>();
+
+    private volatile long heapUsed;
+    private volatile long peakHeapUsed;
+    private volatile long stored;
+
+    private ServerProcess(Process process) {
+        this.process = process;
+        this.commands = new PrintWriter(process.getOutputStream(), true, StandardCharsets.UTF_8);
+        Thread reader = new Thread(this::readOutput, "im-loadtest-server-output");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Starts the server and waits until it accepts connections.
+     *
+     * @param clients  The number of users of the load test.
+     * @param teamSize The members per team.
+     * @param jvmArgs  JVM options for the server, separated by spaces.
+     * @return The running server.
+     * @throws Exception If the server did not start within a minute.
+     */
+    static ServerProcess start(int clients, int teamSize, String jvmArgs) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String arg : jvmArgs.trim().split("\\s+")) {
+            if (!arg.isEmpty()) {
+                command.add(arg);
+            }
+        }
+        command.add("-Dload.clients=" + clients);
+        command.add("-Dload.team-size=" + teamSize);
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("im.") || name.startsWith("web-socket.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-cp");
+        command.add(classPath());
+        command.add(EmbeddedImServer.class.getName());
+
+        ServerProcess server = new ServerProcess(new ProcessBuilder(command).redirectErrorStream(true).start());
+        try {
+            server.ready.get(1, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    /**
+     * Returns the classpath of the test classes. Under {@code exec:java} it is that of the
+     * plugin's class loader rather than {@code java.class.path}, which holds Maven's own.
+     */
+    private static String classPath() throws URISyntaxException {
+        ClassLoader loader = ServerProcess.class.getClassLoader();
+        if (!(loader instanceof URLClassLoader)) {
+            return System.getProperty("java.class.path");
+        }
+        StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        for (URL url : ((URLClassLoader) loader).getURLs()) {
+            classPath.add(Paths.get(url.toURI()).toString());
+        }
+        return classPath.toString();
+    }
+
+    private void readOutput() {
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(EmbeddedImServer.READY)) {
+                    ready.complete(URI.create(line.substring(EmbeddedImServer.READY.length()).trim()));
+                } else if (line.startsWith(EmbeddedImServer.HEAP)) {
+                    String[] values = line.substring(EmbeddedImServer.HEAP.length()).trim().split(" ");
+                    heapUsed = Long.parseLong(values[0]);
+                    peakHeapUsed = Math.max(peakHeapUsed, heapUsed);
+                    stored = Long.parseLong(values[1]);
+                } else if (line.startsWith(EmbeddedImServer.GC)) {
+                    collections.add(Long.parseLong(line.substring(EmbeddedImServer.GC.length()).trim()));
+                } else {
+                    System.out.println("[server] " + line);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[server] output lost: " + e.getMessage());
+        }
+        ready.completeExceptionally(new IllegalStateException("Server process exited"));
+    }
+
+    /**
+     * Returns the WebSocket endpoint.
+     *
+     * @return The URI clients connect to.
+     */
+    URI uri() {
+        return ready.join();
+    }
+
+    /**
+     * Returns the heap in use at the last report, collected or not.
+     *
+     * @return The used heap in bytes.
+     */
+    long heapUsed() {
+        return heapUsed;
+    }
+
+    /**
+     * Returns the highest heap use reported since the last call and starts over.
+     *
+     * @return The peak used heap in bytes.
+     */
+    long takePeakHeapUsed() {
+        long peak = peakHeapUsed;
+        peakHeapUsed = heapUsed;
+        return peak;
+    }
+
+    /**
+     * Returns the number of chat messages the server has written to its MongoDB stand-in.
+     *
+     * @return The count, as of the last report.
+     */
+    long stored() {
+        return stored;
+    }
+
+    /**
+     * Runs a full collection in the server and returns the heap still in use, i.e. the live
+     * data of the server.
+     *
+     * @return The used heap in bytes after the collection.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    long heapUsedAfterGc() throws InterruptedException {
+        collections.clear();
+        commands.println("GC");
+        Long used = collections.poll(1, TimeUnit.MINUTES);
+        if (used == null) {
+            throw new IllegalStateException("Server did not answer the GC request");
+        }
+        return used;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        commands.close();
+        if (!process.waitFor(30, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.scoder.im.protocol;
+
+import com.scoder.im.handler.MessageFanout;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryCodecTest {
+
+    /**
+     * Test that a direct message survives an encode and decode round trip.
+     */
+    @Test
+    void testDirectMessageRoundTrip() {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "DIRECT");
+        payload.put("senderId", "1");
+        payload.put("receiverId", "2");
+        payload.put("timestamp", "1700000000000");
+        payload.put("content", "héllo 👋");
+
+        ByteBuf frame = BinaryCodec.encode(ByteBufAllocator.DEFAULT, payload);
+        try {
+            assertEquals(BinaryCodec.DIRECT, frame.getByte(0));
+            assertEquals(1700000000000L, frame.getLong(17));
+            ChatCommand command = (ChatCommand) BinaryCodec.readCommand(frame);
+            assertEquals(CommandType.DIRECT, command.getType());
+            assertEquals(1L, command.getSenderId());
+            assertEquals(2L, command.getTargetId());
+            assertEquals("héllo 👋", command.getContent());
+            assertEquals(0, frame.readableBytes());
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Test that a login frame is read as user ID and last sequence.
+     */
+    @Test
+    void testReadLoginCommand() {
+        ByteBuf frame = Unpooled.buffer().writeByte(BinaryCodec.LOGIN).writeLong(42L).writeLong(-1L);
+
+        LoginCommand command = (LoginCommand) BinaryCodec.readCommand(frame);
+
+        assertEquals(42L, command.getUserId());
+        assertNull(command.getLastSeq());
+    }
+
+    /**
+     * Test that the optional trailing ID of a chat frame carries the message ID out and the
+     * client message ID in.
+     */
+    @Test
+    void testChatFrameCarriesId() {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "GROUP");
+        payload.put("messageId", "m-1");
+        payload.put("senderId", "1");
+        payload.put("teamId", "3");
+        payload.put("timestamp", "0");
+        payload.put("content", "hi");
+
+        ByteBuf frame = BinaryCodec.encode(ByteBufAllocator.DEFAULT, payload);
+        try {
+            ChatCommand command = (ChatCommand) BinaryCodec.readCommand(frame);
+            assertEquals("m-1", command.getClientMsgId());
+        } finally {
+            frame.release();
+        }
+        ByteBuf login = Unpooled.buffer().writeByte(BinaryCodec.LOGIN).writeLong(42L).writeLong(-1L)
+                .writeByte(BinaryCodec.LOGIN_FLAG_ACKS);
+        assertTrue(((LoginCommand) BinaryCodec.readCommand(login)).isAcks());
+        ByteBuf ack = Unpooled.buffer().writeByte(BinaryCodec.ACK).writeByte(3).writeBytes("m-1".getBytes(StandardCharsets.UTF_8));
+        assertEquals("m-1", ((AckCommand) BinaryCodec.readCommand(ack)).getMessageId());
+    }
+
+    /**
+     * Test that payloads without a binary layout are embedded as JSON.
+     */
+    @Test
+    void testUnknownPayloadFallsBackToJson() {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "OFFLINE");
+
+        ByteBuf frame = BinaryCodec.encode(ByteBufAllocator.DEFAULT, payload);
+        try {
+            assertEquals(BinaryCodec.JSON_DOCUMENT, BinaryCodec.readOpcode(frame));
+            assertEquals("{\"type\":\"OFFLINE\"}", frame.toString(StandardCharsets.UTF_8));
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Test that a truncated frame is rejected.
+     */
+    @Test
+    void testTruncatedFrameIsRejected() {
+        ByteBuf frame = Unpooled.buffer().writeByte(BinaryCodec.DIRECT).writeLong(1L);
+
+        assertThrows(CorruptedFrameException.class, () -> BinaryCodec.readCommand(frame));
+    }
+
+    /**
+     * Test that fan-out writes each client's protocol and encodes once per protocol.
+     */
+    @Test
+    void testFanoutUsesEachChannelsProtocol() {
+        EmbeddedChannel jsonChannel = new EmbeddedChannel();
+        EmbeddedChannel binaryChannel = new EmbeddedChannel();
+        binaryChannel.attr(WireProtocol.KEY).set(WireProtocol.BINARY);
+
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", "ERROR");
+        payload.put("content", "Team not found");
+        int written = new MessageFanout().write(payload, List.<Channel>of(jsonChannel, binaryChannel));
+
+        assertEquals(2, written);
+        TextWebSocketFrame text = jsonChannel.readOutbound();
+        BinaryWebSocketFrame binary = binaryChannel.readOutbound();
+        assertTrue(text.text().contains("Team not found"));
+        assertEquals(BinaryCodec.ERROR, binary.content().getByte(0));
+        text.release();
+        binary.release();
+        jsonChannel.finishAndReleaseAll();
+        binaryChannel.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,130 @@
+package com.scoder.im.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandParserTest {
+
+    private final CommandParser parser = new CommandParser(1024, 20);
+
+    /**
+     * Test that a JSON direct message becomes a chat command, with IDs sent as strings or numbers.
+     */
+    @Test
+    void testParseJsonDirectMessage() {
+        ChatCommand command = (ChatCommand) parse(new TextWebSocketFrame(
+                "{\"type\":\"DIRECT\",\"senderId\":\"1\",\"receiverId\":2,\"content\":\"hi\",\"timestamp\":5}"));
+
+        assertEquals(CommandType.DIRECT, command.getType());
+        assertEquals(1L, command.getSenderId());
+        assertEquals(2L, command.getTargetId());
+        assertEquals("hi", command.getContent());
+        assertEquals(2L, command.toChatMessage().getReceiverId());
+    }
+
+    /**
+     * Test that a JSON login keeps the optional inbox sequence.
+     */
+    @Test
+    void testParseJsonLogin() {
+        LoginCommand command = (LoginCommand) parse(new TextWebSocketFrame("{\"type\":\"LOGIN\",\"userId\":\"7\",\"lastSeq\":12}"));
+
+        assertEquals(7L, command.getUserId());
+        assertEquals(12L, command.getLastSeq());
+    }
+
+    /**
+     * Test that heartbeats are read from both protocols.
+     */
+    @Test
+    void testParseHeartbeats() {
+        assertSame(HeartbeatCommand.PING, parse(new TextWebSocketFrame("{\"type\":\"PING\"}")));
+        assertSame(HeartbeatCommand.PONG, parse(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{BinaryCodec.PONG}))));
+    }
+
+    /**
+     * Test that client message IDs, acknowledgement logins and ACKs are read from JSON.
+     */
+    @Test
+    void testParseAcknowledgements() {
+        ChatCommand chat = (ChatCommand) parse(new TextWebSocketFrame(
+                "{\"type\":\"GROUP\",\"senderId\":1,\"teamId\":3,\"content\":\"hi\",\"clientMsgId\":\"c-1\"}"));
+        LoginCommand login = (LoginCommand) parse(new TextWebSocketFrame("{\"type\":\"LOGIN\",\"userId\":7,\"acks\":true}"));
+        AckCommand ack = (AckCommand) parse(new TextWebSocketFrame("{\"type\":\"ACK\",\"messageId\":\"m-9\"}"));
+
+        assertEquals("c-1", chat.getClientMsgId());
+        assertEquals("c-1", chat.toChatMessage().getClientMsgId());
+        assertTrue(login.isAcks());
+        assertEquals("m-9", ack.getMessageId());
+        assertRejected(new TextWebSocketFrame("{\"type\":\"ACK\"}"));
+        assertRejected(new TextWebSocketFrame("{\"type\":\"DIRECT\",\"senderId\":1,\"receiverId\":2,\"content\":\"hi\","
+                + "\"clientMsgId\":\"" + "x".repeat(CommandParser.MAX_ID_LENGTH + 1) + "\"}"));
+    }
+
+    /**
+     * Test that READ is read from both protocols, with the server time as the default.
+     */
+    @Test
+    void testParseRead() {
+        ReadCommand json = (ReadCommand) parse(new TextWebSocketFrame("{\"type\":\"READ\",\"conversationKey\":\"t:3\"}"));
+        ByteBuf content = Unpooled.buffer().writeByte(BinaryCodec.READ).writeByte(5)
+                .writeBytes("d:1:2".getBytes(StandardCharsets.UTF_8)).writeLong(900L);
+        ReadCommand binary = (ReadCommand) parse(new BinaryWebSocketFrame(content));
+
+        assertEquals("t:3", json.getConversationKey());
+        assertNull(json.getTimestamp());
+        assertEquals("d:1:2", binary.getConversationKey());
+        assertEquals(900L, binary.getTimestamp());
+        assertRejected(new TextWebSocketFrame("{\"type\":\"READ\"}"));
+    }
+
+    /**
+     * Test that TYPING targets a team when a teamId is given and a user otherwise.
+     */
+    @Test
+    void testParseTyping() {
+        TypingCommand team = (TypingCommand) parse(new TextWebSocketFrame("{\"type\":\"TYPING\",\"teamId\":3}"));
+        TypingCommand direct = (TypingCommand) parse(new BinaryWebSocketFrame(
+                Unpooled.buffer().writeByte(BinaryCodec.TYPING).writeByte(0).writeLong(2L)));
+
+        assertTrue(team.isGroup());
+        assertEquals(3L, team.getTargetId());
+        assertFalse(direct.isGroup());
+        assertEquals(2L, direct.getTargetId());
+        assertRejected(new TextWebSocketFrame("{\"type\":\"TYPING\"}"));
+    }
+
+    /**
+     * Test that malformed, incomplete and oversized input is rejected.
+     */
+    @Test
+    void testInvalidInputIsRejected() {
+        assertRejected(new TextWebSocketFrame("{not json"));
+        assertRejected(new TextWebSocketFrame("{\"content\":\"no type\"}"));
+        assertRejected(new TextWebSocketFrame("{\"type\":\"GROUP\",\"senderId\":1,\"content\":\"no team\"}"));
+        assertRejected(new TextWebSocketFrame("{\"type\":\"DIRECT\",\"senderId\":1,\"receiverId\":2,\"content\":\"this content is far too long\"}"));
+        assertRejected(new TextWebSocketFrame("{\"type\":\"UNKNOWN\"}"));
+        assertRejected(new TextWebSocketFrame("{\"type\":\"LOGIN\",\"userId\":1,\"pad\":\"" + "x".repeat(1100) + "\"}"));
+        assertRejected(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{BinaryCodec.DIRECT, 0, 0})));
+    }
+
+    private Command parse(WebSocketFrame frame) {
+        try {
+            return parser.parse(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void assertRejected(WebSocketFrame frame) {
+        assertThrows(CommandRejectedException.class, () -> parse(frame));
+    }
+}
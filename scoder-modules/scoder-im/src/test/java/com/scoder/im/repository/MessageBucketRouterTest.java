@@ -0,0 +1,97 @@
+package com.scoder.im.repository;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class MessageBucketRouterTest {
+
+    private static final YearMonth JANUARY = YearMonth.of(2024, 1);
+
+    /**
+     * 2024-01-15T00:00:00Z, within {@link #JANUARY}.
+     */
+    private static final long IN_JANUARY = 1705276800000L;
+
+    @InjectMocks
+    private MessageBucketRouter bucketRouter;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private MessageSegmentStore segmentStore;
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    private final Set<String> collections = new HashSet<>();
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(bucketRouter, "clustered", true);
+        ReflectionTestUtils.setField(bucketRouter, "refreshIntervalMs", 0L);
+        when(mongoTemplate.getCollectionNames()).thenAnswer(invocation -> new HashSet<>(collections));
+        when(segmentStore.months()).thenAnswer(invocation -> new TreeSet<YearMonth>());
+        collections.add(MessageBucketRouter.collectionName(JANUARY));
+        bucketRouter.init();
+    }
+
+    /**
+     * Test that a read of a month this node has not seen picks up the collection another node created.
+     */
+    @Test
+    void testUnknownMonthIsReloaded() {
+        YearMonth current = YearMonth.now(ZoneOffset.UTC);
+        assertTrue(months(bucketRouter.buckets(null, null, false)).stream().noneMatch(current::equals));
+
+        collections.add(MessageBucketRouter.collectionName(current));
+
+        assertEquals(current, bucketRouter.buckets(null, null, false).get(0).getMonth());
+    }
+
+    /**
+     * Test that archiving a month is broadcast, and that a broadcast from another node switches
+     * reads to the segment once it is there.
+     */
+    @Test
+    void testArchivedMonthIsBroadcast() {
+        bucketRouter.markArchived(JANUARY);
+        verify(redisTemplate).convertAndSend("im:storage:buckets", "archived 202401");
+
+        bucketRouter.refresh();
+        assertFalse(bucketRouter.buckets(IN_JANUARY, null, false).get(0).isArchived());
+
+        bucketRouter.onChange("archived 202401");
+        assertFalse(bucketRouter.buckets(IN_JANUARY, null, false).get(0).isArchived());
+
+        when(segmentStore.contains(JANUARY)).thenReturn(true);
+        bucketRouter.onChange("archived 202401");
+        assertTrue(bucketRouter.buckets(IN_JANUARY, null, false).get(0).isArchived());
+    }
+
+    private static List<YearMonth> months(List<MessageBucketRouter.Bucket> buckets) {
+        List<YearMonth> months = new ArrayList<>();
+        for (MessageBucketRouter.Bucket bucket : buckets) {
+            months.add(bucket.getMonth());
+        }
+        return months;
+    }
+}
@@ -0,0 +1,155 @@
+package com.scoder.im.repository;
+
+import com.scoder.im.domain.ChatMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageSegmentStoreTest {
+
+    private static final YearMonth MONTH = YearMonth.of(2024, 1);
+    private static final String DIRECT = ChatMessage.directConversationKey(1L, 2L);
+    private static final String TEAM = ChatMessage.teamConversationKey(7L);
+
+    @TempDir
+    Path archiveDir;
+
+    private MessageSegmentStore segmentStore;
+
+    @BeforeEach
+    public void setUp() {
+        segmentStore = new MessageSegmentStore();
+        ReflectionTestUtils.setField(segmentStore, "archiveDir", archiveDir.toString());
+    }
+
+    /**
+     * Test that archived messages are read back with all their fields, newest first by default.
+     */
+    @Test
+    void testMessagesAreReadBack() throws Exception {
+        // Grouped by conversation and newest first, as the archiver streams them
+        List<ChatMessage> messages = new ArrayList<>();
+        for (long timestamp = 600; timestamp >= 1; timestamp--) {
+            messages.add(direct(timestamp));
+        }
+        messages.add(team(5));
+
+        assertEquals(601, segmentStore.write(MONTH, messages.iterator()));
+        assertEquals(Set.of(MONTH), segmentStore.months());
+        assertFalse(Files.exists(archiveDir.resolve("202401.seg.tmp")));
+
+        List<ChatMessage> latest = segmentStore.read(MONTH, DIRECT, null, null, null, null, 3, false);
+        assertEquals(List.of(600L, 599L, 598L), timestamps(latest));
+        assertEquals("message 600", latest.get(0).getContent());
+        assertEquals(2L, latest.get(0).getReceiverId());
+        assertNull(latest.get(0).getTeamId());
+        assertEquals(DIRECT, latest.get(0).getConversationKey());
+
+        ChatMessage teamMessage = segmentStore.read(MONTH, TEAM, null, null, null, null, 10, false).get(0);
+        assertEquals(7L, teamMessage.getTeamId());
+        assertEquals(TEAM, teamMessage.getConversationKey());
+    }
+
+    /**
+     * Test that cursor ranges spanning several blocks return the right end of the range.
+     */
+    @Test
+    void testCursorRangesAcrossBlocks() throws Exception {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (long timestamp = 600; timestamp >= 1; timestamp--) {
+            messages.add(direct(timestamp));
+        }
+        segmentStore.write(MONTH, messages.iterator());
+
+        assertEquals(List.of(300L, 299L), timestamps(segmentStore.read(MONTH, DIRECT, 301L, null, null, null, 2, false)));
+        assertEquals(List.of(257L, 258L, 259L), timestamps(segmentStore.read(MONTH, DIRECT, null, null, 256L, null, 3, true)));
+        assertEquals(List.of(11L, 12L), timestamps(segmentStore.read(MONTH, DIRECT, 13L, null, 10L, null, 5, true)));
+        assertTrue(segmentStore.read(MONTH, "d:8:9", null, null, null, null, 5, false).isEmpty());
+    }
+
+    /**
+     * Test that messages of the same millisecond are neither skipped nor repeated when a page
+     * boundary falls between them.
+     */
+    @Test
+    void testCursorBreaksTimestampTiesById() throws Exception {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 4; i >= 1; i--) {
+            ChatMessage chatMessage = direct(100);
+            chatMessage.setId("d100-" + i);
+            messages.add(chatMessage);
+        }
+        messages.add(direct(99));
+        segmentStore.write(MONTH, messages.iterator());
+
+        List<ChatMessage> latest = segmentStore.read(MONTH, DIRECT, null, null, null, null, 2, false);
+        assertEquals(List.of("d100-4", "d100-3"), ids(latest));
+        ChatMessage oldest = latest.get(1);
+        assertEquals(List.of("d100-2", "d100-1", "d99"),
+                ids(segmentStore.read(MONTH, DIRECT, oldest.getTimestamp(), oldest.getId(), null, null, 5, false)));
+        assertEquals(List.of("d100-2", "d100-3"),
+                ids(segmentStore.read(MONTH, DIRECT, null, null, 100L, "d100-1", 2, true)));
+    }
+
+    /**
+     * Test that a deleted segment is no longer listed.
+     */
+    @Test
+    void testDelete() throws Exception {
+        segmentStore.write(MONTH, List.of(direct(1)).iterator());
+
+        segmentStore.delete(MONTH);
+
+        assertFalse(segmentStore.contains(MONTH));
+        assertTrue(segmentStore.months().isEmpty());
+    }
+
+    private static List<String> ids(List<ChatMessage> messages) {
+        List<String> ids = new ArrayList<>();
+        for (ChatMessage chatMessage : messages) {
+            ids.add(chatMessage.getId());
+        }
+        return ids;
+    }
+
+    private static List<Long> timestamps(List<ChatMessage> messages) {
+        List<Long> timestamps = new ArrayList<>();
+        for (ChatMessage chatMessage : messages) {
+            timestamps.add(chatMessage.getTimestamp());
+        }
+        return timestamps;
+    }
+
+    private static ChatMessage direct(long timestamp) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId("d" + timestamp);
+        chatMessage.setType("DIRECT");
+        chatMessage.setSenderId(1L);
+        chatMessage.setReceiverId(2L);
+        chatMessage.setContent("message " + timestamp);
+        chatMessage.setTimestamp(timestamp);
+        chatMessage.setConversationKey(DIRECT);
+        return chatMessage;
+    }
+
+    private static ChatMessage team(long timestamp) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId("t" + timestamp);
+        chatMessage.setType("GROUP");
+        chatMessage.setSenderId(1L);
+        chatMessage.setTeamId(7L);
+        chatMessage.setContent("team " + timestamp);
+        chatMessage.setTimestamp(timestamp);
+        return chatMessage;
+    }
+}
@@ -0,0 +1,64 @@
+package com.scoder.im.server;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeflateExtensionHandshakerTest {
+
+    /**
+     * Test that the server declares no context takeover even when the client did not offer it.
+     */
+    @Test
+    void testNoContextTakeoverIsDeclared() {
+        DeflateExtensionHandshaker handshaker = new DeflateExtensionHandshaker(6, 64, true);
+
+        WebSocketServerExtension extension = handshaker.handshakeExtension(
+                new WebSocketExtensionData("permessage-deflate", Collections.emptyMap()));
+
+        assertNotNull(extension);
+        WebSocketExtensionData response = extension.newReponseData();
+        assertTrue(response.parameters().containsKey("server_no_context_takeover"));
+        assertTrue(response.parameters().containsKey("client_no_context_takeover"));
+    }
+
+    /**
+     * Test that other extensions are declined.
+     */
+    @Test
+    void testOtherExtensionsAreDeclined() {
+        DeflateExtensionHandshaker handshaker = new DeflateExtensionHandshaker(6, 64, true);
+
+        assertNull(handshaker.handshakeExtension(new WebSocketExtensionData("x-webkit-deflate-frame", Collections.emptyMap())));
+    }
+
+    /**
+     * Test that frames below the threshold are sent as they are and larger ones are compressed.
+     */
+    @Test
+    void testOnlyLargeFramesAreCompressed() {
+        WebSocketServerExtension extension = new DeflateExtensionHandshaker(6, 64, true).handshakeExtension(
+                new WebSocketExtensionData("permessage-deflate", Collections.emptyMap()));
+        EmbeddedChannel channel = new EmbeddedChannel(extension.newExtensionEncoder());
+        String snippet = "for (int i = 0; i < members.size(); i++) { send(members.get(i)); }\n".repeat(20);
+
+        channel.writeOutbound(new TextWebSocketFrame("hi"), new TextWebSocketFrame(snippet));
+
+        TextWebSocketFrame small = channel.readOutbound();
+        assertEquals(0, small.rsv());
+        assertEquals("hi", small.text());
+        small.release();
+        TextWebSocketFrame large = channel.readOutbound();
+        assertEquals(WebSocketExtension.RSV1, large.rsv());
+        assertTrue(large.content().readableBytes() < snippet.length() / 4);
+        large.release();
+        channel.finishAndReleaseAll();
+    }
+}
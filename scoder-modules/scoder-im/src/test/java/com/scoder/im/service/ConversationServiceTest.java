@@ -0,0 +1,184 @@
+package com.scoder.im.service;
+
+import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.domain.Conversation;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class ConversationServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private BulkOperations bulkOperations;
+
+    private ConversationService conversationService;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(Conversation.class), eq("conversations")))
+                .thenReturn(bulkOperations);
+
+        conversationService = new ConversationService();
+        ReflectionTestUtils.setField(conversationService, "mongoTemplate", mongoTemplate);
+    }
+
+    /**
+     * Test that a direct message updates the entries of both participants and only the receiver's unread count.
+     */
+    @Test
+    void testDirectMessageUpdatesBothParticipants() {
+        conversationService.onPersisted(List.of(direct(1L, 2L, "hello")));
+
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updates = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOperations, times(2)).upsert(queries.capture(), updates.capture());
+        ArgumentCaptor<Query> updateQueries = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updateUpdates = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOperations, times(3)).updateOne(updateQueries.capture(), updateUpdates.capture());
+        verify(bulkOperations, times(1)).execute();
+
+        assertEquals(1L, queries.getAllValues().get(0).getQueryObject().get("ownerId"));
+        assertEquals("d:1:2", queries.getAllValues().get(0).getQueryObject().get("conversationKey"));
+        assertEquals(2L, queries.getAllValues().get(1).getQueryObject().get("ownerId"));
+        assertNull(updates.getAllValues().get(0).getUpdateObject().get("$inc"));
+        assertNull(updates.getAllValues().get(1).getUpdateObject().get("$inc"));
+        Query unreadQuery = updateQueries.getAllValues().get(2);
+        assertEquals(2L, unreadQuery.getQueryObject().get("ownerId"));
+        assertNotNull(unreadQuery.getQueryObject().get("lastReadTimestamp"));
+        assertNotNull(updateUpdates.getAllValues().get(2).getUpdateObject().get("$inc"));
+    }
+
+    /**
+     * Test that a direct message only replaces the last message of entries that do not hold a
+     * newer one, while the upserts merely create the entries.
+     */
+    @Test
+    void testDirectLastMessageOnlyMovesForward() {
+        ChatMessage chatMessage = direct(1L, 2L, "hello");
+        conversationService.onPersisted(List.of(chatMessage));
+
+        ArgumentCaptor<Update> upserts = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOperations, times(2)).upsert(any(Query.class), upserts.capture());
+        for (Update upsert : upserts.getAllValues()) {
+            assertEquals(chatMessage.getTimestamp(), ((Document) upsert.getUpdateObject().get("$max")).get("lastTimestamp"));
+            assertNull(upsert.getUpdateObject().get("$set"));
+        }
+
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> updates = ArgumentCaptor.forClass(Update.class);
+        verify(bulkOperations, times(3)).updateOne(queries.capture(), updates.capture());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(i + 1L, queries.getAllValues().get(i).getQueryObject().get("ownerId"));
+            assertNotOlderThan(chatMessage, queries.getAllValues().get(i));
+            assertEquals("hello", ((Document) updates.getAllValues().get(i).getUpdateObject().get("$set")).get("lastContent"));
+        }
+    }
+
+    /**
+     * Test that reading a conversation resets its count and only moves the read time forward.
+     */
+    @Test
+    void testMarkReadResetsCountAndKeepsLatestReadTime() {
+        conversationService.markRead(2L, "d:1:2", 500L);
+
+        ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+        verify(mongoTemplate).updateFirst(any(Query.class), update.capture(), eq(Conversation.class), eq("conversations"));
+        assertNotNull(update.getValue().getUpdateObject().get("$set"));
+        assertEquals(500L, ((Document) update.getValue().getUpdateObject().get("$max")).get("lastReadTimestamp"));
+    }
+
+    /**
+     * Test that a group message updates every member's entry with two multi-document updates.
+     */
+    @Test
+    void testGroupMessageUpdatesAllMemberEntries() {
+        ChatMessage chatMessage = direct(1L, null, "team update");
+        chatMessage.setType("GROUP");
+        chatMessage.setTeamId(7L);
+
+        conversationService.onPersisted(List.of(chatMessage));
+
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        verify(bulkOperations, times(2)).updateMulti(queries.capture(), any(Update.class));
+        verify(bulkOperations, never()).upsert(any(Query.class), any(Update.class));
+        verify(bulkOperations, times(1)).execute();
+        // An older message persisted late leaves the last message alone
+        assertNotOlderThan(chatMessage, queries.getAllValues().get(0));
+    }
+
+    /**
+     * Test that an index leads with the conversation key, the field the group update path
+     * filters on first, so that a group message does not scan the whole collection.
+     */
+    @Test
+    void testGroupUpdatesUseConversationKeyIndex() {
+        IndexOperations indexOperations = mock(IndexOperations.class);
+        when(mongoTemplate.indexOps(anyString())).thenReturn(indexOperations);
+        when(mongoTemplate.indexOps(any(Class.class))).thenReturn(mock(IndexOperations.class));
+        ReflectionTestUtils.setField(conversationService, "backfillEnabled", false);
+        conversationService.initialize();
+
+        ArgumentCaptor<IndexDefinition> indexes = ArgumentCaptor.forClass(IndexDefinition.class);
+        verify(indexOperations, atLeastOnce()).ensureIndex(indexes.capture());
+        assertTrue(indexes.getAllValues().stream()
+                .anyMatch(index -> "conversationKey".equals(index.getIndexKeys().keySet().iterator().next())));
+
+        ChatMessage chatMessage = direct(1L, null, "team update");
+        chatMessage.setType("GROUP");
+        chatMessage.setTeamId(7L);
+        conversationService.onPersisted(List.of(chatMessage));
+
+        ArgumentCaptor<Query> queries = ArgumentCaptor.forClass(Query.class);
+        verify(bulkOperations, times(2)).updateMulti(queries.capture(), any(Update.class));
+        for (Query query : queries.getAllValues()) {
+            assertEquals("conversationKey", query.getQueryObject().keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Test that joining members get an entry without touching the existing ones.
+     */
+    @Test
+    void testAddMembersUpsertsOneEntryPerMember() {
+        conversationService.addMembers(7L, List.of(1L, 2L, 3L));
+
+        verify(bulkOperations, times(3)).upsert(any(Query.class), any(Update.class));
+        verify(bulkOperations, times(1)).execute();
+    }
+
+    private static void assertNotOlderThan(ChatMessage chatMessage, Query query) {
+        Document lastTimestamp = (Document) query.getQueryObject().get("lastTimestamp");
+        assertEquals(chatMessage.getTimestamp(), ((Document) lastTimestamp.get("$not")).get("$gt"));
+    }
+
+    private static ChatMessage direct(Long senderId, Long receiverId, String content) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId("id-" + content);
+        chatMessage.setType("DIRECT");
+        chatMessage.setSenderId(senderId);
+        chatMessage.setReceiverId(receiverId);
+        chatMessage.setContent(content);
+        chatMessage.setTimestamp(System.currentTimeMillis());
+        return chatMessage;
+    }
+}
@@ -0,0 +1,86 @@
+package com.scoder.im.service;
+
+import com.scoder.im.api.domain.Group;
+import com.scoder.im.repository.GroupRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class GroupMembershipCacheTest {
+
+    @Mock
+    private GroupRepository groupRepository;
+
+    private GroupMembershipCache groupMembershipCache;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        groupMembershipCache = new GroupMembershipCache();
+        ReflectionTestUtils.setField(groupMembershipCache, "groupRepository", groupRepository);
+        ReflectionTestUtils.setField(groupMembershipCache, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(groupMembershipCache, "maxSize", 100);
+        ReflectionTestUtils.setField(groupMembershipCache, "ttlMs", 60000L);
+        groupMembershipCache.init();
+    }
+
+    /**
+     * Test that repeated lookups of a team read MongoDB only once.
+     */
+    @Test
+    void testMembersAreLoadedOnce() {
+        when(groupRepository.findByTeamId(1L)).thenReturn(group(1L, 3L, 1L, 2L));
+
+        GroupMembershipCache.TeamMembers first = groupMembershipCache.getMembers(1L);
+        GroupMembershipCache.TeamMembers second = groupMembershipCache.getMembers(1L);
+
+        assertSame(first, second);
+        assertEquals(List.of(1L, 2L, 3L), first.asList());
+        assertTrue(first.contains(2L));
+        assertFalse(first.contains(4L));
+        verify(groupRepository, times(1)).findByTeamId(1L);
+        assertEquals(1, meterRegistry.counter("im.group.cache.hit").count());
+        assertEquals(1, meterRegistry.counter("im.group.cache.miss").count());
+    }
+
+    /**
+     * Test that an invalidated team is loaded again with its new members.
+     */
+    @Test
+    void testInvalidateReloadsMembers() {
+        when(groupRepository.findByTeamId(1L)).thenReturn(group(1L, 1L), group(1L, 1L, 2L));
+
+        assertEquals(1, groupMembershipCache.getMembers(1L).size());
+        groupMembershipCache.invalidate(1L);
+
+        assertEquals(2, groupMembershipCache.getMembers(1L).size());
+        verify(groupRepository, times(2)).findByTeamId(1L);
+    }
+
+    /**
+     * Test that an unknown team is reported as missing.
+     */
+    @Test
+    void testUnknownTeamReturnsNull() {
+        assertNull(groupMembershipCache.getMembers(9L));
+    }
+
+    private static Group group(Long teamId, Long... memberIds) {
+        Group group = new Group();
+        group.setTeamId(teamId);
+        group.setMemberIds(new ArrayList<>(List.of(memberIds)));
+        return group;
+    }
+}
@@ -0,0 +1,65 @@
+package com.scoder.im.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageDeduplicatorTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    /**
+     * Test that a resent client message ID finds the original, per sender.
+     */
+    @Test
+    void testResendFindsOriginal() {
+        MessageDeduplicator deduplicator = start(60000L, 2);
+        deduplicator.record(1L, "c-1", new MessageDeduplicator.Accepted("m-1", 5L));
+
+        MessageDeduplicator.Accepted accepted = deduplicator.find(1L, "c-1");
+
+        assertEquals("m-1", accepted.getMessageId());
+        assertEquals(5L, accepted.getTimestamp());
+        assertNull(deduplicator.find(2L, "c-1"));
+        assertEquals(1.0, meterRegistry.counter("im.dedup.duplicates").count());
+    }
+
+    /**
+     * Test that IDs are forgotten once their window has passed.
+     */
+    @Test
+    void testIdsExpireWithTheirBucket() throws InterruptedException {
+        MessageDeduplicator deduplicator = start(40L, 2);
+        deduplicator.record(1L, "c-1", new MessageDeduplicator.Accepted("m-1", 5L));
+
+        Thread.sleep(60);
+
+        assertNull(deduplicator.find(1L, "c-1"));
+    }
+
+    /**
+     * Test that a full bucket stops remembering IDs.
+     */
+    @Test
+    void testFullBucketIsNotGrown() {
+        MessageDeduplicator deduplicator = start(60000L, 1);
+        deduplicator.record(1L, "c-1", new MessageDeduplicator.Accepted("m-1", 5L));
+        deduplicator.record(1L, "c-2", new MessageDeduplicator.Accepted("m-2", 6L));
+
+        assertEquals(1, deduplicator.size());
+        assertNull(deduplicator.find(1L, "c-2"));
+        assertEquals(1.0, meterRegistry.counter("im.dedup.overflow").count());
+    }
+
+    private MessageDeduplicator start(long windowMs, int maxEntriesPerBucket) {
+        MessageDeduplicator deduplicator = new MessageDeduplicator();
+        ReflectionTestUtils.setField(deduplicator, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(deduplicator, "windowMs", windowMs);
+        ReflectionTestUtils.setField(deduplicator, "bucketCount", 2);
+        ReflectionTestUtils.setField(deduplicator, "maxEntriesPerBucket", maxEntriesPerBucket);
+        deduplicator.init();
+        return deduplicator;
+    }
+}
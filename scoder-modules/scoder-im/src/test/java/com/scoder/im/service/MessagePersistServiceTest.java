@@ -0,0 +1,164 @@
+package com.scoder.im.service;
+
+import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.repository.MessageBucketRouter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class MessagePersistServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private BulkOperations bulkOperations;
+
+    private MessagePersistService messagePersistService;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mongoTemplate.bulkOps(any(BulkOperations.BulkMode.class), eq(ChatMessage.class), startsWith("messages_")))
+                .thenReturn(bulkOperations);
+        MessageBucketRouter bucketRouter = new MessageBucketRouter();
+        ReflectionTestUtils.setField(bucketRouter, "mongoTemplate", mongoTemplate);
+
+        meterRegistry = new SimpleMeterRegistry();
+        messagePersistService = new MessagePersistService();
+        ReflectionTestUtils.setField(messagePersistService, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(messagePersistService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(messagePersistService, "bucketRouter", bucketRouter);
+        ReflectionTestUtils.setField(messagePersistService, "queueCapacity", 4);
+        ReflectionTestUtils.setField(messagePersistService, "batchSize", 2);
+        ReflectionTestUtils.setField(messagePersistService, "flushIntervalMs", 20L);
+        ReflectionTestUtils.setField(messagePersistService, "offerTimeoutMs", 1L);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        messagePersistService.shutdown();
+    }
+
+    /**
+     * Test that queued messages are written in bulk and receive an ID before persistence.
+     */
+    @Test
+    void testMessagesAreWrittenInBulk() {
+        messagePersistService.init();
+
+        ChatMessage first = message("hello");
+        ChatMessage second = message("world");
+        assertTrue(messagePersistService.enqueue(first));
+        assertTrue(messagePersistService.enqueue(second));
+        assertNotNull(first.getId());
+
+        verify(bulkOperations, timeout(1000).atLeastOnce()).insert(anyList());
+        verify(bulkOperations, timeout(1000).atLeastOnce()).execute();
+        verify(mongoTemplate, never()).save(any(), anyString());
+    }
+
+    /**
+     * Test that a full queue rejects new messages instead of growing.
+     */
+    @Test
+    void testEnqueueRejectsWhenQueueIsFull() throws Exception {
+        // Block the flusher inside its first bulk write so that the queue can fill up
+        Object lock = new Object();
+        doAnswer(invocation -> {
+            synchronized (lock) {
+                lock.wait(500);
+            }
+            return null;
+        }).when(bulkOperations).execute();
+        messagePersistService.init();
+
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (messagePersistService.enqueue(message("message " + i))) {
+                accepted++;
+            }
+        }
+
+        assertTrue(accepted < 10);
+        assertTrue(meterRegistry.counter("im.persist.rejected").count() > 0);
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Test that shutdown writes queued messages and then rejects new ones.
+     */
+    @Test
+    void testShutdownFlushesAndStopsAccepting() {
+        messagePersistService.init();
+        messagePersistService.enqueue(message("pending"));
+
+        messagePersistService.shutdown();
+
+        assertEquals(0, messagePersistService.getQueueDepth());
+        verify(bulkOperations, atLeastOnce()).insert(anyList());
+        assertFalse(messagePersistService.enqueue(message("late")));
+    }
+
+    /**
+     * Test that a failed bulk write falls back to saving each message.
+     */
+    @Test
+    void testFailedBulkWriteFallsBackToSingleSaves() {
+        when(bulkOperations.execute()).thenThrow(new RuntimeException("bulk failure"));
+        messagePersistService.init();
+
+        ChatMessage chatMessage = message("retry me");
+        messagePersistService.enqueue(chatMessage);
+        messagePersistService.shutdown();
+
+        verify(mongoTemplate, atLeastOnce()).save(chatMessage, collectionOf(chatMessage));
+    }
+
+    /**
+     * Test that a batch spanning the turn of a month is written to both monthly collections.
+     */
+    @Test
+    void testBatchIsSplitByMonth() {
+        messagePersistService.init();
+        ChatMessage december = message("old year");
+        december.setTimestamp(1704067199000L);
+        ChatMessage january = message("new year");
+        january.setTimestamp(1704067200000L);
+
+        messagePersistService.enqueue(december);
+        messagePersistService.enqueue(january);
+        messagePersistService.shutdown();
+
+        verify(mongoTemplate, atLeastOnce()).bulkOps(any(BulkOperations.BulkMode.class), eq(ChatMessage.class), eq("messages_202312"));
+        verify(mongoTemplate, atLeastOnce()).bulkOps(any(BulkOperations.BulkMode.class), eq(ChatMessage.class), eq("messages_202401"));
+    }
+
+    private static String collectionOf(ChatMessage chatMessage) {
+        return MessageBucketRouter.collectionName(MessageBucketRouter.monthOf(chatMessage.getTimestamp()));
+    }
+
+    private static ChatMessage message(String content) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setType("DIRECT");
+        chatMessage.setSenderId(1L);
+        chatMessage.setReceiverId(2L);
+        chatMessage.setContent(content);
+        chatMessage.setTimestamp(System.currentTimeMillis());
+        return chatMessage;
+    }
+}
@@ -0,0 +1,221 @@
+package com.scoder.im.service;
+
+import com.scoder.common.core.web.page.TableDataInfo;
+import com.scoder.im.domain.ChatMessage;
+import com.scoder.im.repository.MessageBucketRouter;
+import com.scoder.im.repository.MessageSegmentStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MessageSearchIndexTest {
+
+    private static final String DIRECT = ChatMessage.directConversationKey(1L, 2L);
+    private static final String TEAM = ChatMessage.teamConversationKey(7L);
+
+    @TempDir
+    Path indexDir;
+
+    private MessageSearchIndex messageSearchIndex;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        MessageBucketRouter bucketRouter = mock(MessageBucketRouter.class);
+        when(bucketRouter.buckets(any(), any(), anyBoolean())).thenReturn(Collections.emptyList());
+
+        messageSearchIndex = new MessageSearchIndex();
+        ReflectionTestUtils.setField(messageSearchIndex, "enabled", true);
+        ReflectionTestUtils.setField(messageSearchIndex, "indexDir", indexDir.toString());
+        ReflectionTestUtils.setField(messageSearchIndex, "queueCapacity", 100);
+        ReflectionTestUtils.setField(messageSearchIndex, "catchUpLagMs", 60000L);
+        ReflectionTestUtils.setField(messageSearchIndex, "maxResults", 1000);
+        ReflectionTestUtils.setField(messageSearchIndex, "bucketRouter", bucketRouter);
+        ReflectionTestUtils.setField(messageSearchIndex, "meterRegistry", new SimpleMeterRegistry());
+        messageSearchIndex.open();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        messageSearchIndex.close();
+    }
+
+    /**
+     * Test that only the conversations passed in are searched.
+     */
+    @Test
+    void testSearchIsScopedToConversations() throws Exception {
+        messageSearchIndex.index(List.of(
+                direct("d1", 1, "Lunch at noon?"),
+                team("t1", 2, "Lunch is on the team today"),
+                direct("d2", 3, "Meeting moved")));
+        messageSearchIndex.refresh();
+
+        TableDataInfo<ChatMessage> result = messageSearchIndex.search(List.of(DIRECT), "lunch", 1, 20);
+        assertEquals(1, result.getTotal());
+        assertEquals("d1", result.getRows().get(0).getId());
+        assertEquals(2L, result.getRows().get(0).getReceiverId());
+        assertEquals(DIRECT, result.getRows().get(0).getConversationKey());
+
+        assertEquals(2, messageSearchIndex.search(List.of(DIRECT, TEAM), "lunch", 1, 20).getTotal());
+        assertEquals(0, messageSearchIndex.search(Collections.emptyList(), "lunch", 1, 20).getTotal());
+    }
+
+    /**
+     * Test that matches are paged newest first, including text without spaces between words.
+     */
+    @Test
+    void testPagesAreNewestFirst() throws Exception {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (long timestamp = 1; timestamp <= 5; timestamp++) {
+            messages.add(team("t" + timestamp, timestamp, "明天开会吗 " + timestamp));
+        }
+        messageSearchIndex.index(messages);
+        messageSearchIndex.refresh();
+
+        TableDataInfo<ChatMessage> first = messageSearchIndex.search(List.of(TEAM), "开会", 1, 2);
+        assertEquals(5, first.getTotal());
+        assertEquals(List.of("t5", "t4"), ids(first.getRows()));
+        assertEquals(List.of("t1"), ids(messageSearchIndex.search(List.of(TEAM), "开会", 3, 2).getRows()));
+        assertEquals(7L, first.getRows().get(0).getTeamId());
+    }
+
+    /**
+     * Test that a message indexed twice is found once and that the watermark survives a restart.
+     */
+    @Test
+    void testReindexingAndWatermarkAcrossRestart() throws Exception {
+        messageSearchIndex.index(List.of(direct("d1", 1, "hello")));
+        messageSearchIndex.catchUp(Long.MIN_VALUE);
+        messageSearchIndex.index(List.of(direct("d1", 1, "hello")));
+        long watermark = messageSearchIndex.watermark();
+        assertTrue(watermark > 0);
+
+        messageSearchIndex.close();
+        messageSearchIndex.open();
+
+        assertEquals(watermark, messageSearchIndex.watermark());
+        assertEquals(1, messageSearchIndex.search(List.of(DIRECT), "hello", 1, 20).getTotal());
+    }
+
+    /**
+     * Test that a message another node stored late, with a lower ID than one already read, is
+     * still picked up by the next poll in cluster mode.
+     */
+    @Test
+    void testTailReadsMessagesStoredOutOfIdOrder() throws Exception {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        MessageSegmentStore segmentStore = mock(MessageSegmentStore.class);
+        MessageBucketRouter bucketRouter = new MessageBucketRouter();
+        ReflectionTestUtils.setField(bucketRouter, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(bucketRouter, "segmentStore", segmentStore);
+        when(mongoTemplate.getCollectionNames())
+                .thenReturn(Set.of(MessageBucketRouter.collectionName(YearMonth.now(ZoneOffset.UTC))));
+        when(segmentStore.months()).thenAnswer(invocation -> new TreeSet<YearMonth>());
+        bucketRouter.refresh();
+        ReflectionTestUtils.setField(messageSearchIndex, "bucketRouter", bucketRouter);
+        ReflectionTestUtils.setField(messageSearchIndex, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(messageSearchIndex, "clustered", true);
+
+        List<ChatMessage> stored = new ArrayList<>();
+        when(mongoTemplate.stream(any(Query.class), eq(ChatMessage.class), anyString()))
+                .thenAnswer(invocation -> iterator(stored, invocation.getArgument(0)));
+        long now = System.currentTimeMillis();
+        String newer = new ObjectId(new Date(now)).toHexString();
+        // Queued a few seconds earlier on another node, but flushed later
+        String older = new ObjectId(new Date(now - 5000)).toHexString();
+
+        stored.add(direct(newer, now, "newer message"));
+        messageSearchIndex.tail();
+        stored.add(direct(older, now - 5000, "older message"));
+        messageSearchIndex.tail();
+        messageSearchIndex.refresh();
+
+        assertEquals(List.of(newer, older), ids(messageSearchIndex.search(List.of(DIRECT), "message", 1, 20).getRows()));
+    }
+
+    /**
+     * Returns the stored messages matching the lower bound on the ID of a tailing query.
+     */
+    private static CloseableIterator<ChatMessage> iterator(List<ChatMessage> stored, Query query) {
+        Document bound = (Document) query.getQueryObject().get("_id");
+        ObjectId from = (ObjectId) bound.get("$gte");
+        Iterator<ChatMessage> matching = stored.stream()
+                .filter(chatMessage -> new ObjectId(chatMessage.getId()).compareTo(from) >= 0)
+                .collect(Collectors.toList())
+                .iterator();
+        return new CloseableIterator<ChatMessage>() {
+            @Override
+            public boolean hasNext() {
+                return matching.hasNext();
+            }
+
+            @Override
+            public ChatMessage next() {
+                return matching.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static List<String> ids(List<ChatMessage> messages) {
+        List<String> ids = new ArrayList<>();
+        for (ChatMessage chatMessage : messages) {
+            ids.add(chatMessage.getId());
+        }
+        return ids;
+    }
+
+    private static ChatMessage direct(String id, long timestamp, String content) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(id);
+        chatMessage.setType("DIRECT");
+        chatMessage.setSenderId(1L);
+        chatMessage.setReceiverId(2L);
+        chatMessage.setContent(content);
+        chatMessage.setTimestamp(timestamp);
+        chatMessage.setConversationKey(DIRECT);
+        return chatMessage;
+    }
+
+    private static ChatMessage team(String id, long timestamp, String content) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(id);
+        chatMessage.setType("GROUP");
+        chatMessage.setSenderId(1L);
+        chatMessage.setTeamId(7L);
+        chatMessage.setContent(content);
+        chatMessage.setTimestamp(timestamp);
+        return chatMessage;
+    }
+}
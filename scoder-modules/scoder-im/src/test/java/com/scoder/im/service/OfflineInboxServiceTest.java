@@ -0,0 +1,235 @@
+package com.scoder.im.service;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.scoder.im.handler.MessageFanout;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisScriptingCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class OfflineInboxServiceTest {
+
+    private static final String INBOX = "im:inbox:{1}";
+
+    @InjectMocks
+    private OfflineInboxService offlineInboxService;
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    @Mock
+    private ZSetOperations<String, String> zSetOperations;
+
+    @Mock
+    private MessageFanout messageFanout;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private EmbeddedChannel channel;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        ReflectionTestUtils.setField(offlineInboxService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(offlineInboxService, "maxSize", 1000);
+        ReflectionTestUtils.setField(offlineInboxService, "ttlDays", 14L);
+        ReflectionTestUtils.setField(offlineInboxService, "replayBatchSize", 2);
+        ReflectionTestUtils.setField(offlineInboxService, "queueCapacity", 100);
+        when(redisTemplate.opsForZSet()).thenReturn(zSetOperations);
+        offlineInboxService.init();
+        channel = new EmbeddedChannel();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Test that an offline message is appended with one script call per user, which allocates
+     * the sequence number, adds the entry, trims the inbox to its maximum size and sets the expiry.
+     */
+    @Test
+    void testStoreRunsTheAppendScriptPerUser() throws Exception {
+        RedisConnection connection = mock(RedisConnection.class);
+        RedisScriptingCommands scripting = mock(RedisScriptingCommands.class);
+        when(connection.scriptingCommands()).thenReturn(scripting);
+        when(redisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            RedisCallback<?> callback = invocation.getArgument(0);
+            callback.doInRedis(connection);
+            return List.of();
+        });
+
+        offlineInboxService.store(payload("DIRECT", "hello"), List.of(1L, 2L));
+        offlineInboxService.store(payload("TYPING", null), List.of(1L));
+        offlineInboxService.shutdown();
+
+        ArgumentCaptor<byte[]> script = ArgumentCaptor.forClass(byte[].class);
+        ArgumentCaptor<byte[]> args = ArgumentCaptor.forClass(byte[].class);
+        verify(scripting, times(2)).eval(script.capture(), eq(ReturnType.INTEGER), eq(2), args.capture());
+        String lua = string(script.getValue());
+        assertTrue(lua.contains("redis.call('INCR', KEYS[1])"));
+        assertTrue(lua.contains("redis.call('ZADD', KEYS[2], seq, seq .. ':' .. ARGV[1])"));
+        // Ranks 0 to -(max + 1) are everything but the newest max entries
+        assertTrue(lua.contains("redis.call('ZREMRANGEBYRANK', KEYS[2], 0, -tonumber(ARGV[2]) - 1)"));
+        assertTrue(lua.contains("redis.call('PEXPIRE', KEYS[2], ARGV[3])"));
+
+        List<String> values = new ArrayList<>();
+        for (byte[] value : args.getAllValues()) {
+            values.add(string(value));
+        }
+        assertEquals(List.of("im:inbox:seq:{1}", INBOX, "hello", "1000", "1209600000",
+                "im:inbox:seq:{2}", "im:inbox:{2}", "hello", "1000", "1209600000"), contentOf(values));
+        assertEquals(2, meterRegistry.counter("im.inbox.stored").count());
+    }
+
+    /**
+     * Test that a LOGIN replay removes the acknowledged entries and streams the newer ones in
+     * batches, flagging every batch but the last with {@code more}.
+     */
+    @Test
+    void testReplayRemovesAcknowledgedAndStreamsInBatches() throws Exception {
+        when(zSetOperations.rangeByScoreWithScores(INBOX, 6, Double.POSITIVE_INFINITY, 0, 2))
+                .thenReturn(entries(6, 7));
+        when(zSetOperations.rangeByScoreWithScores(INBOX, 8, Double.POSITIVE_INFINITY, 0, 2))
+                .thenReturn(entries(8));
+
+        offlineInboxService.replay(channel, 1L, 5);
+        offlineInboxService.shutdown();
+
+        verify(zSetOperations).removeRangeByScore(INBOX, 0, 5);
+        List<JSONObject> frames = frames();
+        assertEquals(2, frames.size());
+        assertEquals(List.of(6L, 7L), seqs(frames.get(0)));
+        assertEquals(7L, frames.get(0).getLongValue("lastSeq"));
+        assertTrue(frames.get(0).getBooleanValue("more"));
+        assertEquals("message 6", frames.get(0).getJSONArray("messages").getJSONObject(0)
+                .getJSONObject("message").getString("content"));
+        assertEquals(List.of(8L), seqs(frames.get(1)));
+        assertFalse(frames.get(1).getBooleanValue("more"));
+        assertEquals(3, meterRegistry.counter("im.inbox.replayed").count());
+    }
+
+    /**
+     * Test that resuming a throttled channel streams the entries after the checkpoint without
+     * removing anything.
+     */
+    @Test
+    void testResumeStreamsAfterCheckpointWithoutRemoving() throws Exception {
+        @SuppressWarnings("unchecked")
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.get("im:inbox:seq:{1}")).thenReturn("9");
+        when(zSetOperations.rangeByScoreWithScores(INBOX, 10, Double.POSITIVE_INFINITY, 0, 2))
+                .thenReturn(entries(10));
+
+        offlineInboxService.checkpoint(channel, 1L);
+        offlineInboxService.resume(channel, 1L);
+        offlineInboxService.shutdown();
+
+        verify(zSetOperations, never()).removeRangeByScore(anyString(), anyDouble(), anyDouble());
+        List<JSONObject> frames = frames();
+        assertEquals(1, frames.size());
+        assertEquals(List.of(10L), seqs(frames.get(0)));
+    }
+
+    /**
+     * Test that work the inbox thread cannot take is dropped and counted, not run by the caller.
+     */
+    @Test
+    void testRejectedWorkIsNotRunByTheCaller() throws Exception {
+        offlineInboxService.shutdown();
+
+        offlineInboxService.replay(channel, 1L, 0);
+        offlineInboxService.store(payload("DIRECT", "hello"), List.of(1L));
+
+        verifyNoInteractions(zSetOperations);
+        verify(redisTemplate, never()).executePipelined(any(RedisCallback.class));
+        assertEquals(2, meterRegistry.counter("im.inbox.rejected").count());
+    }
+
+    private List<JSONObject> frames() {
+        ArgumentCaptor<CharSequence> json = ArgumentCaptor.forClass(CharSequence.class);
+        verify(messageFanout, atLeast(0)).sendJson(eq(channel), json.capture());
+        List<JSONObject> frames = new ArrayList<>();
+        for (CharSequence frame : json.getAllValues()) {
+            JSONObject object = JSON.parseObject(frame.toString());
+            assertEquals("OFFLINE", object.getString("type"));
+            frames.add(object);
+        }
+        return frames;
+    }
+
+    private static List<Long> seqs(JSONObject frame) {
+        JSONArray messages = frame.getJSONArray("messages");
+        List<Long> seqs = new ArrayList<>();
+        for (int i = 0; i < messages.size(); i++) {
+            seqs.add(messages.getJSONObject(i).getLongValue("seq"));
+        }
+        return seqs;
+    }
+
+    private static Set<ZSetOperations.TypedTuple<String>> entries(long... seqs) {
+        Set<ZSetOperations.TypedTuple<String>> entries = new LinkedHashSet<>();
+        for (long seq : seqs) {
+            String message = JSON.toJSONString(payload("DIRECT", "message " + seq));
+            entries.add(new DefaultTypedTuple<>(seq + ":" + message, (double) seq));
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the serialized payloads with their content, so that the script arguments read plainly.
+     */
+    private static List<String> contentOf(List<String> values) {
+        List<String> readable = new ArrayList<>();
+        for (String value : values) {
+            readable.add(value.startsWith("{") ? JSON.parseObject(value).getString("content") : value);
+        }
+        return readable;
+    }
+
+    private static Map<String, String> payload(String type, String content) {
+        Map<String, String> payload = new HashMap<>();
+        payload.put("type", type);
+        payload.put("senderId", "2");
+        payload.put("receiverId", "1");
+        if (content != null) {
+            payload.put("content", content);
+        }
+        return payload;
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
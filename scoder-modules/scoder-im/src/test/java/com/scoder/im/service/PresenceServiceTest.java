@@ -0,0 +1,117 @@
+package com.scoder.im.service;
+
+import com.scoder.im.api.domain.Group;
+import com.scoder.im.cluster.MessageRouter;
+import com.scoder.im.domain.Conversation;
+import com.scoder.im.repository.GroupRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class PresenceServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private GroupRepository groupRepository;
+
+    @Mock
+    private MessageRouter messageRouter;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private PresenceService presenceService;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        GroupMembershipCache groupMembershipCache = new GroupMembershipCache();
+        ReflectionTestUtils.setField(groupMembershipCache, "groupRepository", groupRepository);
+        ReflectionTestUtils.setField(groupMembershipCache, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(groupMembershipCache, "maxSize", 100);
+        ReflectionTestUtils.setField(groupMembershipCache, "ttlMs", 60000L);
+        groupMembershipCache.init();
+
+        presenceService = new PresenceService();
+        ReflectionTestUtils.setField(presenceService, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(presenceService, "groupMembershipCache", groupMembershipCache);
+        ReflectionTestUtils.setField(presenceService, "messageRouter", messageRouter);
+        ReflectionTestUtils.setField(presenceService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(presenceService, "enabled", true);
+        // The window is driven by calling flush directly
+        ReflectionTestUtils.setField(presenceService, "windowMs", 60000L);
+        presenceService.init();
+
+        Group group = new Group();
+        group.setTeamId(3L);
+        group.setMemberIds(new ArrayList<>(List.of(1L, 2L, 4L)));
+        when(groupRepository.findByTeamId(3L)).thenReturn(group);
+        when(mongoTemplate.find(any(Query.class), eq(Conversation.class), eq("conversations")))
+                .thenReturn(List.of(entry(1L, 3L), entry(2L, 3L)));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        presenceService.shutdown();
+    }
+
+    /**
+     * Test that the changes of one window reach each team as a single frame.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void testChangesAreBatchedPerTeam() {
+        presenceService.online(1L);
+        presenceService.online(2L);
+
+        assertEquals(1, presenceService.flush());
+
+        ArgumentCaptor<Map<String, String>> payload = ArgumentCaptor.forClass(Map.class);
+        ArgumentCaptor<Collection<Long>> recipients = ArgumentCaptor.forClass(Collection.class);
+        verify(messageRouter, times(1)).route(payload.capture(), recipients.capture());
+        assertEquals("PRESENCE", payload.getValue().get("type"));
+        assertEquals("1,2", payload.getValue().get("online"));
+        assertEquals("", payload.getValue().get("offline"));
+        assertEquals(List.of(1L, 2L, 4L), new ArrayList<>(recipients.getValue()));
+    }
+
+    /**
+     * Test that a user who reconnects within the window causes no broadcast.
+     */
+    @Test
+    void testReconnectWithinWindowIsSuppressed() {
+        presenceService.online(1L);
+        presenceService.flush();
+        clearInvocations(messageRouter);
+
+        presenceService.offline(1L);
+        presenceService.online(1L);
+
+        assertEquals(0, presenceService.flush());
+        verifyNoInteractions(messageRouter);
+        assertEquals(1.0, meterRegistry.counter("im.presence.suppressed").count());
+    }
+
+    private static Conversation entry(Long ownerId, Long teamId) {
+        Conversation conversation = new Conversation();
+        conversation.setOwnerId(ownerId);
+        conversation.setTeamId(teamId);
+        return conversation;
+    }
+}
@@ -0,0 +1,223 @@
+package com.scoder.im.service;
+
+import com.scoder.im.domain.ChatMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecentMessageCacheTest {
+
+    private static final String KEY = ChatMessage.directConversationKey(1L, 2L);
+
+    private RecentMessageCache recentMessageCache;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    /**
+     * The messages "stored in MongoDB", oldest first.
+     */
+    private final List<ChatMessage> stored = new ArrayList<>();
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        recentMessageCache = new RecentMessageCache();
+        ReflectionTestUtils.setField(recentMessageCache, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(recentMessageCache, "enabled", true);
+        ReflectionTestUtils.setField(recentMessageCache, "capacity", 5);
+        ReflectionTestUtils.setField(recentMessageCache, "maxBytes", 1000000L);
+        recentMessageCache.init();
+    }
+
+    /**
+     * Test that the first latest-page read loads MongoDB and later ones are served from memory,
+     * including messages stored in between.
+     */
+    @Test
+    void testLatestPageIsServedFromMemoryAfterFirstRead() {
+        for (long i = 1; i <= 3; i++) {
+            stored.add(message("m" + i, i));
+        }
+
+        assertEquals(List.of("m2", "m3"), ids(latest(2)));
+        store(message("m4", 4));
+        assertEquals(List.of("m3", "m4"), ids(latest(2)));
+        assertEquals(List.of("m1", "m2", "m3", "m4"), ids(latest(10)));
+
+        assertEquals(1, loads.get());
+        assertEquals(2, meterRegistry.counter("im.history.cache.hit").count());
+        assertEquals(1, meterRegistry.counter("im.history.cache.miss").count());
+        assertEquals(2.0 / 3, meterRegistry.get("im.history.cache.hit.ratio").gauge().value(), 1e-9);
+    }
+
+    /**
+     * Test that messages stored by the write path fill a conversation before it is ever read.
+     */
+    @Test
+    void testWritesFillTheRing() {
+        for (long i = 1; i <= 6; i++) {
+            store(message("m" + i, i));
+        }
+
+        assertEquals(List.of("m4", "m5", "m6"), ids(latest(3)));
+        assertEquals(0, loads.get());
+        assertTrue(recentMessageCache.bytes() > 0);
+    }
+
+    /**
+     * Test that an older page is served from memory only when the ring holds all of it.
+     */
+    @Test
+    void testOlderPagesFallThroughWhenNotHeld() {
+        for (long i = 1; i <= 8; i++) {
+            store(message("m" + i, i));
+        }
+
+        assertEquals(List.of("m5", "m6"), ids(page(7L, null, 2)));
+        assertEquals(0, loads.get());
+        assertEquals(List.of("m2", "m3", "m4"), ids(page(5L, null, 3)));
+        assertEquals(1, loads.get());
+        assertEquals(List.of("m7", "m8"), ids(page(null, 6L, 10)));
+        assertEquals(1, loads.get());
+    }
+
+    /**
+     * Test that paging through messages of the same millisecond with the ID in the cursor
+     * returns each of them once, from memory and from MongoDB alike.
+     */
+    @Test
+    void testCursorBreaksTimestampTiesById() {
+        for (int i = 1; i <= 8; i++) {
+            store(message("m" + i, i <= 2 ? 1 : 5));
+        }
+
+        List<ChatMessage> latest = latest(2);
+        assertEquals(List.of("m7", "m8"), ids(latest));
+        List<ChatMessage> older = page(5L, "m7", null, null, 2);
+        assertEquals(List.of("m5", "m6"), ids(older));
+        assertEquals(0, loads.get());
+        assertEquals(List.of("m1", "m2", "m3", "m4"), ids(page(5L, "m5", null, null, 5)));
+        assertEquals(1, loads.get());
+        assertEquals(List.of("m6", "m7", "m8"), ids(page(null, null, 5L, "m5", 5)));
+        assertEquals(1, loads.get());
+    }
+
+    /**
+     * Test that a message both read from MongoDB and passed on by the write path is held once.
+     */
+    @Test
+    void testMessageSeenTwiceIsHeldOnce() {
+        stored.add(message("m1", 1));
+        stored.add(message("m2", 2));
+        latest(10);
+        recentMessageCache.onPersisted(Collections.singletonList(stored.get(1)));
+
+        assertEquals(List.of("m1", "m2"), ids(latest(10)));
+    }
+
+    /**
+     * Test that the least recently used conversation is dropped when the memory budget is exceeded.
+     */
+    @Test
+    void testColdConversationsAreEvicted() {
+        long messageSize = RecentMessageCache.estimateSize(teamMessage("t1", 1));
+        ReflectionTestUtils.setField(recentMessageCache, "maxBytes", messageSize * 2);
+
+        recentMessageCache.onPersisted(Collections.singletonList(teamMessage("t1", 1)));
+        recentMessageCache.onPersisted(Collections.singletonList(teamMessage("t2", 2)));
+        recentMessageCache.onPersisted(Collections.singletonList(teamMessage("t3", 3)));
+
+        assertEquals(2, recentMessageCache.size());
+        assertEquals(messageSize * 2, recentMessageCache.bytes());
+        assertEquals(1, meterRegistry.counter("im.history.cache.evictions").count());
+    }
+
+    /**
+     * Test that reads go straight to MongoDB in cluster mode.
+     */
+    @Test
+    void testBypassedInClusterMode() {
+        ReflectionTestUtils.setField(recentMessageCache, "clustered", true);
+        store(message("m1", 1));
+
+        assertEquals(List.of("m1"), ids(latest(10)));
+        assertEquals(List.of("m1"), ids(latest(10)));
+        assertEquals(2, loads.get());
+        assertEquals(0, recentMessageCache.size());
+    }
+
+    private List<ChatMessage> latest(int limit) {
+        return page(null, null, limit);
+    }
+
+    private List<ChatMessage> page(Long before, Long after, int limit) {
+        return page(before, null, after, null, limit);
+    }
+
+    private List<ChatMessage> page(Long before, String beforeId, Long after, String afterId, int limit) {
+        return recentMessageCache.getPage(KEY, before, beforeId, after, afterId, limit, this::load);
+    }
+
+    /**
+     * Reads a page of the stored messages the way the repository does.
+     */
+    private List<ChatMessage> load(Long before, String beforeId, Long after, String afterId, int limit) {
+        loads.incrementAndGet();
+        List<ChatMessage> matching = new ArrayList<>();
+        for (ChatMessage chatMessage : stored) {
+            if (ChatMessage.isWithin(chatMessage, before, beforeId, after, afterId)) {
+                matching.add(chatMessage);
+            }
+        }
+        if (after != null) {
+            return new ArrayList<>(matching.subList(0, Math.min(limit, matching.size())));
+        }
+        return new ArrayList<>(matching.subList(Math.max(0, matching.size() - limit), matching.size()));
+    }
+
+    private void store(ChatMessage chatMessage) {
+        stored.add(chatMessage);
+        recentMessageCache.onPersisted(Collections.singletonList(chatMessage));
+    }
+
+    private static List<String> ids(List<ChatMessage> messages) {
+        List<String> ids = new ArrayList<>();
+        for (ChatMessage chatMessage : messages) {
+            ids.add(chatMessage.getId());
+        }
+        return ids;
+    }
+
+    private static ChatMessage message(String id, long timestamp) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(id);
+        chatMessage.setType("DIRECT");
+        chatMessage.setSenderId(1L);
+        chatMessage.setReceiverId(2L);
+        chatMessage.setContent("hi");
+        chatMessage.setTimestamp(timestamp);
+        chatMessage.setConversationKey(KEY);
+        return chatMessage;
+    }
+
+    private static ChatMessage teamMessage(String id, long timestamp) {
+        ChatMessage chatMessage = new ChatMessage();
+        chatMessage.setId(id);
+        chatMessage.setType("GROUP");
+        chatMessage.setSenderId(1L);
+        chatMessage.setTeamId(Long.parseLong(id.substring(1)));
+        chatMessage.setContent("hi");
+        chatMessage.setTimestamp(timestamp);
+        return chatMessage;
+    }
+}
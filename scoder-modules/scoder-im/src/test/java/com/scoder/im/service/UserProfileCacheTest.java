@@ -0,0 +1,134 @@
+package com.scoder.im.service;
+
+import com.scoder.common.core.web.domain.AjaxResult;
+import com.scoder.user.api.RemoteUserService;
+import com.scoder.user.api.domain.SysUser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class UserProfileCacheTest {
+
+    @Mock
+    private RemoteUserService remoteUserService;
+
+    private UserProfileCache userProfileCache;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        meterRegistry = new SimpleMeterRegistry();
+        userProfileCache = new UserProfileCache();
+        ReflectionTestUtils.setField(userProfileCache, "remoteUserService", remoteUserService);
+        ReflectionTestUtils.setField(userProfileCache, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(userProfileCache, "maxSize", 100);
+        ReflectionTestUtils.setField(userProfileCache, "ttlMs", 60000L);
+        userProfileCache.init();
+    }
+
+    /**
+     * Test that missing profiles are fetched with one request and served from memory afterwards.
+     */
+    @Test
+    void testMissingProfilesAreFetchedTogether() {
+        when(remoteUserService.getUsersByIds(List.of(2L, 3L))).thenReturn(AjaxResult.success(List.of(user(2L), user(3L))));
+        when(remoteUserService.getUsersByIds(List.of(4L))).thenReturn(AjaxResult.success(List.of(user(4L))));
+
+        Map<Long, SysUser> first = userProfileCache.getProfiles(List.of(2L, 3L, 2L));
+        Map<Long, SysUser> second = userProfileCache.getProfiles(List.of(2L, 3L, 4L));
+
+        assertEquals("user2", first.get(2L).getNickName());
+        assertEquals(3, second.size());
+        verify(remoteUserService, times(1)).getUsersByIds(List.of(2L, 3L));
+        verify(remoteUserService, times(1)).getUsersByIds(List.of(4L));
+        verify(remoteUserService, never()).getUserById(any());
+        assertEquals(2, meterRegistry.counter("im.user.cache.hit").count());
+        assertEquals(3, meterRegistry.counter("im.user.cache.miss").count());
+    }
+
+    /**
+     * Test that a changed profile is fetched again after its invalidation.
+     */
+    @Test
+    void testEvictedProfileIsFetchedAgain() {
+        SysUser renamed = user(2L);
+        renamed.setNickName("renamed");
+        when(remoteUserService.getUsersByIds(List.of(2L)))
+                .thenReturn(AjaxResult.success(List.of(user(2L))))
+                .thenReturn(AjaxResult.success(List.of(renamed)));
+
+        userProfileCache.getProfiles(List.of(2L));
+        userProfileCache.evict(2L);
+
+        assertEquals("renamed", userProfileCache.getProfiles(List.of(2L)).get(2L).getNickName());
+        verify(remoteUserService, times(2)).getUsersByIds(List.of(2L));
+    }
+
+    /**
+     * Test that a failing user service leaves the profiles out instead of failing the caller.
+     */
+    @Test
+    void testFetchFailureReturnsCachedProfilesOnly() {
+        when(remoteUserService.getUsersByIds(List.of(2L))).thenReturn(AjaxResult.success(List.of(user(2L))));
+        when(remoteUserService.getUsersByIds(List.of(3L))).thenThrow(new RuntimeException("unavailable"));
+        userProfileCache.getProfiles(List.of(2L));
+
+        Map<Long, SysUser> profiles = userProfileCache.getProfiles(List.of(2L, 3L));
+
+        assertEquals(1, profiles.size());
+        assertTrue(profiles.containsKey(2L));
+        assertEquals(1, meterRegistry.counter("im.user.cache.fetch.failed").count());
+    }
+
+    /**
+     * Test that more missing profiles than the user service accepts at once are fetched in
+     * batches within its limit.
+     */
+    @Test
+    void testLargeFetchIsSplitIntoBatches() {
+        List<Long> userIds = new ArrayList<>();
+        for (long userId = 1; userId <= 1201; userId++) {
+            userIds.add(userId);
+        }
+        when(remoteUserService.getUsersByIds(anyList())).thenAnswer(invocation -> {
+            List<Long> batch = invocation.getArgument(0);
+            List<SysUser> users = new ArrayList<>();
+            for (Long userId : batch) {
+                users.add(user(userId));
+            }
+            return AjaxResult.success(users);
+        });
+
+        Map<Long, SysUser> profiles = userProfileCache.getProfiles(userIds);
+
+        assertEquals(1201, profiles.size());
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Long>> batches = ArgumentCaptor.forClass((Class) List.class);
+        verify(remoteUserService, times(3)).getUsersByIds(batches.capture());
+        assertEquals(List.of(500, 500, 201), batches.getAllValues().stream().map(List::size).collect(Collectors.toList()));
+        assertEquals(userIds.subList(500, 1000), batches.getAllValues().get(1));
+    }
+
+    private static SysUser user(Long userId) {
+        SysUser user = new SysUser();
+        user.setUserId(userId);
+        user.setNickName("user" + userId);
+        user.setAvatar("avatar" + userId);
+        return user;
+    }
+}
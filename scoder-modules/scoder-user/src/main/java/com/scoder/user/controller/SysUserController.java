@@ -1,5 +1,6 @@
 package com.scoder.user.controller;
 
+import com.scoder.common.core.constant.CacheConstants;
 import com.scoder.common.core.constant.UserConstants;
 import com.scoder.common.core.domain.R;
 import com.scoder.common.core.utils.SecurityUtils;
@@ -12,7 +13,10 @@ import com.scoder.file.api.RemoteFileService;
 import com.scoder.user.api.domain.SysUser;
 import com.scoder.user.api.model.LoginUser;
 import com.scoder.user.service.ISysUserService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 
@@ -28,6 +32,13 @@ import java.util.List;
 @RequestMapping
 public class SysUserController extends BaseController {
 
+    private static final Logger log = LoggerFactory.getLogger(SysUserController.class);
+
+    /**
+     * Upper bound on the number of users returned by one bulk lookup.
+     */
+    private static final int MAX_BULK_SIZE = 500;
+
     @Autowired
     private ISysUserService userService;
 
@@ -37,6 +48,9 @@ public class SysUserController extends BaseController {
     @Autowired
     private RemoteFileService remoteFileService;
 
+    @Autowired(required = false)
+    private StringRedisTemplate redisTemplate;
+
     /**
      * Retrieves a list of all users.
      *
@@ -88,6 +102,20 @@ public class SysUserController extends BaseController {
         return AjaxResult.success(userService.selectUserById(userId));
     }
 
+    /**
+     * Retrieves the public profiles of several users with one request.
+     *
+     * @param userIds The IDs of the users, at most {@value #MAX_BULK_SIZE}.
+     * @return The users found, with only their ID, username, nickname and avatar set.
+     */
+    @PostMapping("/getUsersByIds")
+    public AjaxResult<List<SysUser>> getUsersByIds(@RequestBody List<Long> userIds) {
+        if (userIds.size() > MAX_BULK_SIZE) {
+            return AjaxResult.error("At most " + MAX_BULK_SIZE + " users can be requested at once.", null);
+        }
+        return AjaxResult.success(userService.selectUsersByIds(userIds));
+    }
+
     /**
      * Registers a new user.
      *
@@ -117,7 +145,11 @@ public class SysUserController extends BaseController {
                 && UserConstants.NOT_UNIQUE.equals(userService.checkEmailUnique(user))) {
             return AjaxResult.error("Failed to update user. Email already exists.");
         }
-        return toAjax(userService.updateUser(user));
+        int rows = userService.updateUser(user);
+        if (rows > 0) {
+            publishProfileChange(user.getUserId());
+        }
+        return toAjax(rows);
     }
 
     /**
@@ -169,8 +201,26 @@ public class SysUserController extends BaseController {
             LoginUser loginUser = tokenService.getLoginUser();
             loginUser.setSysUser(user);
             tokenService.setLoginUser(loginUser);
+            publishProfileChange(user.getUserId());
             return AjaxResult.success();
         }
         return AjaxResult.error("Failed to update profile.");
     }
+
+    /**
+     * Tells the services that cache user profiles that a user has changed. A failure is only
+     * logged, since the caches expire their entries on their own.
+     *
+     * @param userId The ID of the changed user.
+     */
+    private void publishProfileChange(Long userId) {
+        if (redisTemplate == null || userId == null) {
+            return;
+        }
+        try {
+            redisTemplate.convertAndSend(CacheConstants.USER_PROFILE_CHANNEL, userId.toString());
+        } catch (Exception e) {
+            log.warn("Failed to publish the profile change of user {}: {}", userId, e.getMessage());
+        }
+    }
 }
\ No newline at end of file
@@ -3,6 +3,9 @@ package com.scoder.user.service;
 import com.scoder.common.core.web.page.IServicePlus;
 import com.scoder.user.api.domain.SysUser;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Service interface for managing user-related operations.
  * Provides methods for CRUD operations, validation, and user-specific actions.
@@ -28,6 +31,14 @@ public interface ISysUserService extends IServicePlus<SysUser> {
      */
     SysUser selectUserById(Long userId);
 
+    /**
+     * Retrieves the public profile fields of several users at once.
+     *
+     * @param userIds The IDs of the users.
+     * @return The users that exist, with only their ID, username, nickname and avatar set.
+     */
+    List<SysUser> selectUsersByIds(Collection<Long> userIds);
+
     /**
      * Checks whether a username is unique in the system.
      *
@@ -12,7 +12,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Implementation of user-related business logic.
@@ -48,6 +51,22 @@ public class SysUserServiceImpl extends ServiceImpl<SysUserMapper, SysUser> impl
         return userMapper.selectById(userId);
     }
 
+    /**
+     * Fetches the public profile fields of several users with a single query.
+     *
+     * @param userIds the IDs of the users to search for.
+     * @return the users found, with only their ID, username, nickname and avatar set.
+     */
+    @Override
+    public List<SysUser> selectUsersByIds(Collection<Long> userIds) {
+        if (userIds == null || userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return userMapper.selectList(new LambdaQueryWrapper<SysUser>()
+                .select(SysUser::getUserId, SysUser::getUserName, SysUser::getNickName, SysUser::getAvatar)
+                .in(SysUser::getUserId, userIds));
+    }
+
     /**
      * Checks if the given username is unique.
      *
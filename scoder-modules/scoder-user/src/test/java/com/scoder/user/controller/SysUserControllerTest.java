@@ -67,6 +67,24 @@ class SysUserControllerTest {
         verify(userService, times(1)).selectUserByUserName(username);
     }
 
+    @Test
+    void testGetUsersByIds() throws Exception {
+        SysUser first = new SysUser();
+        first.setUserId(1L);
+        SysUser second = new SysUser();
+        second.setUserId(2L);
+        when(userService.selectUsersByIds(List.of(1L, 2L))).thenReturn(List.of(first, second));
+
+        mockMvc.perform(post("/getUsersByIds")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[1,2]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data.length()").value(2))
+                .andExpect(jsonPath("$.data[1].userId").value(2));
+
+        verify(userService, times(1)).selectUsersByIds(List.of(1L, 2L));
+    }
+
     @Test
     void testRegister() throws Exception {
         // Create a complete SysUser object with necessary fields